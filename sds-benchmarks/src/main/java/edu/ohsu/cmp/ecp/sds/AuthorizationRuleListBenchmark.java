@@ -0,0 +1,54 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+
+/*
+ * the rule list built for every authorized request, with and without the rule list cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizationRuleListBenchmark {
+
+	@Param({ "1", "4", "16" })
+	int linkedPartitions ;
+
+	@Param({ "false", "true" })
+	boolean ruleCacheEnabled ;
+
+	private SupplementalDataStoreAuthorizationInterceptor interceptor ;
+	private Permissions permissions ;
+
+	@Setup
+	public void setup() {
+		interceptor = BenchmarkFixtures.authorizationInterceptor( ruleCacheEnabled ) ;
+		permissions = BenchmarkFixtures.patientPermissions( linkedPartitions ) ;
+	}
+
+	@Benchmark
+	public List<IAuthRule> buildRuleList() {
+		RequestDetails requestDetails = new SystemRequestDetails() ;
+		requestDetails.setAttribute( SupplementalDataStorePermissionsInterceptor.REQUEST_ATTR_PERMISSIONS, permissions ) ;
+		return interceptor.buildRuleList( requestDetails ) ;
+	}
+}
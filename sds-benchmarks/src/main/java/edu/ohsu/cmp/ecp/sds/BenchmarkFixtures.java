@@ -0,0 +1,186 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerCache;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.model.config.PartitionSettings;
+import ca.uhn.fhir.jpa.model.entity.ModelConfig;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.searchparam.extractor.SearchParamExtractorR4;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.util.FhirContextSearchParamRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/*
+ * in-memory fixtures for the benchmarks
+ *
+ * the SDS components are wired by hand from the collaborators each benchmarked path actually uses,
+ * so no database or application context is started
+ */
+public final class BenchmarkFixtures {
+
+	public static final String LOCAL_PARTITION_NAME = "SDS-LOCAL" ;
+	public static final String PARTITION_HEADER = "X-Partition-Name" ;
+
+	private BenchmarkFixtures() {
+	}
+
+	public static String foreignPartitionName( int index ) {
+		return "http://ehr-" + index + ".example.org/fhir/R4" ;
+	}
+
+	public static IIdType localPatientId( String idPart ) {
+		return new IdType( "Patient", idPart ) ;
+	}
+
+	public static IIdType nonLocalPatientId( int partitionIndex, String idPart ) {
+		return new IdType( foreignPartitionName( partitionIndex ), "Patient", idPart, null ) ;
+	}
+
+	/* one patient in each of the linked partitions */
+	public static List<IIdType> nonLocalPatientIds( int linkedPartitions ) {
+		List<IIdType> ids = new ArrayList<>() ;
+		for ( int i = 0 ; i < linkedPartitions ; ++i ) {
+			ids.add( nonLocalPatientId( i, "patient-" + i ) ) ;
+		}
+		return ids ;
+	}
+
+	public static UserIdentity patientIdentity( int linkedPartitions ) {
+		List<IIdType> nonLocalPatientIds = nonLocalPatientIds( linkedPartitions ) ;
+		return new UserIdentity( nonLocalPatientIds.get(0), Optional.of( localPatientId( "local-patient" ) ), nonLocalPatientIds ) ;
+	}
+
+	public static Permissions patientPermissions( int linkedPartitions ) {
+		UserIdentity patientIdentity = patientIdentity( linkedPartitions ) ;
+		return new Permissions( new Permissions.ReadAndWriteSpecificPatient( patientIdentity.basisUserId(), patientIdentity ) ) ;
+	}
+
+	public static SupplementalDataStoreProperties sdsProperties() {
+		SupplementalDataStoreProperties sdsProperties = new SupplementalDataStoreProperties() ;
+		sdsProperties.getPartition().setLocalName( LOCAL_PARTITION_NAME ) ;
+		sdsProperties.getPartition().setHttpHeader( PARTITION_HEADER ) ;
+		return sdsProperties ;
+	}
+
+	public static SupplementalDataStoreAuthorizationInterceptor authorizationInterceptor( boolean ruleCacheEnabled ) {
+		SupplementalDataStoreProperties sdsProperties = sdsProperties() ;
+		sdsProperties.getAuthorizationRuleCache().setEnabled( ruleCacheEnabled ) ;
+
+		SupplementalDataStoreAuthorizationInterceptor interceptor = new SupplementalDataStoreAuthorizationInterceptor() ;
+		interceptor.sdsProperties = sdsProperties ;
+		interceptor.meterRegistry = new SimpleMeterRegistry() ;
+		interceptor.metrics = metrics( interceptor.meterRegistry ) ;
+		interceptor.initializeRuleListCache() ;
+		return interceptor ;
+	}
+
+	public static SupplementalDataStoreMetrics metrics( MeterRegistry meterRegistry ) {
+		SupplementalDataStorePartition partition = new SupplementalDataStorePartition() ;
+		partition.sdsProperties = sdsProperties() ;
+
+		SupplementalDataStoreMetrics metrics = new SupplementalDataStoreMetrics() ;
+		metrics.meterRegistry = meterRegistry ;
+		metrics.partition = partition ;
+		return metrics ;
+	}
+
+	public static SupplementalDataStoreResourceCreation resourceCreation( FhirContext fhirContext ) {
+		FhirContextSearchParamRegistry searchParamRegistry = new FhirContextSearchParamRegistry( fhirContext ) ;
+
+		SearchParamExtractorR4 searchParamExtractor = new SearchParamExtractorR4( new ModelConfig(), new PartitionSettings(), fhirContext, searchParamRegistry ) ;
+		searchParamExtractor.start() ;
+
+		SupplementalDataStorePatientCompartmentIndex patientCompartmentIndex = new SupplementalDataStorePatientCompartmentIndex() ;
+		patientCompartmentIndex.fhirContext = fhirContext ;
+		patientCompartmentIndex.searchParamRegistry = searchParamRegistry ;
+		patientCompartmentIndex.resourceChangeListenerRegistry = new UnwatchedResourceChangeListenerRegistry() ;
+		patientCompartmentIndex.initializeIndex() ;
+
+		SupplementalDataStorePartition partition = new SupplementalDataStorePartition() ;
+		partition.sdsProperties = sdsProperties() ;
+
+		SupplementalDataStoreResourceCreation resourceCreation = new SupplementalDataStoreResourceCreation() ;
+		resourceCreation.searchParamExtractor = searchParamExtractor ;
+		resourceCreation.patientCompartmentIndex = patientCompartmentIndex ;
+		resourceCreation.partition = partition ;
+		return resourceCreation ;
+	}
+
+	/* a request that writes the resource into a foreign partition */
+	public static RequestDetails createRequest( FhirContext fhirContext, IBaseResource resource, String partitionName ) {
+		SystemRequestDetails requestDetails = new SystemRequestDetails() ;
+		requestDetails.setFhirContext( fhirContext ) ;
+		requestDetails.setRestOperationType( RestOperationTypeEnum.CREATE ) ;
+		requestDetails.setResource( resource ) ;
+		requestDetails.addHeader( PARTITION_HEADER, partitionName ) ;
+		return requestDetails ;
+	}
+
+	/* a response with one answered item per item requested, the size of a long PRO instrument */
+	public static QuestionnaireResponse questionnaireResponse( IIdType subjectId, int items ) {
+		QuestionnaireResponse questionnaireResponse = new QuestionnaireResponse() ;
+		questionnaireResponse.setStatus( QuestionnaireResponse.QuestionnaireResponseStatus.COMPLETED ) ;
+		questionnaireResponse.setSubject( new Reference( subjectId.toUnqualifiedVersionless() ) ) ;
+		questionnaireResponse.setAuthor( new Reference( subjectId.toUnqualifiedVersionless() ) ) ;
+		for ( int i = 0 ; i < items ; ++i ) {
+			questionnaireResponse.addItem()
+				.setLinkId( "item-" + i )
+				.addAnswer().setValue( new StringType( "answer to item " + i ) )
+				;
+		}
+		return questionnaireResponse ;
+	}
+
+	private static class UnwatchedResourceChangeListenerRegistry implements IResourceChangeListenerRegistry {
+
+		@Override
+		public IResourceChangeListenerCache registerResourceResourceChangeListener( String theResourceName, SearchParameterMap theSearchParameterMap, IResourceChangeListener theResourceChangeListener, long theRemoteRefreshIntervalMs ) {
+			return null ;
+		}
+
+		@Override
+		public void unregisterResourceResourceChangeListener( IResourceChangeListener theResourceChangeListener ) {
+		}
+
+		@Override
+		public void unregisterResourceResourceChangeListener( IResourceChangeListenerCache theResourceChangeListenerCache ) {
+		}
+
+		@Override
+		public void clearListenersForUnitTest() {
+		}
+
+		@Override
+		public boolean contains( IResourceChangeListenerCache theCache ) {
+			return false ;
+		}
+
+		@Override
+		public void requestRefreshIfWatching( IBaseResource theResource ) {
+		}
+
+		@Override
+		public Set<String> getWatchedResourceNames() {
+			return Collections.emptySet() ;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+
+/*
+ * builds and probes a set of ids the way a request does,
+ * with the comparator-driven TreeSet the SDS used to create and with the hash-based set it creates now
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdSetBenchmark {
+
+	@Param({ "1", "4", "16" })
+	int linkedPartitions ;
+
+	private List<IIdType> ids ;
+	private List<IIdType> probes ;
+
+	@Setup
+	public void setup() {
+		ids = new ArrayList<>( BenchmarkFixtures.nonLocalPatientIds( linkedPartitions ) ) ;
+		ids.add( BenchmarkFixtures.localPatientId( "local-patient" ) ) ;
+
+		/* the same ids parsed again, as they arrive from other resources, plus one that is absent */
+		probes = new ArrayList<>() ;
+		for ( IIdType id : ids ) {
+			probes.add( new IdType( id.getValue() ) ) ;
+		}
+		probes.add( BenchmarkFixtures.nonLocalPatientId( linkedPartitions, "absent-patient" ) ) ;
+	}
+
+	private void buildAndProbe( Set<IIdType> set, Blackhole blackhole ) {
+		set.addAll( ids ) ;
+		for ( IIdType probe : probes ) {
+			blackhole.consume( set.contains( probe ) ) ;
+		}
+	}
+
+	@Benchmark
+	public void treeSet( Blackhole blackhole ) {
+		buildAndProbe( new TreeSet<>( FhirResourceComparison.idTypes().comparator() ), blackhole ) ;
+	}
+
+	@Benchmark
+	public void idKeySet( Blackhole blackhole ) {
+		buildAndProbe( FhirResourceComparison.idTypes().createSet(), blackhole ) ;
+	}
+}
@@ -0,0 +1,59 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/*
+ * describes the creation of a QuestionnaireResponse, as the permissions and linking interceptors do for each write
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceCreationBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	int resourceSize ;
+
+	private FhirContext fhirContext ;
+	private SupplementalDataStoreResourceCreation resourceCreation ;
+	private QuestionnaireResponse questionnaireResponse ;
+
+	@Setup
+	public void setup() {
+		fhirContext = FhirContext.forR4Cached() ;
+		resourceCreation = BenchmarkFixtures.resourceCreation( fhirContext ) ;
+		questionnaireResponse = BenchmarkFixtures.questionnaireResponse( BenchmarkFixtures.nonLocalPatientId( 0, "patient-0" ), resourceSize ) ;
+	}
+
+	@Benchmark
+	public Optional<SupplementalDataStoreResourceCreation.Details> firstCall() {
+		RequestDetails requestDetails = BenchmarkFixtures.createRequest( fhirContext, questionnaireResponse, BenchmarkFixtures.foreignPartitionName( 0 ) ) ;
+		return resourceCreation.resourceCreationInfo( requestDetails ) ;
+	}
+
+	@Benchmark
+	public Optional<SupplementalDataStoreResourceCreation.Details> repeatedCall() {
+		RequestDetails requestDetails = BenchmarkFixtures.createRequest( fhirContext, questionnaireResponse, BenchmarkFixtures.foreignPartitionName( 0 ) ) ;
+		resourceCreation.resourceCreationInfo( requestDetails ) ;
+		return resourceCreation.resourceCreationInfo( requestDetails ) ;
+	}
+}
@@ -0,0 +1,53 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserIdentityBenchmark {
+
+	@Param({ "1", "4", "16" })
+	int linkedPartitions ;
+
+	private List<IIdType> nonLocalPatientIds ;
+	private Optional<IIdType> localPatientId ;
+	private UserIdentity identity ;
+	private IIdType additionalPatientId ;
+
+	@Setup
+	public void setup() {
+		nonLocalPatientIds = BenchmarkFixtures.nonLocalPatientIds( linkedPartitions ) ;
+		localPatientId = Optional.of( BenchmarkFixtures.localPatientId( "local-patient" ) ) ;
+		identity = BenchmarkFixtures.patientIdentity( linkedPartitions ) ;
+		additionalPatientId = BenchmarkFixtures.nonLocalPatientId( linkedPartitions, "additional-patient" ) ;
+	}
+
+	@Benchmark
+	public UserIdentity construct() {
+		return new UserIdentity( nonLocalPatientIds.get(0), localPatientId, nonLocalPatientIds ) ;
+	}
+
+	@Benchmark
+	public UserIdentity withAdditionalNonLocalUserId() {
+		return identity.withAdditionalNonLocalUserId( additionalPatientId ) ;
+	}
+}
@@ -0,0 +1,75 @@
+package edu.ohsu.cmp.ecp.sds.r4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Linkage;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.ohsu.cmp.ecp.sds.BenchmarkFixtures;
+
+/*
+ * the in-memory filtering applied to the Linkage resources found for a user,
+ * with one Linkage per linked partition
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkageFilterBenchmark {
+
+	@Param({ "1", "4", "16" })
+	int linkedPartitions ;
+
+	private SupplementalDataStoreLinkageR4 linkage ;
+	private List<IBaseResource> linkageResources ;
+	private IIdType lastLinkedPatientId ;
+
+	@Setup
+	public void setup() {
+		linkage = new SupplementalDataStoreLinkageR4() ;
+
+		IIdType localPatientId = BenchmarkFixtures.localPatientId( "local-patient" ) ;
+		linkageResources = new ArrayList<>() ;
+		for ( IIdType nonLocalPatientId : BenchmarkFixtures.nonLocalPatientIds( linkedPartitions ) ) {
+			Linkage linkageResource = new Linkage() ;
+			linkageResource.addItem().setType( Linkage.LinkageType.SOURCE ).setResource( new Reference( localPatientId ) ) ;
+			linkageResource.addItem().setType( Linkage.LinkageType.ALTERNATE ).setResource( new Reference( nonLocalPatientId ) ) ;
+			linkageResources.add( linkageResource ) ;
+			lastLinkedPatientId = nonLocalPatientId ;
+		}
+	}
+
+	@Benchmark
+	public List<IBaseResource> filterLinkageResourcesHavingAlternateItem() {
+		return linkage.filterLinkageResourcesHavingAlternateItem( linkageResources, lastLinkedPatientId ) ;
+	}
+
+	@Benchmark
+	public Set<? extends IBaseReference> alternatePatientsFromLinkageResources() {
+		return linkage.alternatePatientsFromLinkageResources( linkageResources ) ;
+	}
+
+	@Benchmark
+	public Set<? extends IBaseReference> sourcePatientsFromLinkageResources() {
+		return linkage.sourcePatientsFromLinkageResources( linkageResources ) ;
+	}
+}
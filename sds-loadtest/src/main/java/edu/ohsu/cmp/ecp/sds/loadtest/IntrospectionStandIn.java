@@ -0,0 +1,172 @@
+package edu.ohsu.cmp.ecp.sds.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * an in-process stand-in for the EHR that the SDS trusts
+ *
+ * answers OAuth2 token introspection for registered tokens, and serves the metadata and
+ * RelatedPerson reads that the SDS makes when a RelatedPerson user writes on behalf of a patient
+ *
+ * every response is delayed by the configured latency (plus up to the configured jitter),
+ * so that the cost of a remote call can be made visible in the results
+ */
+public class IntrospectionStandIn {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(IntrospectionStandIn.class);
+
+	private static final Pattern TOKEN_BODY_PATTERN = Pattern.compile( "(?:^|&)token=([^&]*)" ) ;
+
+	private final Duration latency ;
+	private final Duration jitter ;
+	private final Map<String,IIdType> subjectsByToken = new ConcurrentHashMap<>() ;
+	private final Map<String,IIdType> patientsByRelatedPerson = new ConcurrentHashMap<>() ;
+	private final AtomicLong introspectionCount = new AtomicLong() ;
+	private final AtomicLong fhirReadCount = new AtomicLong() ;
+
+	private HttpServer server ;
+	private ExecutorService executor ;
+
+	public IntrospectionStandIn( Duration latency, Duration jitter ) {
+		this.latency = latency ;
+		this.jitter = jitter ;
+	}
+
+	public void start() throws IOException {
+		server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 ) ;
+		executor = Executors.newCachedThreadPool() ;
+		server.setExecutor( executor ) ;
+		server.createContext( "/oauth2/introspect", this::introspect ) ;
+		server.createContext( "/fhir/metadata", this::metadata ) ;
+		server.createContext( "/fhir/RelatedPerson/", this::relatedPerson ) ;
+		server.start() ;
+		ourLog.info( "introspection stand-in listening at {}", introspectionUri() ) ;
+	}
+
+	public void stop() {
+		if ( null != server )
+			server.stop( 0 ) ;
+		if ( null != executor )
+			executor.shutdownNow() ;
+	}
+
+	private String baseUrl() {
+		return "http://localhost:" + server.getAddress().getPort() ;
+	}
+
+	public String introspectionUri() {
+		return baseUrl() + "/oauth2/introspect" ;
+	}
+
+	/*
+	 * the base url of the stand-in EHR's FHIR endpoint, with a trailing slash
+	 */
+	public String fhirBase() {
+		return baseUrl() + "/fhir/" ;
+	}
+
+	public void registerToken( String token, IIdType subject ) {
+		subjectsByToken.put( token, subject ) ;
+	}
+
+	public void registerRelatedPerson( IIdType relatedPersonId, IIdType patientId ) {
+		patientsByRelatedPerson.put( relatedPersonId.getIdPart(), patientId ) ;
+	}
+
+	public long introspectionCount() {
+		return introspectionCount.get() ;
+	}
+
+	public long fhirReadCount() {
+		return fhirReadCount.get() ;
+	}
+
+	private void introspect( HttpExchange exchange ) throws IOException {
+		introspectionCount.incrementAndGet() ;
+		String body ;
+		try ( InputStream in = exchange.getRequestBody() ) {
+			body = URLDecoder.decode( new String( in.readAllBytes(), StandardCharsets.UTF_8 ), StandardCharsets.UTF_8 ) ;
+		}
+		Matcher m = TOKEN_BODY_PATTERN.matcher( body ) ;
+		IIdType subject = m.find() ? subjectsByToken.get( m.group(1) ) : null ;
+		if ( null == subject ) {
+			respond( exchange, 200, "{ \"active\": false }" ) ;
+			return ;
+		}
+		respond(
+			exchange,
+			200,
+			String.format(
+				"{ \"active\": true, \"sub\": \"%1$s\", \"exp\": %2$d }",
+				subject.getValue(),
+				Instant.now().plus( Duration.ofHours(1) ).getEpochSecond()
+				)
+			) ;
+	}
+
+	private void metadata( HttpExchange exchange ) throws IOException {
+		respond( exchange, 200, "{ \"resourceType\": \"CapabilityStatement\" }" ) ;
+	}
+
+	private void relatedPerson( HttpExchange exchange ) throws IOException {
+		fhirReadCount.incrementAndGet() ;
+		String path = exchange.getRequestURI().getPath() ;
+		String idPart = path.substring( path.lastIndexOf( '/' ) + 1 ) ;
+		IIdType patientId = patientsByRelatedPerson.get( idPart ) ;
+		if ( null == patientId ) {
+			respond( exchange, 404, "{ \"resourceType\": \"OperationOutcome\" }" ) ;
+			return ;
+		}
+		respond(
+			exchange,
+			200,
+			String.format(
+				"{ \"resourceType\": \"RelatedPerson\", \"id\": \"%1$s\", \"patient\": { \"reference\": \"%2$s\" } }",
+				idPart,
+				patientId.getValue()
+				)
+			) ;
+	}
+
+	private void respond( HttpExchange exchange, int status, String jsonBody ) throws IOException {
+		simulateLatency() ;
+		byte[] bytes = jsonBody.getBytes( StandardCharsets.UTF_8 ) ;
+		exchange.getResponseHeaders().set( "Content-Type", "application/json; charset=UTF-8" ) ;
+		exchange.sendResponseHeaders( status, bytes.length ) ;
+		try ( OutputStream out = exchange.getResponseBody() ) {
+			out.write( bytes ) ;
+		}
+	}
+
+	private void simulateLatency() {
+		long delayMillis = latency.toMillis() ;
+		if ( !jitter.isZero() )
+			delayMillis += ThreadLocalRandom.current().nextLong( jitter.toMillis() + 1 ) ;
+		if ( delayMillis <= 0 )
+			return ;
+		try {
+			Thread.sleep( delayMillis ) ;
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+}
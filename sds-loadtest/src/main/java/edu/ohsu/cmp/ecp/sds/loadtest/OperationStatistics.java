@@ -0,0 +1,77 @@
+package edu.ohsu.cmp.ecp.sds.loadtest;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/*
+ * latency and throughput of each named operation, in the order the operations were first recorded
+ *
+ * throughput is measured over the span from the start of the first call to the end of the last call,
+ * so it reflects the concurrency the operation actually ran with
+ */
+public class OperationStatistics {
+
+	private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos( 5 ) ;
+
+	private static class Operation {
+		private final Histogram latencies = new ConcurrentHistogram( HIGHEST_TRACKABLE_NANOS, 3 ) ;
+		private final AtomicLong failures = new AtomicLong() ;
+		private final LongAccumulator firstStart = new LongAccumulator( Math::min, Long.MAX_VALUE ) ;
+		private final LongAccumulator lastEnd = new LongAccumulator( Math::max, Long.MIN_VALUE ) ;
+	}
+
+	private final Map<String,Operation> operations = new ConcurrentHashMap<>() ;
+	private final Map<String,Integer> order = new ConcurrentHashMap<>() ;
+	private final AtomicInteger nextOrder = new AtomicInteger() ;
+
+	private Operation operation( String name ) {
+		return operations.computeIfAbsent( name, k -> {
+			order.put( k, nextOrder.getAndIncrement() ) ;
+			return new Operation() ;
+		});
+	}
+
+	public void record( String name, long startNanos, long endNanos, boolean succeeded ) {
+		Operation op = operation( name ) ;
+		op.latencies.recordValue( Math.min( endNanos - startNanos, HIGHEST_TRACKABLE_NANOS ) ) ;
+		op.firstStart.accumulate( startNanos ) ;
+		op.lastEnd.accumulate( endNanos ) ;
+		if ( !succeeded )
+			op.failures.incrementAndGet() ;
+	}
+
+	public long failures() {
+		return operations.values().stream().mapToLong( op -> op.failures.get() ).sum() ;
+	}
+
+	public void report( PrintStream out ) {
+		out.println( String.format( "%-24s %8s %8s %10s %10s %10s %10s", "operation", "count", "failed", "ops/s", "p50 ms", "p99 ms", "max ms" ) ) ;
+		operations.keySet().stream()
+			.sorted( (a, b) -> Integer.compare( order.get(a), order.get(b) ) )
+			.forEach( name -> {
+				Operation op = operations.get( name ) ;
+				long count = op.latencies.getTotalCount() ;
+				double spanSeconds = Math.max( 1L, op.lastEnd.get() - op.firstStart.get() ) / 1e9 ;
+				out.println(
+					String.format(
+						"%-24s %8d %8d %10.1f %10.2f %10.2f %10.2f",
+						name,
+						count,
+						op.failures.get(),
+						count / spanSeconds,
+						op.latencies.getValueAtPercentile( 50 ) / 1e6,
+						op.latencies.getValueAtPercentile( 99 ) / 1e6,
+						op.latencies.getMaxValue() / 1e6
+						)
+					) ;
+			});
+	}
+}
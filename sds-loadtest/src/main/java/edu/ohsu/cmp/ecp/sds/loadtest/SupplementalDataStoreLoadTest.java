@@ -0,0 +1,307 @@
+package edu.ohsu.cmp.ecp.sds.loadtest;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.hl7.fhir.r4.model.Reference;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.model.entity.ModelConfig;
+import ca.uhn.fhir.jpa.starter.Application;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+
+/*
+ * starts the SDS against an in-memory H2 database, with token introspection pointed at an
+ * in-process stand-in, and replays a workload of patient, practitioner, and related person apps:
+ *
+ *   claim              each patient's first write, which claims the patient's compartment
+ *   related-person     each related person writes on behalf of a patient, resolved through the stand-in EHR
+ *   linked-read        patients search their own compartment; practitioners read across patients
+ *   observation-burst  each patient stores a burst of patient-reported Observations
+ *
+ * then prints throughput and p50/p99 latency for each operation
+ *
+ * options are given as key=value arguments, e.g. "patients=200 threads=32 introspection-latency=25ms"
+ */
+public class SupplementalDataStoreLoadTest {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreLoadTest.class);
+
+	private static final String PRO_CATEGORY_SYSTEM = "http://terminology.hl7.org/CodeSystem/observation-category" ;
+	private static final String LOINC_SYSTEM = "http://loinc.org" ;
+
+	private final Map<String,String> options ;
+	private final OperationStatistics statistics = new OperationStatistics() ;
+	private final FhirContext ctx = FhirContext.forR4() ;
+
+	private IntrospectionStandIn standIn ;
+	private ConfigurableApplicationContext sds ;
+	private String sdsBase ;
+	private ExecutorService executor ;
+
+	private final List<IIdType> patientIds = new ArrayList<>() ;
+	private final List<IGenericClient> patientClients = new ArrayList<>() ;
+	private final List<IGenericClient> practitionerClients = new ArrayList<>() ;
+	private final List<IGenericClient> relatedPersonClients = new ArrayList<>() ;
+	private final List<IIdType> relatedPersonPatientIds = new ArrayList<>() ;
+	private final Map<IIdType,IIdType> questionnaireResponsesByPatient = new ConcurrentHashMap<>() ;
+
+	public SupplementalDataStoreLoadTest( Map<String,String> options ) {
+		this.options = options ;
+	}
+
+	public static void main( String[] args ) throws Exception {
+		Map<String,String> options = new HashMap<>() ;
+		for ( String arg : args ) {
+			int eq = arg.indexOf( '=' ) ;
+			if ( eq < 0 )
+				throw new IllegalArgumentException( String.format( "expected an option of the form key=value but found \"%1$s\"", arg ) ) ;
+			options.put( arg.substring( 0, eq ), arg.substring( eq + 1 ) ) ;
+		}
+
+		SupplementalDataStoreLoadTest loadTest = new SupplementalDataStoreLoadTest( options ) ;
+		long failures ;
+		try {
+			loadTest.start() ;
+			failures = loadTest.run() ;
+		} finally {
+			loadTest.stop() ;
+		}
+		System.exit( failures == 0 ? 0 : 1 ) ;
+	}
+
+	private int intOption( String name, int defaultValue ) {
+		return options.containsKey( name ) ? Integer.parseInt( options.get( name ) ) : defaultValue ;
+	}
+
+	private Duration durationOption( String name, Duration defaultValue ) {
+		return options.containsKey( name ) ? DurationStyle.detectAndParse( options.get( name ) ) : defaultValue ;
+	}
+
+	public void start() throws IOException {
+		standIn = new IntrospectionStandIn( durationOption( "introspection-latency", Duration.ofMillis(10) ), durationOption( "introspection-jitter", Duration.ofMillis(5) ) ) ;
+		standIn.start() ;
+
+		int port = intOption( "port", 0 ) ;
+		if ( 0 == port ) {
+			try ( ServerSocket socket = new ServerSocket( 0 ) ) {
+				port = socket.getLocalPort() ;
+			}
+		}
+		sdsBase = "http://localhost:" + port + "/fhir/" ;
+
+		/* given as arguments, so they take precedence over the server's application.yaml */
+		List<String> properties = new ArrayList<>() ;
+		properties.add( "--server.port=" + port ) ;
+		properties.add( "--spring.datasource.url=jdbc:h2:mem:sds-loadtest;DB_CLOSE_DELAY=-1" ) ;
+		properties.add( "--spring.security.oauth2.resourceserver.opaque-token.introspection-uri=" + standIn.introspectionUri() ) ;
+		properties.add( "--hapi.fhir.fhir_version=r4" ) ;
+		properties.add( "--spring.main.banner-mode=off" ) ;
+		sds = new SpringApplicationBuilder( Application.class ).run( properties.toArray( new String[0] ) ) ;
+
+		/* practitioners are users of the SDS itself, so their ids are local */
+		ModelConfig modelConfig = sds.getBean( ModelConfig.class ) ;
+		Set<String> baseUrls = new HashSet<>( modelConfig.getTreatBaseUrlsAsLocal() ) ;
+		baseUrls.add( sdsBase ) ;
+		modelConfig.setTreatBaseUrlsAsLocal( baseUrls ) ;
+
+		int threads = intOption( "threads", 16 ) ;
+		ctx.getRestfulClientFactory().setServerValidationMode( ServerValidationModeEnum.NEVER ) ;
+		ctx.getRestfulClientFactory().setPoolMaxTotal( threads * 2 ) ;
+		ctx.getRestfulClientFactory().setPoolMaxPerRoute( threads * 2 ) ;
+		executor = Executors.newFixedThreadPool( threads ) ;
+
+		registerUsers() ;
+	}
+
+	public void stop() {
+		if ( null != executor )
+			executor.shutdownNow() ;
+		if ( null != sds )
+			sds.close() ;
+		if ( null != standIn )
+			standIn.stop() ;
+	}
+
+	private IGenericClient authenticatingClient( String token ) {
+		IGenericClient client = ctx.newRestfulGenericClient( sdsBase ) ;
+		client.registerInterceptor( new BearerTokenAuthInterceptor( token ) ) ;
+		return client ;
+	}
+
+	private void registerUsers() {
+		String ehrBase = standIn.fhirBase() ;
+		int patients = intOption( "patients", 100 ) ;
+		for ( int i = 0 ; i < patients ; ++i ) {
+			IIdType patientId = new IdType( ehrBase, "Patient", "loadtest-patient-" + i, null ) ;
+			String token = "patient-token-" + i ;
+			standIn.registerToken( token, patientId ) ;
+			patientIds.add( patientId ) ;
+			patientClients.add( authenticatingClient( token ) ) ;
+		}
+
+		int practitioners = intOption( "practitioners", 10 ) ;
+		for ( int i = 0 ; i < practitioners ; ++i ) {
+			IIdType practitionerId = new IdType( sdsBase, "Practitioner", "loadtest-practitioner-" + i, null ) ;
+			String token = "practitioner-token-" + i ;
+			standIn.registerToken( token, practitionerId ) ;
+			practitionerClients.add( authenticatingClient( token ) ) ;
+		}
+
+		int relatedPersons = Math.min( intOption( "related-persons", 20 ), patients ) ;
+		for ( int i = 0 ; i < relatedPersons ; ++i ) {
+			IIdType relatedPersonId = new IdType( ehrBase, "RelatedPerson", "loadtest-related-person-" + i, null ) ;
+			IIdType patientId = patientIds.get( i ) ;
+			String token = "related-person-token-" + i ;
+			standIn.registerToken( token, relatedPersonId ) ;
+			standIn.registerRelatedPerson( relatedPersonId, patientId ) ;
+			relatedPersonClients.add( authenticatingClient( token ) ) ;
+			relatedPersonPatientIds.add( patientId ) ;
+		}
+	}
+
+	public long run() throws Exception {
+		runPhase( "claim", claimTasks() ) ;
+		runPhase( "related-person", relatedPersonTasks() ) ;
+		runPhase( "linked-read", linkedReadTasks() ) ;
+		runPhase( "observation-burst", observationBurstTasks() ) ;
+
+		System.out.println() ;
+		statistics.report( System.out ) ;
+		System.out.println() ;
+		System.out.println( String.format( "introspection requests: %1$d, RelatedPerson reads: %2$d", standIn.introspectionCount(), standIn.fhirReadCount() ) ) ;
+		return statistics.failures() ;
+	}
+
+	private void runPhase( String phaseName, List<Runnable> tasks ) throws Exception {
+		ourLog.info( "running phase \"{}\" with {} operations", phaseName, tasks.size() ) ;
+		List<Future<?>> futures = new ArrayList<>() ;
+		for ( Runnable task : tasks )
+			futures.add( executor.submit( task ) ) ;
+		for ( Future<?> future : futures )
+			future.get() ;
+	}
+
+	private <T> T timed( String operationName, Supplier<T> operation ) {
+		long start = System.nanoTime() ;
+		try {
+			T result = operation.get() ;
+			statistics.record( operationName, start, System.nanoTime(), true ) ;
+			return result ;
+		} catch ( RuntimeException ex ) {
+			statistics.record( operationName, start, System.nanoTime(), false ) ;
+			ourLog.warn( "operation \"{}\" failed: {}", operationName, ex.getMessage() ) ;
+			return null ;
+		}
+	}
+
+	private static QuestionnaireResponse questionnaireResponse( IIdType subjectId ) {
+		QuestionnaireResponse questionnaireResponse = new QuestionnaireResponse() ;
+		questionnaireResponse.setSubject( new Reference( subjectId ) ) ;
+		questionnaireResponse.setQuestionnaire( "http://example.org/Questionnaire/loadtest" ) ;
+		questionnaireResponse.setStatus( QuestionnaireResponse.QuestionnaireResponseStatus.COMPLETED ) ;
+		return questionnaireResponse ;
+	}
+
+	private static Observation patientReportedObservation( IIdType subjectId ) {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.addCategory( new CodeableConcept( new Coding( PRO_CATEGORY_SYSTEM, "survey", "Survey" ) ) ) ;
+		observation.setCode( new CodeableConcept( new Coding( LOINC_SYSTEM, "72514-3", "Pain severity - 0-10 verbal numeric rating [Score] - Reported" ) ) ) ;
+		observation.setSubject( new Reference( subjectId ) ) ;
+		observation.setValue( new IntegerType( ThreadLocalRandom.current().nextInt( 11 ) ) ) ;
+		return observation ;
+	}
+
+	private List<Runnable> claimTasks() {
+		List<Runnable> tasks = new ArrayList<>() ;
+		for ( int i = 0 ; i < patientIds.size() ; ++i ) {
+			IIdType patientId = patientIds.get( i ) ;
+			IGenericClient client = patientClients.get( i ) ;
+			tasks.add( () -> {
+				IIdType questRespId = timed( "patient-first-write", () -> client.create().resource( questionnaireResponse( patientId ) ).execute().getId() ) ;
+				if ( null != questRespId )
+					questionnaireResponsesByPatient.put( patientId, questRespId.toUnqualifiedVersionless() ) ;
+			});
+		}
+		return tasks ;
+	}
+
+	private List<Runnable> relatedPersonTasks() {
+		List<Runnable> tasks = new ArrayList<>() ;
+		for ( int i = 0 ; i < relatedPersonClients.size() ; ++i ) {
+			IIdType patientId = relatedPersonPatientIds.get( i ) ;
+			IGenericClient client = relatedPersonClients.get( i ) ;
+			tasks.add( () -> timed( "related-person-write", () -> client.create().resource( questionnaireResponse( patientId ) ).execute().getId() ) ) ;
+		}
+		return tasks ;
+	}
+
+	private List<Runnable> linkedReadTasks() {
+		int readsPerUser = intOption( "linked-reads", 5 ) ;
+		List<Runnable> tasks = new ArrayList<>() ;
+		for ( int i = 0 ; i < patientIds.size() ; ++i ) {
+			IIdType patientId = patientIds.get( i ) ;
+			IGenericClient client = patientClients.get( i ) ;
+			for ( int r = 0 ; r < readsPerUser ; ++r ) {
+				tasks.add( () -> timed( "patient-search", () ->
+					client.search()
+						.forResource( QuestionnaireResponse.class )
+						.where( QuestionnaireResponse.SUBJECT.hasId( patientId.toUnqualifiedVersionless() ) )
+						.returnBundle( Bundle.class )
+						.execute()
+				) ) ;
+			}
+		}
+		List<IIdType> questRespIds = new ArrayList<>( questionnaireResponsesByPatient.values() ) ;
+		if ( !questRespIds.isEmpty() ) {
+			for ( IGenericClient client : practitionerClients ) {
+				for ( int r = 0 ; r < readsPerUser ; ++r ) {
+					tasks.add( () -> {
+						IIdType questRespId = questRespIds.get( ThreadLocalRandom.current().nextInt( questRespIds.size() ) ) ;
+						timed( "practitioner-read", () -> client.read().resource( QuestionnaireResponse.class ).withId( questRespId ).execute() ) ;
+					});
+				}
+			}
+		}
+		return tasks ;
+	}
+
+	private List<Runnable> observationBurstTasks() {
+		int burstSize = intOption( "observation-burst", 20 ) ;
+		List<Runnable> tasks = new ArrayList<>() ;
+		for ( int r = 0 ; r < burstSize ; ++r ) {
+			for ( int i = 0 ; i < patientIds.size() ; ++i ) {
+				IIdType patientId = patientIds.get( i ) ;
+				IGenericClient client = patientClients.get( i ) ;
+				tasks.add( () -> timed( "observation-create", () -> client.create().resource( patientReportedObservation( patientId ) ).execute().getId() ) ) ;
+			}
+		}
+		return tasks ;
+	}
+}
@@ -65,6 +65,8 @@ import ca.uhn.fhir.validation.ResultSeverityEnum;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdge;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdgeBackfillMarker;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
@@ -149,6 +151,13 @@ public class StarterJpaConfig {
 			throw new ConfigurationException("Could not set the data source due to a configuration issue", e);
 		}
 		retVal.setJpaProperties(EnvironmentHelper.getHibernateProperties(configurableEnvironment, myConfigurableListableBeanFactory));
+		/*
+		 * SDS entities live outside the packages scanned for HAPI entities
+		 */
+		retVal.setPersistenceUnitPostProcessors(pui -> {
+			pui.addManagedClassName(SupplementalDataStoreLinkageEdge.class.getName());
+			pui.addManagedClassName(SupplementalDataStoreLinkageEdgeBackfillMarker.class.getName());
+		});
 		return retVal;
 	}
 
@@ -1,5 +1,7 @@
 package edu.ohsu.cmp.ecp.sds;
 
+import static java.util.stream.Collectors.joining;
+
 import java.util.Optional;
 
 import org.hl7.fhir.instance.model.api.IIdType;
@@ -25,6 +27,22 @@ public final class Permissions {
 		return authorizedUserId ;
 	}
 
+	/*
+	 * identifies every detail that the authorization rules depend upon;
+	 * the non-local ids are sorted, since the same identity may have collected them in any order
+	 */
+	public String fingerprint() {
+		if ( readAllPatients.isPresent() )
+			return "read-all|" + authorizedUserId.getValue() ;
+		UserIdentity patientId = readAndWriteSpecificPatient.get().patientId() ;
+		return String.format(
+				"read-write|%1$s|%2$s|%3$s",
+				authorizedUserId.getValue(),
+				patientId.localUserId().map( IIdType::getValue ).orElse( "" ),
+				patientId.nonLocalUserIds().stream().map( IIdType::getValue ).sorted().collect( joining(",") )
+			);
+	}
+
 	public Optional<Permissions.ReadAllPatients> readAllPatients() {
 		return readAllPatients ;
 	}
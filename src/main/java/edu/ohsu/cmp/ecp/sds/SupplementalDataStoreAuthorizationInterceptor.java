@@ -2,20 +2,35 @@ package edu.ohsu.cmp.ecp.sds;
 
 import static edu.ohsu.cmp.ecp.sds.SupplementalDataStorePermissionsInterceptor.getPermissions;
 
+import static java.util.stream.Collectors.joining;
+
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.stereotype.Component;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
 import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilder;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleTester;
 import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 
 @Interceptor
 @Component
@@ -28,12 +43,43 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 	@Inject
 	SupplementalDataStoreAuth auth;
 
+	@Inject
+	MeterRegistry meterRegistry;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
+
+	/*
+	 * the rules depend only upon the permissions, so rule lists are shared by requests having the same permissions
+	 */
+	private Cache<String,List<IAuthRule>> ruleLists ;
+
+	@PostConstruct
+	public void initializeRuleListCache() {
+		ruleLists =
+			Caffeine.newBuilder()
+				.maximumSize( sdsProperties.getAuthorizationRuleCache().getMaximumSize() )
+				.recordStats()
+				.build()
+				;
+		CaffeineCacheMetrics.monitor( meterRegistry, ruleLists, "sds.authorization.rules" ) ;
+	}
+
 	private static IAuthRuleBuilder ruleBuilder() {
 		return new RuleBuilder();
 	}
 	
 	@Override
 	public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
+		return metrics.timeHook( "buildRuleList", SupplementalDataStoreServerTiming.Phase.AUTHORIZATION, theRequestDetails, () -> {
+			Permissions permissions = getPermissions(theRequestDetails);
+			if ( null == permissions || !sdsProperties.getAuthorizationRuleCache().getEnabled() )
+				return buildRuleList( permissions ) ;
+			return ruleLists.get( permissions.fingerprint(), k -> buildRuleList( permissions ) ) ;
+		});
+	}
+
+	private List<IAuthRule> buildRuleList(Permissions permissions) {
 		List<IAuthRule> rules = new ArrayList<>() ;
 		
 		ruleBuilder()
@@ -43,7 +89,8 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 			.forEach( rules::add );
 			;
 
-		Permissions permissions = getPermissions(theRequestDetails);
+		buildRuleListForBulkLinking( permissions ).forEach( rules::add );
+
 		buildRuleListForPermissions( permissions ).forEach( rules::add );
 
 		ruleBuilder()
@@ -52,9 +99,25 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 			.forEach( rules::add  )
 			;
 
-		return rules ;
+		return Collections.unmodifiableList( rules ) ;
 	}
 	
+	private List<IAuthRule> buildRuleListForBulkLinking(Permissions permissions) {
+		if ( null == permissions || null == permissions.authorizedUserId() )
+			return Collections.emptyList() ;
+		if ( !sdsProperties.getBulkLink().getAuthorizedUsers().contains( permissions.authorizedUserId().toVersionless().getValue() ) )
+			return Collections.emptyList() ;
+
+		/* permit onboarding a partition to the users trusted with it */
+		return ruleBuilder()
+			.allow( "link users in bulk" )
+			.operation().named( SupplementalDataStoreBulkLinkProvider.OPERATION_SDS_LINK ).onServer().andAllowAllResponses()
+			.andThen()
+			.allow( "report progress of linking users in bulk" )
+			.operation().named( SupplementalDataStoreBulkLinkProvider.OPERATION_SDS_LINK_STATUS ).onServer().andAllowAllResponses()
+			.build();
+	}
+
 	private List<IAuthRule> buildRuleListForPermissions(Permissions permissions) {
 		
 		if ( null == permissions ) {
@@ -116,12 +179,8 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 		readAndWriteSpecificPatients.patientId().localUserId().ifPresent( localPatientId -> {
 
 			/* permit access to all sds-local records for specific patient */
-			managePatientCompartment( true, localPatientId )
+			managePatientCompartments( true, compartmentOwners( Collections.singleton( localPatientId ) ) )
 				.forEach( rules::add );
-			if ( localPatientId.hasBaseUrl() ) {
-				managePatientCompartment( true, localPatientId.toUnqualifiedVersionless() )
-					.forEach( rules::add );
-			}
 			/* permit access to all sds-local linkages that link to specific patient */
 			manageLinkages( true, localPatientId.toUnqualifiedVersionless() )
 				.forEach( rules::add ) ;
@@ -129,21 +188,49 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 		});
 
 		/* permit access to all sds-foreign records for specific patient in each partition */
-		for (IIdType nonLocalPatientId : readAndWriteSpecificPatients.patientId().nonLocalUserIds() ) {
-			managePatientCompartment( false, nonLocalPatientId )
+		Set<IIdType> nonLocalPatientIds = readAndWriteSpecificPatients.patientId().nonLocalUserIds() ;
+		if ( !nonLocalPatientIds.isEmpty() ) {
+			managePatientCompartments( false, compartmentOwners( nonLocalPatientIds ) )
 				.forEach( rules::add ) ;
-			if ( nonLocalPatientId.hasBaseUrl() )
-				managePatientCompartment( false, nonLocalPatientId.toUnqualifiedVersionless() )
-					.forEach( rules::add ) ;
-
+		}
+		for (IIdType nonLocalPatientId : nonLocalPatientIds ) {
 			/* permit access to all sds-foreign linkages that link to specific patient */
 			manageLinkages( false, nonLocalPatientId )
 				.forEach( rules::add ) ;
 		}
 
+		/* permit a search the compartments could not narrow; each resource found must pass the read rules above */
+		ruleBuilder()
+			.allow( "search the patient compartments by their resources" )
+			.read().allResources().withAnyId().withTester( new UnnarrowedSearchTester() )
+			.build().forEach( rules::add )
+			;
+
+		/* permit searching every partition of the patient at once; each resource returned must pass the read rules above */
+		ruleBuilder()
+			.allow( "search every partition of the patient" )
+			.operation().named( SupplementalDataStoreFanOutSearchProvider.OPERATION_SDS_SEARCH ).onServer().andRequireExplicitResponseAuthorization()
+			.andThen()
+			.allow( "gather every partition of the patient" )
+			.operation().named( SupplementalDataStoreEverythingProvider.OPERATION_SDS_EVERYTHING ).onServer().andRequireExplicitResponseAuthorization()
+			.build().forEach( rules::add )
+			;
+
 		return rules;
 	}
 
+	private static class UnnarrowedSearchTester implements IAuthRuleTester {
+		@Override
+		public boolean matches( RuleTestRequest theRequest ) {
+			return RestOperationTypeEnum.SEARCH_TYPE == theRequest.operation && SupplementalDataStoreSearchNarrowingInterceptor.searchIsUnnarrowed( theRequest.requestDetails ) ;
+		}
+
+		@Override
+		public boolean matchesOutput( RuleTestRequest theRequest ) {
+			return false ;
+		}
+	}
+
 	private String describePatientPermission( String operation, boolean isLocal ) {
 		String patientRelatedOperationDesc =
 			String.format(
@@ -165,18 +252,47 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 		return patientRelatedOperationDesc ;
 	}
 
-	private List<IAuthRule> managePatientCompartment( boolean isLocal, IIdType patientId ) {
+	/*
+	 * each patient owns its compartment by its qualified id and by its unqualified id
+	 * (the id comparison would treat those as the same id, so collect them by value)
+	 */
+	private Collection<IIdType> compartmentOwners( Collection<IIdType> patientIds ) {
+		Map<String,IIdType> owners = new LinkedHashMap<>() ;
+		for ( IIdType patientId : patientIds ) {
+			owners.putIfAbsent( patientId.getValue(), patientId ) ;
+			if ( patientId.hasBaseUrl() )
+				owners.putIfAbsent( patientId.toUnqualifiedVersionless().getValue(), patientId.toUnqualifiedVersionless() ) ;
+		}
+		return owners.values() ;
+	}
+
+	private String describePatientsPermission( String operation, boolean isLocal, Collection<IIdType> patientIds ) {
+		String patientRelatedOperationDesc =
+				String.format(
+					"%1$s %2$s patients %3$s",
+					operation,
+					isLocal ? "local" : "non-local",
+					patientIds.stream().map( IIdType::getValue ).collect( joining(", ", "[ ", " ]") )
+				);
+		return patientRelatedOperationDesc ;
+	}
+
+	/*
+	 * one rule per operation for all of the patients,
+	 * instead of one rule per operation for each patient
+	 */
+	private List<IAuthRule> managePatientCompartments( boolean isLocal, Collection<IIdType> patientIds ) {
 		List<IAuthRule> rules = new ArrayList<>() ;
 
 		ruleBuilder()
-			.allow( describePatientPermission("read", isLocal, patientId) )
-			.read().allResources().inCompartment("Patient", patientId)
+			.allow( describePatientsPermission("read", isLocal, patientIds) )
+			.read().allResources().inCompartment("Patient", patientIds)
 			.andThen()
-			.allow( describePatientPermission("write", isLocal, patientId) )
-			.write().allResources().inCompartment("Patient", patientId)
+			.allow( describePatientsPermission("write", isLocal, patientIds) )
+			.write().allResources().inCompartment("Patient", patientIds)
 			.andThen()
-			.allow( describePatientPermission("delete", isLocal, patientId) )
-			.delete().allResources().inCompartment("Patient", patientId)
+			.allow( describePatientsPermission("delete", isLocal, patientIds) )
+			.delete().allResources().inCompartment("Patient", patientIds)
 			.build()
 			.forEach( rules::add )
 			;
@@ -187,14 +303,14 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 		 * so, build them using separate RuleBuilder instances
 		 */
 		ruleBuilder()
-			.allow( describePatientPermission("cascade-delete", isLocal, patientId) )
-			.delete().onCascade().allResources().inCompartment("Patient", patientId)
+			.allow( describePatientsPermission("cascade-delete", isLocal, patientIds) )
+			.delete().onCascade().allResources().inCompartment("Patient", patientIds)
 			.build()
 			.forEach( rules::add )
 			;
 		ruleBuilder()
-			.allow( describePatientPermission("expunge-delete", isLocal, patientId) )
-			.delete().onExpunge().allResources().inCompartment("Patient", patientId)
+			.allow( describePatientsPermission("expunge-delete", isLocal, patientIds) )
+			.delete().onExpunge().allResources().inCompartment("Patient", patientIds)
 			.build()
 			.forEach( rules::add )
 			;
@@ -204,7 +320,7 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 
 	private List<IAuthRule> manageLinkages( boolean isLocal, IIdType patientId ) {
 		/* omitting the resource type DOES break the Linkage search */
-		String filterForLinkageByItem = "item=" + patientId.toUnqualifiedVersionless().toString();
+		String filterForLinkageByItem = SupplementalDataStoreLinkageAuthorizationMatcher.filterForLinkageByItem( patientId );
 
 		return ruleBuilder()
 			.allow( describePatientPermission("read linkages for", isLocal, patientId) )
@@ -0,0 +1,275 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.hibernate.Session;
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.BinaryUtil;
+import ca.uhn.fhir.util.JsonUtil;
+import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * links existing local users to the users of a (new) non-local partition in bulk, as the $sds-link batch job
+ *
+ * the input pairs are split into chunks, and each chunk is linked in its own transaction:
+ *   - pairs that are already linked are skipped, so a job can be re-run over the same input after a failure
+ *   - pairs whose local user does not exist, or whose non-local user is linked to another local user, are reported and skipped
+ *   - the missing stub users are created together, and the Linkages are written with JDBC batching
+ *
+ * chunks run on the batch job workers, but no more than max-concurrent-chunks at a time,
+ * so that a large backfill leaves database connections for the requests being served
+ */
+@Component
+public class SupplementalDataStoreBulkLink {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreBulkLink.class);
+
+	public static final String CONTENT_TYPE_NDJSON = "application/fhir+ndjson" ;
+	public static final String METER_PAIRS = "sds.bulk.link.pairs" ;
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStoreLinkage linkage;
+
+	@Inject
+	SupplementalDataStorePartition partition;
+
+	@Inject
+	SupplementalDataStoreLinkingLocks linkingLocks;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	DaoRegistry daoRegistry;
+
+	@Inject
+	MeterRegistry meterRegistry;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	EntityManager entityManager;
+
+	@Inject
+	@Named("transactionManager")
+	protected PlatformTransactionManager txManager;
+
+	private Semaphore chunkPermits ;
+
+	private static final class UnlinkedPair {
+		private final IIdType localUserId ;
+		private final IIdType nonLocalUserId ;
+
+		UnlinkedPair( IIdType localUserId, IIdType nonLocalUserId ) {
+			this.localUserId = localUserId ;
+			this.nonLocalUserId = nonLocalUserId ;
+		}
+	}
+
+	@PostConstruct
+	public void initializeChunkPermits() {
+		chunkPermits = new Semaphore( Math.max( 1, sdsProperties.getBulkLink().getMaxConcurrentChunks() ), true ) ;
+	}
+
+	private SystemRequestDetails localPartitionRequest() {
+		SystemRequestDetails internalRequestForLocalPartition = new SystemRequestDetails();
+		internalRequestForLocalPartition.setRequestPartitionId(RequestPartitionId.fromPartitionName(sdsProperties.getPartition().getLocalName()));
+		return internalRequestForLocalPartition;
+	}
+
+	private IIdType idFrom( String value ) {
+		return fhirContext.getVersion().newIdType().setValue( value ) ;
+	}
+
+	/*
+	 * validates every line before anything is stored, so that a malformed input never starts a job
+	 */
+	public List<SupplementalDataStoreBulkLinkPair> parseInput( byte[] ndjson ) {
+		List<SupplementalDataStoreBulkLinkPair> pairs = new ArrayList<>() ;
+		try ( BufferedReader reader = new BufferedReader( new StringReader( new String( ndjson, StandardCharsets.UTF_8 ) ) ) ) {
+			int lineNumber = 0 ;
+			for ( String line = reader.readLine() ; null != line ; line = reader.readLine() ) {
+				++lineNumber ;
+				if ( line.isBlank() )
+					continue ;
+				pairs.add( parsePair( line, lineNumber ) ) ;
+			}
+		} catch ( IOException ex ) {
+			throw new InvalidRequestException( "cannot read $sds-link input: " + ex.getMessage(), ex ) ;
+		}
+		return pairs ;
+	}
+
+	private SupplementalDataStoreBulkLinkPair parsePair( String line, int lineNumber ) {
+		SupplementalDataStoreBulkLinkPair pair ;
+		try {
+			pair = JsonUtil.deserialize( line, SupplementalDataStoreBulkLinkPair.class ) ;
+		} catch ( RuntimeException ex ) {
+			throw new InvalidRequestException( "line " + lineNumber + " of $sds-link input is not a JSON object: " + ex.getMessage() ) ;
+		}
+		if ( null == pair.getLocal() || null == pair.getNonLocal() )
+			throw new InvalidRequestException( "line " + lineNumber + " of $sds-link input requires both \"local\" and \"nonLocal\"" ) ;
+		IIdType localUserId = idFrom( pair.getLocal() ) ;
+		IIdType nonLocalUserId = idFrom( pair.getNonLocal() ) ;
+		if ( !localUserId.hasResourceType() || !localUserId.hasIdPart() || !partition.userIsLocal( localUserId ) )
+			throw new InvalidRequestException( "line " + lineNumber + " of $sds-link input has \"" + pair.getLocal() + "\" where a local user id is expected" ) ;
+		if ( !nonLocalUserId.hasResourceType() || !nonLocalUserId.hasIdPart() || !partition.userIsNonLocal( nonLocalUserId ) )
+			throw new InvalidRequestException( "line " + lineNumber + " of $sds-link input has \"" + pair.getNonLocal() + "\" where a non-local user id (including its partition base url) is expected" ) ;
+		if ( !localUserId.getResourceType().equals( nonLocalUserId.getResourceType() ) )
+			throw new InvalidRequestException( "line " + lineNumber + " of $sds-link input links a " + localUserId.getResourceType() + " to a " + nonLocalUserId.getResourceType() ) ;
+		return new SupplementalDataStoreBulkLinkPair( localUserId.toUnqualifiedVersionless().getValue(), nonLocalUserId.toVersionless().getValue() ) ;
+	}
+
+	@SuppressWarnings("unchecked")
+	private IFhirResourceDao<IBaseBinary> binaryDao() {
+		return (IFhirResourceDao<IBaseBinary>)daoRegistry.getResourceDao( "Binary" ) ;
+	}
+
+	public IIdType storeInput( byte[] ndjson ) {
+		IBaseBinary input = BinaryUtil.newBinary( fhirContext ) ;
+		BinaryUtil.setData( fhirContext, input, ndjson, CONTENT_TYPE_NDJSON ) ;
+		return binaryDao().create( input, localPartitionRequest() ).getId().toUnqualifiedVersionless() ;
+	}
+
+	public byte[] readInput( String inputId ) {
+		IBaseBinary input = binaryDao().read( idFrom( inputId ), localPartitionRequest() ) ;
+		return BinaryUtil.getOrCreateData( fhirContext, input ).getValue() ;
+	}
+
+	public RunOutcome splitInput( StepExecutionDetails<SupplementalDataStoreBulkLinkJobParameters,VoidModel> theStepExecutionDetails, IJobDataSink<SupplementalDataStoreBulkLinkChunk> theDataSink ) {
+		List<SupplementalDataStoreBulkLinkPair> pairs = parseInput( readInput( theStepExecutionDetails.getParameters().getInputId() ) ) ;
+		int chunkSize = Math.max( 1, sdsProperties.getBulkLink().getChunkSize() ) ;
+		for ( int first = 0 ; first < pairs.size() ; first += chunkSize ) {
+			List<SupplementalDataStoreBulkLinkPair> chunkPairs = new ArrayList<>( pairs.subList( first, Math.min( pairs.size(), first + chunkSize ) ) ) ;
+			theDataSink.accept( new SupplementalDataStoreBulkLinkChunk().setFirstPair( first + 1 ).setPairs( chunkPairs ) ) ;
+		}
+		ourLog.info( "split $sds-link input {} into {} chunks of up to {} pairs", theStepExecutionDetails.getParameters().getInputId(), ( pairs.size() + chunkSize - 1 ) / chunkSize, chunkSize ) ;
+		return new RunOutcome( pairs.size() ) ;
+	}
+
+	public RunOutcome linkChunk( StepExecutionDetails<SupplementalDataStoreBulkLinkJobParameters,SupplementalDataStoreBulkLinkChunk> theStepExecutionDetails, IJobDataSink<VoidModel> theDataSink ) {
+		SupplementalDataStoreBulkLinkChunk chunk = theStepExecutionDetails.getData() ;
+		try {
+			chunkPermits.acquire() ;
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread().interrupt() ;
+			throw new JobExecutionFailedException( "interrupted while waiting to link the pairs from pair " + chunk.getFirstPair(), ex ) ;
+		}
+		try {
+			doInTransaction( () -> {
+				linkPairs( chunk, theDataSink ) ;
+				return null ;
+			});
+		} finally {
+			chunkPermits.release() ;
+		}
+		return new RunOutcome( chunk.getPairs().size() ) ;
+	}
+
+	private <T> T doInTransaction( Supplier<T> task ) {
+		TransactionTemplate tmpl = new TransactionTemplate(txManager);
+		return tmpl.execute( status -> task.get() ) ;
+	}
+
+	private void linkPairs( SupplementalDataStoreBulkLinkChunk chunk, IJobDataSink<VoidModel> theDataSink ) {
+		entityManager.unwrap( Session.class ).setJdbcBatchSize( sdsProperties.getBulkLink().getJdbcBatchSize() ) ;
+
+		List<IIdType> nonLocalUserIds = new ArrayList<>() ;
+		for ( SupplementalDataStoreBulkLinkPair pair : chunk.getPairs() ) {
+			nonLocalUserIds.add( idFrom( pair.getNonLocal() ) ) ;
+		}
+
+		/* the checks and the writes are made under the linking locks, so that a concurrent first write cannot link the same users */
+		linkingLocks.whileLinking( nonLocalUserIds, () -> {
+			List<UnlinkedPair> unlinkedPairs = new ArrayList<>() ;
+			int pairNumber = chunk.getFirstPair() ;
+			for ( SupplementalDataStoreBulkLinkPair pair : chunk.getPairs() ) {
+				IIdType localUserId = idFrom( pair.getLocal() ) ;
+				IIdType nonLocalUserId = idFrom( pair.getNonLocal() ) ;
+				String rejection = checkPair( localUserId, nonLocalUserId, unlinkedPairs ) ;
+				if ( null != rejection ) {
+					theDataSink.recoveredError( "pair " + pairNumber + " (\"" + pair.getLocal() + "\", \"" + pair.getNonLocal() + "\") " + rejection ) ;
+					countPairs( "rejected", 1 ) ;
+				}
+				++pairNumber ;
+			}
+			if ( unlinkedPairs.isEmpty() )
+				return ;
+
+			List<IIdType> unlinkedNonLocalUserIds = new ArrayList<>() ;
+			for ( UnlinkedPair unlinkedPair : unlinkedPairs ) {
+				unlinkedNonLocalUserIds.add( unlinkedPair.nonLocalUserId ) ;
+			}
+			List<IIdType> establishedNonLocalUserIds = linkage.establishNonLocalUsers( unlinkedNonLocalUserIds ) ;
+			for ( int i = 0 ; i < unlinkedPairs.size() ; ++i ) {
+				linkage.linkNonLocalPatientToLocalPatient( unlinkedPairs.get( i ).localUserId, establishedNonLocalUserIds.get( i ) ) ;
+			}
+			countPairs( "linked", unlinkedPairs.size() ) ;
+		});
+	}
+
+	/*
+	 * answers why the pair cannot be linked, or adds it to the unlinked pairs;
+	 * a pair that is already linked is neither
+	 */
+	private String checkPair( IIdType localUserId, IIdType nonLocalUserId, List<UnlinkedPair> unlinkedPairs ) {
+		Optional<IIdType> linkedLocalUserId = linkage.lookupLocalUserFor( nonLocalUserId ) ;
+		if ( linkedLocalUserId.isPresent() ) {
+			if ( FhirResourceComparison.idTypes().comparator().compare( linkedLocalUserId.get().toUnqualifiedVersionless(), localUserId ) == 0 ) {
+				countPairs( "skipped", 1 ) ;
+				return null ;
+			}
+			return "cannot be linked, because the non-local user is already linked to \"" + linkedLocalUserId.get().toUnqualifiedVersionless().getValue() + "\"" ;
+		}
+		for ( UnlinkedPair unlinkedPair : unlinkedPairs ) {
+			if ( FhirResourceComparison.idTypes().comparator().compare( unlinkedPair.nonLocalUserId, nonLocalUserId ) == 0 ) {
+				if ( FhirResourceComparison.idTypes().comparator().compare( unlinkedPair.localUserId, localUserId ) == 0 ) {
+					countPairs( "skipped", 1 ) ;
+					return null ;
+				}
+				return "cannot be linked, because the non-local user is linked to \"" + unlinkedPair.localUserId.getValue() + "\" earlier in the input" ;
+			}
+		}
+		IIdType qualifiedLocalUserId = localUserId.withServerBase( sdsProperties.getPartition().getLocalName(), localUserId.getResourceType() ) ;
+		if ( !linkage.patientCompartmentIsClaimed( qualifiedLocalUserId ) )
+			return "cannot be linked, because the local user does not exist" ;
+		unlinkedPairs.add( new UnlinkedPair( localUserId, nonLocalUserId ) ) ;
+		return null ;
+	}
+
+	private void countPairs( String outcome, int count ) {
+		meterRegistry.counter( METER_PAIRS, SupplementalDataStoreMetrics.TAG_OUTCOME, outcome ).increment( count ) ;
+	}
+}
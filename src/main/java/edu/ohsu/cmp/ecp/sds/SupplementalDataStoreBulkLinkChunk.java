@@ -0,0 +1,38 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import ca.uhn.fhir.model.api.IModelJson;
+
+/*
+ * the pairs linked together in one transaction of a $sds-link job
+ */
+public class SupplementalDataStoreBulkLinkChunk implements IModelJson {
+
+	@JsonProperty("firstPair")
+	private int firstPair ;
+
+	@JsonProperty("pairs")
+	private List<SupplementalDataStoreBulkLinkPair> pairs = new ArrayList<>() ;
+
+	public int getFirstPair() {
+		return firstPair ;
+	}
+
+	public SupplementalDataStoreBulkLinkChunk setFirstPair( int firstPair ) {
+		this.firstPair = firstPair ;
+		return this ;
+	}
+
+	public List<SupplementalDataStoreBulkLinkPair> getPairs() {
+		return pairs ;
+	}
+
+	public SupplementalDataStoreBulkLinkChunk setPairs( List<SupplementalDataStoreBulkLinkPair> pairs ) {
+		this.pairs = pairs ;
+		return this ;
+	}
+}
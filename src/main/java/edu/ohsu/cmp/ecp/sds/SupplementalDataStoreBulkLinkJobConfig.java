@@ -0,0 +1,39 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import ca.uhn.fhir.batch2.model.JobDefinition;
+
+/*
+ * the $sds-link batch job; the job framework persists each chunk of pairs as a work chunk,
+ * retries a chunk that fails, and tracks the progress of the job instance
+ */
+@Configuration
+public class SupplementalDataStoreBulkLinkJobConfig {
+
+	public static final String JOB_SDS_BULK_LINK = "SDS_BULK_LINK" ;
+
+	@Bean
+	public JobDefinition<SupplementalDataStoreBulkLinkJobParameters> sdsBulkLinkJobDefinition( SupplementalDataStoreBulkLink bulkLink ) {
+		return JobDefinition
+			.newBuilder()
+			.setJobDefinitionId( JOB_SDS_BULK_LINK )
+			.setJobDescription( "Link local users to non-local users in bulk" )
+			.setJobDefinitionVersion( 1 )
+			.setParametersType( SupplementalDataStoreBulkLinkJobParameters.class )
+			.addFirstStep(
+				"split-input",
+				"Split the input into chunks of pairs",
+				SupplementalDataStoreBulkLinkChunk.class,
+				bulkLink::splitInput
+				)
+			.addLastStep(
+				"link-pairs",
+				"Establish the stub users and Linkages for a chunk of pairs",
+				bulkLink::linkChunk
+				)
+			.build()
+			;
+	}
+}
@@ -0,0 +1,36 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import ca.uhn.fhir.model.api.IModelJson;
+
+/*
+ * the input of a $sds-link job is kept as a Binary in the local partition,
+ * so that a failed job can be resumed from the same input
+ */
+public class SupplementalDataStoreBulkLinkJobParameters implements IModelJson {
+
+	@JsonProperty("inputId")
+	private String inputId ;
+
+	@JsonProperty("resumedJobId")
+	private String resumedJobId ;
+
+	public String getInputId() {
+		return inputId ;
+	}
+
+	public SupplementalDataStoreBulkLinkJobParameters setInputId( String inputId ) {
+		this.inputId = inputId ;
+		return this ;
+	}
+
+	public String getResumedJobId() {
+		return resumedJobId ;
+	}
+
+	public SupplementalDataStoreBulkLinkJobParameters setResumedJobId( String resumedJobId ) {
+		this.resumedJobId = resumedJobId ;
+		return this ;
+	}
+}
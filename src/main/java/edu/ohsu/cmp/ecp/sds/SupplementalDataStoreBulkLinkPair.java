@@ -0,0 +1,42 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import ca.uhn.fhir.model.api.IModelJson;
+
+/*
+ * one line of the $sds-link input, e.g.
+ *   {"local":"Patient/123","nonLocal":"http://my.ehr.org/fhir/R4/Patient/abc"}
+ */
+public class SupplementalDataStoreBulkLinkPair implements IModelJson {
+
+	@JsonProperty("local")
+	private String local ;
+
+	@JsonProperty("nonLocal")
+	private String nonLocal ;
+
+	public SupplementalDataStoreBulkLinkPair() {
+	}
+
+	public SupplementalDataStoreBulkLinkPair( String local, String nonLocal ) {
+		this.local = local ;
+		this.nonLocal = nonLocal ;
+	}
+
+	public String getLocal() {
+		return local ;
+	}
+
+	public void setLocal( String local ) {
+		this.local = local ;
+	}
+
+	public String getNonLocal() {
+		return nonLocal ;
+	}
+
+	public void setNonLocal( String nonLocal ) {
+		this.nonLocal = nonLocal ;
+	}
+}
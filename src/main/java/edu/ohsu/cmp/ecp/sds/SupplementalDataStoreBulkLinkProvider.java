@@ -0,0 +1,117 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.batch.models.Batch2JobStartResponse;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.ParametersUtil;
+
+/*
+ * $sds-link starts a batch job that links local users to non-local users, one pair per line of the NDJSON request body
+ * (e.g. {"local":"Patient/123","nonLocal":"http://my.ehr.org/fhir/R4/Patient/abc"});
+ * $sds-link?resume=<jobId> runs a job again over the input of an earlier job that has ended
+ *
+ * $sds-link-status?_jobId=<jobId> reports the progress of a job
+ */
+@Component
+public class SupplementalDataStoreBulkLinkProvider {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreBulkLinkProvider.class);
+
+	public static final String OPERATION_SDS_LINK = "$sds-link" ;
+	public static final String OPERATION_SDS_LINK_STATUS = "$sds-link-status" ;
+	public static final String PARAM_RESUME = "resume" ;
+	public static final String PARAM_JOB_ID = "_jobId" ;
+
+	@Inject
+	SupplementalDataStoreBulkLink bulkLink;
+
+	@Inject
+	IJobCoordinator jobCoordinator;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Operation(name = OPERATION_SDS_LINK, manualRequest = true, idempotent = false)
+	public IBaseParameters link( RequestDetails theRequestDetails ) {
+		String[] resume = theRequestDetails.getParameters().get( PARAM_RESUME ) ;
+		SupplementalDataStoreBulkLinkJobParameters jobParameters =
+			null != resume && resume.length > 0
+				? resumedJobParameters( resume[0] )
+				: newJobParameters( theRequestDetails.loadRequestContents() )
+				;
+
+		JobInstanceStartRequest startRequest = new JobInstanceStartRequest() ;
+		startRequest.setJobDefinitionId( SupplementalDataStoreBulkLinkJobConfig.JOB_SDS_BULK_LINK ) ;
+		startRequest.setParameters( jobParameters ) ;
+		Batch2JobStartResponse startResponse = jobCoordinator.startInstance( startRequest ) ;
+		ourLog.info( "started $sds-link job {} for input {}", startResponse.getJobId(), jobParameters.getInputId() ) ;
+
+		IBaseParameters response = ParametersUtil.newInstance( fhirContext ) ;
+		ParametersUtil.addParameterToParametersString( fhirContext, response, "jobId", startResponse.getJobId() ) ;
+		ParametersUtil.addParameterToParametersString( fhirContext, response, "input", jobParameters.getInputId() ) ;
+		return response ;
+	}
+
+	private SupplementalDataStoreBulkLinkJobParameters newJobParameters( byte[] ndjson ) {
+		if ( null == ndjson || ndjson.length == 0 )
+			throw new InvalidRequestException( OPERATION_SDS_LINK + " expects an NDJSON body of local and non-local user id pairs, or a \"" + PARAM_RESUME + "\" job id" ) ;
+		List<SupplementalDataStoreBulkLinkPair> pairs = bulkLink.parseInput( ndjson ) ;
+		if ( pairs.isEmpty() )
+			throw new InvalidRequestException( OPERATION_SDS_LINK + " input has no pairs to link" ) ;
+		IIdType inputId = bulkLink.storeInput( ndjson ) ;
+		return new SupplementalDataStoreBulkLinkJobParameters().setInputId( inputId.getValue() ) ;
+	}
+
+	private SupplementalDataStoreBulkLinkJobParameters resumedJobParameters( String jobId ) {
+		JobInstance instance = bulkLinkInstance( jobId ) ;
+		if ( !instance.isFinished() )
+			throw new InvalidRequestException( "cannot resume " + OPERATION_SDS_LINK + " job \"" + jobId + "\" while it is " + instance.getStatus() ) ;
+		String inputId = instance.getParameters( SupplementalDataStoreBulkLinkJobParameters.class ).getInputId() ;
+		return new SupplementalDataStoreBulkLinkJobParameters().setInputId( inputId ).setResumedJobId( jobId ) ;
+	}
+
+	private JobInstance bulkLinkInstance( String jobId ) {
+		JobInstance instance = jobCoordinator.getInstance( jobId ) ;
+		if ( !SupplementalDataStoreBulkLinkJobConfig.JOB_SDS_BULK_LINK.equals( instance.getJobDefinitionId() ) )
+			throw new InvalidRequestException( "job \"" + jobId + "\" is not an " + OPERATION_SDS_LINK + " job" ) ;
+		return instance ;
+	}
+
+	@Operation(name = OPERATION_SDS_LINK_STATUS, idempotent = true)
+	public IBaseParameters linkStatus(
+			@OperationParam(name = PARAM_JOB_ID, typeName = "string", min = 1, max = 1) IPrimitiveType<String> theJobId
+		) {
+		JobInstance instance = bulkLinkInstance( theJobId.getValue() ) ;
+
+		IBaseParameters response = ParametersUtil.newInstance( fhirContext ) ;
+		ParametersUtil.addParameterToParametersString( fhirContext, response, "jobId", instance.getInstanceId() ) ;
+		ParametersUtil.addParameterToParametersCode( fhirContext, response, "status", instance.getStatus().name() ) ;
+		ParametersUtil.addParameterToParametersDecimal( fhirContext, response, "progress", BigDecimal.valueOf( instance.getProgress() ) ) ;
+		if ( null != instance.getCombinedRecordsProcessed() )
+			ParametersUtil.addParameterToParametersInteger( fhirContext, response, "recordsProcessed", instance.getCombinedRecordsProcessed() ) ;
+		ParametersUtil.addParameterToParametersInteger( fhirContext, response, "errorCount", instance.getErrorCount() ) ;
+		if ( null != instance.getErrorMessage() )
+			ParametersUtil.addParameterToParametersString( fhirContext, response, "errorMessage", instance.getErrorMessage() ) ;
+		if ( null != instance.getEstimatedTimeRemaining() )
+			ParametersUtil.addParameterToParametersString( fhirContext, response, "estimatedTimeRemaining", instance.getEstimatedTimeRemaining() ) ;
+		String resumedJobId = instance.getParameters( SupplementalDataStoreBulkLinkJobParameters.class ).getResumedJobId() ;
+		if ( null != resumedJobId )
+			ParametersUtil.addParameterToParametersString( fhirContext, response, "resumes", resumedJobId ) ;
+		return response ;
+	}
+}
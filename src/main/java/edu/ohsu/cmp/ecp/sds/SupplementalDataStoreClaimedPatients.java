@@ -0,0 +1,279 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/*
+ * the Patient ids known to exist in each partition, held in memory
+ *
+ * a patient compartment is claimed once its Patient exists, and stays claimed unless the Patient is deleted,
+ * so an id in the set answers "claimed" without searching; an id missing from the set (never seen, or evicted
+ * to stay within the memory budget) is searched for as before
+ *
+ * ids are only added once the transaction that wrote or read them commits, and a Patient that is deleted
+ * through this server is removed at once and again once its transaction completes; a Patient deleted on
+ * another server, or expunged (which removes it without any deletion hook), is only forgotten when its id
+ * expires, so the set may answer "claimed" for such a Patient for up to the time-to-live
+ */
+@Interceptor
+@Component
+public class SupplementalDataStoreClaimedPatients {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreClaimedPatients.class);
+
+	/* an estimate of the heap used by one entry beyond the characters of its key */
+	private static final int ENTRY_OVERHEAD_BYTES = 96 ;
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStorePartition partition;
+
+	@Inject
+	MeterRegistry meterRegistry;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	EntityManager entityManager;
+
+	@Inject
+	@Named("transactionManager")
+	protected PlatformTransactionManager txManager;
+
+	private Cache<String,Boolean> claimedPatients ;
+
+	/* an id read before a Patient was deleted must not be added after the Patient is removed */
+	private final AtomicLong deletions = new AtomicLong() ;
+
+	@PostConstruct
+	public void initializeSet() {
+		SupplementalDataStoreProperties.ClaimedPatients config = sdsProperties.getClaimedPatients();
+		claimedPatients =
+			Caffeine.newBuilder()
+				.maximumWeight( config.getMemoryBudget().toBytes() )
+				.expireAfterWrite( config.getTimeToLive() )
+				.weigher( (String key, Boolean value) -> ENTRY_OVERHEAD_BYTES + 2 * key.length() )
+				.recordStats()
+				.build()
+				;
+		CaffeineCacheMetrics.monitor( meterRegistry, claimedPatients, "sds.claimed.patients" ) ;
+	}
+
+	private <T> T doInNewTransaction( Supplier<T> task ) {
+		TransactionTemplate tmpl = new TransactionTemplate(txManager);
+		tmpl.setPropagationBehavior( TransactionDefinition.PROPAGATION_REQUIRES_NEW );
+		tmpl.setReadOnly( true );
+
+		return tmpl.execute(new TransactionCallback<T>() {
+			@Override
+			public T doInTransaction(TransactionStatus status) {
+				return task.get() ;
+			}
+		});
+	}
+
+	public boolean isEnabled() {
+		return sdsProperties.getClaimedPatients().getEnabled() ;
+	}
+
+	/*
+	 * partition names are compared without any trailing slash, as they are when taken from the partition header
+	 */
+	private static String key( String partitionName, String patientIdPart ) {
+		return partitionName.replaceFirst( "/$", "" ) + "|" + patientIdPart ;
+	}
+
+	private static String key( IIdType patientId ) {
+		return key( patientId.getBaseUrl(), patientId.getIdPart() ) ;
+	}
+
+	/*
+	 * answers true only when the Patient is known to exist in the partition named by the base url of the id
+	 */
+	public boolean isKnownToBeClaimed( IIdType patientId ) {
+		if ( !isEnabled() || !patientId.hasBaseUrl() || !patientId.hasIdPart() )
+			return false ;
+		return null != claimedPatients.getIfPresent( key( patientId ) ) ;
+	}
+
+	/*
+	 * records a Patient found to exist; an id read inside a transaction is recorded once that transaction commits
+	 */
+	public void claimed( IIdType patientId ) {
+		if ( !isEnabled() || !patientId.hasBaseUrl() || !patientId.hasIdPart() )
+			return ;
+		addAfterCommit( key( patientId ) ) ;
+	}
+
+	private void addAfterCommit( String key ) {
+		long deletionsBefore = deletions.get() ;
+		if ( TransactionSynchronizationManager.isActualTransactionActive() && TransactionSynchronizationManager.isSynchronizationActive() ) {
+			TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					addUnlessDeleted( key, deletionsBefore ) ;
+				}
+			});
+		} else {
+			addUnlessDeleted( key, deletionsBefore ) ;
+		}
+	}
+
+	private void addUnlessDeleted( String key, long deletionsBefore ) {
+		if ( deletions.get() == deletionsBefore )
+			claimedPatients.put( key, Boolean.TRUE ) ;
+	}
+
+	public void forgetAll() {
+		claimedPatients.invalidateAll() ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void patientCreated( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		if ( !isEnabled() || null == theResource || !"Patient".equals( theResource.fhirType() ) )
+			return ;
+		String partitionName = partitionNameOf( theRequestDetails ) ;
+		if ( null == partitionName )
+			return ;
+		addAfterCommit( key( partitionName, theResource.getIdElement().getIdPart() ) ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void patientDeleted( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		if ( !isEnabled() || null == theResource || !"Patient".equals( theResource.fhirType() ) )
+			return ;
+		String partitionName = partitionNameOf( theRequestDetails ) ;
+		Runnable remove =
+			null == partitionName
+				? this::forgetAll
+				: () -> claimedPatients.invalidate( key( partitionName, theResource.getIdElement().getIdPart() ) )
+				;
+		deletions.incrementAndGet() ;
+		remove.run() ;
+
+		/* a concurrent request could add the id again before this transaction commits */
+		if ( TransactionSynchronizationManager.isSynchronizationActive() ) {
+			TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					deletions.incrementAndGet() ;
+					remove.run() ;
+				}
+			});
+		}
+	}
+
+	/*
+	 * internal requests name their partition explicitly; other requests name it with the partition header
+	 */
+	private String partitionNameOf( RequestDetails theRequestDetails ) {
+		if ( null == theRequestDetails )
+			return null ;
+		if ( theRequestDetails instanceof SystemRequestDetails ) {
+			RequestPartitionId requestPartitionId = ((SystemRequestDetails)theRequestDetails).getRequestPartitionId() ;
+			if ( null == requestPartitionId || !requestPartitionId.hasPartitionNames() || requestPartitionId.getPartitionNames().size() != 1 )
+				return null ;
+			return requestPartitionId.getFirstPartitionNameOrNull() ;
+		}
+		return partition.partitionNameFromRequest( theRequestDetails ) ;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void startSeeding() {
+		SupplementalDataStoreProperties.ClaimedPatients config = sdsProperties.getClaimedPatients();
+		if ( !config.getEnabled() || !config.getSeedOnStartup() )
+			return ;
+
+		Thread seedThread = new Thread( this::seed, "sds-claimed-patients-seed" );
+		seedThread.setDaemon(true);
+		seedThread.start();
+	}
+
+	public void seed() {
+		try {
+			int seededCount = 0 ;
+			for ( String partitionName : partition.knownPartitionNames() ) {
+				seededCount += seedPartition( partitionName, sdsProperties.getClaimedPatients().getSeedChunkSize() ) ;
+			}
+			ourLog.info( "claimed patient seeding complete; read {} Patient ids", seededCount ) ;
+		} catch ( RuntimeException ex ) {
+			ourLog.error( "claimed patient seeding failed; continuing to search for Patients", ex ) ;
+		}
+	}
+
+	/*
+	 * Patient ids are read in order of their primary key, a chunk at a time, so the whole partition is never held at once;
+	 * the ids past the memory budget are simply evicted
+	 */
+	private int seedPartition( String partitionName, int chunkSize ) {
+		Integer partitionId = partition.partitionIdForName( partitionName ).orElse( null ) ;
+		if ( null == partitionId )
+			return 0 ;
+
+		int seededCount = 0 ;
+		long lastPid = Long.MIN_VALUE ;
+		for ( ;; ) {
+			long deletionsBefore = deletions.get() ;
+			List<Object[]> chunk = patientIdsAfter( partitionId, lastPid, chunkSize ) ;
+			if ( chunk.isEmpty() )
+				break ;
+			for ( Object[] row : chunk ) {
+				Long pid = (Long)row[0] ;
+				String forcedId = (String)row[1] ;
+				addUnlessDeleted( key( partitionName, null == forcedId ? pid.toString() : forcedId ), deletionsBefore ) ;
+			}
+			seededCount += chunk.size() ;
+			lastPid = (Long)chunk.get( chunk.size() - 1 )[0] ;
+		}
+		return seededCount ;
+	}
+
+	private List<Object[]> patientIdsAfter( int partitionId, long lastPid, int maxIds ) {
+		return doInNewTransaction( () -> {
+			return
+				entityManager.createQuery(
+					"SELECT r.myId, f.myForcedId FROM ResourceTable r LEFT JOIN r.myForcedId f"
+						+ " WHERE r.myResourceType = 'Patient' AND r.myDeleted IS NULL AND r.myPartitionIdValue = :partitionId AND r.myId > :lastPid"
+						+ " ORDER BY r.myId",
+					Object[].class
+				)
+				.setParameter( "partitionId", partitionId )
+				.setParameter( "lastPid", lastPid )
+				.setMaxResults( maxIds )
+				.getResultList()
+				;
+		});
+	}
+}
@@ -0,0 +1,213 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static edu.ohsu.cmp.ecp.sds.SupplementalDataStorePermissionsInterceptor.getPermissions;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDaoPatient;
+import ca.uhn.fhir.jpa.api.dao.PatientEverythingParameters;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.IRestfulServerDefaults;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
+
+/*
+ * $sds-everything streams the patient compartment of the authorized patient from every partition the patient
+ * is known to as NDJSON (one resource per line); $sds-everything?_type=Observation,Condition&_since=<instant>
+ * limits the resource types and the last updated instant, as for Patient/$everything
+ *
+ * each partition pages through its Patient/$everything a page at a time, at the same time as the other partitions,
+ * and the resources are written as they arrive, so the response holds no more than a fixed number of resources
+ * in memory however large the compartments are; the partitions are interleaved in the order their pages arrive
+ *
+ * only the resources the patient may read are written (e.g. not a Practitioner included by reference);
+ * a partition that fails is reported by an OperationOutcome line at the end of the response
+ */
+@Component
+public class SupplementalDataStoreEverythingProvider {
+
+	public static final String OPERATION_SDS_EVERYTHING = "$sds-everything" ;
+	public static final String PARAM_TYPE = Constants.PARAM_TYPE ;
+	public static final String PARAM_SINCE = Constants.PARAM_SINCE ;
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStoreFanOut fanOut;
+
+	@Inject
+	SupplementalDataStoreAuthorizationInterceptor authorizationInterceptor;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	DaoRegistry daoRegistry;
+
+	/*
+	 * an internal request answered through the paging provider of the server, which persists the search
+	 * so that it can be read a page at a time, instead of loading it whole
+	 */
+	private static final class PagedSystemRequestDetails extends SystemRequestDetails {
+		private final IRestfulServerDefaults server ;
+
+		PagedSystemRequestDetails( IRestfulServerDefaults server ) {
+			this.server = server ;
+		}
+
+		@Override
+		public IRestfulServerDefaults getServer() {
+			return server ;
+		}
+	}
+
+	@Operation(name = OPERATION_SDS_EVERYTHING, idempotent = true, manualResponse = true)
+	public void everything( RequestDetails theRequestDetails, HttpServletResponse theServletResponse ) throws IOException {
+		Permissions permissions = getPermissions( theRequestDetails ) ;
+		if ( null == permissions || !permissions.readAndWriteSpecificPatient().isPresent() )
+			throw new ForbiddenOperationException( OPERATION_SDS_EVERYTHING + " gathers the partitions of the authorized patient, but no patient is authorized" ) ;
+		UserIdentity patientIdentity = permissions.readAndWriteSpecificPatient().get().patientId() ;
+		PatientEverythingParameters everythingParameters = everythingParameters( theRequestDetails.getParameters() ) ;
+
+		SupplementalDataStoreProperties.FanOut config = sdsProperties.getFanOut() ;
+		Map<String,SupplementalDataStoreFanOut.PartitionProducer<IBaseResource>> producers = new LinkedHashMap<>() ;
+		for ( Map.Entry<String,IIdType> patientId : fanOut.userIdsByPartition( patientIdentity ).entrySet() ) {
+			String partitionName = patientId.getKey() ;
+			producers.put( partitionName, sink -> pagePartition( theRequestDetails, partitionName, patientId.getValue(), everythingParameters, config.getStreamPageSize(), sink ) ) ;
+		}
+
+		theServletResponse.setStatus( HttpServletResponse.SC_OK ) ;
+		theServletResponse.setContentType( Constants.CT_FHIR_NDJSON ) ;
+		theServletResponse.setCharacterEncoding( StandardCharsets.UTF_8.name() ) ;
+		IParser parser = fhirContext.newJsonParser().setPrettyPrint( false ) ;
+		try ( Writer writer = new OutputStreamWriter( theServletResponse.getOutputStream(), StandardCharsets.UTF_8 ) ) {
+			List<SupplementalDataStoreFanOut.PartitionResult<Integer>> results =
+				fanOut.streamAcrossPartitions( producers, config.getStreamBufferCapacity(), resource -> {
+					if ( canRead( theRequestDetails, resource ) )
+						writeLine( writer, parser, resource ) ;
+				});
+			for ( SupplementalDataStoreFanOut.PartitionResult<Integer> result : results ) {
+				if ( !result.succeeded() )
+					writeLine( writer, parser, partitionFailure( result ) ) ;
+			}
+		} catch ( UncheckedIOException ex ) {
+			throw ex.getCause() ;
+		}
+	}
+
+	/*
+	 * the persisted search of Patient/$everything is read a page at a time, so only one page of each partition is held
+	 */
+	private void pagePartition( RequestDetails theRequestDetails, String partitionName, IIdType patientId, PatientEverythingParameters everythingParameters, int pageSize, Consumer<IBaseResource> sink ) {
+		SystemRequestDetails partitionRequest = new PagedSystemRequestDetails( theRequestDetails.getServer() ) ;
+		partitionRequest.setRequestPartitionId( RequestPartitionId.fromPartitionName( partitionName ) ) ;
+
+		IFhirResourceDaoPatient<?> patientDao = (IFhirResourceDaoPatient<?>)daoRegistry.getResourceDao( "Patient" ) ;
+		IBundleProvider everything = patientDao.patientInstanceEverything( null, partitionRequest, everythingParameters, patientId.toUnqualifiedVersionless() ) ;
+		for ( int fromIndex = 0 ; ; fromIndex += pageSize ) {
+			List<IBaseResource> page = everything.getResources( fromIndex, fromIndex + pageSize ) ;
+			if ( page.isEmpty() )
+				break ;
+			for ( IBaseResource resource : page ) {
+				if ( storedIn( resource, partitionName ) )
+					sink.accept( resource ) ;
+			}
+		}
+	}
+
+	/*
+	 * Patient/$everything follows references into other partitions (e.g. from a Linkage to the patient of another partition),
+	 * which that partition writes itself, so each partition writes only the resources stored in it
+	 */
+	private boolean storedIn( IBaseResource resource, String partitionName ) {
+		RequestPartitionId storedPartitionId = (RequestPartitionId)resource.getUserData( Constants.RESOURCE_PARTITION_ID ) ;
+		String storedPartitionName = null == storedPartitionId ? null : storedPartitionId.getFirstPartitionNameOrNull() ;
+		if ( null == storedPartitionName )
+			return partitionName.equals( sdsProperties.getPartition().getLocalName() ) ;
+		return partitionName.equals( storedPartitionName ) ;
+	}
+
+	/* the same decision the consent service makes for each resource of a search */
+	private boolean canRead( RequestDetails theRequestDetails, IBaseResource resource ) {
+		return PolicyEnum.ALLOW ==
+			authorizationInterceptor
+				.applyRulesAndReturnDecision( theRequestDetails.getRestOperationType(), theRequestDetails, null, null, resource, Pointcut.STORAGE_PRESHOW_RESOURCES )
+				.getDecision()
+				;
+	}
+
+	private PatientEverythingParameters everythingParameters( Map<String,String[]> parameters ) {
+		PatientEverythingParameters everythingParameters = new PatientEverythingParameters() ;
+		String[] types = parameters.get( PARAM_TYPE ) ;
+		if ( null != types ) {
+			StringOrListParam typeList = new StringOrListParam() ;
+			for ( String typeValue : types ) {
+				for ( String type : typeValue.split( "," ) ) {
+					if ( !daoRegistry.isResourceTypeSupported( type.trim() ) )
+						throw new InvalidRequestException( OPERATION_SDS_EVERYTHING + " cannot gather unknown resource type \"" + type.trim() + "\"" ) ;
+					typeList.addOr( new StringParam( type.trim() ) ) ;
+				}
+			}
+			everythingParameters.setTypes( new StringAndListParam().addAnd( typeList ) ) ;
+		}
+		String[] since = parameters.get( PARAM_SINCE ) ;
+		if ( null != since && since.length > 0 ) {
+			try {
+				everythingParameters.setLastUpdated( new DateRangeParam( new DateParam( ParamPrefixEnum.GREATERTHAN_OR_EQUALS, since[0] ), null ) ) ;
+			} catch ( RuntimeException ex ) {
+				throw new InvalidRequestException( "invalid " + PARAM_SINCE + " \"" + since[0] + "\"" ) ;
+			}
+		}
+		return everythingParameters ;
+	}
+
+	private IBaseOperationOutcome partitionFailure( SupplementalDataStoreFanOut.PartitionResult<?> result ) {
+		IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance( fhirContext ) ;
+		String message = "partition \"" + result.partitionName() + "\" could not be gathered: " + result.failure().getMessage() ;
+		OperationOutcomeUtil.addIssue( fhirContext, outcome, "error", message, null, "incomplete" ) ;
+		return outcome ;
+	}
+
+	private static void writeLine( Writer writer, IParser parser, IBaseResource resource ) {
+		try {
+			writer.write( parser.encodeResourceToString( resource ) ) ;
+			writer.write( '\n' ) ;
+		} catch ( IOException ex ) {
+			throw new UncheckedIOException( ex ) ;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/*
+ * runs one task per partition at once on a bounded pool of threads shared by every request,
+ * so a request takes as long as its slowest partition instead of the sum of them
+ *
+ * when the queue is full the requesting thread runs the task itself, which slows that request
+ * instead of growing the queue or rejecting it; a partition not finished within the partition timeout
+ * is abandoned and reported as failed, so one slow partition cannot hold the request indefinitely
+ *
+ * each task is a FutureTask run by the pool itself, so abandoning it interrupts the thread running it
+ * (a CompletableFuture would be cancelled without stopping its task, which would keep its thread busy)
+ */
+@Component
+public class SupplementalDataStoreFanOut {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreFanOut.class);
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStorePartition partition;
+
+	@Inject
+	MeterRegistry meterRegistry;
+
+	private ThreadPoolExecutor executor ;
+
+	/*
+	 * the outcome of the task for one partition: either its value or the reason it has none
+	 */
+	public static final class PartitionResult<T> {
+		private final String partitionName ;
+		private final T value ;
+		private final Throwable failure ;
+
+		private PartitionResult( String partitionName, T value, Throwable failure ) {
+			this.partitionName = partitionName ;
+			this.value = value ;
+			this.failure = failure ;
+		}
+
+		public String partitionName() {
+			return partitionName ;
+		}
+
+		public boolean succeeded() {
+			return null == failure ;
+		}
+
+		public T value() {
+			return value ;
+		}
+
+		public Throwable failure() {
+			return failure ;
+		}
+	}
+
+	/*
+	 * produces the items of one partition, handing each to the sink as soon as it is read
+	 */
+	@FunctionalInterface
+	public interface PartitionProducer<T> {
+		void produce( Consumer<T> sink ) ;
+	}
+
+	@PostConstruct
+	public void initializeExecutor() {
+		SupplementalDataStoreProperties.FanOut config = sdsProperties.getFanOut() ;
+		int maxThreads = Math.max( 1, config.getMaxThreads() ) ;
+		AtomicInteger threadCount = new AtomicInteger() ;
+		ThreadFactory threadFactory = task -> {
+			Thread thread = new Thread( task, "sds-fan-out-" + threadCount.incrementAndGet() ) ;
+			thread.setDaemon( true ) ;
+			return thread ;
+		};
+		executor =
+			new ThreadPoolExecutor(
+				maxThreads, maxThreads,
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>( Math.max( 1, config.getQueueCapacity() ) ),
+				threadFactory,
+				new ThreadPoolExecutor.CallerRunsPolicy()
+				);
+		executor.allowCoreThreadTimeOut( true ) ;
+		new ExecutorServiceMetrics( executor, "sds.fan.out", List.of() ).bindTo( meterRegistry ) ;
+	}
+
+	@PreDestroy
+	public void shutdownExecutor() {
+		executor.shutdownNow() ;
+	}
+
+	/*
+	 * the id a user has in each partition it is known to, the local partition first;
+	 * a partition is created with the first resource stored in it, so until then it holds nothing to find
+	 */
+	public Map<String,IIdType> userIdsByPartition( UserIdentity userIdentity ) {
+		Map<String,IIdType> userIds = new LinkedHashMap<>() ;
+		userIdentity.localUserId().ifPresent( localUserId -> userIds.put( sdsProperties.getPartition().getLocalName(), localUserId ) ) ;
+		for ( IIdType nonLocalUserId : userIdentity.nonLocalUserIds() ) {
+			String partitionName = nonLocalUserId.getBaseUrl().replaceFirst( "/$", "" ) ;
+			if ( !userIds.containsKey( partitionName ) && partition.partitionExists( partitionName ) )
+				userIds.put( partitionName, nonLocalUserId ) ;
+		}
+		return userIds ;
+	}
+
+	/*
+	 * the results are in the order of the tasks; every partition shares one deadline
+	 */
+	public <T> List<PartitionResult<T>> acrossPartitions( Map<String,Supplier<T>> tasksByPartition ) {
+		Map<String,FutureTask<T>> futures = new LinkedHashMap<>() ;
+		for ( Map.Entry<String,Supplier<T>> task : tasksByPartition.entrySet() )
+			futures.put( task.getKey(), submit( task.getValue() ) ) ;
+
+		long deadline = System.nanoTime() + sdsProperties.getFanOut().getPartitionTimeout().toNanos() ;
+		List<PartitionResult<T>> results = new ArrayList<>() ;
+		for ( Map.Entry<String,FutureTask<T>> future : futures.entrySet() ) {
+			String partitionName = future.getKey() ;
+			try {
+				T value = future.getValue().get( Math.max( 0, deadline - System.nanoTime() ), TimeUnit.NANOSECONDS ) ;
+				results.add( new PartitionResult<>( partitionName, value, null ) ) ;
+			} catch ( TimeoutException ex ) {
+				future.getValue().cancel( true ) ;
+				ourLog.warn( "partition \"{}\" did not answer within {}", partitionName, sdsProperties.getFanOut().getPartitionTimeout() ) ;
+				results.add( new PartitionResult<>( partitionName, null, ex ) ) ;
+			} catch ( ExecutionException ex ) {
+				ourLog.warn( "partition \"{}\" failed", partitionName, ex.getCause() ) ;
+				results.add( new PartitionResult<>( partitionName, null, ex.getCause() ) ) ;
+			} catch ( InterruptedException ex ) {
+				Thread.currentThread().interrupt() ;
+				futures.values().forEach( f -> f.cancel( true ) ) ;
+				throw new IllegalStateException( "interrupted while waiting for partition \"" + partitionName + "\"", ex ) ;
+			}
+		}
+		return results ;
+	}
+
+	/*
+	 * the partitions hand their items to the requesting thread through a buffer of at most bufferCapacity items,
+	 * and the requesting thread passes each to the consumer in the order they arrive, so memory stays constant
+	 * however many items the partitions hold
+	 *
+	 * a partition run by the requesting thread itself (when the queue of the pool is full) passes its items
+	 * to the consumer directly, since no other thread would drain the buffer for it; if the consumer fails
+	 * (e.g. the client went away), every partition stops at its next item
+	 *
+	 * the results count the items of each partition
+	 */
+	public <T> List<PartitionResult<Integer>> streamAcrossPartitions( Map<String,PartitionProducer<T>> producersByPartition, int bufferCapacity, Consumer<T> consumer ) {
+		BlockingQueue<T> buffer = new ArrayBlockingQueue<>( Math.max( 1, bufferCapacity ) ) ;
+		Thread requestingThread = Thread.currentThread() ;
+		AtomicBoolean abandoned = new AtomicBoolean( false ) ;
+
+		Map<String,FutureTask<Integer>> futures = new LinkedHashMap<>() ;
+		try {
+			for ( Map.Entry<String,PartitionProducer<T>> producer : producersByPartition.entrySet() ) {
+				futures.put( producer.getKey(), submit( () -> {
+					AtomicInteger itemCount = new AtomicInteger() ;
+					producer.getValue().produce( item -> {
+						if ( abandoned.get() )
+							throw new CancellationException( "the stream was abandoned" ) ;
+						itemCount.incrementAndGet() ;
+						if ( Thread.currentThread() == requestingThread )
+							consumer.accept( item ) ;
+						else
+							putUnlessAbandoned( buffer, item, abandoned ) ;
+					});
+					return itemCount.get() ;
+				}) ) ;
+			}
+
+			for ( ;; ) {
+				T item = buffer.poll( 100, TimeUnit.MILLISECONDS ) ;
+				if ( null != item )
+					consumer.accept( item ) ;
+				else if ( futures.values().stream().allMatch( Future::isDone ) && buffer.isEmpty() )
+					break ;
+			}
+		} catch ( InterruptedException ex ) {
+			abandon( abandoned, futures.values() ) ;
+			Thread.currentThread().interrupt() ;
+			throw new IllegalStateException( "interrupted while streaming partitions", ex ) ;
+		} catch ( RuntimeException ex ) {
+			abandon( abandoned, futures.values() ) ;
+			throw ex ;
+		}
+
+		List<PartitionResult<Integer>> results = new ArrayList<>() ;
+		for ( Map.Entry<String,FutureTask<Integer>> future : futures.entrySet() ) {
+			String partitionName = future.getKey() ;
+			try {
+				results.add( new PartitionResult<>( partitionName, future.getValue().get(), null ) ) ;
+			} catch ( ExecutionException ex ) {
+				ourLog.warn( "partition \"{}\" failed", partitionName, ex.getCause() ) ;
+				results.add( new PartitionResult<>( partitionName, null, ex.getCause() ) ) ;
+			} catch ( InterruptedException ex ) {
+				Thread.currentThread().interrupt() ;
+				throw new IllegalStateException( "interrupted while waiting for partition \"" + partitionName + "\"", ex ) ;
+			}
+		}
+		return results ;
+	}
+
+	/*
+	 * a task run by the requesting thread (when the queue of the pool is full) has finished by the time it is returned
+	 */
+	private <T> FutureTask<T> submit( Supplier<T> task ) {
+		FutureTask<T> future = new FutureTask<>( task::get ) ;
+		executor.execute( future ) ;
+		return future ;
+	}
+
+	/* the producers stop at their next item, and any blocked in a search is interrupted */
+	private static void abandon( AtomicBoolean abandoned, Collection<? extends Future<?>> futures ) {
+		abandoned.set( true ) ;
+		futures.forEach( f -> f.cancel( true ) ) ;
+	}
+
+	private static <T> void putUnlessAbandoned( BlockingQueue<T> buffer, T item, AtomicBoolean abandoned ) {
+		try {
+			while ( !buffer.offer( item, 100, TimeUnit.MILLISECONDS ) ) {
+				if ( abandoned.get() )
+					throw new CancellationException( "the stream was abandoned" ) ;
+			}
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread().interrupt() ;
+			throw new CancellationException( "interrupted while streaming" ) ;
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static edu.ohsu.cmp.ecp.sds.SupplementalDataStorePermissionsInterceptor.getPermissions;
+import static edu.ohsu.cmp.ecp.sds.SupplementalDataStoreSearchParams.pageSize;
+import static edu.ohsu.cmp.ecp.sds.SupplementalDataStoreSearchParams.singleValue;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.joining;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
+import ca.uhn.fhir.util.UrlUtil;
+
+/*
+ * $sds-search?_type=<resource type>&<search params> searches the patient compartment of the authorized patient
+ * in every partition the patient is known to (the local partition and each linked non-local partition) at once,
+ * and returns one searchset Bundle of the first _count matches across all of them, in the order of _sort
+ *
+ * each partition is searched synchronously for at most _count matches, so no search is persisted and
+ * the merged page is exact; a partition that fails or times out is reported by an OperationOutcome entry
+ * instead of failing the whole search
+ *
+ * while any partition may hold more matches, the next link carries a cursor of how many matches of each partition
+ * were already returned, and the next page searches each partition from its own offset; a partition that failed
+ * is searched again from the same offset, and resources sharing a sort value are ordered by id, so each partition
+ * pages alike every time
+ *
+ * each entry's fullUrl is the resource in its partition, so resources sharing an id across partitions are told apart
+ */
+@Component
+public class SupplementalDataStoreFanOutSearchProvider {
+
+	public static final String OPERATION_SDS_SEARCH = "$sds-search" ;
+	public static final String PARAM_TYPE = Constants.PARAM_TYPE ;
+	public static final String PARAM_CURSOR = SupplementalDataStoreKeysetPaging.PARAM_CURSOR ;
+
+	private static final String CURSOR_SEPARATOR = "~" ;
+	private static final String CURSOR_ENTRY_SEPARATOR = " " ;
+
+	/* params that shape the response rather than select resources */
+	private static final Set<String> NON_SEARCH_PARAMS =
+		Set.of(
+			PARAM_TYPE,
+			PARAM_CURSOR,
+			Constants.PARAM_COUNT,
+			Constants.PARAM_SORT,
+			Constants.PARAM_FORMAT,
+			Constants.PARAM_PRETTY,
+			Constants.PARAM_SUMMARY,
+			Constants.PARAM_ELEMENTS
+			);
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStoreFanOut fanOut;
+
+	@Inject
+	SupplementalDataStoreSortValues sortValues;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	DaoRegistry daoRegistry;
+
+	@Inject
+	MatchUrlService matchUrlService;
+
+	@Inject
+	IPagingProvider pagingProvider;
+
+	/*
+	 * a resource found in one partition, with the value it sorts by
+	 */
+	private static final class Match {
+		private final String partitionName ;
+		private final IBaseResource resource ;
+		private final Long sortValue ;
+
+		Match( String partitionName, IBaseResource resource, Long sortValue ) {
+			this.partitionName = partitionName ;
+			this.resource = resource ;
+			this.sortValue = sortValue ;
+		}
+	}
+
+	/*
+	 * how many matches of each partition were on this and earlier pages
+	 */
+	static final class Cursor {
+		private final Map<String,Integer> returnedByPartition ;
+
+		Cursor( Map<String,Integer> returnedByPartition ) {
+			this.returnedByPartition = returnedByPartition ;
+		}
+
+		int returnedFrom( String partitionName ) {
+			return returnedByPartition.getOrDefault( partitionName, 0 ) ;
+		}
+
+		/* the count leads each entry, so a partition name is read whole */
+		String encode() {
+			String decoded =
+				returnedByPartition.entrySet().stream()
+					.map( e -> e.getValue() + CURSOR_SEPARATOR + e.getKey() )
+					.collect( joining( CURSOR_ENTRY_SEPARATOR ) )
+					;
+			return Base64.getUrlEncoder().withoutPadding().encodeToString( decoded.getBytes( UTF_8 ) ) ;
+		}
+
+		static Cursor decode( String encoded ) {
+			Map<String,Integer> returnedByPartition = new LinkedHashMap<>() ;
+			try {
+				String decoded = new String( Base64.getUrlDecoder().decode( encoded ), UTF_8 ) ;
+				for ( String entry : decoded.split( CURSOR_ENTRY_SEPARATOR ) ) {
+					String[] parts = entry.split( CURSOR_SEPARATOR, 2 ) ;
+					int returned = Integer.parseInt( parts[0] ) ;
+					if ( returned < 0 )
+						throw new IllegalArgumentException( "negative count" ) ;
+					returnedByPartition.put( parts[1], returned ) ;
+				}
+			} catch ( IllegalArgumentException | ArrayIndexOutOfBoundsException ex ) {
+				throw new InvalidRequestException( "invalid " + PARAM_CURSOR + " \"" + encoded + "\"" ) ;
+			}
+			return new Cursor( returnedByPartition ) ;
+		}
+	}
+
+	@Operation(name = OPERATION_SDS_SEARCH, idempotent = true)
+	public IBaseBundle search( RequestDetails theRequestDetails ) {
+		Permissions permissions = getPermissions( theRequestDetails ) ;
+		if ( null == permissions || !permissions.readAndWriteSpecificPatient().isPresent() )
+			throw new ForbiddenOperationException( OPERATION_SDS_SEARCH + " searches the partitions of the authorized patient, but no patient is authorized" ) ;
+		UserIdentity patientIdentity = permissions.readAndWriteSpecificPatient().get().patientId() ;
+
+		Map<String,String[]> parameters = theRequestDetails.getParameters() ;
+		String resourceType = requiredSingleValue( parameters, PARAM_TYPE ) ;
+		if ( !daoRegistry.isResourceTypeSupported( resourceType ) )
+			throw new InvalidRequestException( OPERATION_SDS_SEARCH + " cannot search unknown resource type \"" + resourceType + "\"" ) ;
+		String compartmentParam = patientCompartmentParam( resourceType ) ;
+
+		String sort = singleValue( parameters, Constants.PARAM_SORT ) ;
+		boolean descending = null != sort && sort.startsWith( "-" ) ;
+		String sortParam = null == sort ? null : descending ? sort.substring( 1 ) : sort ;
+		if ( parameters.containsKey( Constants.PARAM_SORT ) && !sortValues.isInstantSortParam( resourceType, sortParam ) )
+			throw new InvalidRequestException( OPERATION_SDS_SEARCH + " sorts only by " + SupplementalDataStoreSortValues.LAST_UPDATED + " or by one date search param" ) ;
+		int count = pageSize( pagingProvider, singleValue( parameters, Constants.PARAM_COUNT ) ) ;
+		String encodedCursor = singleValue( parameters, PARAM_CURSOR ) ;
+		Cursor cursor = null == encodedCursor ? new Cursor( Map.of() ) : Cursor.decode( encodedCursor ) ;
+
+		/* the search params are translated before the fan-out, so an invalid search fails the request instead of each partition */
+		String matchUrl = matchUrl( resourceType, parameters ) ;
+		Map<String,Supplier<List<Match>>> searches = new LinkedHashMap<>() ;
+		for ( Map.Entry<String,IIdType> patientId : fanOut.userIdsByPartition( patientIdentity ).entrySet() ) {
+			String partitionName = patientId.getKey() ;
+			int offset = cursor.returnedFrom( partitionName ) ;
+			SearchParameterMap searchParameterMap = compartmentSearch( matchUrl, resourceType, compartmentParam, patientId.getValue(), offset, count, sortParam, descending ) ;
+			searches.put( partitionName, () -> searchPartition( partitionName, resourceType, searchParameterMap, offset, count, sortParam, descending ) ) ;
+		}
+
+		List<Match> matches = new ArrayList<>() ;
+		List<IBaseOperationOutcome> outcomes = new ArrayList<>() ;
+		Map<String,Integer> returnedByPartition = new LinkedHashMap<>() ;
+		boolean moreMayMatch = false ;
+		for ( SupplementalDataStoreFanOut.PartitionResult<List<Match>> result : fanOut.acrossPartitions( searches ) ) {
+			returnedByPartition.put( result.partitionName(), cursor.returnedFrom( result.partitionName() ) ) ;
+			if ( result.succeeded() ) {
+				matches.addAll( result.value() ) ;
+				moreMayMatch |= result.value().size() >= count ;
+			} else {
+				outcomes.add( partitionFailure( result ) ) ;
+				moreMayMatch = true ;
+			}
+		}
+
+		/* each partition is already in order, and the sort is stable, so matches sharing a value stay in partition order */
+		if ( null != sortParam ) {
+			Comparator<Long> byValue = descending ? Comparator.<Long>reverseOrder() : Comparator.<Long>naturalOrder() ;
+			matches.sort( Comparator.comparing( (Match m) -> m.sortValue, Comparator.nullsLast( byValue ) ) ) ;
+		}
+		List<Match> page = matches.subList( 0, Math.min( count, matches.size() ) ) ;
+		for ( Match match : page )
+			returnedByPartition.merge( match.partitionName, 1, Integer::sum ) ;
+		moreMayMatch |= page.size() < matches.size() ;
+
+		String nextLink = moreMayMatch && !page.isEmpty() ? nextLink( theRequestDetails, count, new Cursor( returnedByPartition ) ) : null ;
+		return searchsetBundle( theRequestDetails, page, outcomes, nextLink ) ;
+	}
+
+	/*
+	 * a match url is translated without its _sort, so the sort is set on the map; each partition is searched in that order,
+	 * so its first _count matches after its offset are the only ones that can be in the merged page
+	 */
+	private SearchParameterMap compartmentSearch( String matchUrl, String resourceType, String compartmentParam, IIdType patientId, int offset, int count, String sortParam, boolean descending ) {
+		SearchParameterMap searchParameterMap = matchUrlService.translateMatchUrl( matchUrl, fhirContext.getResourceDefinition( resourceType ) ) ;
+		if ( Constants.PARAM_ID.equals( compartmentParam ) )
+			searchParameterMap.add( Constants.PARAM_ID, new TokenParam( patientId.getIdPart() ) ) ;
+		else
+			searchParameterMap.add( compartmentParam, new ReferenceParam( "Patient", null, patientId.getIdPart() ) ) ;
+		SortSpec byId = new SortSpec( Constants.PARAM_ID, SortOrderEnum.ASC ) ;
+		if ( null != sortParam )
+			searchParameterMap.setSort( new SortSpec( sortParam, descending ? SortOrderEnum.DESC : SortOrderEnum.ASC, byId ) ) ;
+		else
+			searchParameterMap.setSort( byId ) ;
+		/* the synchronous search loads from the first match, so the matches before the offset are loaded and skipped */
+		searchParameterMap.setLoadSynchronousUpTo( offset + count ) ;
+		searchParameterMap.setCount( offset + count ) ;
+		return searchParameterMap ;
+	}
+
+	private List<Match> searchPartition( String partitionName, String resourceType, SearchParameterMap searchParameterMap, int offset, int count, String sortParam, boolean descending ) {
+		SystemRequestDetails partitionRequest = new SystemRequestDetails() ;
+		partitionRequest.setRequestPartitionId( RequestPartitionId.fromPartitionName( partitionName ) ) ;
+		IBundleProvider results = daoRegistry.getResourceDao( resourceType ).search( searchParameterMap, partitionRequest ) ;
+
+		List<Match> matches = new ArrayList<>() ;
+		for ( IBaseResource resource : results.getResources( offset, offset + count ) ) {
+			Long sortValue = null == sortParam ? null : sortValues.sortValue( resource, sortParam, descending ) ;
+			matches.add( new Match( partitionName, resource, sortValue ) ) ;
+		}
+		return matches ;
+	}
+
+	private String patientCompartmentParam( String resourceType ) {
+		return
+			SupplementalDataStoreSearchNarrowingInterceptor.patientCompartmentParam( fhirContext, resourceType )
+				.orElseThrow( () -> new InvalidRequestException( OPERATION_SDS_SEARCH + " cannot search \"" + resourceType + "\", which is not in a Patient compartment" ) )
+				;
+	}
+
+	private String matchUrl( String resourceType, Map<String,String[]> parameters ) {
+		StringBuilder matchUrl = new StringBuilder( resourceType ) ;
+		char separator = '?' ;
+		for ( Map.Entry<String,String[]> parameter : parameters.entrySet() ) {
+			if ( NON_SEARCH_PARAMS.contains( parameter.getKey() ) )
+				continue ;
+			for ( String value : parameter.getValue() ) {
+				matchUrl.append( separator ).append( UrlUtil.escapeUrlParam( parameter.getKey() ) ).append( '=' ).append( UrlUtil.escapeUrlParam( value ) ) ;
+				separator = '&' ;
+			}
+		}
+		return matchUrl.toString() ;
+	}
+
+	private IBaseOperationOutcome partitionFailure( SupplementalDataStoreFanOut.PartitionResult<?> result ) {
+		IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance( fhirContext ) ;
+		String message =
+			result.failure() instanceof TimeoutException
+				? "partition \"" + result.partitionName() + "\" was not searched within " + sdsProperties.getFanOut().getPartitionTimeout()
+				: "partition \"" + result.partitionName() + "\" could not be searched: " + result.failure().getMessage()
+				;
+		OperationOutcomeUtil.addIssue( fhirContext, outcome, "warning", message, null, "incomplete" ) ;
+		return outcome ;
+	}
+
+	/*
+	 * the next page repeats the search with the cursor of this one
+	 */
+	private String nextLink( RequestDetails theRequestDetails, int count, Cursor cursor ) {
+		StringBuilder link = new StringBuilder( theRequestDetails.getFhirServerBase() ).append( '/' ).append( theRequestDetails.getRequestPath() ) ;
+		char separator = '?' ;
+		Map<String,String[]> parameters = new LinkedHashMap<>( theRequestDetails.getParameters() ) ;
+		parameters.put( Constants.PARAM_COUNT, new String[] { Integer.toString( count ) } ) ;
+		parameters.put( PARAM_CURSOR, new String[] { cursor.encode() } ) ;
+		for ( Map.Entry<String,String[]> parameter : parameters.entrySet() ) {
+			for ( String value : parameter.getValue() ) {
+				link.append( separator ).append( UrlUtil.escapeUrlParam( parameter.getKey() ) ).append( '=' ).append( UrlUtil.escapeUrlParam( value ) ) ;
+				separator = '&' ;
+			}
+		}
+		return link.toString() ;
+	}
+
+	private IBaseBundle searchsetBundle( RequestDetails theRequestDetails, List<Match> page, List<IBaseOperationOutcome> outcomes, String nextLink ) {
+		String localPartitionName = sdsProperties.getPartition().getLocalName() ;
+		BundleBuilder bundleBuilder = new BundleBuilder( fhirContext ) ;
+		bundleBuilder.setType( "searchset" ) ;
+
+		for ( Match match : page ) {
+			String serverBase = localPartitionName.equals( match.partitionName ) ? theRequestDetails.getFhirServerBase() : match.partitionName ;
+			IIdType fullUrl = match.resource.getIdElement().toUnqualifiedVersionless().withServerBase( serverBase, match.resource.fhirType() ) ;
+			addEntry( bundleBuilder, match.resource, fullUrl.getValue(), "match" ) ;
+		}
+		for ( IBaseOperationOutcome outcome : outcomes )
+			addEntry( bundleBuilder, outcome, null, "outcome" ) ;
+		IBaseBundle bundle = bundleBuilder.getBundle() ;
+		if ( null != nextLink ) {
+			FhirTerser terser = fhirContext.newTerser() ;
+			IBase link = terser.addElement( bundle, "link" ) ;
+			terser.setElement( link, "relation", Constants.LINK_NEXT ) ;
+			terser.setElement( link, "url", nextLink ) ;
+		}
+		return bundle ;
+	}
+
+	private void addEntry( BundleBuilder bundleBuilder, IBaseResource resource, String fullUrl, String searchMode ) {
+		IBase entry = bundleBuilder.addEntry() ;
+		if ( null != fullUrl )
+			bundleBuilder.addToEntry( entry, "fullUrl", bundleBuilder.newPrimitive( "uri", fullUrl ) ) ;
+		bundleBuilder.addToEntry( entry, "resource", resource ) ;
+		IBase search = bundleBuilder.addSearch( entry ) ;
+		bundleBuilder.setSearchField( search, "mode", searchMode ) ;
+	}
+
+	private static String requiredSingleValue( Map<String,String[]> parameters, String name ) {
+		String value = singleValue( parameters, name ) ;
+		if ( null == value || value.isBlank() )
+			throw new InvalidRequestException( OPERATION_SDS_SEARCH + " requires a single \"" + name + "\"" ) ;
+		return value ;
+	}
+}
@@ -0,0 +1,193 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreIdentityGraph;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/*
+ * caches the UserIdentity resolved for a basis user id
+ *
+ * resolving a UserIdentity requires searching the Linkage resources in the local partition,
+ * so entries are evicted whenever a Linkage that refers to any id in the identity
+ * is created, updated, or deleted
+ *
+ * with the identity graph, an identity also depends on Linkages that only refer to other ids in its component,
+ * so a new Linkage evicts the identities referring to any id of the merged component, and a Linkage that is
+ * updated or deleted (which may split a component) evicts every identity; the graph answers for the split
+ * component again once it is rebuilt, which evicts every identity once more
+ *
+ * an identity resolved while an eviction runs may have been read before the Linkage was visible,
+ * so it is returned to its request but not kept; evictions only reach this node, so the time to live
+ * bounds how long another node keeps an identity resolved before a new Linkage
+ */
+@Interceptor
+@Component
+public class SupplementalDataStoreIdentityCache {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreIdentityCache.class);
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStorePartition partition;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	MeterRegistry meterRegistry;
+
+	@Inject
+	SupplementalDataStoreIdentityGraph identityGraph;
+
+	private Cache<String,UserIdentity> identities ;
+
+	/* counts the evictions, so a resolution can tell whether one ran while it was resolving */
+	private final AtomicLong evictions = new AtomicLong() ;
+
+	@PostConstruct
+	public void initializeCache() {
+		SupplementalDataStoreProperties.IdentityCache config = sdsProperties.getIdentityCache();
+		identities =
+			Caffeine.newBuilder()
+				.maximumSize( config.getMaximumSize() )
+				.expireAfterWrite( config.getTimeToLive() )
+				.recordStats()
+				.build()
+				;
+		CaffeineCacheMetrics.monitor( meterRegistry, identities, "sds.identity" ) ;
+		identityGraph.onRebuilt( this::invalidateAll ) ;
+	}
+
+	private static String cacheKey( IIdType basisUserId ) {
+		return basisUserId.toVersionless().getValue() ;
+	}
+
+	public UserIdentity userIdentityFor( IIdType basisUserId, Function<IIdType,UserIdentity> resolver ) {
+		if ( !sdsProperties.getIdentityCache().getEnabled() )
+			return resolver.apply( basisUserId ) ;
+		long evictionsBeforeResolving = evictions.get() ;
+		UserIdentity[] resolved = new UserIdentity[1] ;
+		UserIdentity identity = identities.get( cacheKey( basisUserId ), k -> resolved[0] = resolver.apply( basisUserId ) ) ;
+		if ( null != resolved[0] && evictionsBeforeResolving != evictions.get() )
+			identities.asMap().remove( cacheKey( basisUserId ), resolved[0] ) ;
+		return identity ;
+	}
+
+	public void invalidateAll() {
+		evictions.incrementAndGet() ;
+		identities.invalidateAll();
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void linkageCreated( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		linkageChanged( theResource, theRequestDetails, false ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void linkageUpdated( IBaseResource theOldResource, IBaseResource theNewResource, RequestDetails theRequestDetails ) {
+		linkageChanged( theOldResource, theRequestDetails, true ) ;
+		linkageChanged( theNewResource, theRequestDetails, true ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void linkageDeleted( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		linkageChanged( theResource, theRequestDetails, true ) ;
+	}
+
+	private void linkageChanged( IBaseResource resource, RequestDetails theRequestDetails, boolean linkageRemoved ) {
+		if ( null == resource || !"Linkage".equals( resource.fhirType() ) )
+			return ;
+		if ( !partition.requestIsForLocalPartition( theRequestDetails ) )
+			return ;
+
+		Set<IIdType> linkedIds = FhirResourceComparison.idTypes().createSet() ;
+		List<IBaseReference> itemRefs = fhirContext.newTerser().getValues( resource, "Linkage.item.resource", IBaseReference.class ) ;
+		for ( IBaseReference itemRef : itemRefs ) {
+			IIdType id = itemRef.getReferenceElement() ;
+			if ( null != id && id.hasIdPart() )
+				linkedIds.add( id ) ;
+		}
+
+		invalidateIdentitiesReferringTo( linkedIds ) ;
+
+		/*
+		 * a concurrent request could re-populate an entry before this transaction commits,
+		 * so evict again once the change is visible to other transactions
+		 */
+		if ( TransactionSynchronizationManager.isSynchronizationActive() ) {
+			TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					if ( identityGraph.isEnabled() && linkageRemoved )
+						invalidateAll() ;
+					else
+						invalidateIdentitiesReferringTo( componentIdsOf( linkedIds ) ) ;
+				}
+			});
+		}
+	}
+
+	/*
+	 * the graph has merged the new Linkage by now, since it is merged after commit, before completion
+	 */
+	private Set<IIdType> componentIdsOf( Set<IIdType> linkedIds ) {
+		if ( !identityGraph.isEnabled() )
+			return linkedIds ;
+		Set<IIdType> componentIds = FhirResourceComparison.idTypes().createSet( linkedIds ) ;
+		for ( IIdType linkedId : linkedIds ) {
+			SupplementalDataStoreIdentityGraph.Node node =
+				partition.userIsLocal( linkedId )
+					? SupplementalDataStoreIdentityGraph.localNode( linkedId )
+					: SupplementalDataStoreIdentityGraph.nonLocalNode( linkedId )
+					;
+			identityGraph.loadedComponentOf( node ).ifPresent( component -> {
+				component.nodes().stream().map( identityGraph::idOf ).forEach( componentIds::add ) ;
+			});
+		}
+		return componentIds ;
+	}
+
+	private void invalidateIdentitiesReferringTo( Set<IIdType> linkedIds ) {
+		if ( linkedIds.isEmpty() )
+			return ;
+		evictions.incrementAndGet() ;
+		identities.asMap().values().removeIf( identity -> refersToAny( identity, linkedIds ) ) ;
+		ourLog.debug( "invalidated cached user identities referring to {}", linkedIds ) ;
+	}
+
+	private boolean refersToAny( UserIdentity identity, Set<IIdType> linkedIds ) {
+		return
+			Stream.concat(
+				Stream.concat( Stream.of( identity.basisUserId() ), identity.localUserId().stream() ),
+				identity.nonLocalUserIds().stream()
+			)
+			.anyMatch( linkedIds::contains )
+			;
+	}
+}
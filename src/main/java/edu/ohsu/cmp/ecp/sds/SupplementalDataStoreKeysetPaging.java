@@ -0,0 +1,356 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static edu.ohsu.cmp.ecp.sds.SupplementalDataStoreSearchParams.pageSize;
+import static edu.ohsu.cmp.ecp.sds.SupplementalDataStoreSearchParams.singleValue;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.UrlUtil;
+
+/*
+ * pages through the searches of a patient compartment sorted by _lastUpdated or by a date search param
+ * with a cursor in the next link, instead of with the search results table
+ *
+ * the cursor holds the sort value of the last resource on the page (and the ids of the resources sharing that value);
+ * the next page is searched synchronously (so no search is persisted) for the resources sorting at or after that value,
+ * so every page costs the same as the first; the resources sharing the cursor value that were on earlier pages
+ * are searched for again and dropped from the page
+ *
+ * a date search param sorts by the low end of its value, so the next page is bounded by the low end ("sa" ascending,
+ * "le" descending) and never by the high end ("ge"), which would match again every period overlapping the cursor
+ *
+ * where a cursor cannot continue the search, the next link falls back to offset paging from the number of resources
+ * already returned: when a page ends on a resource without a value for the sort param, when one value is shared by
+ * more resources than a page may search for, and after the last page of values, since the resources without a value
+ * sort last and are never found by a bounded search
+ *
+ * resources sharing a sort value are ordered by id, so every page, and the offset paging that may take over,
+ * orders them alike
+ */
+@Interceptor
+@Component
+public class SupplementalDataStoreKeysetPaging {
+
+	public static final String PARAM_CURSOR = "_cursor" ;
+
+	/* the cursor is taken from the page before the consent service filters it */
+	public static final int ORDER_BEFORE_CONSENT = -100 ;
+
+	private static final String CURSOR_SEPARATOR = "~" ;
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	SupplementalDataStoreSortValues sortValues;
+
+	@Inject
+	IPagingProvider pagingProvider;
+
+	/*
+	 * the position after the last resource of a page, in the order of the sort param
+	 */
+	static final class Cursor {
+		private final String sortParam ;
+		private final long sortValue ;
+		/* the resources on this and earlier pages, where offset paging would continue */
+		private final int returnedCount ;
+		private final Set<String> idsAtSortValue ;
+
+		Cursor( String sortParam, long sortValue, int returnedCount, Set<String> idsAtSortValue ) {
+			this.sortParam = sortParam ;
+			this.sortValue = sortValue ;
+			this.returnedCount = returnedCount ;
+			this.idsAtSortValue = idsAtSortValue ;
+		}
+
+		String encode() {
+			String decoded = sortParam + CURSOR_SEPARATOR + sortValue + CURSOR_SEPARATOR + returnedCount + CURSOR_SEPARATOR + String.join( ",", idsAtSortValue ) ;
+			return Base64.getUrlEncoder().withoutPadding().encodeToString( decoded.getBytes( UTF_8 ) ) ;
+		}
+
+		static Cursor decode( String encoded ) {
+			try {
+				String[] parts = new String( Base64.getUrlDecoder().decode( encoded ), UTF_8 ).split( CURSOR_SEPARATOR, 4 ) ;
+				Set<String> idsAtSortValue = new LinkedHashSet<>() ;
+				if ( parts.length > 3 && !parts[3].isEmpty() )
+					idsAtSortValue.addAll( Arrays.asList( parts[3].split( "," ) ) ) ;
+				return new Cursor( parts[0], Long.parseLong( parts[1] ), Integer.parseInt( parts[2] ), idsAtSortValue ) ;
+			} catch ( IllegalArgumentException | ArrayIndexOutOfBoundsException ex ) {
+				throw new InvalidRequestException( "invalid " + PARAM_CURSOR + " \"" + encoded + "\"" ) ;
+			}
+		}
+	}
+
+	/*
+	 * a search paged by this interceptor, remembered from the incoming request to the outgoing response
+	 */
+	static final class KeysetPage {
+		private final Map<String,String[]> parameters ;
+		private final String sortParam ;
+		private final boolean descending ;
+		private final int pageSize ;
+		private final int searchedCount ;
+		private final Cursor cursor ;
+
+		KeysetPage( Map<String,String[]> parameters, String sortParam, boolean descending, int pageSize, int searchedCount, Cursor cursor ) {
+			this.parameters = parameters ;
+			this.sortParam = sortParam ;
+			this.descending = descending ;
+			this.pageSize = pageSize ;
+			this.searchedCount = searchedCount ;
+			this.cursor = cursor ;
+		}
+
+		int returnedBefore() {
+			return null == cursor ? 0 : cursor.returnedCount ;
+		}
+
+		/* a resource belongs on this page unless it sorts before the cursor, or was on an earlier page */
+		boolean isAfterCursor( Long sortValue, String id ) {
+			if ( null == cursor )
+				return true ;
+			if ( null == sortValue )
+				return false ;
+			int comparison = Long.compare( sortValue, cursor.sortValue ) ;
+			if ( 0 == comparison )
+				return !cursor.idsAtSortValue.contains( id ) ;
+			return descending ? comparison < 0 : comparison > 0 ;
+		}
+	}
+
+	private static String pageKey() {
+		return KeysetPage.class.getName() ;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean startKeysetPage( RequestDetails theRequestDetails ) {
+		if ( !sdsProperties.getKeysetPaging().getEnabled() )
+			return true ;
+		if ( theRequestDetails.getRestOperationType() != RestOperationTypeEnum.SEARCH_TYPE )
+			return true ;
+
+		Map<String,String[]> parameters = new LinkedHashMap<>( theRequestDetails.getParameters() ) ;
+		String sort = singleValue( parameters, Constants.PARAM_SORT ) ;
+		if ( null == sort )
+			return true ;
+		boolean descending = sort.startsWith( "-" ) ;
+		String sortParam = descending ? sort.substring( 1 ) : sort ;
+
+		String resourceType = theRequestDetails.getResourceName() ;
+		if ( !isKeysetSortParam( resourceType, sortParam ) )
+			return true ;
+		if ( !isPatientCompartmentSearch( resourceType, parameters ) )
+			return true ;
+		if ( Stream.of( Constants.PARAM_OFFSET, Constants.PARAM_PAGINGACTION, Constants.PARAM_SEARCH_TOTAL_MODE ).anyMatch( parameters::containsKey ) )
+			return true ;
+		if ( SummaryEnum.COUNT.getCode().equals( singleValue( parameters, Constants.PARAM_SUMMARY ) ) )
+			return true ;
+
+		String encodedCursor = singleValue( parameters, PARAM_CURSOR ) ;
+		parameters.remove( PARAM_CURSOR ) ;
+		Cursor cursor = null == encodedCursor ? null : Cursor.decode( encodedCursor ) ;
+		if ( null != cursor && !sortParam.equals( cursor.sortParam ) )
+			throw new InvalidRequestException( PARAM_CURSOR + " does not continue a search sorted by " + sortParam ) ;
+
+		int pageSize = pageSize( pagingProvider, singleValue( parameters, Constants.PARAM_COUNT ) ) ;
+		/* the resources on earlier pages that share the cursor value are searched for again, then dropped */
+		int searchedCount = Math.min( pageSize + ( null == cursor ? 0 : cursor.idsAtSortValue.size() ), pagingProvider.getMaximumPageSize() ) ;
+
+		Map<String,String[]> searchParameters = new LinkedHashMap<>( parameters ) ;
+		if ( null != cursor ) {
+			/* "sa" matches a low end after the instant, so it is given the millisecond before the cursor */
+			String bound = descending ? "le" + instant( cursor.sortValue ) : "sa" + instant( cursor.sortValue - 1 ) ;
+			searchParameters.put( sortParam, append( searchParameters.get( sortParam ), bound ) ) ;
+		}
+		searchParameters.put( Constants.PARAM_SORT, new String[] { tiebrokenSort( sortParam, descending ) } ) ;
+		/* an offset search is run synchronously, so no search results are persisted */
+		searchParameters.put( Constants.PARAM_OFFSET, new String[] { "0" } ) ;
+		searchParameters.put( Constants.PARAM_COUNT, new String[] { Integer.toString( searchedCount ) } ) ;
+		theRequestDetails.setParameters( searchParameters ) ;
+
+		parameters.remove( Constants.PARAM_COUNT ) ;
+		theRequestDetails.getUserData().put( pageKey(), new KeysetPage( parameters, sortParam, descending, pageSize, searchedCount, cursor ) ) ;
+		return true ;
+	}
+
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = ORDER_BEFORE_CONSENT)
+	public boolean finishKeysetPage( RequestDetails theRequestDetails, ResponseDetails theResponseDetails ) {
+		KeysetPage page = (KeysetPage)theRequestDetails.getUserData().get( pageKey() ) ;
+		if ( null == page || !(theResponseDetails.getResponseResource() instanceof IBaseBundle) )
+			return true ;
+		IBaseBundle bundle = (IBaseBundle)theResponseDetails.getResponseResource() ;
+		FhirTerser terser = fhirContext.newTerser() ;
+
+		List<IBase> entries = terser.getValues( bundle, "Bundle.entry" ) ;
+		List<IBase> keptEntries = new ArrayList<>() ;
+		int matchCount = 0 ;
+		int keptMatchCount = 0 ;
+		Long lastSortValue = null ;
+		Set<String> idsAtLastSortValue = new LinkedHashSet<>() ;
+		for ( IBase entry : entries ) {
+			IBaseResource resource = terser.getSingleValueOrNull( entry, "resource", IBaseResource.class ) ;
+			String mode = terser.getSinglePrimitiveValueOrNull( entry, "search.mode" ) ;
+			if ( null == resource || ( null != mode && !"match".equals( mode ) ) ) {
+				keptEntries.add( entry ) ;
+				continue ;
+			}
+			matchCount += 1 ;
+			String id = resource.getIdElement().toUnqualifiedVersionless().getValue() ;
+			Long sortValue = sortValues.sortValue( resource, page.sortParam, page.descending ) ;
+			if ( keptMatchCount >= page.pageSize || !page.isAfterCursor( sortValue, id ) )
+				continue ;
+			keptEntries.add( entry ) ;
+			keptMatchCount += 1 ;
+			if ( null == sortValue ) {
+				lastSortValue = null ;
+				idsAtLastSortValue.clear() ;
+			} else if ( !sortValue.equals( lastSortValue ) ) {
+				lastSortValue = sortValue ;
+				idsAtLastSortValue.clear() ;
+				idsAtLastSortValue.add( id ) ;
+			} else {
+				idsAtLastSortValue.add( id ) ;
+			}
+		}
+
+		int returnedCount = page.returnedBefore() + keptMatchCount ;
+		boolean moreMayMatch = matchCount >= page.searchedCount ;
+		String nextLink = null ;
+		if ( moreMayMatch && keptMatchCount > 0 && null != lastSortValue ) {
+			/* a run of resources sharing one value may continue from earlier pages */
+			if ( null != page.cursor && lastSortValue == page.cursor.sortValue )
+				idsAtLastSortValue.addAll( page.cursor.idsAtSortValue ) ;
+			Cursor nextCursor = new Cursor( page.sortParam, lastSortValue, returnedCount, idsAtLastSortValue ) ;
+			nextLink = nextLink( theRequestDetails, page, PARAM_CURSOR, nextCursor.encode() ) ;
+		} else if ( moreMayMatch || ( null != page.cursor && !SupplementalDataStoreSortValues.LAST_UPDATED.equals( page.sortParam ) ) ) {
+			/* the cursor cannot move past this page, or the resources without a value are yet to be returned */
+			nextLink = nextLink( theRequestDetails, page, Constants.PARAM_OFFSET, Integer.toString( returnedCount ) ) ;
+		}
+
+		replaceEntries( bundle, keptEntries ) ;
+		replacePagingLinks( bundle, terser, nextLink ) ;
+		return true ;
+	}
+
+	private void replaceEntries( IBaseBundle bundle, List<IBase> keptEntries ) {
+		BaseRuntimeChildDefinition entryChild = fhirContext.getResourceDefinition( bundle ).getChildByName( "entry" ) ;
+		entryChild.getMutator().setValue( bundle, null ) ;
+		for ( IBase entry : keptEntries )
+			entryChild.getMutator().addValue( bundle, entry ) ;
+	}
+
+	/*
+	 * the offset links of the synchronous search do not apply; only the self link is kept
+	 */
+	private void replacePagingLinks( IBaseBundle bundle, FhirTerser terser, String nextLink ) {
+		RuntimeResourceDefinition bundleDefinition = fhirContext.getResourceDefinition( bundle ) ;
+		BaseRuntimeChildDefinition linkChild = bundleDefinition.getChildByName( "link" ) ;
+		List<IBase> keptLinks = new ArrayList<>() ;
+		for ( IBase link : terser.getValues( bundle, "Bundle.link" ) ) {
+			if ( Constants.LINK_SELF.equals( terser.getSinglePrimitiveValueOrNull( link, "relation" ) ) )
+				keptLinks.add( link ) ;
+		}
+		linkChild.getMutator().setValue( bundle, null ) ;
+		for ( IBase link : keptLinks )
+			linkChild.getMutator().addValue( bundle, link ) ;
+		if ( null != nextLink ) {
+			BaseRuntimeElementCompositeDefinition<?> linkDefinition = (BaseRuntimeElementCompositeDefinition<?>)linkChild.getChildByName( "link" ) ;
+			IBase link = linkDefinition.newInstance() ;
+			terser.setElement( link, "relation", Constants.LINK_NEXT ) ;
+			terser.setElement( link, "url", nextLink ) ;
+			linkChild.getMutator().addValue( bundle, link ) ;
+		}
+	}
+
+	private String nextLink( RequestDetails theRequestDetails, KeysetPage page, String positionParam, String position ) {
+		StringBuilder link = new StringBuilder( theRequestDetails.getFhirServerBase() ).append( '/' ).append( theRequestDetails.getRequestPath() ) ;
+		char separator = '?' ;
+		Map<String,String[]> parameters = new LinkedHashMap<>( page.parameters ) ;
+		parameters.put( Constants.PARAM_COUNT, new String[] { Integer.toString( page.pageSize ) } ) ;
+		parameters.put( positionParam, new String[] { position } ) ;
+		if ( Constants.PARAM_OFFSET.equals( positionParam ) )
+			parameters.put( Constants.PARAM_SORT, new String[] { tiebrokenSort( page.sortParam, page.descending ) } ) ;
+		for ( Map.Entry<String,String[]> parameter : parameters.entrySet() ) {
+			for ( String value : parameter.getValue() ) {
+				link.append( separator ).append( UrlUtil.escapeUrlParam( parameter.getKey() ) ).append( '=' ).append( UrlUtil.escapeUrlParam( value ) ) ;
+				separator = '&' ;
+			}
+		}
+		return link.toString() ;
+	}
+
+	private boolean isKeysetSortParam( String resourceType, String sortParam ) {
+		if ( !sdsProperties.getKeysetPaging().getSortParams().contains( sortParam ) )
+			return false ;
+		return sortValues.isInstantSortParam( resourceType, sortParam ) ;
+	}
+
+	/*
+	 * a search is scoped to a patient compartment by any of the search params that place a resource in it
+	 */
+	private boolean isPatientCompartmentSearch( String resourceType, Map<String,String[]> parameters ) {
+		if ( "Patient".equals( resourceType ) )
+			return parameters.containsKey( Constants.PARAM_ID ) ;
+		return
+			fhirContext.getResourceDefinition( resourceType ).getSearchParamsForCompartmentName( "Patient" ).stream()
+				.map( RuntimeSearchParam::getName )
+				.anyMatch( name -> parameters.keySet().stream().anyMatch( key -> key.equals( name ) || key.startsWith( name + ":" ) || key.startsWith( name + "." ) ) )
+				;
+	}
+
+	private static String tiebrokenSort( String sortParam, boolean descending ) {
+		return ( descending ? "-" : "" ) + sortParam + "," + Constants.PARAM_ID ;
+	}
+
+	private static String[] append( String[] values, String value ) {
+		List<String> appended = new ArrayList<>( null == values ? Collections.emptyList() : Arrays.asList( values ) ) ;
+		appended.add( value ) ;
+		return appended.toArray( new String[0] ) ;
+	}
+
+	private static String instant( long epochMillis ) {
+		InstantDt instant = new InstantDt( new Date( epochMillis ), TemporalPrecisionEnum.MILLI ) ;
+		instant.setTimeZoneZulu( true ) ;
+		return instant.getValueAsString() ;
+	}
+}
@@ -3,6 +3,8 @@ package edu.ohsu.cmp.ecp.sds;
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IIdType;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 
@@ -17,6 +19,7 @@ public interface SupplementalDataStoreLinkage {
 	IIdType establishLocalUser(String userResourceType);
 	IIdType establishLocalUserFor(IIdType userId);
 	IIdType establishNonLocalUser(IIdType nonLocalUserId);
+	List<IIdType> establishNonLocalUsers(Collection<? extends IIdType> nonLocalUserIds);
 
 	void linkNonLocalPatientToLocalPatient(IIdType localPatientId, IIdType nonLocalPatientId);
 }
@@ -0,0 +1,80 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.searchparam.matcher.AuthorizationSearchParamMatcher;
+import ca.uhn.fhir.jpa.searchparam.matcher.SearchParamMatcher;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthorizationSearchParamMatcher;
+import ca.uhn.fhir.util.FhirTerser;
+
+/*
+ * decides the linkage rules (Linkage?item=Patient/123) by comparing the patient id of the rule
+ * to the references of the items of the Linkage, instead of extracting every search param of the Linkage
+ * and matching them in memory, as the generic matcher does for each Linkage read
+ *
+ * any other filter is left to the generic matcher
+ */
+@Component
+public class SupplementalDataStoreLinkageAuthorizationMatcher implements IAuthorizationSearchParamMatcher {
+
+	public static final String PARAM_ITEM = "item" ;
+
+	private static final String LINKAGE_FILTER_PREFIX = "Linkage?" + PARAM_ITEM + "=" ;
+
+	@Inject
+	SearchParamMatcher searchParamMatcher;
+
+	@Inject
+	FhirContext fhirContext;
+
+	private IAuthorizationSearchParamMatcher genericMatcher ;
+	private FhirTerser terser ;
+
+	@PostConstruct
+	public void initializeMatchers() {
+		genericMatcher = new AuthorizationSearchParamMatcher( searchParamMatcher ) ;
+		terser = fhirContext.newTerser() ;
+	}
+
+	public static String filterForLinkageByItem( IIdType patientId ) {
+		return PARAM_ITEM + "=" + patientId.toUnqualifiedVersionless().getValue() ;
+	}
+
+	@Override
+	public MatchResult match( String theQueryParameters, IBaseResource theResource ) {
+		Set<String> itemIds = linkageItemFilter( theQueryParameters ) ;
+		if ( null == itemIds || !"Linkage".equals( theResource.fhirType() ) )
+			return genericMatcher.match( theQueryParameters, theResource ) ;
+
+		for ( IBaseReference item : terser.getValues( theResource, "Linkage.item.resource", IBaseReference.class ) ) {
+			IIdType itemId = item.getReferenceElement() ;
+			if ( null != itemId && !itemId.isEmpty() && itemIds.contains( itemId.toUnqualifiedVersionless().getValue() ) )
+				return MatchResult.buildMatched() ;
+		}
+		return MatchResult.buildUnmatched() ;
+	}
+
+	/* the ids of a filter naming only item (e.g. Linkage?item=Patient/123,Patient/456), otherwise null */
+	private Set<String> linkageItemFilter( String theQueryParameters ) {
+		if ( null == theQueryParameters || !theQueryParameters.startsWith( LINKAGE_FILTER_PREFIX ) )
+			return null ;
+		String value = theQueryParameters.substring( LINKAGE_FILTER_PREFIX.length() ) ;
+		if ( value.isEmpty() || value.contains( "&" ) || value.contains( "\\" ) )
+			return null ;
+		Set<String> itemIds = new LinkedHashSet<>() ;
+		for ( String itemId : List.of( value.split( "," ) ) )
+			itemIds.add( fhirContext.getVersion().newIdType().setValue( itemId ).toUnqualifiedVersionless().getValue() ) ;
+		return itemIds ;
+	}
+}
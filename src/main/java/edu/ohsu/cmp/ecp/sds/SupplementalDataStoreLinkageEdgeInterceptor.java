@@ -0,0 +1,57 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageBase;
+
+/*
+ * keeps the linkage edge table in step with the Linkage resources in the local partition
+ *
+ * the edges are written in the same transaction as the Linkage resource
+ */
+@Interceptor
+@Component
+public class SupplementalDataStoreLinkageEdgeInterceptor {
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStorePartition partition;
+
+	@Inject
+	SupplementalDataStoreLinkageBase linkage;
+
+	private boolean isLocalLinkage( IBaseResource resource, RequestDetails theRequestDetails ) {
+		if ( !sdsProperties.getLinkageEdges().getEnabled() )
+			return false ;
+		if ( null == resource || !"Linkage".equals( resource.fhirType() ) )
+			return false ;
+		return partition.requestIsForLocalPartition( theRequestDetails ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void linkageCreated( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		if ( isLocalLinkage( theResource, theRequestDetails ) )
+			linkage.indexLinkageEdges( theResource ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void linkageUpdated( IBaseResource theOldResource, IBaseResource theNewResource, RequestDetails theRequestDetails ) {
+		if ( isLocalLinkage( theNewResource, theRequestDetails ) )
+			linkage.indexLinkageEdges( theNewResource ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void linkageDeleted( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		if ( isLocalLinkage( theResource, theRequestDetails ) )
+			linkage.unindexLinkageEdges( theResource ) ;
+	}
+}
@@ -2,13 +2,14 @@ package edu.ohsu.cmp.ecp.sds;
 
 import static edu.ohsu.cmp.ecp.sds.SupplementalDataStorePermissionsInterceptor.getPermissions;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 
 import javax.inject.Inject;
 
-import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.stereotype.Component;
 
@@ -31,24 +32,38 @@ public class SupplementalDataStoreLinkingInterceptor {
 	SupplementalDataStorePartition partition;
 
 	@Inject
-	SupplementalDataStoreResourceCreation resourceCreation;
+	SupplementalDataStoreLookups lookups;
 
 	@Inject
 	SupplementalDataStoreProperties sdsProperties;
 
+	@Inject
+	SupplementalDataStoreMetrics metrics;
+
+	@Inject
+	SupplementalDataStoreLinkingLocks linkingLocks;
+
 	private Comparator<IIdType> idComparator = FhirResourceComparison.idTypes().comparator();
 
 	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
 	public void linkNewResourceToAuthorizedUser(RequestDetails theRequestDetails, RequestPartitionId requestPartitionId) {
+		metrics.timeHook( "linkNewResourceToAuthorizedUser", SupplementalDataStoreServerTiming.Phase.LINKING, theRequestDetails, () -> linkNewResource( theRequestDetails ) ) ;
+	}
+
+	private void linkNewResource(RequestDetails theRequestDetails) {
 		Permissions permissions = getPermissions( theRequestDetails );
 		permissions.readAndWriteSpecificPatient()
 			.ifPresent( readAndWriteSpecificPatient -> {
 
-					resourceCreation.resourceCreationInfo( theRequestDetails )
+					lookups.resourceCreationInfo( theRequestDetails )
 						.ifPresent( details -> {
 							PatientCompartmentLinkingPlan plan = buildLinkingPlan( readAndWriteSpecificPatient, details ) ;
-							PatientCompartmentLinkingContext linkingContext = initializeLinkingContext( plan, details ) ;
-							plan.linkCompartments( linkingContext ) ;
+							/* parallel first writes for the same patient must agree on a single local user */
+							linkingLocks.whileLinking( plan.basisCompartment(), () -> {
+								lookups.forgetLinkagesChangedByOthers( theRequestDetails ) ;
+								PatientCompartmentLinkingContext linkingContext = initializeLinkingContext( plan, details, theRequestDetails ) ;
+								plan.linkCompartments( linkingContext ) ;
+							});
 						});
 				});
 
@@ -68,9 +83,9 @@ public class SupplementalDataStoreLinkingInterceptor {
 		return plan ;
 	}
 
-	private PatientCompartmentLinkingContext initializeLinkingContext( PatientCompartmentLinkingPlan plan, SupplementalDataStoreResourceCreation.Details details ) {
+	private PatientCompartmentLinkingContext initializeLinkingContext( PatientCompartmentLinkingPlan plan, SupplementalDataStoreResourceCreation.Details details, RequestDetails theRequestDetails ) {
 
-		PatientCompartmentLinkingContext linkingContext = new PatientCompartmentLinkingContext( plan.basisCompartment() ) ;
+		PatientCompartmentLinkingContext linkingContext = new PatientCompartmentLinkingContext( plan.basisCompartment(), theRequestDetails ) ;
 
 		/* 
 		 * for each compartment that is required by the plan,
@@ -82,7 +97,7 @@ public class SupplementalDataStoreLinkingInterceptor {
 				linkingContext.compartmentAlreadyExists(patientCompartment) ;
 			}
 
-			if ( linkage.patientCompartmentIsClaimed(patientCompartment) ) {
+			if ( lookups.patientCompartmentIsClaimed(patientCompartment, theRequestDetails) ) {
 				/* this compartment is already claimed */
 				linkingContext.compartmentAlreadyExists(patientCompartment) ;
 			}
@@ -91,7 +106,7 @@ public class SupplementalDataStoreLinkingInterceptor {
 		/*
 		 * if the local user already exists, identify it in the context
 		 */
-		linkage.lookupLocalUserFor( plan.basisCompartment() ).ifPresent( id -> {
+		lookups.lookupLocalUserFor( plan.basisCompartment(), theRequestDetails ).ifPresent( id -> {
 			linkingContext.localCompartmentAlreadyExists( id ) ;
 		});
 
@@ -99,8 +114,7 @@ public class SupplementalDataStoreLinkingInterceptor {
 		 * for each compartment that is linked to the local patient (if any), identify it in the context
 		 */
 		linkingContext.localPatientId().ifPresent( localUserId -> {
-			for ( IBaseReference nonLocalPatientRef : linkage.patientsLinkedTo(localUserId) ) {
-				IIdType nonLocalPatientId = nonLocalPatientRef.getReferenceElement() ;
+			for ( IIdType nonLocalPatientId : lookups.patientsLinkedTo(localUserId, theRequestDetails) ) {
 				linkingContext.nonLocalCompartmentIsAlreadyLinked( nonLocalPatientId ) ;
 			}
 		});
@@ -147,7 +161,7 @@ public class SupplementalDataStoreLinkingInterceptor {
 			if ( linkingContext.nonLocalCompartments().contains( basisCompartment ) ) {
 				return basisCompartment ;
 			} else {
-				IIdType newlyCreatedPatientCompartment = linkage.establishNonLocalUser( basisCompartment ) ;
+				IIdType newlyCreatedPatientCompartment = lookups.establishNonLocalUser( basisCompartment, linkingContext.requestDetails() ) ;
 				linkingContext.nonLocalCompartmentAlreadyExists( newlyCreatedPatientCompartment ) ;
 				return newlyCreatedPatientCompartment ;
 			}
@@ -169,7 +183,7 @@ public class SupplementalDataStoreLinkingInterceptor {
 			if ( linkingContext.nonLocalCompartments().contains( nonLocalCompartment ) ) {
 				return nonLocalCompartment ;
 			} else {
-				IIdType newlyCreatedPatientCompartment = linkage.establishNonLocalUser( nonLocalCompartment ) ;
+				IIdType newlyCreatedPatientCompartment = lookups.establishNonLocalUser( nonLocalCompartment, linkingContext.requestDetails() ) ;
 				linkingContext.nonLocalCompartmentAlreadyExists( newlyCreatedPatientCompartment ) ;
 				return newlyCreatedPatientCompartment ;
 			}
@@ -186,9 +200,10 @@ public class SupplementalDataStoreLinkingInterceptor {
 		private void linkLocalCompartment( PatientCompartmentLinkingContext linkingContext ) {
 			/* link it and update the context */
 			if ( !linkingContext.linkedNonLocalCompartments().contains( basisCompartment ) ) {
-				linkage.linkNonLocalPatientToLocalPatient(
+				lookups.linkNonLocalPatientToLocalPatient(
 					requireClaimedLocalCompartment( linkingContext ),
-					requireClaimedBasisCompartment( linkingContext )
+					requireClaimedBasisCompartment( linkingContext ),
+					linkingContext.requestDetails()
 					);
 				linkingContext.basisCompartmentIsAlreadyLinked() ;
 			}
@@ -197,15 +212,36 @@ public class SupplementalDataStoreLinkingInterceptor {
 		private void linkNonLocalCompartment( IIdType nonLocalCompartment, PatientCompartmentLinkingContext linkingContext ) {
 			/* link it and update the context */
 			if ( !linkingContext.linkedNonLocalCompartments().contains( nonLocalCompartment ) ) {
-				linkage.linkNonLocalPatientToLocalPatient(
+				lookups.linkNonLocalPatientToLocalPatient(
 					requireClaimedLocalCompartment( linkingContext ),
-					requireClaimedNonLocalCompartment( nonLocalCompartment, linkingContext )
+					requireClaimedNonLocalCompartment( nonLocalCompartment, linkingContext ),
+					linkingContext.requestDetails()
 					);
 				linkingContext.basisCompartmentIsAlreadyLinked() ;
 			}
 		}
 
+		private void claimNonLocalCompartments( PatientCompartmentLinkingContext linkingContext ) {
+			/* establish every missing non-local compartment together, so the stubs are checked and written in one pass */
+			List<IIdType> unclaimedCompartments = new ArrayList<>() ;
+			for ( IIdType requiredCompartment : requiredCompartments ) {
+				if ( partition.userIsLocal(requiredCompartment) )
+					continue ;
+				if ( linkingContext.nonLocalCompartments().contains( requiredCompartment ) )
+					continue ;
+				if ( !idsSame( requiredCompartment, basisCompartment ) && linkingContext.linkedNonLocalCompartments().contains( requiredCompartment ) )
+					continue ;
+				unclaimedCompartments.add( requiredCompartment ) ;
+			}
+			if ( unclaimedCompartments.isEmpty() )
+				return ;
+			for ( IIdType newlyCreatedPatientCompartment : lookups.establishNonLocalUsers( unclaimedCompartments, linkingContext.requestDetails() ) ) {
+				linkingContext.nonLocalCompartmentAlreadyExists( newlyCreatedPatientCompartment ) ;
+			}
+		}
+
 		public PatientCompartmentLinkingPlanImpl linkCompartments( PatientCompartmentLinkingContext linkingContext ) {
+			claimNonLocalCompartments( linkingContext ) ;
 			for ( IIdType requiredCompartment : requiredCompartments ) {
 				if ( idsSame( requiredCompartment, basisCompartment ) ) {
 					linkBasisCompartment( linkingContext ) ;
@@ -226,6 +262,7 @@ public class SupplementalDataStoreLinkingInterceptor {
 	private class PatientCompartmentLinkingContext {
 		
 		private final IIdType basisCompartment ;
+		private final RequestDetails requestDetails ;
 		private Optional<IIdType> localPatientId = Optional.empty();
 		private Set<IIdType> nonLocalCompartments = FhirResourceComparison.idTypes().createSet();
 		private Set<IIdType> linkedNonLocalCompartments = FhirResourceComparison.idTypes().createSet();
@@ -237,6 +274,10 @@ public class SupplementalDataStoreLinkingInterceptor {
 		public IIdType basisCompartment() {
 			return basisCompartment ;
 		}
+
+		public RequestDetails requestDetails() {
+			return requestDetails ;
+		}
 		
 		public Set<IIdType> nonLocalCompartments() {
 			return nonLocalCompartments ;
@@ -246,10 +287,11 @@ public class SupplementalDataStoreLinkingInterceptor {
 			return linkedNonLocalCompartments ;
 		}
 		
-		public PatientCompartmentLinkingContext( IIdType basisCompartment ) {
+		public PatientCompartmentLinkingContext( IIdType basisCompartment, RequestDetails requestDetails ) {
 			if ( !partition.userIsNonLocal(basisCompartment))
 				throw new UnsupportedOperationException( "cannot identify basis compartment as \"" + basisCompartment + "\" because it is local; basis compartments that are local is not yet supported" ) ;
 			this.basisCompartment = basisCompartment ;
+			this.requestDetails = requestDetails ;
 		}
 
 		PatientCompartmentLinkingContext basisCompartmentIsAlreadyLinked() {
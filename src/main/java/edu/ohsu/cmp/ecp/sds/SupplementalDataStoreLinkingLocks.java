@@ -0,0 +1,197 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.hash.Hashing;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdges;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * serializes the linking of new resources for the same basis compartment, so that parallel first writes
+ * by a newly authorized user establish exactly one local user between them
+ *
+ * each basis compartment has its own lock, held until the transaction that linked under it completes;
+ * a concurrent request that releases earlier would not yet see the Linkage written under the lock
+ *
+ * when several nodes share the database, a PostgreSQL advisory lock on a hash of the same key is taken
+ * within the transaction as well, and is released by the database when the transaction ends
+ */
+@Component
+public class SupplementalDataStoreLinkingLocks {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreLinkingLocks.class);
+
+	public static final String METER_LOCK_WAIT = "sds.linking.lock.wait" ;
+	public static final String TAG_LOCK = "lock" ;
+	public static final String LOCK_LOCAL = "local" ;
+	public static final String LOCK_ADVISORY = "advisory" ;
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	MeterRegistry meterRegistry;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	EntityManager entityManager;
+
+	/* a lock is kept only while a request holds or awaits it, so unrelated compartments never share one */
+	private LoadingCache<String,ReentrantLock> locks ;
+
+	private final AtomicLong releases = new AtomicLong() ;
+
+	@PostConstruct
+	public void initializeLocks() {
+		locks = Caffeine.newBuilder().weakValues().build( key -> new ReentrantLock() ) ;
+	}
+
+	/*
+	 * counts the linking critical sections on this node that have released their lock;
+	 * answers looked up before the count last changed may miss users or Linkages established under a lock
+	 */
+	public long linkingGeneration() {
+		return releases.get() ;
+	}
+
+	/* another node may have linked under the database lock without this node knowing */
+	public boolean linkingIsShared() {
+		SupplementalDataStoreProperties.LinkingLock config = sdsProperties.getLinkingLock() ;
+		return config.getEnabled() && config.getDatabaseAdvisoryLock() ;
+	}
+
+	public static String lockKey( IIdType basisCompartment ) {
+		return SupplementalDataStoreLinkageEdges.nonLocalPartitionKey( basisCompartment ) + "|" + SupplementalDataStoreLinkageEdges.nonLocalUserKey( basisCompartment ) ;
+	}
+
+	static long advisoryLockKey( String lockKey ) {
+		return Hashing.murmur3_128().hashString( lockKey, StandardCharsets.UTF_8 ).asLong() ;
+	}
+
+	public void whileLinking( IIdType basisCompartment, Runnable criticalSection ) {
+		whileLinking( Collections.singleton( basisCompartment ), criticalSection ) ;
+	}
+
+	/*
+	 * the locks for several compartments are always taken in the order of their keys,
+	 * so that requests linking overlapping compartments cannot deadlock
+	 */
+	public void whileLinking( Collection<? extends IIdType> basisCompartments, Runnable criticalSection ) {
+		SupplementalDataStoreProperties.LinkingLock config = sdsProperties.getLinkingLock() ;
+		if ( !config.getEnabled() || basisCompartments.isEmpty() ) {
+			criticalSection.run() ;
+			return ;
+		}
+
+		SortedSet<String> keys = new TreeSet<>() ;
+		for ( IIdType basisCompartment : basisCompartments ) {
+			keys.add( lockKey( basisCompartment ) ) ;
+		}
+
+		List<ReentrantLock> heldLocks = new ArrayList<>( keys.size() ) ;
+		boolean releaseDeferred = false ;
+		try {
+			for ( String key : keys ) {
+				heldLocks.add( acquire( key, config ) ) ;
+			}
+			if ( config.getDatabaseAdvisoryLock() ) {
+				for ( String key : keys ) {
+					acquireAdvisory( key ) ;
+				}
+			}
+			criticalSection.run() ;
+			releaseDeferred = releaseAfterCompletion( heldLocks ) ;
+		} finally {
+			if ( !releaseDeferred )
+				release( heldLocks ) ;
+		}
+	}
+
+	private ReentrantLock acquire( String key, SupplementalDataStoreProperties.LinkingLock config ) {
+		ReentrantLock lock = locks.get( key ) ;
+		long startNanos = System.nanoTime() ;
+		boolean acquired = false ;
+		try {
+			acquired = lock.tryLock( config.getWaitTimeout().toNanos(), TimeUnit.NANOSECONDS ) ;
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread().interrupt() ;
+		} finally {
+			recordWait( LOCK_LOCAL, acquired ? "acquired" : "timeout", System.nanoTime() - startNanos ) ;
+		}
+		if ( !acquired ) {
+			ourLog.warn( "gave up waiting for the linking lock on \"{}\" after {}", key, config.getWaitTimeout() ) ;
+			throw new ResourceVersionConflictException( "timed out waiting to link new resources for \"" + key + "\"; another request is linking the same patient" ) ;
+		}
+		return lock ;
+	}
+
+	private void acquireAdvisory( String key ) {
+		long startNanos = System.nanoTime() ;
+		boolean acquired = false ;
+		try {
+			entityManager
+				.createNativeQuery( "SELECT COUNT(*) FROM pg_advisory_xact_lock(:lockKey)" )
+				.setParameter( "lockKey", advisoryLockKey( key ) )
+				.getSingleResult()
+				;
+			acquired = true ;
+		} finally {
+			recordWait( LOCK_ADVISORY, acquired ? "acquired" : "error", System.nanoTime() - startNanos ) ;
+		}
+	}
+
+	/*
+	 * registered after the critical section, so that the locks are released after the synchronizations
+	 * that the new Linkages registered (e.g. the identity cache eviction) have run
+	 */
+	private boolean releaseAfterCompletion( List<ReentrantLock> heldLocks ) {
+		if ( !TransactionSynchronizationManager.isSynchronizationActive() )
+			return false ;
+		TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+			@Override
+			public void afterCompletion( int status ) {
+				release( heldLocks ) ;
+			}
+		});
+		return true ;
+	}
+
+	private void release( List<ReentrantLock> heldLocks ) {
+		if ( heldLocks.isEmpty() )
+			return ;
+		releases.incrementAndGet() ;
+		for ( int i = heldLocks.size() - 1 ; i >= 0 ; --i ) {
+			heldLocks.get( i ).unlock() ;
+		}
+	}
+
+	private void recordWait( String lockType, String outcome, long elapsedNanos ) {
+		meterRegistry.timer(
+			METER_LOCK_WAIT,
+			TAG_LOCK, lockType,
+			SupplementalDataStoreMetrics.TAG_OUTCOME, outcome
+			).record( elapsedNanos, TimeUnit.NANOSECONDS ) ;
+	}
+}
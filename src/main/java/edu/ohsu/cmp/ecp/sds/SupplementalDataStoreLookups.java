@@ -0,0 +1,154 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+import edu.ohsu.cmp.ecp.sds.base.IdKey;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * answers the linkage and compartment lookups made while handling a single request,
+ * remembering each answer in the RequestDetails so that each distinct query hits the database at most once
+ *
+ * users and linkages established through this component update the remembered answers
+ */
+@Component
+public class SupplementalDataStoreLookups {
+
+	public static final String REQUEST_ATTR_LOOKUP_CONTEXT = "SDS-LOOKUP-CONTEXT" ;
+
+	@Inject
+	SupplementalDataStoreLinkage linkage;
+
+	@Inject
+	SupplementalDataStoreResourceCreation resourceCreation;
+
+	@Inject
+	MeterRegistry meterRegistry;
+
+	@Inject
+	SupplementalDataStoreLinkingLocks linkingLocks;
+
+	private static class LookupContext {
+		private IBaseResource createdResource ;
+		private String createdResourceId ;
+		private Optional<SupplementalDataStoreResourceCreation.Details> resourceCreationInfo ;
+		private final Map<IdKey,Optional<IIdType>> localUsers = new HashMap<>() ;
+		private final Map<IdKey,Set<IIdType>> linkedNonLocalUsers = new HashMap<>() ;
+		private final Map<IdKey,Boolean> claimedCompartments = new HashMap<>() ;
+		private long linkingGeneration ;
+	}
+
+	private LookupContext lookupContext( RequestDetails theRequestDetails ) {
+		LookupContext context = (LookupContext)theRequestDetails.getAttribute( REQUEST_ATTR_LOOKUP_CONTEXT ) ;
+		if ( null == context ) {
+			context = new LookupContext() ;
+			context.linkingGeneration = linkingLocks.linkingGeneration() ;
+			theRequestDetails.setAttribute( REQUEST_ATTR_LOOKUP_CONTEXT, context ) ;
+		}
+		return context ;
+	}
+
+	private <K,V> V remembered( Map<K,V> answers, K key, String lookupName, Supplier<V> lookup ) {
+		V answer = answers.get( key ) ;
+		if ( null != answer ) {
+			meterRegistry.counter( "sds.lookup.avoided", "lookup", lookupName ).increment() ;
+			return answer ;
+		}
+		meterRegistry.counter( "sds.lookup.performed", "lookup", lookupName ).increment() ;
+		answer = lookup.get() ;
+		answers.put( key, answer ) ;
+		return answer ;
+	}
+
+	private static String idOf( IBaseResource resource ) {
+		return null == resource || null == resource.getIdElement() ? null : resource.getIdElement().getValue() ;
+	}
+
+	public Optional<SupplementalDataStoreResourceCreation.Details> resourceCreationInfo( RequestDetails theRequestDetails ) {
+		LookupContext context = lookupContext( theRequestDetails ) ;
+		IBaseResource createdResource = theRequestDetails.getResource() ;
+		/* the server may assign an id to the created resource between lookups */
+		if ( null != context.resourceCreationInfo && context.createdResource == createdResource && Objects.equals( context.createdResourceId, idOf( createdResource ) ) ) {
+			meterRegistry.counter( "sds.lookup.avoided", "lookup", "resourceCreationInfo" ).increment() ;
+			return context.resourceCreationInfo ;
+		}
+		meterRegistry.counter( "sds.lookup.performed", "lookup", "resourceCreationInfo" ).increment() ;
+		context.createdResource = createdResource ;
+		context.createdResourceId = idOf( createdResource ) ;
+		context.resourceCreationInfo = resourceCreation.resourceCreationInfo( theRequestDetails ) ;
+		return context.resourceCreationInfo ;
+	}
+
+	public Optional<IIdType> lookupLocalUserFor( IIdType userId, RequestDetails theRequestDetails ) {
+		return remembered( lookupContext( theRequestDetails ).localUsers, IdKey.of( userId ), "lookupLocalUserFor", () -> linkage.lookupLocalUserFor( userId ) ) ;
+	}
+
+	public Set<IIdType> patientsLinkedTo( IIdType localPatientId, RequestDetails theRequestDetails ) {
+		return remembered( lookupContext( theRequestDetails ).linkedNonLocalUsers, IdKey.of( localPatientId ), "patientsLinkedTo", () -> {
+			Set<IIdType> linkedIds = FhirResourceComparison.idTypes().createSet() ;
+			for ( IBaseReference linkedRef : linkage.patientsLinkedTo( localPatientId ) ) {
+				linkedIds.add( linkedRef.getReferenceElement() ) ;
+			}
+			return linkedIds ;
+		});
+	}
+
+	public boolean patientCompartmentIsClaimed( IIdType patientId, RequestDetails theRequestDetails ) {
+		return remembered( lookupContext( theRequestDetails ).claimedCompartments, IdKey.of( patientId ), "patientCompartmentIsClaimed", () -> linkage.patientCompartmentIsClaimed( patientId ) ) ;
+	}
+
+	/*
+	 * answers remembered before taking a linking lock may predate a linkage committed by the request that held it,
+	 * so they are forgotten if any linking lock was released since this request began its lookups
+	 */
+	public void forgetLinkagesChangedByOthers( RequestDetails theRequestDetails ) {
+		LookupContext context = lookupContext( theRequestDetails ) ;
+		long linkingGeneration = linkingLocks.linkingGeneration() ;
+		if ( context.linkingGeneration == linkingGeneration && !linkingLocks.linkingIsShared() )
+			return ;
+		context.linkingGeneration = linkingGeneration ;
+		context.localUsers.clear() ;
+		context.linkedNonLocalUsers.clear() ;
+		context.claimedCompartments.clear() ;
+	}
+
+	public IIdType establishNonLocalUser( IIdType nonLocalUserId, RequestDetails theRequestDetails ) {
+		IIdType establishedUserId = linkage.establishNonLocalUser( nonLocalUserId ) ;
+		lookupContext( theRequestDetails ).claimedCompartments.put( IdKey.of( establishedUserId ), true ) ;
+		return establishedUserId ;
+	}
+
+	public List<IIdType> establishNonLocalUsers( Collection<? extends IIdType> nonLocalUserIds, RequestDetails theRequestDetails ) {
+		List<IIdType> establishedUserIds = linkage.establishNonLocalUsers( nonLocalUserIds ) ;
+		for ( IIdType establishedUserId : establishedUserIds ) {
+			lookupContext( theRequestDetails ).claimedCompartments.put( IdKey.of( establishedUserId ), true ) ;
+		}
+		return establishedUserIds ;
+	}
+
+	public void linkNonLocalPatientToLocalPatient( IIdType localPatientId, IIdType nonLocalPatientId, RequestDetails theRequestDetails ) {
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		LookupContext context = lookupContext( theRequestDetails ) ;
+		context.localUsers.put( IdKey.of( nonLocalPatientId ), Optional.of( localPatientId ) ) ;
+		Set<IIdType> linkedIds = context.linkedNonLocalUsers.get( IdKey.of( localPatientId ) ) ;
+		if ( null != linkedIds )
+			linkedIds.add( nonLocalPatientId ) ;
+	}
+}
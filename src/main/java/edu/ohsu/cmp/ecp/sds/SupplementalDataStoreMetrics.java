@@ -0,0 +1,125 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static edu.ohsu.cmp.ecp.sds.SupplementalDataStorePermissionsInterceptor.getPermissions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreServerTiming.Phase;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * names and tags the meters recorded by the SDS hooks, so that request latency
+ * can be attributed to SDS logic rather than to HAPI storage
+ *
+ * tags are kept to a small, fixed set of values: partitions are tagged only as local or non-local,
+ * and users only by resource type
+ */
+@Component
+public class SupplementalDataStoreMetrics {
+
+	public static final String METER_HOOK = "sds.hook" ;
+	public static final String METER_USER_CREATED = "sds.user.created" ;
+	public static final String METER_LINKAGE_CREATED = "sds.linkage.created" ;
+	public static final String METER_PARTITION_ESTABLISHED = "sds.partition.established" ;
+	public static final String METER_MULTIPLE_LOCAL_PATIENTS = "sds.linkage.multiple.local.patients" ;
+
+	public static final String TAG_HOOK = "hook" ;
+	public static final String TAG_OUTCOME = "outcome" ;
+	public static final String TAG_PARTITION = "partition" ;
+	public static final String TAG_USER_TYPE = "user.type" ;
+	public static final String TAG_USER_KIND = "user.kind" ;
+
+	public static final String PARTITION_LOCAL = "local" ;
+	public static final String PARTITION_NON_LOCAL = "non-local" ;
+	public static final String NONE = "none" ;
+
+	@Inject
+	MeterRegistry meterRegistry;
+
+	@Inject
+	SupplementalDataStorePartition partition;
+
+	/*
+	 * the tags are taken after the hook runs, since a hook may be what identifies the user
+	 */
+	public <T> T timeHook( String hookName, Phase phase, RequestDetails theRequestDetails, Supplier<T> hook ) {
+		long startNanos = System.nanoTime() ;
+		String outcome = "error" ;
+		try {
+			T result = hook.get() ;
+			outcome = "success" ;
+			return result ;
+		} finally {
+			long elapsedNanos = System.nanoTime() - startNanos ;
+			meterRegistry.timer(
+				METER_HOOK,
+				TAG_HOOK, hookName,
+				TAG_OUTCOME, outcome,
+				TAG_PARTITION, partitionTag( theRequestDetails ),
+				TAG_USER_TYPE, userTypeTag( theRequestDetails )
+				).record( elapsedNanos, TimeUnit.NANOSECONDS ) ;
+			if ( null != phase )
+				SupplementalDataStoreServerTiming.record( phase, elapsedNanos ) ;
+		}
+	}
+
+	public <T> T timeHook( String hookName, RequestDetails theRequestDetails, Supplier<T> hook ) {
+		return timeHook( hookName, null, theRequestDetails, hook ) ;
+	}
+
+	public void timeHook( String hookName, Phase phase, RequestDetails theRequestDetails, Runnable hook ) {
+		timeHook( hookName, phase, theRequestDetails, () -> {
+			hook.run() ;
+			return null ;
+		});
+	}
+
+	public void timeHook( String hookName, RequestDetails theRequestDetails, Runnable hook ) {
+		timeHook( hookName, null, theRequestDetails, hook ) ;
+	}
+
+	public void userCreated( IIdType userId, boolean stub ) {
+		meterRegistry.counter( METER_USER_CREATED, TAG_USER_KIND, stub ? "stub" : "local", TAG_USER_TYPE, userTypeTag( userId ) ).increment() ;
+	}
+
+	public void linkageCreated( IIdType alternateUserId ) {
+		meterRegistry.counter( METER_LINKAGE_CREATED, TAG_USER_TYPE, userTypeTag( alternateUserId ) ).increment() ;
+	}
+
+	public void multipleLocalPatients( String behavior ) {
+		meterRegistry.counter( METER_MULTIPLE_LOCAL_PATIENTS, "behavior", behavior ).increment() ;
+	}
+
+	public String partitionTag( RequestDetails theRequestDetails ) {
+		if ( null == theRequestDetails )
+			return NONE ;
+		return partition.requestIsForLocalPartition( theRequestDetails ) ? PARTITION_LOCAL : PARTITION_NON_LOCAL ;
+	}
+
+	public static String userTypeTag( RequestDetails theRequestDetails ) {
+		if ( null == theRequestDetails )
+			return NONE ;
+		Permissions permissions = getPermissions( theRequestDetails ) ;
+		return null == permissions ? NONE : userTypeTag( permissions.authorizedUserId() ) ;
+	}
+
+	public static String userTypeTag( IIdType userId ) {
+		if ( null == userId || !userId.hasResourceType() )
+			return NONE ;
+		switch ( userId.getResourceType() ) {
+		case "Patient":
+		case "Practitioner":
+		case "RelatedPerson":
+			return userId.getResourceType() ;
+		default:
+			return "other" ;
+		}
+	}
+}
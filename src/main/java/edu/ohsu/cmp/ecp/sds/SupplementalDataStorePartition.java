@@ -1,5 +1,11 @@
 package edu.ohsu.cmp.ecp.sds;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 import javax.inject.Inject;
@@ -7,11 +13,15 @@ import javax.inject.Named;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.interceptor.model.RequestPartitionId;
@@ -19,9 +29,12 @@ import ca.uhn.fhir.jpa.dao.data.IPartitionDao;
 import ca.uhn.fhir.jpa.entity.PartitionEntity;
 import ca.uhn.fhir.jpa.model.entity.ModelConfig;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import io.micrometer.core.instrument.MeterRegistry;
 
 @Component
 public class SupplementalDataStorePartition {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStorePartition.class);
 
 	@Inject
 	SupplementalDataStoreProperties sdsProperties;
@@ -31,6 +44,9 @@ public class SupplementalDataStorePartition {
 
 	@Inject
 	ModelConfig modelConfig ;
+
+	@Inject
+	MeterRegistry meterRegistry;
 	
     @Inject
     @Named("transactionManager")
@@ -57,7 +73,50 @@ public class SupplementalDataStorePartition {
     		}
     	});
     }
-    
+
+    /*
+     * a partition is created in a transaction of its own, so that a concurrent request creating
+     * the same partition fails here (where it can be recovered from) instead of when the request commits
+     */
+    private <T> T doInNewTransaction( Supplier<T> task ) {
+    	TransactionTemplate tmpl = new TransactionTemplate(txManager);
+    	tmpl.setPropagationBehavior( TransactionDefinition.PROPAGATION_REQUIRES_NEW );
+
+    	return tmpl.execute(new TransactionCallback<T>() {
+    		@Override
+    		public T doInTransaction(TransactionStatus status) {
+    			return task.get() ;
+    		}
+    	});
+    }
+
+	/*
+	 * partitions are never removed, so every partition seen once is remembered by name
+	 */
+	private final Map<String,Integer> knownPartitions = new ConcurrentHashMap<>() ;
+	private volatile boolean knownPartitionsLoaded = false ;
+
+	private Map<String,Integer> knownPartitions() {
+		if ( !knownPartitionsLoaded ) {
+			synchronized ( knownPartitions ) {
+				if ( !knownPartitionsLoaded ) {
+					doInTransaction( () -> {
+						for ( PartitionEntity partitionEntity : daoPartition.findAll() ) {
+							knownPartitions.put( partitionEntity.getName(), partitionEntity.getId() ) ;
+						}
+					});
+					knownPartitionsLoaded = true ;
+					ourLog.debug( "loaded {} known partitions", knownPartitions.size() ) ;
+				}
+			}
+		}
+		return knownPartitions ;
+	}
+
+	public Set<String> knownPartitionNames() {
+		return Collections.unmodifiableSet( knownPartitions().keySet() ) ;
+	}
+
 	public boolean userIsLocal( IIdType userId ) {
 		if ( !userId.hasBaseUrl() )
 			return true ;
@@ -96,28 +155,88 @@ public class SupplementalDataStorePartition {
 		}
 	}
 
-	public void establishLocalPartition() {
+	/*
+	 * internal requests name their partition explicitly; other requests name it with the partition header
+	 */
+	public boolean requestIsForLocalPartition(RequestDetails theRequestDetails) {
 		String localPartitionName = sdsProperties.getPartition().getLocalName();
+		if ( null == theRequestDetails )
+			return true ;
+		if ( theRequestDetails instanceof SystemRequestDetails ) {
+			RequestPartitionId requestPartitionId = ((SystemRequestDetails)theRequestDetails).getRequestPartitionId() ;
+			if ( null == requestPartitionId || !requestPartitionId.hasPartitionNames() )
+				return true ;
+			return requestPartitionId.getPartitionNames().contains( localPartitionName ) ;
+		}
+		return localPartitionName.equals( partitionNameFromRequest( theRequestDetails ) ) ;
+	}
 
-		doInTransaction( () -> {
-			if (!daoPartition.findForName(localPartitionName).isPresent()) {
-				daoPartition.save(newLocalPartitionEntity());
-			}
-		});
+	public void establishLocalPartition() {
+		establishPartition( sdsProperties.getPartition().getLocalName(), this::newLocalPartitionEntity ) ;
 	}
 
 	public void establishNonLocalPartition( String partitionName ) {
-		doInTransaction( () -> {
-			if (!daoPartition.findForName(partitionName).isPresent()) {
-				daoPartition.save(newNonLocalPartitionEntity(partitionName));
-			}
-		});
+		establishPartition( partitionName, () -> newNonLocalPartitionEntity(partitionName) ) ;
 	}
 
 	public boolean partitionExists( String partitionName ) {
-		return doInTransaction( () -> {
-			return daoPartition.findForName(partitionName).isPresent() ;
-		});
+		return partitionIdForName( partitionName ).isPresent() ;
+	}
+
+	public Optional<Integer> partitionIdForName( String partitionName ) {
+		Integer partitionId = knownPartitions().get( partitionName ) ;
+		if ( null != partitionId )
+			return Optional.of( partitionId ) ;
+
+		/* another server may have created the partition */
+		Optional<PartitionEntity> partitionEntity = doInTransaction( () -> daoPartition.findForName(partitionName) ) ;
+		partitionEntity.ifPresent( this::rememberPartition ) ;
+		return partitionEntity.map( PartitionEntity::getId ) ;
+	}
+
+	private void rememberPartition( PartitionEntity partitionEntity ) {
+		/* a partition created inside a surrounding transaction is only known once that transaction commits */
+		if ( TransactionSynchronizationManager.isActualTransactionActive() && TransactionSynchronizationManager.isSynchronizationActive() ) {
+			TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					knownPartitions.put( partitionEntity.getName(), partitionEntity.getId() ) ;
+				}
+			});
+		} else {
+			knownPartitions.put( partitionEntity.getName(), partitionEntity.getId() ) ;
+		}
+	}
+
+	private void establishPartition( String partitionName, Supplier<PartitionEntity> newPartitionEntity ) {
+		if ( knownPartitions().containsKey( partitionName ) )
+			return ;
+
+		PartitionEntity partitionEntity ;
+		AtomicBoolean created = new AtomicBoolean( false ) ;
+		try {
+			partitionEntity = doInNewTransaction( () -> {
+				return daoPartition.findForName(partitionName).orElseGet( () -> {
+					created.set( true ) ;
+					return daoPartition.save(newPartitionEntity.get()) ;
+				});
+			});
+			if ( created.get() ) {
+				boolean local = sdsProperties.getPartition().getLocalName().equals( partitionName ) ;
+				meterRegistry.counter(
+					SupplementalDataStoreMetrics.METER_PARTITION_ESTABLISHED,
+					SupplementalDataStoreMetrics.TAG_PARTITION, local ? SupplementalDataStoreMetrics.PARTITION_LOCAL : SupplementalDataStoreMetrics.PARTITION_NON_LOCAL
+					).increment() ;
+			}
+		} catch ( DataIntegrityViolationException ex ) {
+			/* a concurrent request created the partition first */
+			partitionEntity =
+				doInNewTransaction( () -> daoPartition.findForName(partitionName) )
+					.orElseThrow( () -> ex )
+					;
+		}
+		/* already committed, so known immediately */
+		knownPartitions.put( partitionEntity.getName(), partitionEntity.getId() ) ;
 	}
 
 	private int generatePartitionId(String partitionName) {
@@ -33,6 +33,9 @@ public class SupplementalDataStorePartitionInterceptor {
 
 	@Inject
 	IRequestPartitionHelperSvc requestPartitionHelperSvc;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
 	
 	@PostConstruct
 	public void establishLocalPartition() {
@@ -41,6 +44,10 @@ public class SupplementalDataStorePartitionInterceptor {
 
 	@Hook(Pointcut.STORAGE_PARTITION_IDENTIFY_CREATE)
 	public RequestPartitionId partitionIdentifyCreate(RequestDetails theRequestDetails) {
+		return metrics.timeHook( "partitionIdentifyCreate", SupplementalDataStoreServerTiming.Phase.PARTITION, theRequestDetails, () -> identifyCreatePartition( theRequestDetails ) ) ;
+	}
+
+	private RequestPartitionId identifyCreatePartition(RequestDetails theRequestDetails) {
 		if ( !requestPartitionHelperSvc.isResourcePartitionable(theRequestDetails.getResourceName()) )
 			return RequestPartitionId.defaultPartition() ;
 
@@ -67,6 +74,10 @@ public class SupplementalDataStorePartitionInterceptor {
 
 	@Hook(Pointcut.STORAGE_PARTITION_IDENTIFY_READ)
 	public RequestPartitionId partitionIdentifyRead(RequestDetails theRequestDetails) {
+		return metrics.timeHook( "partitionIdentifyRead", SupplementalDataStoreServerTiming.Phase.PARTITION, theRequestDetails, () -> identifyReadPartition( theRequestDetails ) ) ;
+	}
+
+	private RequestPartitionId identifyReadPartition(RequestDetails theRequestDetails) {
 		if ( !requestPartitionHelperSvc.isResourcePartitionable(theRequestDetails.getResourceName()) )
 			return RequestPartitionId.defaultPartition() ;
 
@@ -1,14 +1,16 @@
 package edu.ohsu.cmp.ecp.sds;
 
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings.CrossPartitionReferenceMode;
-import ca.uhn.fhir.jpa.searchparam.matcher.AuthorizationSearchParamMatcher;
-import ca.uhn.fhir.jpa.searchparam.matcher.SearchParamMatcher;
 import ca.uhn.fhir.rest.server.RestfulServer;
-import ca.uhn.fhir.rest.server.interceptor.auth.IAuthorizationSearchParamMatcher;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.interceptor.consent.ConsentInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.consent.ConsentOutcome;
+import ca.uhn.fhir.rest.server.interceptor.consent.IConsentContextServices;
 import ca.uhn.fhir.rest.server.interceptor.consent.RuleFilteringConsentService;
 
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.context.annotation.Configuration;
 
 import javax.annotation.PostConstruct;
@@ -23,6 +25,9 @@ public class SupplementalDataStorePartitioningConfig {
 	@Inject
 	RestfulServer server;
 
+	@Inject
+	IInterceptorService interceptorService;
+
 	@Inject
 	PartitionSettings partitionSettings;
 
@@ -31,6 +36,9 @@ public class SupplementalDataStorePartitioningConfig {
 
 	@Inject
 	SupplementalDataStoreAuthorizationCapabilityInterceptor authorizationCapabilityInterceptor;
+
+	@Inject
+	SupplementalDataStoreSearchNarrowingInterceptor searchNarrowingInterceptor;
 	
 	@Inject
 	SupplementalDataStoreLinkingInterceptor linkingInterceptor;
@@ -42,7 +50,31 @@ public class SupplementalDataStorePartitioningConfig {
 	SupplementalDataStorePartitionInterceptor partitionInterceptor;
 
 	@Inject
-	SearchParamMatcher searchParamMatcher;
+	SupplementalDataStoreIdentityCache identityCache;
+
+	@Inject
+	SupplementalDataStoreLinkageEdgeInterceptor linkageEdgeInterceptor;
+
+	@Inject
+	SupplementalDataStoreClaimedPatients claimedPatients;
+
+	@Inject
+	SupplementalDataStoreServerTimingInterceptor serverTimingInterceptor;
+
+	@Inject
+	SupplementalDataStoreBulkLinkProvider bulkLinkProvider;
+
+	@Inject
+	SupplementalDataStoreKeysetPaging keysetPaging;
+
+	@Inject
+	SupplementalDataStoreFanOutSearchProvider fanOutSearchProvider;
+
+	@Inject
+	SupplementalDataStoreEverythingProvider everythingProvider;
+
+	@Inject
+	SupplementalDataStoreLinkageAuthorizationMatcher linkageAuthorizationMatcher;
 	
 	@PostConstruct
 	public void configurePartitioning() {
@@ -54,23 +86,71 @@ public class SupplementalDataStorePartitioningConfig {
 	@PostConstruct
 	public void configureLinking() {
 		server.registerInterceptor(linkingInterceptor);
+		/* linkages are usually written by internal requests, which bypass the server interceptors */
+		interceptorService.registerInterceptor(linkageEdgeInterceptor);
+		/* stub patients are written by internal requests too */
+		interceptorService.registerInterceptor(claimedPatients);
 	}
 	
 	@PostConstruct
 	public void configurePermissions() {
 		server.registerInterceptor(permissionsInterceptor);
+		/* linkages are usually written by internal requests, which bypass the server interceptors */
+		interceptorService.registerInterceptor(identityCache);
 	}
 	
 	@PostConstruct
 	public void configureAuthorization() {
 		server.registerInterceptor(authorizationCapabilityInterceptor);
 		
-		IAuthorizationSearchParamMatcher theAuthorizationSearchParamMatcher = new AuthorizationSearchParamMatcher(searchParamMatcher);
-		authorizationInterceptor.setAuthorizationSearchParamMatcher(theAuthorizationSearchParamMatcher);
+		/* linkage filters are decided from the linkage items, any other filter by the generic matcher */
+		authorizationInterceptor.setAuthorizationSearchParamMatcher(linkageAuthorizationMatcher);
 		server.registerInterceptor(authorizationInterceptor);
+
+		/* narrowing leaves the consent service less to filter, but does not replace it */
+		if ( sdsProperties.getSearchNarrowing().getEnabled() )
+			server.registerInterceptor(searchNarrowingInterceptor);
 		
 		ConsentInterceptor consentInterceptor = new ConsentInterceptor();
-		consentInterceptor.registerConsentService(new RuleFilteringConsentService(authorizationInterceptor));
+		consentInterceptor.registerConsentService(new TimedRuleFilteringConsentService(authorizationInterceptor));
 		server.registerInterceptor(consentInterceptor);
 	}
+
+	@PostConstruct
+	public void configureServerTiming() {
+		server.registerInterceptor(serverTimingInterceptor);
+	}
+
+	@PostConstruct
+	public void configureKeysetPaging() {
+		server.registerInterceptor(keysetPaging);
+	}
+
+	@PostConstruct
+	public void configureBulkLinking() {
+		server.registerProvider(bulkLinkProvider);
+	}
+
+	@PostConstruct
+	public void configureFanOutSearch() {
+		server.registerProvider(fanOutSearchProvider);
+		server.registerProvider(everythingProvider);
+	}
+
+	private static class TimedRuleFilteringConsentService extends RuleFilteringConsentService {
+
+		TimedRuleFilteringConsentService(SupplementalDataStoreAuthorizationInterceptor authorizationInterceptor) {
+			super(authorizationInterceptor);
+		}
+
+		@Override
+		public ConsentOutcome canSeeResource(RequestDetails theRequestDetails, IBaseResource theResource, IConsentContextServices theContextServices) {
+			long startNanos = SupplementalDataStoreServerTiming.start() ;
+			try {
+				return super.canSeeResource(theRequestDetails, theResource, theContextServices);
+			} finally {
+				SupplementalDataStoreServerTiming.stop( SupplementalDataStoreServerTiming.Phase.CONSENT, startNanos ) ;
+			}
+		}
+	}
 }
@@ -0,0 +1,115 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
+
+/*
+ * an immutable index, by resource type, of the paths of the reference search params that
+ * place a resource in a Patient compartment
+ *
+ * the index is replaced whenever the SearchParameter resources change, so readers never need a lock
+ */
+@Component
+public class SupplementalDataStorePatientCompartmentIndex implements IResourceChangeListener {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStorePatientCompartmentIndex.class);
+
+	private static final long SEARCH_PARAMETER_REFRESH_INTERVAL_MILLIS = 60_000 ;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	ISearchParamRegistry searchParamRegistry;
+
+	@Inject
+	IResourceChangeListenerRegistry resourceChangeListenerRegistry;
+
+	private volatile Map<String,List<String>> pathsForPatientCompartmentByResourceType ;
+
+	@PostConstruct
+	public void initializeIndex() {
+		rebuild() ;
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener( "SearchParameter", SearchParameterMap.newSynchronous(), this, SEARCH_PARAMETER_REFRESH_INTERVAL_MILLIS ) ;
+	}
+
+	@PreDestroy
+	public void stopListening() {
+		resourceChangeListenerRegistry.unregisterResourceResourceChangeListener( this ) ;
+	}
+
+	public List<String> pathsForPatientCompartment( String resourceType ) {
+		return pathsForPatientCompartmentByResourceType.getOrDefault( resourceType, Collections.emptyList() ) ;
+	}
+
+	@Override
+	public void handleInit( Collection<IIdType> theResourceIds ) {
+		/* the index was built from the registry at startup */
+	}
+
+	@Override
+	public void handleChange( IResourceChangeEvent theResourceChangeEvent ) {
+		/* the registry may not have seen the change yet */
+		searchParamRegistry.forceRefresh() ;
+		rebuild() ;
+	}
+
+	private void rebuild() {
+		Map<String,List<String>> index = new HashMap<>() ;
+		for ( String resourceType : fhirContext.getResourceTypes() ) {
+			/*
+			 * compartment membership comes from the resource definition,
+			 * but the path of each search param comes from the registry so that custom SearchParameters apply
+			 */
+			Map<String,RuntimeSearchParam> patientCompartmentSearchParams = new LinkedHashMap<>() ;
+			for ( RuntimeSearchParam runtimeSearchParam : fhirContext.getResourceDefinition( resourceType ).getSearchParamsForCompartmentName( "Patient" ) ) {
+				if ( providesMembershipInPatientCompartment( runtimeSearchParam ) ) {
+					RuntimeSearchParam activeSearchParam = searchParamRegistry.getActiveSearchParam( resourceType, runtimeSearchParam.getName() ) ;
+					patientCompartmentSearchParams.put( runtimeSearchParam.getName(), null != activeSearchParam ? activeSearchParam : runtimeSearchParam ) ;
+				}
+			}
+			for ( RuntimeSearchParam runtimeSearchParam : searchParamRegistry.getActiveSearchParams( resourceType ).values() ) {
+				if ( providesMembershipInPatientCompartment( runtimeSearchParam ) )
+					patientCompartmentSearchParams.put( runtimeSearchParam.getName(), runtimeSearchParam ) ;
+			}
+
+			List<String> paths = new ArrayList<>() ;
+			for ( RuntimeSearchParam runtimeSearchParam : patientCompartmentSearchParams.values() ) {
+				if ( runtimeSearchParam.getParamType() != RestSearchParameterTypeEnum.REFERENCE )
+					continue ;
+				for ( String path : runtimeSearchParam.getPathsSplitForResourceType( resourceType ) ) {
+					if ( !path.isBlank() )
+						paths.add( path ) ;
+				}
+			}
+			if ( !paths.isEmpty() )
+				index.put( resourceType, Collections.unmodifiableList( paths ) ) ;
+		}
+		pathsForPatientCompartmentByResourceType = Collections.unmodifiableMap( index ) ;
+		ourLog.debug( "indexed Patient compartment search params for {} resource types", index.size() ) ;
+	}
+
+	private static boolean providesMembershipInPatientCompartment( RuntimeSearchParam runtimeSearchParam ) {
+		return null != runtimeSearchParam.getProvidesMembershipInCompartments() && runtimeSearchParam.getProvidesMembershipInCompartments().contains( "Patient" ) ;
+	}
+}
@@ -5,7 +5,6 @@ import java.util.Set;
 
 import javax.inject.Inject;
 
-import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.stereotype.Component;
 
@@ -25,22 +24,35 @@ public class SupplementalDataStorePermissionsInterceptor {
 	SupplementalDataStoreAuth auth;
 
 	@Inject
-	SupplementalDataStoreLinkage linkage;
+	SupplementalDataStorePartition partition;
 
 	@Inject
-	SupplementalDataStorePartition partition;
+	SupplementalDataStoreLookups lookups;
+
+	@Inject
+	SupplementalDataStoreIdentityCache identityCache;
 
 	@Inject
-	SupplementalDataStoreResourceCreation resourceCreation;
+	SupplementalDataStoreMetrics metrics;
 	
 	public static final String REQUEST_ATTR_PERMISSIONS = "SDS-AUTH-PERMISSIONS" ;
 
+	/*
+	 * the AuthorizationInterceptor and ConsentInterceptor read the permissions on the same pointcut at the default order,
+	 * so the permissions must be identified first regardless of the order the interceptors were registered in
+	 */
+	public static final int ORDER_IDENTIFY_PERMISSIONS = -100 ;
+
 	public static Permissions getPermissions(RequestDetails theRequestDetails) {
 		return (Permissions)theRequestDetails.getAttribute(REQUEST_ATTR_PERMISSIONS) ;
 	}
 
-	@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = ORDER_IDENTIFY_PERMISSIONS)
 	public void identifyPermissions(RequestDetails theRequestDetails) {
+		metrics.timeHook( "identifyPermissions", theRequestDetails, () -> storePermissions( theRequestDetails ) ) ;
+	}
+
+	private void storePermissions(RequestDetails theRequestDetails) {
 
 		/*
 		 * identify the authorized user
@@ -71,24 +83,30 @@ public class SupplementalDataStorePermissionsInterceptor {
 		}
 	}
 
-	private UserIdentity buildUserIdentity( IIdType basisUserId ) {
+	private UserIdentity buildUserIdentity( IIdType basisUserId, RequestDetails theRequestDetails ) {
+		long startNanos = SupplementalDataStoreServerTiming.start() ;
+		try {
+			return identityCache.userIdentityFor( basisUserId, id -> resolveUserIdentity( id, theRequestDetails ) ) ;
+		} finally {
+			SupplementalDataStoreServerTiming.stop( SupplementalDataStoreServerTiming.Phase.LINKAGE, startNanos ) ;
+		}
+	}
 
-		Optional<IIdType> localUserId = linkage.lookupLocalUserFor(basisUserId);
+	private UserIdentity resolveUserIdentity( IIdType basisUserId, RequestDetails theRequestDetails ) {
 
-		return buildUserIdentity( localUserId, basisUserId ) ;
+		Optional<IIdType> localUserId = lookups.lookupLocalUserFor(basisUserId, theRequestDetails);
+
+		return buildUserIdentity( localUserId, basisUserId, theRequestDetails ) ;
 	}
 
-	private UserIdentity buildUserIdentity( Optional<IIdType> localUserId, IIdType basisUserId ) {
+	private UserIdentity buildUserIdentity( Optional<IIdType> localUserId, IIdType basisUserId, RequestDetails theRequestDetails ) {
 
 		Set<IIdType> nonLocalPatientIds = FhirResourceComparison.idTypes().createSet() ;
 		if ( partition.userIsNonLocal( basisUserId ) )
 			nonLocalPatientIds.add( basisUserId );
 
 		localUserId.ifPresent( id -> {
-			for ( IBaseReference nonLocalUser : linkage.patientsLinkedTo(id) ) {
-				IIdType nonLocalUserId = nonLocalUser.getReferenceElement();
-				nonLocalPatientIds.add( nonLocalUserId );
-			}
+			nonLocalPatientIds.addAll( lookups.patientsLinkedTo(id, theRequestDetails) );
 		});
 
 		return new UserIdentity(basisUserId, localUserId, nonLocalPatientIds) ;
@@ -101,7 +119,7 @@ public class SupplementalDataStorePermissionsInterceptor {
 	private Permissions permissionsForPatient( IIdType authorizedUserId, IIdType authorizedPatientId, RequestDetails theRequestDetails ) {
 
 
-		UserIdentity targetPatientId = buildUserIdentity( authorizedPatientId );
+		UserIdentity targetPatientId = buildUserIdentity( authorizedPatientId, theRequestDetails );
 		/*
 		 * IF the request is a resource WRITE
 		 * AND the resource's Patient Compartment is not already linked to the authorized user
@@ -109,11 +127,11 @@ public class SupplementalDataStorePermissionsInterceptor {
 		 * THEN flag the patient compartment for permission to create
 		 */
 
-		Optional<SupplementalDataStoreResourceCreation.Details> details = resourceCreation.resourceCreationInfo( theRequestDetails ) ;
+		Optional<SupplementalDataStoreResourceCreation.Details> details = lookups.resourceCreationInfo( theRequestDetails ) ;
 
 		// only if it's a resource creation
 		if ( details.isPresent() ) {
-			for ( IIdType claimingPatientCompartment : claimingPatientCompartments( details.get() ) ) {
+			for ( IIdType claimingPatientCompartment : claimingPatientCompartments( details.get(), theRequestDetails ) ) {
 				targetPatientId = targetPatientId.withAdditionalNonLocalUserId( claimingPatientCompartment ) ;
 			}
 		}
@@ -121,11 +139,11 @@ public class SupplementalDataStorePermissionsInterceptor {
 		return new Permissions( new Permissions.ReadAndWriteSpecificPatient( authorizedUserId, targetPatientId ) ) ;
 	}
 
-	private Set<IIdType> claimingPatientCompartments( SupplementalDataStoreResourceCreation.Details details ) {
+	private Set<IIdType> claimingPatientCompartments( SupplementalDataStoreResourceCreation.Details details, RequestDetails theRequestDetails ) {
 		Set<IIdType> claimingCompartments = FhirResourceComparison.idTypes().createSet();
 
 		for ( IIdType patientCompartment : details.compartments() ) {
-			if ( linkage.patientCompartmentIsClaimed( patientCompartment ) ) {
+			if ( lookups.patientCompartmentIsClaimed( patientCompartment, theRequestDetails ) ) {
 				ourLog.warn(
 					String.format(
 						"attempt to claim \"%1$s\" was prohibited because it is already claimed",
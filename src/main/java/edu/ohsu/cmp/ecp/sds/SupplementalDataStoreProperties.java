@@ -1,7 +1,12 @@
 package edu.ohsu.cmp.ecp.sds;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 
 @Configuration
 @ConfigurationProperties(prefix = "sds")
@@ -9,6 +14,20 @@ public class SupplementalDataStoreProperties {
 
 	private boolean requireBaseUrl = true ;
 	private Partition partition = new Partition();
+	private IdentityCache identityCache = new IdentityCache();
+	private LinkageEdges linkageEdges = new LinkageEdges();
+	private IdentityGraph identityGraph = new IdentityGraph();
+	private AuthorizationRuleCache authorizationRuleCache = new AuthorizationRuleCache();
+	private TokenIntrospection tokenIntrospection = new TokenIntrospection();
+	private RelatedPersonResolution relatedPersonResolution = new RelatedPersonResolution();
+	private ServerTiming serverTiming = new ServerTiming();
+	private LinkingLock linkingLock = new LinkingLock();
+	private BulkLink bulkLink = new BulkLink();
+	private ClaimedPatients claimedPatients = new ClaimedPatients();
+	private KeysetPaging keysetPaging = new KeysetPaging();
+	private FanOut fanOut = new FanOut();
+	private SearchNarrowing searchNarrowing = new SearchNarrowing();
+	private JwtValidation jwtValidation = new JwtValidation();
 
 	public boolean getRequireBaseUrl() {
 		return requireBaseUrl;
@@ -26,6 +45,118 @@ public class SupplementalDataStoreProperties {
 		this.partition = partition;
 	}
 
+	public IdentityCache getIdentityCache() {
+		return identityCache;
+	}
+
+	public void setIdentityCache(IdentityCache identityCache) {
+		this.identityCache = identityCache;
+	}
+
+	public LinkageEdges getLinkageEdges() {
+		return linkageEdges;
+	}
+
+	public void setLinkageEdges(LinkageEdges linkageEdges) {
+		this.linkageEdges = linkageEdges;
+	}
+
+	public IdentityGraph getIdentityGraph() {
+		return identityGraph;
+	}
+
+	public void setIdentityGraph(IdentityGraph identityGraph) {
+		this.identityGraph = identityGraph;
+	}
+
+	public AuthorizationRuleCache getAuthorizationRuleCache() {
+		return authorizationRuleCache;
+	}
+
+	public void setAuthorizationRuleCache(AuthorizationRuleCache authorizationRuleCache) {
+		this.authorizationRuleCache = authorizationRuleCache;
+	}
+
+	public TokenIntrospection getTokenIntrospection() {
+		return tokenIntrospection;
+	}
+
+	public void setTokenIntrospection(TokenIntrospection tokenIntrospection) {
+		this.tokenIntrospection = tokenIntrospection;
+	}
+
+	public RelatedPersonResolution getRelatedPersonResolution() {
+		return relatedPersonResolution;
+	}
+
+	public void setRelatedPersonResolution(RelatedPersonResolution relatedPersonResolution) {
+		this.relatedPersonResolution = relatedPersonResolution;
+	}
+
+	public ServerTiming getServerTiming() {
+		return serverTiming;
+	}
+
+	public void setServerTiming(ServerTiming serverTiming) {
+		this.serverTiming = serverTiming;
+	}
+
+	public LinkingLock getLinkingLock() {
+		return linkingLock;
+	}
+
+	public void setLinkingLock(LinkingLock linkingLock) {
+		this.linkingLock = linkingLock;
+	}
+
+	public BulkLink getBulkLink() {
+		return bulkLink;
+	}
+
+	public void setBulkLink(BulkLink bulkLink) {
+		this.bulkLink = bulkLink;
+	}
+
+	public ClaimedPatients getClaimedPatients() {
+		return claimedPatients;
+	}
+
+	public void setClaimedPatients(ClaimedPatients claimedPatients) {
+		this.claimedPatients = claimedPatients;
+	}
+
+	public KeysetPaging getKeysetPaging() {
+		return keysetPaging;
+	}
+
+	public void setKeysetPaging(KeysetPaging keysetPaging) {
+		this.keysetPaging = keysetPaging;
+	}
+
+	public FanOut getFanOut() {
+		return fanOut;
+	}
+
+	public void setFanOut(FanOut fanOut) {
+		this.fanOut = fanOut;
+	}
+
+	public SearchNarrowing getSearchNarrowing() {
+		return searchNarrowing;
+	}
+
+	public void setSearchNarrowing(SearchNarrowing searchNarrowing) {
+		this.searchNarrowing = searchNarrowing;
+	}
+
+	public JwtValidation getJwtValidation() {
+		return jwtValidation;
+	}
+
+	public void setJwtValidation(JwtValidation jwtValidation) {
+		this.jwtValidation = jwtValidation;
+	}
+
 	public enum SdsFeatureBehavior {
 		FAIL,
 		WARN,
@@ -63,4 +194,575 @@ public class SupplementalDataStoreProperties {
 		}
 		
 	}
+
+	public static class IdentityCache {
+
+		private boolean enabled = true;
+		private long maximumSize = 10_000;
+		private Duration timeToLive = Duration.ofSeconds(30);
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getMaximumSize() {
+			return maximumSize;
+		}
+
+		public void setMaximumSize(long maximumSize) {
+			this.maximumSize = maximumSize;
+		}
+
+		public Duration getTimeToLive() {
+			return timeToLive;
+		}
+
+		public void setTimeToLive(Duration timeToLive) {
+			this.timeToLive = timeToLive;
+		}
+
+	}
+
+	public static class LinkageEdges {
+
+		private boolean enabled = true;
+		private boolean backfillOnStartup = true;
+		private int backfillChunkSize = 500;
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public boolean getBackfillOnStartup() {
+			return backfillOnStartup;
+		}
+
+		public void setBackfillOnStartup(boolean backfillOnStartup) {
+			this.backfillOnStartup = backfillOnStartup;
+		}
+
+		public int getBackfillChunkSize() {
+			return backfillChunkSize;
+		}
+
+		public void setBackfillChunkSize(int backfillChunkSize) {
+			this.backfillChunkSize = backfillChunkSize;
+		}
+
+	}
+
+	public static class IdentityGraph {
+
+		private boolean enabled = true;
+		private Duration refreshInterval = Duration.ofSeconds(30);
+		private int loadChunkSize = 1000;
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public Duration getRefreshInterval() {
+			return refreshInterval;
+		}
+
+		public void setRefreshInterval(Duration refreshInterval) {
+			this.refreshInterval = refreshInterval;
+		}
+
+		public int getLoadChunkSize() {
+			return loadChunkSize;
+		}
+
+		public void setLoadChunkSize(int loadChunkSize) {
+			this.loadChunkSize = loadChunkSize;
+		}
+
+	}
+
+	public static class AuthorizationRuleCache {
+
+		private boolean enabled = true;
+		private long maximumSize = 10_000;
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getMaximumSize() {
+			return maximumSize;
+		}
+
+		public void setMaximumSize(long maximumSize) {
+			this.maximumSize = maximumSize;
+		}
+
+	}
+
+	public static class TokenIntrospection {
+
+		private boolean cacheEnabled = true;
+		private long cacheMaximumSize = 10_000;
+		private Duration cacheMaximumTimeToLive = Duration.ofMinutes(5);
+		private int maxConnections = 50;
+		private int maxConnectionsPerRoute = 20;
+		private Duration connectTimeout = Duration.ofSeconds(5);
+		private Duration readTimeout = Duration.ofSeconds(10);
+
+		public boolean getCacheEnabled() {
+			return cacheEnabled;
+		}
+
+		public void setCacheEnabled(boolean cacheEnabled) {
+			this.cacheEnabled = cacheEnabled;
+		}
+
+		public long getCacheMaximumSize() {
+			return cacheMaximumSize;
+		}
+
+		public void setCacheMaximumSize(long cacheMaximumSize) {
+			this.cacheMaximumSize = cacheMaximumSize;
+		}
+
+		public Duration getCacheMaximumTimeToLive() {
+			return cacheMaximumTimeToLive;
+		}
+
+		public void setCacheMaximumTimeToLive(Duration cacheMaximumTimeToLive) {
+			this.cacheMaximumTimeToLive = cacheMaximumTimeToLive;
+		}
+
+		public int getMaxConnections() {
+			return maxConnections;
+		}
+
+		public void setMaxConnections(int maxConnections) {
+			this.maxConnections = maxConnections;
+		}
+
+		public int getMaxConnectionsPerRoute() {
+			return maxConnectionsPerRoute;
+		}
+
+		public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+			this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		}
+
+		public Duration getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		public void setConnectTimeout(Duration connectTimeout) {
+			this.connectTimeout = connectTimeout;
+		}
+
+		public Duration getReadTimeout() {
+			return readTimeout;
+		}
+
+		public void setReadTimeout(Duration readTimeout) {
+			this.readTimeout = readTimeout;
+		}
+
+	}
+
+	public static class RelatedPersonResolution {
+
+		private boolean cacheEnabled = true;
+		private long cacheMaximumSize = 10_000;
+		private Duration cacheTimeToLive = Duration.ofMinutes(5);
+		private Duration cacheNegativeTimeToLive = Duration.ofSeconds(30);
+		private int maxConnections = 50;
+		private int maxConnectionsPerRoute = 20;
+		private Duration connectTimeout = Duration.ofSeconds(5);
+		private Duration socketTimeout = Duration.ofSeconds(10);
+
+		public boolean getCacheEnabled() {
+			return cacheEnabled;
+		}
+
+		public void setCacheEnabled(boolean cacheEnabled) {
+			this.cacheEnabled = cacheEnabled;
+		}
+
+		public long getCacheMaximumSize() {
+			return cacheMaximumSize;
+		}
+
+		public void setCacheMaximumSize(long cacheMaximumSize) {
+			this.cacheMaximumSize = cacheMaximumSize;
+		}
+
+		public Duration getCacheTimeToLive() {
+			return cacheTimeToLive;
+		}
+
+		public void setCacheTimeToLive(Duration cacheTimeToLive) {
+			this.cacheTimeToLive = cacheTimeToLive;
+		}
+
+		public Duration getCacheNegativeTimeToLive() {
+			return cacheNegativeTimeToLive;
+		}
+
+		public void setCacheNegativeTimeToLive(Duration cacheNegativeTimeToLive) {
+			this.cacheNegativeTimeToLive = cacheNegativeTimeToLive;
+		}
+
+		public int getMaxConnections() {
+			return maxConnections;
+		}
+
+		public void setMaxConnections(int maxConnections) {
+			this.maxConnections = maxConnections;
+		}
+
+		public int getMaxConnectionsPerRoute() {
+			return maxConnectionsPerRoute;
+		}
+
+		public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+			this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		}
+
+		public Duration getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		public void setConnectTimeout(Duration connectTimeout) {
+			this.connectTimeout = connectTimeout;
+		}
+
+		public Duration getSocketTimeout() {
+			return socketTimeout;
+		}
+
+		public void setSocketTimeout(Duration socketTimeout) {
+			this.socketTimeout = socketTimeout;
+		}
+
+	}
+	public enum ServerTimingMode {
+		OFF,
+		REQUESTED,
+		ALWAYS
+	}
+
+	public static class ServerTiming {
+
+		private ServerTimingMode mode = ServerTimingMode.OFF;
+		private String requestHeader = "X-SDS-Server-Timing";
+
+		public ServerTimingMode getMode() {
+			return mode;
+		}
+
+		public void setMode(ServerTimingMode mode) {
+			this.mode = mode;
+		}
+
+		public String getRequestHeader() {
+			return requestHeader;
+		}
+
+		public void setRequestHeader(String requestHeader) {
+			this.requestHeader = requestHeader;
+		}
+
+	}
+
+	public static class LinkingLock {
+
+		private boolean enabled = true;
+		private boolean databaseAdvisoryLock = false;
+		private Duration waitTimeout = Duration.ofSeconds(30);
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public boolean getDatabaseAdvisoryLock() {
+			return databaseAdvisoryLock;
+		}
+
+		public void setDatabaseAdvisoryLock(boolean databaseAdvisoryLock) {
+			this.databaseAdvisoryLock = databaseAdvisoryLock;
+		}
+
+		public Duration getWaitTimeout() {
+			return waitTimeout;
+		}
+
+		public void setWaitTimeout(Duration waitTimeout) {
+			this.waitTimeout = waitTimeout;
+		}
+
+	}
+
+	public static class BulkLink {
+
+		private List<String> authorizedUsers = new ArrayList<>();
+		private int chunkSize = 500;
+		private int jdbcBatchSize = 50;
+		private int maxConcurrentChunks = 2;
+
+		public List<String> getAuthorizedUsers() {
+			return authorizedUsers;
+		}
+
+		public void setAuthorizedUsers(List<String> authorizedUsers) {
+			this.authorizedUsers = authorizedUsers;
+		}
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		public void setChunkSize(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		public int getJdbcBatchSize() {
+			return jdbcBatchSize;
+		}
+
+		public void setJdbcBatchSize(int jdbcBatchSize) {
+			this.jdbcBatchSize = jdbcBatchSize;
+		}
+
+		public int getMaxConcurrentChunks() {
+			return maxConcurrentChunks;
+		}
+
+		public void setMaxConcurrentChunks(int maxConcurrentChunks) {
+			this.maxConcurrentChunks = maxConcurrentChunks;
+		}
+
+	}
+
+	public static class ClaimedPatients {
+
+		private boolean enabled = true;
+		private boolean seedOnStartup = true;
+		private int seedChunkSize = 1000;
+		private DataSize memoryBudget = DataSize.ofMegabytes(16);
+		private Duration timeToLive = Duration.ofMinutes(5);
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public boolean getSeedOnStartup() {
+			return seedOnStartup;
+		}
+
+		public void setSeedOnStartup(boolean seedOnStartup) {
+			this.seedOnStartup = seedOnStartup;
+		}
+
+		public int getSeedChunkSize() {
+			return seedChunkSize;
+		}
+
+		public void setSeedChunkSize(int seedChunkSize) {
+			this.seedChunkSize = seedChunkSize;
+		}
+
+		public DataSize getMemoryBudget() {
+			return memoryBudget;
+		}
+
+		public void setMemoryBudget(DataSize memoryBudget) {
+			this.memoryBudget = memoryBudget;
+		}
+
+		public Duration getTimeToLive() {
+			return timeToLive;
+		}
+
+		public void setTimeToLive(Duration timeToLive) {
+			this.timeToLive = timeToLive;
+		}
+
+	}
+
+	public static class KeysetPaging {
+
+		private boolean enabled = true;
+		private List<String> sortParams = new ArrayList<>(List.of("_lastUpdated", "date"));
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public List<String> getSortParams() {
+			return sortParams;
+		}
+
+		public void setSortParams(List<String> sortParams) {
+			this.sortParams = sortParams;
+		}
+
+	}
+
+	public static class FanOut {
+
+		private int maxThreads = 8;
+		private int queueCapacity = 64;
+		private Duration partitionTimeout = Duration.ofSeconds(10);
+		private int streamPageSize = 100;
+		private int streamBufferCapacity = 500;
+
+		public int getMaxThreads() {
+			return maxThreads;
+		}
+
+		public void setMaxThreads(int maxThreads) {
+			this.maxThreads = maxThreads;
+		}
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		public Duration getPartitionTimeout() {
+			return partitionTimeout;
+		}
+
+		public void setPartitionTimeout(Duration partitionTimeout) {
+			this.partitionTimeout = partitionTimeout;
+		}
+
+		public int getStreamPageSize() {
+			return streamPageSize;
+		}
+
+		public void setStreamPageSize(int streamPageSize) {
+			this.streamPageSize = streamPageSize;
+		}
+
+		public int getStreamBufferCapacity() {
+			return streamBufferCapacity;
+		}
+
+		public void setStreamBufferCapacity(int streamBufferCapacity) {
+			this.streamBufferCapacity = streamBufferCapacity;
+		}
+
+	}
+
+	public static class SearchNarrowing {
+
+		private boolean enabled = true;
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+	}
+
+	public static class JwtValidation {
+
+		private boolean enabled = false;
+		private String jwkSetUri;
+		private String issuerUri;
+		private List<String> audiences = new ArrayList<>();
+		private Duration jwkSetRefreshInterval = Duration.ofMinutes(5);
+		private Duration connectTimeout = Duration.ofSeconds(5);
+		private Duration readTimeout = Duration.ofSeconds(10);
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getJwkSetUri() {
+			return jwkSetUri;
+		}
+
+		public void setJwkSetUri(String jwkSetUri) {
+			this.jwkSetUri = jwkSetUri;
+		}
+
+		public String getIssuerUri() {
+			return issuerUri;
+		}
+
+		public void setIssuerUri(String issuerUri) {
+			this.issuerUri = issuerUri;
+		}
+
+		public List<String> getAudiences() {
+			return audiences;
+		}
+
+		public void setAudiences(List<String> audiences) {
+			this.audiences = audiences;
+		}
+
+		public Duration getJwkSetRefreshInterval() {
+			return jwkSetRefreshInterval;
+		}
+
+		public void setJwkSetRefreshInterval(Duration jwkSetRefreshInterval) {
+			this.jwkSetRefreshInterval = jwkSetRefreshInterval;
+		}
+
+		public Duration getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		public void setConnectTimeout(Duration connectTimeout) {
+			this.connectTimeout = connectTimeout;
+		}
+
+		public Duration getReadTimeout() {
+			return readTimeout;
+		}
+
+		public void setReadTimeout(Duration readTimeout) {
+			this.readTimeout = readTimeout;
+		}
+
+	}
+
 }
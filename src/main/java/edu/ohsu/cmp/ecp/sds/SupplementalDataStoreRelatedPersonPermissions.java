@@ -1,5 +1,11 @@
 package edu.ohsu.cmp.ecp.sds;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
@@ -7,11 +13,17 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.oauth2.core.OAuth2Token;
 import org.springframework.stereotype.Component;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.google.common.hash.Hashing;
+
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
-import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreRelatedPersonPermissions;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 
 @Component
 public class SupplementalDataStoreRelatedPersonPermissions implements SupplementalDataStorePermissions {
@@ -20,10 +32,40 @@ public class SupplementalDataStoreRelatedPersonPermissions implements Supplement
 
 	private final FhirContext fhirContext ;
 	private final SupplementalDataStoreRelatedPerson sdsRelatedPerson;
-	
-	public SupplementalDataStoreRelatedPersonPermissions(FhirContext fhirContext, SupplementalDataStoreRelatedPerson sdsRelatedPerson ) {
+	private final SupplementalDataStoreProperties.RelatedPersonResolution resolutionProperties;
+	private final MeterRegistry meterRegistry;
+
+	/*
+	 * one pooled client per EHR; the token is sent with each read instead of being registered on the client
+	 */
+	private final ApacheRestfulClientFactory clientFactory ;
+	private final Map<String,IGenericClient> clientsByBaseUrl = new ConcurrentHashMap<>() ;
+
+	/*
+	 * keyed by the related person and a digest of the token, so the cache never holds the tokens themselves
+	 */
+	private final Cache<String,Optional<IIdType>> writablePatientIds ;
+
+	public SupplementalDataStoreRelatedPersonPermissions(FhirContext fhirContext, SupplementalDataStoreRelatedPerson sdsRelatedPerson, SupplementalDataStoreProperties sdsProperties, MeterRegistry meterRegistry ) {
 		this.fhirContext = fhirContext;
 		this.sdsRelatedPerson = sdsRelatedPerson;
+		this.resolutionProperties = sdsProperties.getRelatedPersonResolution();
+		this.meterRegistry = meterRegistry;
+
+		this.clientFactory = new ApacheRestfulClientFactory( fhirContext ) ;
+		this.clientFactory.setConnectTimeout( (int)resolutionProperties.getConnectTimeout().toMillis() ) ;
+		this.clientFactory.setSocketTimeout( (int)resolutionProperties.getSocketTimeout().toMillis() ) ;
+		this.clientFactory.setPoolMaxTotal( resolutionProperties.getMaxConnections() ) ;
+		this.clientFactory.setPoolMaxPerRoute( resolutionProperties.getMaxConnectionsPerRoute() ) ;
+
+		this.writablePatientIds =
+			Caffeine.newBuilder()
+				.maximumSize( resolutionProperties.getCacheMaximumSize() )
+				.expireAfter( new ResolutionExpiry() )
+				.recordStats()
+				.build()
+				;
+		CaffeineCacheMetrics.monitor( meterRegistry, writablePatientIds, "sds.relatedperson.resolution" ) ;
 	}
 
 	@Override
@@ -46,24 +88,61 @@ public class SupplementalDataStoreRelatedPersonPermissions implements Supplement
 			return null ;
 		}
 		OAuth2Token token = (OAuth2Token)credentials ;
-		
+
+		/* cached or not, the whole resolution is timed */
+		long startNanos = System.nanoTime() ;
+		IIdType writablePatientId = null ;
+		try {
+			writablePatientId = cachedWritablePatientIdFor( authorizedUserId, token ).orElse( null ) ;
+			return writablePatientId ;
+		} finally {
+			long elapsedNanos = System.nanoTime() - startNanos ;
+			meterRegistry.timer( "sds.relatedperson.resolve", "outcome", null == writablePatientId ? "unresolved" : "resolved" ).record( elapsedNanos, TimeUnit.NANOSECONDS ) ;
+			SupplementalDataStoreServerTiming.record( SupplementalDataStoreServerTiming.Phase.RELATED_PERSON, elapsedNanos ) ;
+		}
+	}
+
+	private Optional<IIdType> cachedWritablePatientIdFor( IIdType authorizedUserId, OAuth2Token token ) {
+		if ( !resolutionProperties.getCacheEnabled() )
+			return readWritablePatientIdFor( authorizedUserId, token ) ;
+
+		return writablePatientIds.get( cacheKey( authorizedUserId, token ), k -> readWritablePatientIdFor( authorizedUserId, token ) ) ;
+	}
+
+	private static String cacheKey( IIdType authorizedUserId, OAuth2Token token ) {
+		return authorizedUserId.toVersionless().getValue() + "|" + Hashing.sha256().hashString( token.getTokenValue(), StandardCharsets.UTF_8 ) ;
+	}
+
+	private IGenericClient clientFor( String baseUrl ) {
+		return clientsByBaseUrl.computeIfAbsent( baseUrl, clientFactory::newGenericClient ) ;
+	}
+
+	private Optional<IIdType> readWritablePatientIdFor( IIdType authorizedUserId, OAuth2Token token ) {
 		String baseUrl = authorizedUserId.getBaseUrl();
-		IGenericClient fhirClient = fhirContext.newRestfulGenericClient( baseUrl ) ;
-		
-		IClientInterceptor authorizationInterceptor = new BearerTokenAuthInterceptor( token.getTokenValue() ) ;
-		fhirClient.registerInterceptor( authorizationInterceptor );
-		
+		IGenericClient fhirClient = clientFor( baseUrl ) ;
+
+		Timer.Sample sample = Timer.start( meterRegistry ) ;
+		String outcome = "success" ;
 		try {
 			
-			IBaseResource relatedPerson = fhirClient.read().resource("RelatedPerson").withId(authorizedUserId).execute() ;
+			IBaseResource relatedPerson =
+				fhirClient.read()
+					.resource("RelatedPerson")
+					.withId(authorizedUserId)
+					.withAdditionalHeader( "Authorization", "Bearer " + token.getTokenValue() )
+					.execute()
+					;
 			
 			IBaseReference patientRef = patientAuthorizedForRelatedPersonToWrite( relatedPerson );
 			
-			return patientRef.getReferenceElement() ;
+			return Optional.of( patientRef.getReferenceElement() ) ;
 			
 		} catch ( Throwable ex ) {
+			outcome = "failure" ;
 			ourLog.error( "failed to resolve writable patient id for \"" + authorizedUserId + "\"", ex  ) ;
-			return null ;
+			return Optional.empty() ;
+		} finally {
+			sample.stop( meterRegistry.timer( "sds.relatedperson.remote.read", "outcome", outcome ) ) ;
 		}
 	}
 
@@ -71,5 +150,28 @@ public class SupplementalDataStoreRelatedPersonPermissions implements Supplement
 	private IBaseReference patientAuthorizedForRelatedPersonToWrite( IBaseResource relatedPerson ) {
 		return sdsRelatedPerson.patientFromRelatedPerson( relatedPerson ) ;
 	}
-	
+
+	/*
+	 * failures are remembered briefly, so a struggling EHR is not asked again on every request
+	 */
+	private class ResolutionExpiry implements Expiry<String,Optional<IIdType>> {
+
+		@Override
+		public long expireAfterCreate(String key, Optional<IIdType> writablePatientId, long currentTime) {
+			return writablePatientId.isPresent()
+				? resolutionProperties.getCacheTimeToLive().toNanos()
+				: resolutionProperties.getCacheNegativeTimeToLive().toNanos()
+				;
+		}
+
+		@Override
+		public long expireAfterUpdate(String key, Optional<IIdType> writablePatientId, long currentTime, long currentDuration) {
+			return expireAfterCreate( key, writablePatientId, currentTime ) ;
+		}
+
+		@Override
+		public long expireAfterRead(String key, Optional<IIdType> writablePatientId, long currentTime, long currentDuration) {
+			return currentDuration ;
+		}
+	}
 }
@@ -1,43 +1,34 @@
 package edu.ohsu.cmp.ecp.sds;
 
-import static java.util.stream.Collectors.filtering;
-
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 
 import javax.inject.Inject;
 
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.stereotype.Component;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.context.RuntimeResourceDefinition;
-import ca.uhn.fhir.context.RuntimeSearchParam;
-import ca.uhn.fhir.fhirpath.IFhirPath;
-import ca.uhn.fhir.jpa.model.entity.BaseResourceIndexedSearchParam;
 import ca.uhn.fhir.jpa.searchparam.extractor.ISearchParamExtractor;
-import ca.uhn.fhir.jpa.searchparam.extractor.ISearchParamExtractor.SearchParamSet;
-import ca.uhn.fhir.jpa.searchparam.extractor.PathAndRef;
-import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
-import ca.uhn.fhir.util.FhirTerser;
 import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
 
 @Component
 public class SupplementalDataStoreResourceCreation {
 
+	public static final String REQUEST_ATTR_PATIENT_COMPARTMENT_REFERENCES = "SDS-PATIENT-COMPARTMENT-REFERENCES" ;
+
 	@Inject
 	ISearchParamExtractor searchParamExtractor;
 
-	private final Map<RuntimeResourceDefinition,PatientCompartmentResourceDefinition> searchParamNamesForPatientCompartment = new HashMap<>() ;
+	@Inject
+	SupplementalDataStorePatientCompartmentIndex patientCompartmentIndex;
 
 	@Inject
 	SupplementalDataStorePartition partition;
@@ -88,15 +79,7 @@ public class SupplementalDataStoreResourceCreation {
 		} else {
 			// a non-Patient resource may be in Patient compartments according to the spec
 
-			PatientCompartmentResourceDefinition patientCompartmentResourceDefinition =
-				patientCompartmentResourceDefinitionForResource( theRequestDetails.getFhirContext(), createdResource )
-				;
-
-			for ( PathAndRef pathAndRef : searchParamExtractor.extractResourceLinks( createdResource, false ) ) {
-				if ( !patientCompartmentResourceDefinition.identifiesPatientCompartment( pathAndRef.getSearchParamName() ) )
-					continue ;
-				
-				IIdType owner = pathAndRef.getRef().getReferenceElement() ;
+			for ( IIdType owner : patientCompartmentReferences( theRequestDetails, createdResource ) ) {
 				if ( !"Patient".equals(owner.getResourceType() ) )
 					continue ;
 				IIdType fullyQualifiedOwner = patientCompartmentFromPatientId( owner, createdInPartitionName ) ;
@@ -113,38 +96,49 @@ public class SupplementalDataStoreResourceCreation {
 		return Optional.of( details ) ;
 	}
 
-	private PatientCompartmentResourceDefinition patientCompartmentResourceDefinitionForResource( FhirContext fhirContext, IBaseResource resource ) {
-		return
-			searchParamNamesForPatientCompartment.computeIfAbsent(
-				fhirContext.getResourceDefinition( resource ),
-				PatientCompartmentResourceDefinition::new
-			) ;
+	/*
+	 * the references of the resource that place it in a Patient compartment,
+	 * remembered for the request so that the resource is only examined once however often its details are needed
+	 */
+	private List<IIdType> patientCompartmentReferences( RequestDetails theRequestDetails, IBaseResource resource ) {
+		ExtractedReferences extracted = (ExtractedReferences)theRequestDetails.getAttribute( REQUEST_ATTR_PATIENT_COMPARTMENT_REFERENCES ) ;
+		if ( null != extracted && extracted.resource == resource )
+			return extracted.references ;
+
+		List<IIdType> references = extractPatientCompartmentReferences( resource ) ;
+		theRequestDetails.setAttribute( REQUEST_ATTR_PATIENT_COMPARTMENT_REFERENCES, new ExtractedReferences( resource, references ) ) ;
+		return references ;
 	}
 
-	private class PatientCompartmentResourceDefinition {
-		private final Set<String> searchParamNamesForPatientCompartment = new HashSet<>() ;
-		private final RuntimeResourceDefinition sourceDef ;
+	private static class ExtractedReferences {
+		private final IBaseResource resource ;
+		private final List<IIdType> references ;
 
-		public RuntimeResourceDefinition runtimeSourceDefinition() {
-			return sourceDef ;
+		private ExtractedReferences( IBaseResource resource, List<IIdType> references ) {
+			this.resource = resource ;
+			this.references = references ;
 		}
+	}
 
-		public PatientCompartmentResourceDefinition( RuntimeResourceDefinition sourceDef ) {
-			this.sourceDef = sourceDef ;
-			for( RuntimeSearchParam runtimeSearchParam : sourceDef.getSearchParamsForCompartmentName( "Patient" ) ) {
-				if ( null == runtimeSearchParam.getProvidesMembershipInCompartments() )
-					continue ;
-				if ( !runtimeSearchParam.getProvidesMembershipInCompartments().contains( "Patient" ) )
-					continue ;
-				if ( runtimeSearchParam.getParamType() != RestSearchParameterTypeEnum.REFERENCE )
+	/*
+	 * only the paths of the Patient compartment search params are evaluated,
+	 * rather than extracting every reference of the resource
+	 */
+	private List<IIdType> extractPatientCompartmentReferences( IBaseResource resource ) {
+		List<IIdType> references = new ArrayList<>() ;
+		for ( String path : patientCompartmentIndex.pathsForPatientCompartment( resource.fhirType() ) ) {
+			for ( IBase value : searchParamExtractor.getPathValueExtractor( resource, path ).get() ) {
+				if ( !(value instanceof IBaseReference) )
 					continue ;
-				searchParamNamesForPatientCompartment.add( runtimeSearchParam.getName() ) ;
+				IBaseReference referenceValue = (IBaseReference)value ;
+				IIdType reference = referenceValue.getReferenceElement() ;
+				if ( (null == reference || reference.isEmpty()) && null != referenceValue.getResource() )
+					reference = referenceValue.getResource().getIdElement() ;
+				if ( null != reference && reference.hasIdPart() )
+					references.add( reference ) ;
 			}
 		}
-
-		public boolean identifiesPatientCompartment( String searchParamName ) {
-			return searchParamNamesForPatientCompartment.contains( searchParamName ) ;
-		}
+		return references ;
 	}
 
 	private static boolean isResourceWrite( RequestDetails theRequestDetails ) {
@@ -0,0 +1,171 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static edu.ohsu.cmp.ecp.sds.SupplementalDataStorePermissionsInterceptor.getPermissions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.ParameterUtil;
+
+/*
+ * adds the patient compartments of a patient user to each of its searches (e.g. Encounter?status=finished becomes
+ * Encounter?status=finished&patient=Patient/123,http://my.ehr.org/fhir/R4/Patient/456), so the database returns only
+ * the patient's resources instead of the consent service reading and discarding everyone else's
+ *
+ * the consent service still filters the results, so a search left as it was is as safe as before:
+ * a search of a resource type in no patient compartment (e.g. Linkage), or a search already naming a compartment
+ * (e.g. Encounter?subject=Patient/123), is not narrowed
+ *
+ * a search is narrowed by one compartment param, so only a resource type placed in the patient compartment by a single
+ * element is narrowed (e.g. Encounter, by Encounter.subject, searched as patient or subject); a type placed there by
+ * more than one element (e.g. an Observation naming the patient as its performer rather than its subject) is left as it was,
+ * since a search cannot ask for one element or the other; so is a Patient search, as a Patient is also in the compartment of
+ * each patient it links; such a search is marked, so the authorization interceptor checks each resource it finds instead of
+ * refusing it for naming no compartment
+ *
+ * users permitted to read all patients are not narrowed
+ */
+@Interceptor
+@Component
+public class SupplementalDataStoreSearchNarrowingInterceptor {
+
+	/* the permissions must be identified first; the authorization and consent interceptors then see the narrowed search */
+	public static final int ORDER_NARROW_SEARCH = SupplementalDataStorePermissionsInterceptor.ORDER_IDENTIFY_PERMISSIONS + 1 ;
+
+	public static final String REQUEST_ATTR_UNNARROWED = "SDS-SEARCH-UNNARROWED" ;
+
+	public static boolean searchIsUnnarrowed( RequestDetails theRequestDetails ) {
+		return Boolean.TRUE.equals( theRequestDetails.getAttribute( REQUEST_ATTR_UNNARROWED ) ) ;
+	}
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = ORDER_NARROW_SEARCH)
+	public void narrowSearch( RequestDetails theRequestDetails ) {
+		if ( RestOperationTypeEnum.SEARCH_TYPE != theRequestDetails.getRestOperationType() )
+			return ;
+		Permissions permissions = getPermissions( theRequestDetails ) ;
+		if ( null == permissions || !permissions.readAndWriteSpecificPatient().isPresent() )
+			return ;
+		metrics.timeHook( "narrowSearch", SupplementalDataStoreServerTiming.Phase.AUTHORIZATION, theRequestDetails, () -> {
+			narrowSearch( theRequestDetails, permissions.readAndWriteSpecificPatient().get().patientId() ) ;
+		});
+	}
+
+	private void narrowSearch( RequestDetails theRequestDetails, UserIdentity patientIdentity ) {
+		String resourceType = theRequestDetails.getResourceName() ;
+		if ( patientCompartmentParams( fhirContext, resourceType ).isEmpty() && !"Patient".equals( resourceType ) )
+			return ;
+		if ( namesCompartment( theRequestDetails.getParameters(), resourceType ) )
+			return ;
+		Optional<String> compartmentParam = narrowingParam( fhirContext, resourceType ) ;
+		if ( !compartmentParam.isPresent() ) {
+			theRequestDetails.setAttribute( REQUEST_ATTR_UNNARROWED, Boolean.TRUE ) ;
+			return ;
+		}
+
+		Set<String> compartmentValues = patientReferences( patientIdentity ) ;
+		if ( compartmentValues.isEmpty() )
+			return ;
+
+		Map<String,String[]> narrowedParameters = new HashMap<>( theRequestDetails.getParameters() ) ;
+		narrowedParameters.put( compartmentParam.get(), new String[] { ParameterUtil.escapeAndJoinOrList( compartmentValues ) } ) ;
+		theRequestDetails.setParameters( narrowedParameters ) ;
+	}
+
+	/* any param placing the resource in a patient compartment, with or without a modifier or chain */
+	private boolean namesCompartment( Map<String,String[]> parameters, String resourceType ) {
+		Set<String> compartmentParams = new LinkedHashSet<>( patientCompartmentParams( fhirContext, resourceType ) ) ;
+		if ( "Patient".equals( resourceType ) )
+			compartmentParams.add( Constants.PARAM_ID ) ;
+		for ( String parameterName : parameters.keySet() ) {
+			String baseName = parameterName.split( "[:.]", 2 )[0] ;
+			if ( compartmentParams.contains( baseName ) )
+				return true ;
+		}
+		return false ;
+	}
+
+	/*
+	 * a resource names a non-local patient by its unqualified id when stored beside it,
+	 * and by its qualified id (as an external reference) when stored in another partition
+	 */
+	private static Set<String> patientReferences( UserIdentity patientIdentity ) {
+		Set<String> references = new LinkedHashSet<>() ;
+		patientIdentity.localUserId().ifPresent( localPatientId -> references.add( localPatientId.toUnqualifiedVersionless().getValue() ) ) ;
+		for ( IIdType nonLocalPatientId : patientIdentity.nonLocalUserIds() ) {
+			references.add( nonLocalPatientId.toUnqualifiedVersionless().getValue() ) ;
+			if ( nonLocalPatientId.hasBaseUrl() )
+				references.add( nonLocalPatientId.toVersionless().getValue() ) ;
+		}
+		return references ;
+	}
+
+	private static List<RuntimeSearchParam> patientCompartmentSearchParams( FhirContext fhirContext, String resourceType ) {
+		if ( null == resourceType || !fhirContext.getResourceTypes().contains( resourceType ) )
+			return List.of() ;
+		RuntimeResourceDefinition resourceDefinition = fhirContext.getResourceDefinition( resourceType ) ;
+		return resourceDefinition.getSearchParamsForCompartmentName( "Patient" ) ;
+	}
+
+	private static List<String> patientCompartmentParams( FhirContext fhirContext, String resourceType ) {
+		List<String> compartmentParams = new ArrayList<>() ;
+		for ( RuntimeSearchParam searchParam : patientCompartmentSearchParams( fhirContext, resourceType ) )
+			compartmentParams.add( searchParam.getName() ) ;
+		return compartmentParams ;
+	}
+
+	/*
+	 * the compartment param of a resource type placed in a patient compartment by a single element;
+	 * params that search the same element (e.g. subject, and patient as the subject that is a Patient) place it there once
+	 */
+	static Optional<String> narrowingParam( FhirContext fhirContext, String resourceType ) {
+		if ( "Patient".equals( resourceType ) )
+			return Optional.empty() ;
+		Set<String> compartmentElements = new HashSet<>() ;
+		for ( RuntimeSearchParam searchParam : patientCompartmentSearchParams( fhirContext, resourceType ) )
+			compartmentElements.add( searchParam.getPath().replace( ".where(resolve() is Patient)", "" ) ) ;
+		if ( 1 != compartmentElements.size() )
+			return Optional.empty() ;
+		return patientCompartmentParam( fhirContext, resourceType ) ;
+	}
+
+	/*
+	 * a search is scoped to a patient compartment by its Patient id, or by the reference most resources name it with;
+	 * a resource type in no patient compartment has no such param
+	 */
+	static Optional<String> patientCompartmentParam( FhirContext fhirContext, String resourceType ) {
+		if ( "Patient".equals( resourceType ) )
+			return Optional.of( Constants.PARAM_ID ) ;
+		List<String> compartmentParams = patientCompartmentParams( fhirContext, resourceType ) ;
+		for ( String preferred : List.of( "patient", "subject" ) ) {
+			if ( compartmentParams.contains( preferred ) )
+				return Optional.of( preferred ) ;
+		}
+		return compartmentParams.stream().findFirst() ;
+	}
+}
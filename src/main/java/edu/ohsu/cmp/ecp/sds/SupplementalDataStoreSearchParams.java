@@ -0,0 +1,35 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.Map;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/*
+ * the request params read alike by the searches this server pages itself (keyset paging and $sds-search)
+ */
+final class SupplementalDataStoreSearchParams {
+
+	private SupplementalDataStoreSearchParams() {
+	}
+
+	/* the _count of a page, within the page sizes of the paging provider */
+	static int pageSize( IPagingProvider pagingProvider, String count ) {
+		int pageSize ;
+		try {
+			pageSize = null == count ? pagingProvider.getDefaultPageSize() : Integer.parseInt( count ) ;
+		} catch ( NumberFormatException ex ) {
+			throw new InvalidRequestException( "invalid " + Constants.PARAM_COUNT + " \"" + count + "\"" ) ;
+		}
+		return Math.max( 1, Math.min( pageSize, pagingProvider.getMaximumPageSize() ) ) ;
+	}
+
+	/* a param given once with one value, or null */
+	static String singleValue( Map<String,String[]> parameters, String name ) {
+		String[] values = parameters.get( name ) ;
+		if ( null == values || values.length != 1 || values[0].contains( "," ) )
+			return null ;
+		return values[0] ;
+	}
+}
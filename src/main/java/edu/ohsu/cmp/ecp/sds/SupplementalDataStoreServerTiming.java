@@ -0,0 +1,125 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.Locale;
+
+/*
+ * per-request durations of the SDS phases, reported in a Server-Timing response header
+ *
+ * a recording is only open while a request that asked for timings is being handled; everywhere else
+ * start() answers NOT_RECORDING and stop() returns at once, so an untimed request allocates nothing
+ *
+ * the recording is held by the thread handling the request, since token introspection and
+ * RelatedPerson resolution run before HAPI has created the request details
+ */
+public final class SupplementalDataStoreServerTiming {
+
+	public static final String HEADER_SERVER_TIMING = "Server-Timing" ;
+
+	public static final long NOT_RECORDING = Long.MIN_VALUE ;
+
+	public enum Phase {
+		INTROSPECTION( "introspect", "token introspection" ),
+		RELATED_PERSON( "relatedperson", "RelatedPerson resolution" ),
+		LINKAGE( "linkage", "linkage lookup" ),
+		PARTITION( "partition", "partition selection" ),
+		LINKING( "linking", "linking new resources" ),
+		AUTHORIZATION( "authz", "authorization rules" ),
+		CONSENT( "consent", "consent filtering" ),
+		HANDLER( "hapi", "HAPI handler and JPA storage" ),
+		;
+
+		private final String metricName ;
+		private final String description ;
+
+		Phase( String metricName, String description ) {
+			this.metricName = metricName ;
+			this.description = description ;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values() ;
+
+	private static final ThreadLocal<Recording> CURRENT = new ThreadLocal<>() ;
+
+	public static final class Recording {
+		private final long[] nanos = new long[PHASES.length] ;
+		private final boolean[] recorded = new boolean[PHASES.length] ;
+		private long handlerStartNanos = NOT_RECORDING ;
+
+		private void add( Phase phase, long elapsedNanos ) {
+			nanos[phase.ordinal()] += elapsedNanos ;
+			recorded[phase.ordinal()] = true ;
+		}
+
+		/*
+		 * consent filtering runs inside the HAPI handler, so it is left out of the handler's own duration
+		 */
+		public void handlerStarted() {
+			handlerStartNanos = System.nanoTime() ;
+		}
+
+		public void handlerCompleted() {
+			if ( NOT_RECORDING == handlerStartNanos )
+				return ;
+			add( Phase.HANDLER, Math.max( 0L, System.nanoTime() - handlerStartNanos - nanos( Phase.CONSENT ) ) ) ;
+			handlerStartNanos = NOT_RECORDING ;
+		}
+
+		public long nanos( Phase phase ) {
+			return nanos[phase.ordinal()] ;
+		}
+
+		public String headerValue() {
+			StringBuilder value = new StringBuilder() ;
+			for ( Phase phase : PHASES ) {
+				if ( !recorded[phase.ordinal()] )
+					continue ;
+				if ( value.length() > 0 )
+					value.append( ", " ) ;
+				value
+					.append( phase.metricName )
+					.append( ";desc=\"" ).append( phase.description ).append( '"' )
+					.append( ";dur=" ).append( String.format( Locale.ROOT, "%.3f", nanos[phase.ordinal()] / 1e6 ) )
+					;
+			}
+			return value.toString() ;
+		}
+	}
+
+	private SupplementalDataStoreServerTiming() {
+	}
+
+	public static Recording open() {
+		Recording recording = new Recording() ;
+		CURRENT.set( recording ) ;
+		return recording ;
+	}
+
+	public static void close() {
+		CURRENT.remove() ;
+	}
+
+	public static Recording current() {
+		return CURRENT.get() ;
+	}
+
+	public static boolean isRecording() {
+		return null != CURRENT.get() ;
+	}
+
+	public static long start() {
+		return isRecording() ? System.nanoTime() : NOT_RECORDING ;
+	}
+
+	public static void stop( Phase phase, long startNanos ) {
+		if ( NOT_RECORDING == startNanos )
+			return ;
+		record( phase, System.nanoTime() - startNanos ) ;
+	}
+
+	public static void record( Phase phase, long elapsedNanos ) {
+		Recording recording = CURRENT.get() ;
+		if ( null != recording )
+			recording.add( phase, elapsedNanos ) ;
+	}
+}
@@ -0,0 +1,56 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/*
+ * opens a Server-Timing recording for the requests that asked for one
+ *
+ * runs ahead of spring security, so that token introspection is recorded too
+ */
+@Component
+@Order(SecurityProperties.DEFAULT_FILTER_ORDER - 1)
+public class SupplementalDataStoreServerTimingFilter extends OncePerRequestFilter {
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+		if ( !timingRequested( request ) ) {
+			filterChain.doFilter( request, response ) ;
+			return ;
+		}
+
+		SupplementalDataStoreServerTiming.open() ;
+		try {
+			filterChain.doFilter( request, response ) ;
+		} finally {
+			SupplementalDataStoreServerTiming.close() ;
+		}
+	}
+
+	private boolean timingRequested( HttpServletRequest request ) {
+		SupplementalDataStoreProperties.ServerTiming serverTiming = sdsProperties.getServerTiming() ;
+		switch ( serverTiming.getMode() ) {
+		case ALWAYS:
+			return true ;
+		case REQUESTED:
+			return StringUtils.isNotBlank( request.getHeader( serverTiming.getRequestHeader() ) ) ;
+		case OFF:
+		default:
+			return false ;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/*
+ * writes the phases recorded for a request into its Server-Timing response header
+ *
+ * the HAPI handler is timed from after the last SDS hook on the incoming request
+ * until after the consent filtering of the outgoing response
+ */
+@Interceptor
+@Component
+public class SupplementalDataStoreServerTimingInterceptor {
+
+	public static final int ORDER_AFTER_SDS_HOOKS = 1000 ;
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = ORDER_AFTER_SDS_HOOKS)
+	public void handlerStarted() {
+		SupplementalDataStoreServerTiming.Recording recording = SupplementalDataStoreServerTiming.current() ;
+		if ( null != recording )
+			recording.handlerStarted() ;
+	}
+
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = ORDER_AFTER_SDS_HOOKS)
+	public void addServerTimingToResponse(HttpServletResponse theServletResponse) {
+		addServerTiming( theServletResponse ) ;
+	}
+
+	@Hook(value = Pointcut.SERVER_HANDLE_EXCEPTION, order = ORDER_AFTER_SDS_HOOKS)
+	public void addServerTimingToException(HttpServletResponse theServletResponse) {
+		addServerTiming( theServletResponse ) ;
+	}
+
+	private void addServerTiming( HttpServletResponse theServletResponse ) {
+		SupplementalDataStoreServerTiming.Recording recording = SupplementalDataStoreServerTiming.current() ;
+		if ( null == recording || null == theServletResponse )
+			return ;
+		recording.handlerCompleted() ;
+		String headerValue = recording.headerValue() ;
+		if ( !headerValue.isEmpty() )
+			theServletResponse.addHeader( SupplementalDataStoreServerTiming.HEADER_SERVER_TIMING, headerValue ) ;
+	}
+}
@@ -0,0 +1,60 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.Date;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.model.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.searchparam.extractor.ISearchParamExtractor;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
+
+/*
+ * the value a resource sorts by, for searches sorted by _lastUpdated or by a date search param,
+ * read from the resource itself so that results can be ordered (or positioned) outside of the database
+ */
+@Component
+public class SupplementalDataStoreSortValues {
+
+	public static final String LAST_UPDATED = Constants.PARAM_LASTUPDATED ;
+
+	@Inject
+	ISearchParamRegistry searchParamRegistry;
+
+	@Inject
+	ISearchParamExtractor searchParamExtractor;
+
+	public boolean isInstantSortParam( String resourceType, String sortParam ) {
+		if ( null == resourceType || null == sortParam )
+			return false ;
+		if ( LAST_UPDATED.equals( sortParam ) )
+			return true ;
+		RuntimeSearchParam searchParam = searchParamRegistry.getActiveSearchParam( resourceType, sortParam ) ;
+		return null != searchParam && searchParam.getParamType() == RestSearchParameterTypeEnum.DATE ;
+	}
+
+	/*
+	 * a date search param sorts by the low end of its value;
+	 * a resource with several values sorts by the first of them in the order of the search
+	 */
+	public Long sortValue( IBaseResource resource, String sortParam, boolean descending ) {
+		if ( LAST_UPDATED.equals( sortParam ) ) {
+			Date lastUpdated = resource.getMeta().getLastUpdated() ;
+			return null == lastUpdated ? null : lastUpdated.getTime() ;
+		}
+		Long sortValue = null ;
+		for ( ResourceIndexedSearchParamDate date : searchParamExtractor.extractSearchParamDates( resource ) ) {
+			if ( !sortParam.equals( date.getParamName() ) || null == date.getValueLow() )
+				continue ;
+			long valueLow = date.getValueLow().getTime() ;
+			if ( null == sortValue || ( descending ? valueLow > sortValue : valueLow < sortValue ) )
+				sortValue = valueLow ;
+		}
+		return sortValue ;
+	}
+}
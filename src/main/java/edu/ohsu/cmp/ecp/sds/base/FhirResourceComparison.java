@@ -5,14 +5,17 @@ import java.util.Comparator;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IIdType;
 
 public class FhirResourceComparison {
 
-	private static final Comparison<IBaseReference> REFERENCES = new ComparisonImpl<>( new ReferenceComparator() );
-	private static final Comparison<IIdType> IDTYPES = new ComparisonImpl<>( new IdTypeComparator() );
+	private static final Comparator<IBaseReference> REFERENCE_COMPARATOR = new ReferenceComparator() ;
+	private static final Comparison<IBaseReference> REFERENCES = new ComparisonImpl<>( REFERENCE_COMPARATOR, () -> new TreeSet<>( REFERENCE_COMPARATOR ) );
+	/* id sets are hash-based; IdKey follows the same rules as the comparator */
+	private static final Comparison<IIdType> IDTYPES = new ComparisonImpl<>( new IdTypeComparator(), IdKeySet::new );
 
 	public static <T extends IBaseReference> Comparison<T> references() { return (Comparison<T>)REFERENCES ; }
 	public static <T extends IIdType> Comparison<T> idTypes() { return (Comparison<T>)IDTYPES ; }
@@ -26,9 +29,10 @@ public class FhirResourceComparison {
 	
 	private static class ComparisonImpl<T> implements Comparison<T> {
 		private final Comparator<T> comparator ;
-		public ComparisonImpl( Comparator<T> comparator ) { this.comparator = comparator ; }
+		private final Supplier<Set<T>> setFactory ;
+		public ComparisonImpl( Comparator<T> comparator, Supplier<Set<T>> setFactory ) { this.comparator = comparator ; this.setFactory = setFactory ; }
 		public Comparator<T> comparator() { return comparator ; }
-		public Set<T> createSet() { return new TreeSet<>( comparator ) ; }
+		public Set<T> createSet() { return setFactory.get() ; }
 		public Set<T> createSet( Collection<? extends T> c ) {
 			Set<T> set = createSet() ;
 			set.addAll( c );
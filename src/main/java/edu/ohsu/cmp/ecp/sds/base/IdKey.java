@@ -0,0 +1,93 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.Objects;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/*
+ * an immutable key for a resource id, read from the id once
+ *
+ * two keys are equal under the same rules as FhirResourceComparison.idTypes():
+ * a base url, resource type, or version that is missing from either key is ignored,
+ * but an id part is required; so the hash depends only on the id part
+ *
+ * base urls and resource types are interned, since a handful of values are shared by every id
+ */
+public final class IdKey {
+
+	private static final Interner<String> COMPONENTS = Interners.newWeakInterner() ;
+
+	private final String baseUrl ;
+	private final String resourceType ;
+	private final String idPart ;
+	private final String versionIdPart ;
+	private final int hash ;
+
+	private IdKey( IIdType id ) {
+		this.baseUrl = id.hasBaseUrl() ? COMPONENTS.intern( id.getBaseUrl() ) : null ;
+		this.resourceType = id.hasResourceType() ? COMPONENTS.intern( id.getResourceType() ) : null ;
+		this.idPart = id.hasIdPart() ? id.getIdPart() : null ;
+		this.versionIdPart = id.hasVersionIdPart() ? id.getVersionIdPart() : null ;
+		this.hash = null != idPart ? idPart.hashCode() : System.identityHashCode( this ) ;
+	}
+
+	public static IdKey of( IIdType id ) {
+		return new IdKey( id ) ;
+	}
+
+	public String baseUrl() {
+		return baseUrl ;
+	}
+
+	public String resourceType() {
+		return resourceType ;
+	}
+
+	public String idPart() {
+		return idPart ;
+	}
+
+	public String versionIdPart() {
+		return versionIdPart ;
+	}
+
+	private static boolean matchIfPresent( String a, String b ) {
+		return null == a || null == b || a.equals( b ) ;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash ;
+	}
+
+	@Override
+	public boolean equals( Object obj ) {
+		if ( this == obj )
+			return true ;
+		if ( !(obj instanceof IdKey) )
+			return false ;
+		IdKey other = (IdKey)obj ;
+		/* an id without an id part is never the same as another id */
+		if ( null == idPart || null == other.idPart )
+			return false ;
+		return
+			hash == other.hash
+			&& idPart.equals( other.idPart )
+			&& matchIfPresent( resourceType, other.resourceType )
+			&& matchIfPresent( baseUrl, other.baseUrl )
+			&& matchIfPresent( versionIdPart, other.versionIdPart )
+			;
+	}
+
+	@Override
+	public String toString() {
+		return
+			(null == baseUrl ? "" : baseUrl + "/")
+			+ Objects.toString( resourceType, "?" ) + "/" + Objects.toString( idPart, "?" )
+			+ (null == versionIdPart ? "" : "/_history/" + versionIdPart)
+			;
+	}
+}
@@ -0,0 +1,51 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+/*
+ * a set of resource ids that are the same according to IdKey,
+ * keeping the first id added for each key and iterating in the order they were added
+ */
+public class IdKeySet<T extends IIdType> extends AbstractSet<T> {
+
+	private final Map<IdKey,T> ids = new LinkedHashMap<>() ;
+
+	@Override
+	public boolean add( T id ) {
+		return null == ids.putIfAbsent( IdKey.of( id ), id ) ;
+	}
+
+	@Override
+	public boolean contains( Object o ) {
+		if ( !(o instanceof IIdType) )
+			return false ;
+		return ids.containsKey( IdKey.of( (IIdType)o ) ) ;
+	}
+
+	@Override
+	public boolean remove( Object o ) {
+		if ( !(o instanceof IIdType) )
+			return false ;
+		return null != ids.remove( IdKey.of( (IIdType)o ) ) ;
+	}
+
+	@Override
+	public void clear() {
+		ids.clear() ;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return ids.values().iterator() ;
+	}
+
+	@Override
+	public int size() {
+		return ids.size() ;
+	}
+}
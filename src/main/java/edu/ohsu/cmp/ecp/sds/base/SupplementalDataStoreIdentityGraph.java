@@ -0,0 +1,534 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * the connected components of the linkage edges, held in memory
+ *
+ * every user id linked to another, directly or through any chain of Linkages, belongs to the same component,
+ * and a component is found from any of its ids with one map lookup
+ *
+ * the graph is loaded from the edge table with a union-find, and new edges are merged in as their Linkage commits;
+ * edges cannot be split out of a component, so a Linkage that loses edges drops the components it touched as it commits
+ * and has the graph rebuilt in the background, as it is after the refresh interval (which picks up the Linkages written
+ * by other servers); the rest of the old graph keeps answering until the rebuilt one replaces it, and a removed link
+ * is never answered once its Linkage has committed
+ *
+ * only the ids the graph holds are answered from it; any other id may have been linked on another server
+ * since the graph was loaded, so it is left to the edge table
+ */
+@Component
+public class SupplementalDataStoreIdentityGraph {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreIdentityGraph.class);
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStoreLinkageEdges linkageEdges;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	MeterRegistry meterRegistry;
+
+	/*
+	 * a user id as it is keyed in the edge table; local users have no partition
+	 */
+	public static final class Node {
+		private final String partition ;
+		private final String userKey ;
+
+		private Node( String partition, String userKey ) {
+			this.partition = partition ;
+			this.userKey = userKey ;
+		}
+
+		public boolean isLocal() {
+			return null == partition ;
+		}
+
+		public String partition() {
+			return partition ;
+		}
+
+		public String userKey() {
+			return userKey ;
+		}
+
+		public String resourceType() {
+			return userKey.substring( 0, userKey.indexOf( '/' ) ) ;
+		}
+
+		@Override
+		public boolean equals( Object obj ) {
+			if ( this == obj )
+				return true ;
+			if ( !(obj instanceof Node) )
+				return false ;
+			Node other = (Node)obj ;
+			return userKey.equals( other.userKey ) && Objects.equals( partition, other.partition ) ;
+		}
+
+		@Override
+		public int hashCode() {
+			return userKey.hashCode() ;
+		}
+
+		@Override
+		public String toString() {
+			return isLocal() ? userKey : partition + "/" + userKey ;
+		}
+	}
+
+	public static final class IdentityComponent {
+		private final Set<Node> nodes ;
+
+		private IdentityComponent( Set<Node> nodes ) {
+			this.nodes = Collections.unmodifiableSet( nodes ) ;
+		}
+
+		private static IdentityComponent singleton( Node node ) {
+			return new IdentityComponent( Set.of( node ) ) ;
+		}
+
+		private static IdentityComponent union( IdentityComponent a, IdentityComponent b ) {
+			Set<Node> nodes = new HashSet<>( a.nodes.size() + b.nodes.size() ) ;
+			nodes.addAll( a.nodes ) ;
+			nodes.addAll( b.nodes ) ;
+			return new IdentityComponent( nodes ) ;
+		}
+
+		public Set<Node> nodes() {
+			return nodes ;
+		}
+
+		public Stream<Node> localNodes() {
+			return nodes.stream().filter( Node::isLocal ) ;
+		}
+
+		public Stream<Node> nonLocalNodes() {
+			return nodes.stream().filter( n -> !n.isLocal() ) ;
+		}
+	}
+
+	/*
+	 * the edges of a committed Linkage, kept while a rebuild reads the edge table so they can be merged into the rebuilt graph
+	 */
+	private static final class Merge {
+		private final List<Node> localNodes ;
+		private final List<Node> nonLocalNodes ;
+
+		private Merge( List<Node> localNodes, List<Node> nonLocalNodes ) {
+			this.localNodes = localNodes ;
+			this.nonLocalNodes = nonLocalNodes ;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock() ;
+
+	/* null until loaded */
+	private volatile Map<Node,IdentityComponent> components ;
+	private volatile long loadedAtNanos ;
+
+	/* non-null while a rebuild reads the edge table */
+	private List<Merge> mergesDuringRebuild ;
+	private Set<Node> dropsDuringRebuild ;
+
+	/* the nodes of dropped components, left to the edge table until a rebuild reads their edges */
+	private Set<Node> droppedNodes = new HashSet<>() ;
+
+	private final List<Runnable> rebuildListeners = new CopyOnWriteArrayList<>() ;
+
+	private final AtomicBoolean rebuildPending = new AtomicBoolean() ;
+
+	private final ExecutorService rebuildExecutor =
+		Executors.newSingleThreadExecutor( task -> {
+			Thread thread = new Thread( task, "sds-identity-graph-rebuild" ) ;
+			thread.setDaemon( true ) ;
+			return thread ;
+		});
+
+	@PostConstruct
+	public void registerMetrics() {
+		Gauge.builder( "sds.identity.graph.nodes", this, g -> g.nodeCount() ).register( meterRegistry ) ;
+	}
+
+	@PreDestroy
+	public void shutdownRebuilds() {
+		rebuildExecutor.shutdownNow() ;
+	}
+
+	/*
+	 * the listener runs once a rebuilt graph replaces the old one, which may have answered differently
+	 */
+	public void onRebuilt( Runnable listener ) {
+		rebuildListeners.add( listener ) ;
+	}
+
+	private double nodeCount() {
+		Map<Node,IdentityComponent> loaded = components ;
+		return null == loaded ? 0 : loaded.size() ;
+	}
+
+	public static Node localNode( IIdType localUserId ) {
+		return new Node( null, SupplementalDataStoreLinkageEdges.localUserKey( localUserId ) ) ;
+	}
+
+	public static Node nonLocalNode( IIdType nonLocalUserId ) {
+		return new Node( SupplementalDataStoreLinkageEdges.nonLocalPartitionKey( nonLocalUserId ), SupplementalDataStoreLinkageEdges.nonLocalUserKey( nonLocalUserId ) ) ;
+	}
+
+	private static Node localNode( SupplementalDataStoreLinkageEdge edge ) {
+		return new Node( null, edge.getLocalUserId() ) ;
+	}
+
+	private static Node nonLocalNode( SupplementalDataStoreLinkageEdge edge ) {
+		return new Node( edge.getNonLocalPartition(), edge.getNonLocalUserId() ) ;
+	}
+
+	public IIdType idOf( Node node ) {
+		String[] parts = node.userKey().split( "/", 2 ) ;
+		return fhirContext.getVersion().newIdType().setParts( node.partition(), parts[0], parts[1], null ) ;
+	}
+
+	/*
+	 * answers empty when the graph cannot be used, i.e. until the linkage edges are complete,
+	 * or in a transaction that has changed linkage edges the graph does not hold yet,
+	 * and for a user the graph does not hold, whose Linkages (if any) are only in the edge table
+	 */
+	public Optional<IdentityComponent> componentOf( Node node ) {
+		if ( TransactionSynchronizationManager.hasResource( this ) )
+			return Optional.empty() ;
+		Map<Node,IdentityComponent> loaded = loadedComponents() ;
+		if ( null == loaded )
+			return Optional.empty() ;
+		return Optional.ofNullable( loaded.get( node ) ) ;
+	}
+
+	/*
+	 * answers empty unless the graph is already loaded; never loads the graph
+	 */
+	public Optional<IdentityComponent> loadedComponentOf( Node node ) {
+		Map<Node,IdentityComponent> loaded = components ;
+		if ( null == loaded )
+			return Optional.empty() ;
+		return Optional.ofNullable( loaded.get( node ) ) ;
+	}
+
+	public boolean isEnabled() {
+		return sdsProperties.getIdentityGraph().getEnabled() ;
+	}
+
+	private boolean refreshIsDue() {
+		return System.nanoTime() - loadedAtNanos > sdsProperties.getIdentityGraph().getRefreshInterval().toNanos() ;
+	}
+
+	private Map<Node,IdentityComponent> loadedComponents() {
+		if ( !isEnabled() || !linkageEdges.isReady() )
+			return null ;
+
+		Map<Node,IdentityComponent> loaded = components ;
+		if ( null != loaded ) {
+			/* a stale graph keeps answering while it is rebuilt */
+			if ( refreshIsDue() )
+				scheduleRebuild() ;
+			return loaded ;
+		}
+
+		lock.lock() ;
+		try {
+			if ( null == components ) {
+				components = load() ;
+				loadedAtNanos = System.nanoTime() ;
+			}
+			return components ;
+		} finally {
+			lock.unlock() ;
+		}
+	}
+
+	private void scheduleRebuild() {
+		if ( rebuildPending.compareAndSet( false, true ) )
+			rebuildExecutor.execute( this::rebuild ) ;
+	}
+
+	private void rebuild() {
+		rebuildPending.set( false ) ;
+		lock.lock() ;
+		try {
+			/* an unloaded graph will read the edges when it loads */
+			if ( null == components )
+				return ;
+			mergesDuringRebuild = new ArrayList<>() ;
+			dropsDuringRebuild = new HashSet<>() ;
+		} finally {
+			lock.unlock() ;
+		}
+
+		Map<Node,IdentityComponent> rebuilt = null ;
+		try {
+			rebuilt = load() ;
+		} catch ( RuntimeException ex ) {
+			ourLog.warn( "could not rebuild the identity graph; the previous graph keeps answering", ex ) ;
+		}
+
+		boolean rebuildAgain ;
+		lock.lock() ;
+		try {
+			if ( null != rebuilt ) {
+				/* a Linkage committed while the edges were read may or may not be in them */
+				for ( Merge merge : mergesDuringRebuild )
+					mergeInto( rebuilt, merge ) ;
+				droppedNodes = dropInto( rebuilt, dropsDuringRebuild ) ;
+				components = rebuilt ;
+			} else {
+				droppedNodes.addAll( dropsDuringRebuild ) ;
+			}
+			rebuildAgain = !dropsDuringRebuild.isEmpty() ;
+			loadedAtNanos = System.nanoTime() ;
+			mergesDuringRebuild = null ;
+			dropsDuringRebuild = null ;
+		} finally {
+			lock.unlock() ;
+		}
+
+		if ( null != rebuilt )
+			rebuildListeners.forEach( Runnable::run ) ;
+		if ( rebuildAgain )
+			scheduleRebuild() ;
+	}
+
+	private Map<Node,IdentityComponent> load() {
+		Map<Node,Node> parents = new HashMap<>() ;
+		Map<Node,Integer> sizes = new HashMap<>() ;
+
+		int chunkSize = sdsProperties.getIdentityGraph().getLoadChunkSize() ;
+		int edgeCount = 0 ;
+		Long lastEdgeId = null ;
+		for ( ;; ) {
+			List<SupplementalDataStoreLinkageEdge> chunk = linkageEdges.edgesAfter( lastEdgeId, chunkSize ) ;
+			if ( chunk.isEmpty() )
+				break ;
+			for ( SupplementalDataStoreLinkageEdge edge : chunk )
+				union( parents, sizes, localNode( edge ), nonLocalNode( edge ) ) ;
+			edgeCount += chunk.size() ;
+			lastEdgeId = chunk.get( chunk.size() - 1 ).getId() ;
+		}
+
+		Map<Node,Set<Node>> membersByRoot = new HashMap<>() ;
+		for ( Node node : parents.keySet() )
+			membersByRoot.computeIfAbsent( find( parents, node ), k -> new HashSet<>() ).add( node ) ;
+
+		Map<Node,IdentityComponent> loaded = new ConcurrentHashMap<>( parents.size() ) ;
+		for ( Set<Node> members : membersByRoot.values() ) {
+			IdentityComponent component = new IdentityComponent( members ) ;
+			for ( Node node : members )
+				loaded.put( node, component ) ;
+		}
+
+		ourLog.debug( "loaded identity graph of {} components from {} linkage edges", membersByRoot.size(), edgeCount ) ;
+		return loaded ;
+	}
+
+	private static Node find( Map<Node,Node> parents, Node node ) {
+		Node root = node ;
+		while ( !parents.get( root ).equals( root ) )
+			root = parents.get( root ) ;
+		/* path compression */
+		while ( !node.equals( root ) ) {
+			Node parent = parents.get( node ) ;
+			parents.put( node, root ) ;
+			node = parent ;
+		}
+		return root ;
+	}
+
+	private static void union( Map<Node,Node> parents, Map<Node,Integer> sizes, Node a, Node b ) {
+		parents.putIfAbsent( a, a ) ;
+		parents.putIfAbsent( b, b ) ;
+		Node rootA = find( parents, a ) ;
+		Node rootB = find( parents, b ) ;
+		if ( rootA.equals( rootB ) )
+			return ;
+		int sizeA = sizes.getOrDefault( rootA, 1 ) ;
+		int sizeB = sizes.getOrDefault( rootB, 1 ) ;
+		/* union by size */
+		if ( sizeA < sizeB ) {
+			parents.put( rootA, rootB ) ;
+			sizes.put( rootB, sizeA + sizeB ) ;
+		} else {
+			parents.put( rootB, rootA ) ;
+			sizes.put( rootA, sizeA + sizeB ) ;
+		}
+	}
+
+	/*
+	 * the change is applied once the Linkage commits, so the graph never holds an uncommitted edge;
+	 * new edges are merged in at once, but a Linkage that replaced edges drops the components of every id
+	 * it linked before or after, until the rebuild
+	 */
+	public void linkageIndexed( Collection<? extends IIdType> localUserIds, Collection<? extends IIdType> nonLocalUserIds, List<SupplementalDataStoreLinkageEdge> replacedEdges ) {
+		if ( !isEnabled() )
+			return ;
+		Merge merge =
+			new Merge(
+				localUserIds.stream().map( SupplementalDataStoreIdentityGraph::localNode ).collect( toList() ),
+				nonLocalUserIds.stream().map( SupplementalDataStoreIdentityGraph::nonLocalNode ).collect( toList() )
+				);
+		if ( replacedEdges.isEmpty() ) {
+			afterCommit( () -> merge( merge ) ) ;
+			return ;
+		}
+		Set<Node> touchedNodes = nodesOf( replacedEdges ) ;
+		touchedNodes.addAll( merge.localNodes ) ;
+		touchedNodes.addAll( merge.nonLocalNodes ) ;
+		afterCommit( () -> dropAndRebuild( touchedNodes ) ) ;
+	}
+
+	public void linkageUnindexed( List<SupplementalDataStoreLinkageEdge> removedEdges ) {
+		if ( !isEnabled() || removedEdges.isEmpty() )
+			return ;
+		Set<Node> touchedNodes = nodesOf( removedEdges ) ;
+		afterCommit( () -> dropAndRebuild( touchedNodes ) ) ;
+	}
+
+	private static Set<Node> nodesOf( List<SupplementalDataStoreLinkageEdge> edges ) {
+		Set<Node> nodes = new HashSet<>() ;
+		for ( SupplementalDataStoreLinkageEdge edge : edges ) {
+			nodes.add( localNode( edge ) ) ;
+			nodes.add( nonLocalNode( edge ) ) ;
+		}
+		return nodes ;
+	}
+
+	private void afterCommit( Runnable task ) {
+		if ( TransactionSynchronizationManager.isActualTransactionActive() && TransactionSynchronizationManager.isSynchronizationActive() ) {
+			boolean firstChange = !TransactionSynchronizationManager.hasResource( this ) ;
+			if ( firstChange )
+				TransactionSynchronizationManager.bindResource( this, Boolean.TRUE ) ;
+			TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					task.run() ;
+				}
+
+				@Override
+				public void afterCompletion( int status ) {
+					if ( firstChange )
+						TransactionSynchronizationManager.unbindResourceIfPossible( SupplementalDataStoreIdentityGraph.this ) ;
+				}
+			});
+		} else {
+			task.run() ;
+		}
+	}
+
+	private void merge( Merge merge ) {
+		lock.lock() ;
+		try {
+			/* an unloaded graph will read the edges when it loads */
+			Map<Node,IdentityComponent> loaded = components ;
+			if ( null == loaded )
+				return ;
+			/* a component merged with a dropped one would be missing the dropped ids */
+			boolean touchesDroppedNode =
+				Stream.concat( merge.localNodes.stream(), merge.nonLocalNodes.stream() )
+					.anyMatch( n -> droppedNodes.contains( n ) || ( null != dropsDuringRebuild && dropsDuringRebuild.contains( n ) ) )
+					;
+			if ( touchesDroppedNode ) {
+				drop( loaded, Stream.concat( merge.localNodes.stream(), merge.nonLocalNodes.stream() ).collect( toSet() ) ) ;
+				return ;
+			}
+			mergeInto( loaded, merge ) ;
+			if ( null != mergesDuringRebuild )
+				mergesDuringRebuild.add( merge ) ;
+		} finally {
+			lock.unlock() ;
+		}
+	}
+
+	private void dropAndRebuild( Set<Node> touchedNodes ) {
+		lock.lock() ;
+		try {
+			/* an unloaded graph will read the edges when it loads */
+			Map<Node,IdentityComponent> loaded = components ;
+			if ( null == loaded )
+				return ;
+			drop( loaded, touchedNodes ) ;
+		} finally {
+			lock.unlock() ;
+		}
+		scheduleRebuild() ;
+	}
+
+	/* called holding the lock */
+	private void drop( Map<Node,IdentityComponent> loaded, Set<Node> touchedNodes ) {
+		Set<Node> dropped = dropInto( loaded, touchedNodes ) ;
+		droppedNodes.addAll( dropped ) ;
+		if ( null != dropsDuringRebuild )
+			dropsDuringRebuild.addAll( dropped ) ;
+	}
+
+	/*
+	 * removes every component holding one of the nodes, and answers the nodes removed (with the given nodes)
+	 */
+	private static Set<Node> dropInto( Map<Node,IdentityComponent> loaded, Set<Node> touchedNodes ) {
+		Set<Node> dropped = new HashSet<>( touchedNodes ) ;
+		for ( Node node : touchedNodes ) {
+			IdentityComponent component = loaded.get( node ) ;
+			if ( null != component )
+				dropped.addAll( component.nodes() ) ;
+		}
+		loaded.keySet().removeAll( dropped ) ;
+		return dropped ;
+	}
+
+	private static void mergeInto( Map<Node,IdentityComponent> loaded, Merge merge ) {
+		for ( Node localNode : merge.localNodes ) {
+			for ( Node nonLocalNode : merge.nonLocalNodes ) {
+				IdentityComponent a = loaded.getOrDefault( localNode, IdentityComponent.singleton( localNode ) ) ;
+				IdentityComponent b = loaded.getOrDefault( nonLocalNode, IdentityComponent.singleton( nonLocalNode ) ) ;
+				if ( a == b )
+					continue ;
+				IdentityComponent merged = IdentityComponent.union( a, b ) ;
+				for ( Node node : merged.nodes() )
+					loaded.put( node, merged ) ;
+			}
+		}
+	}
+}
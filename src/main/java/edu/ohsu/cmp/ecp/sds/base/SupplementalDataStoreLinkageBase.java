@@ -6,7 +6,10 @@ import static java.util.stream.Collectors.toList;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Consumer;
@@ -19,14 +22,20 @@ import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.UrlType;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreClaimedPatients;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreLinkage;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreLinkingInterceptor;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreMetrics;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStorePartition;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties.SdsFeatureBehavior;
@@ -43,6 +52,24 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 	@Inject
 	SupplementalDataStorePartition partition;
 
+	@Inject
+	SupplementalDataStoreLinkageEdges linkageEdges;
+
+	@Inject
+	SupplementalDataStoreIdentityGraph identityGraph;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	DaoRegistry daoRegistry;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
+
+	@Inject
+	SupplementalDataStoreClaimedPatients claimedPatients;
+
 	private RequestDetails partitionRequestFromName( String partitionName ) {
 		if ( sdsProperties.getPartition().getLocalName().equals(partitionName) )
 			return localPartitionRequest() ;
@@ -99,8 +126,57 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 
 	protected abstract Set<? extends IBaseReference> sourcePatientsFromLinkageResources(List<? extends IBaseResource> linkageResources) ;
 	
+	protected abstract IBaseReference referenceTo( IIdType id ) ;
+
+	private boolean linkageEdgesAreReady() {
+		return sdsProperties.getLinkageEdges().getEnabled() && linkageEdges.isReady() ;
+	}
+
+	private IIdType localUserIdFromEdge( SupplementalDataStoreLinkageEdge edge ) {
+		String[] parts = edge.getLocalUserId().split( "/", 2 ) ;
+		return fhirContext.getVersion().newIdType().setParts( null, parts[0], parts[1], null ) ;
+	}
+
+	private IIdType nonLocalUserIdFromEdge( SupplementalDataStoreLinkageEdge edge ) {
+		String[] parts = edge.getNonLocalUserId().split( "/", 2 ) ;
+		return fhirContext.getVersion().newIdType().setParts( edge.getNonLocalPartition(), parts[0], parts[1], null ) ;
+	}
+
+	private Set<? extends IBaseReference> referencesTo( Collection<IIdType> ids ) {
+		return FhirResourceComparison.references().createSet( ids.stream().map( this::referenceTo ).collect( toList() ) ) ;
+	}
+
+	/*
+	 * the users equivalent to the given user, through any chain of Linkages, that are of the same resource type;
+	 * empty when the identity graph does not hold the user, which leaves it to the edge table
+	 */
+	private Optional<List<IIdType>> equivalentUsers( SupplementalDataStoreIdentityGraph.Node node, boolean local ) {
+		if ( !linkageEdgesAreReady() )
+			return Optional.empty() ;
+		return
+			identityGraph.componentOf( node )
+				.map( component -> {
+					return
+						( local ? component.localNodes() : component.nonLocalNodes() )
+							.filter( n -> n.resourceType().equals( node.resourceType() ) )
+							.filter( n -> !n.equals( node ) )
+							.map( identityGraph::idOf )
+							.collect( toList() )
+							;
+				})
+				;
+	}
+
 	@Override
 	public Set<? extends IBaseReference> patientsLinkedTo(IIdType localPatientId) {
+		Optional<List<IIdType>> equivalentNonLocalUsers = equivalentUsers( SupplementalDataStoreIdentityGraph.localNode( localPatientId ), false ) ;
+		if ( equivalentNonLocalUsers.isPresent() ) {
+			return referencesTo( equivalentNonLocalUsers.get() ) ;
+		}
+
+		if ( linkageEdgesAreReady() ) {
+			return referencesTo( linkageEdges.edgesFromLocalUser(localPatientId).stream().map( this::nonLocalUserIdFromEdge ).collect( toList() ) ) ;
+		}
 
 		List<IBaseResource> linkageResources = linkageResourcesHavingSourceItem(localPatientId);
 
@@ -110,12 +186,40 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 
 	@Override
 	public Set<? extends IBaseReference> patientsLinkedFrom(IIdType nonLocalPatientId) {
-		
+		Optional<List<IIdType>> equivalentLocalUsers = equivalentUsers( SupplementalDataStoreIdentityGraph.nonLocalNode( nonLocalPatientId ), true ) ;
+		if ( equivalentLocalUsers.isPresent() ) {
+			return referencesTo( equivalentLocalUsers.get() ) ;
+		}
+
+		if ( linkageEdgesAreReady() ) {
+			return referencesTo( linkageEdges.edgesToNonLocalUser(nonLocalPatientId).stream().map( this::localUserIdFromEdge ).collect( toList() ) ) ;
+		}
+
 		List<IBaseResource> linkageResources = linkageResourcesHavingAlternateItem(nonLocalPatientId);
 		
 		Set<? extends IBaseReference> linkedPatients = sourcePatientsFromLinkageResources( linkageResources );
 		return linkedPatients;
 	}
+
+	/*
+	 * records the SOURCE-to-ALTERNATE edges of a Linkage in the local partition, replacing any previous edges
+	 */
+	public void indexLinkageEdges( IBaseResource linkageResource ) {
+		List<IBaseResource> linkageResources = List.of( linkageResource ) ;
+		List<IIdType> sourceIds = sourcePatientsFromLinkageResources( linkageResources ).stream().map( IBaseReference::getReferenceElement ).collect( toList() ) ;
+		List<IIdType> alternateIds = alternatePatientsFromLinkageResources( linkageResources ).stream().map( IBaseReference::getReferenceElement ).collect( toList() ) ;
+		String linkageId = linkageResource.getIdElement().getIdPart() ;
+		List<SupplementalDataStoreLinkageEdge> replacedEdges = identityGraph.isEnabled() ? linkageEdges.edgesOfLinkage( linkageId ) : List.of() ;
+		linkageEdges.replaceEdgesForLinkage( linkageId, sourceIds, alternateIds ) ;
+		identityGraph.linkageIndexed( sourceIds, alternateIds, replacedEdges ) ;
+	}
+
+	public void unindexLinkageEdges( IBaseResource linkageResource ) {
+		String linkageId = linkageResource.getIdElement().getIdPart() ;
+		List<SupplementalDataStoreLinkageEdge> removedEdges = identityGraph.isEnabled() ? linkageEdges.edgesOfLinkage( linkageId ) : List.of() ;
+		linkageEdges.removeEdgesForLinkage( linkageId ) ;
+		identityGraph.linkageUnindexed( removedEdges ) ;
+	}
 	
 	protected abstract void createLinkage( IIdType sourcePatientId, IIdType alternatePatientId, RequestDetails theRequestDetails ) ;
 
@@ -128,21 +232,17 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 		
 		IIdType nonLocalUserId = userId ;
 
-		List<IBaseResource> linkageResources = linkageResourcesHavingAlternateItem(nonLocalUserId);
+		Set<? extends IBaseReference> sourceRefs = patientsLinkedFrom(nonLocalUserId) ;
 
-		if (linkageResources.isEmpty()) {
+		if (sourceRefs.isEmpty()) {
 
 			return Optional.empty() ;
 
 		} else {
 			// return the local patient that is the source 
 
-			Set<? extends IBaseReference> sourceRefs = sourcePatientsFromLinkageResources(linkageResources) ;
-			
 			if (sourceRefs.size() == 1) {
 				return Optional.of( sourceRefs.iterator().next().getReferenceElement() );
-			} else if (sourceRefs.isEmpty()) {
-				throw new InvalidRequestException("cannot lookup local user resource; no local source resources found");
 			} else {
 				return Optional.of( selectLocalPatientAmongMultiple( sdsProperties.getPartition().getMultipleLinkedLocalPatients(), sourceRefs ).getReferenceElement() ) ;
 			}
@@ -151,11 +251,13 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 
 	private IBaseReference selectLocalPatientAmongMultiple( SdsFeatureBehavior multipleLinkedPatientsBehavior, Set<? extends IBaseReference> sourceRefs ) {
 		IBaseReference selectedRef ;
+		metrics.multipleLocalPatients( multipleLinkedPatientsBehavior.name() ) ;
 		switch ( multipleLinkedPatientsBehavior ) {
 		case FAIL:
 			throw new InvalidRequestException("cannot lookup local user resource; multiple local source resources found");
 		case WARN:
 			selectedRef = selectLocalPatientAmongMultiple( sourceRefs, ourLog::warn );
+			break ;
 		case IGNORE:
 		default:
 			selectedRef = selectLocalPatientAmongMultiple( sourceRefs, ourLog::debug ) ;
@@ -187,12 +289,16 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 	public boolean patientCompartmentIsClaimed(IIdType patientId) {
 		if ( !patientId.hasBaseUrl() )
 			throw new IllegalArgumentException( "cannot check patient compartment without a partition name" ) ;
+		if ( claimedPatients.isKnownToBeClaimed( patientId ) )
+			return true ;
 		String partitionName = patientId.getBaseUrl() ;
 		if ( !partition.partitionExists( partitionName ) )
 			return false ;
 		Optional<IBaseResource> patient =
 			searchPatient( patientId.toUnqualifiedVersionless(), partitionRequestFromName(partitionName) )
 			;
+		if ( patient.isPresent() )
+			claimedPatients.claimed( patientId ) ;
 		return patient.isPresent() ;
 	}
 
@@ -219,6 +325,7 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 			 */
 			IIdType localUserId = localUser.getIdElement().toUnqualifiedVersionless() ;
 			createLinkage( localUserId, nonLocalUserId, localPartitionRequest() ) ;
+			metrics.linkageCreated( nonLocalUserId ) ;
 			return localUserId;
 
 		} ) ;
@@ -226,11 +333,66 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 
 	@Override
 	public IIdType establishNonLocalUser(IIdType nonLocalUserId) {
-		if ( partition.userIsLocal(nonLocalUserId))
-			throw new IllegalArgumentException("cannot establish non-local user with a local id") ;
+		return establishNonLocalUsers( List.of( nonLocalUserId ) ).get( 0 ) ;
+	}
 
-		IBaseResource nonLocalUser = createNonLocalStubUser(nonLocalUserId);
-		return fullyQualifiedIdForStubUser( nonLocalUser ) ;
+	/*
+	 * stub users are only written when they do not already exist in their partition;
+	 * existence is checked with one search per partition and resource type
+	 */
+	@Override
+	public List<IIdType> establishNonLocalUsers(Collection<? extends IIdType> nonLocalUserIds) {
+		Map<String,List<IIdType>> usersByPartitionAndType = new LinkedHashMap<>() ;
+		for ( IIdType nonLocalUserId : nonLocalUserIds ) {
+			if ( partition.userIsLocal(nonLocalUserId))
+				throw new IllegalArgumentException("cannot establish non-local user with a local id") ;
+			if ( !isUserResourceType( nonLocalUserId.getResourceType() ) )
+				throw new InvalidRequestException("cannot create local user resource: expected a Patient or Practitioner user but encountered a " + nonLocalUserId.getResourceType());
+			String groupKey = nonLocalUserId.getBaseUrl() + "|" + nonLocalUserId.getResourceType() ;
+			usersByPartitionAndType.computeIfAbsent( groupKey, k -> new ArrayList<>() ).add( nonLocalUserId ) ;
+		}
+
+		Map<String,IIdType> establishedUserIds = new LinkedHashMap<>() ;
+		for ( List<IIdType> group : usersByPartitionAndType.values() ) {
+			IIdType first = group.get(0) ;
+			RequestDetails partitionRequest = nonLocalPartitionRequest( first ) ;
+			Map<String,IBaseResource> existingUsers = searchUsersByIdPart( first.getResourceType(), group, partitionRequest ) ;
+			for ( IIdType nonLocalUserId : group ) {
+				IBaseResource existingUser = existingUsers.get( nonLocalUserId.getIdPart() ) ;
+				if ( null != existingUser ) {
+					ourLog.debug( "non-local user \"" + nonLocalUserId + "\" already exists; leaving it unchanged" ) ;
+					establishedUserIds.put( nonLocalUserId.getValue(), existingUser.getIdElement().withServerBase( nonLocalUserId.getBaseUrl(), nonLocalUserId.getResourceType() ) ) ;
+				} else {
+					IBaseResource nonLocalUser = createNonLocalStubUser( nonLocalUserId ) ;
+					establishedUserIds.put( nonLocalUserId.getValue(), fullyQualifiedIdForStubUser( nonLocalUser ) ) ;
+				}
+			}
+		}
+
+		List<IIdType> result = new ArrayList<>() ;
+		for ( IIdType nonLocalUserId : nonLocalUserIds ) {
+			result.add( establishedUserIds.get( nonLocalUserId.getValue() ) ) ;
+		}
+		return result ;
+	}
+
+	private static boolean isUserResourceType( String resourceType ) {
+		return "Patient".equalsIgnoreCase(resourceType) || "Practitioner".equalsIgnoreCase(resourceType) || "RelatedPerson".equalsIgnoreCase(resourceType) ;
+	}
+
+	private Map<String,IBaseResource> searchUsersByIdPart( String resourceType, Collection<? extends IIdType> userIds, RequestDetails theRequestDetails ) {
+		TokenOrListParam idParts = new TokenOrListParam() ;
+		for ( IIdType userId : userIds ) {
+			idParts.addOr( new TokenParam( userId.getIdPart() ) ) ;
+		}
+		SearchParameterMap searchParams = SearchParameterMap.newSynchronous() ;
+		searchParams.add( "_id", idParts ) ;
+
+		Map<String,IBaseResource> usersByIdPart = new LinkedHashMap<>() ;
+		for ( IBaseResource user : daoRegistry.getResourceDao( resourceType ).search( searchParams, theRequestDetails ).getAllResources() ) {
+			usersByIdPart.put( user.getIdElement().getIdPart(), user ) ;
+		}
+		return usersByIdPart ;
 	}
 
 	@Override
@@ -241,29 +403,36 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 			throw new InvalidRequestException("cannot link patient resources without a non-local patient id for initial linkage");
 
 		createLinkage( localPatientId, nonLocalPatientId, localPartitionRequest() ) ;
+		metrics.linkageCreated( nonLocalPatientId ) ;
 	}
 
 	public IBaseResource createLocalUser(String resourceType) {
+		IBaseResource localUser ;
 		if ("Patient".equalsIgnoreCase(resourceType))
-			return createLocalPatient( localPartitionRequest() );
+			localUser = createLocalPatient( localPartitionRequest() );
 		else if ("Practitioner".equalsIgnoreCase(resourceType))
-			return createLocalPractitioner( localPartitionRequest() );
+			localUser = createLocalPractitioner( localPartitionRequest() );
 		else if ("RelatedPerson".equalsIgnoreCase(resourceType))
-			return createLocalRelatedPerson( localPartitionRequest() );
+			localUser = createLocalRelatedPerson( localPartitionRequest() );
 		else
 			throw new InvalidRequestException("cannot create local user resource: expected a Patient or Practitioner user but encountered a " + resourceType);
+		metrics.userCreated( localUser.getIdElement(), false ) ;
+		return localUser ;
 	}
 
 	public IBaseResource createNonLocalStubUser(IIdType nonLocalUserId) {
 		String resourceType = nonLocalUserId.getResourceType() ;
+		IBaseResource stubUser ;
 		if ("Patient".equalsIgnoreCase(resourceType))
-			return createNonLocalStubPatient( nonLocalUserId, nonLocalPartitionRequest(nonLocalUserId) );
+			stubUser = createNonLocalStubPatient( nonLocalUserId, nonLocalPartitionRequest(nonLocalUserId) );
 		else if ("Practitioner".equalsIgnoreCase(resourceType))
-			return createNonLocalStubPractitioner( nonLocalUserId, nonLocalPartitionRequest(nonLocalUserId) );
+			stubUser = createNonLocalStubPractitioner( nonLocalUserId, nonLocalPartitionRequest(nonLocalUserId) );
 		else if ("RelatedPerson".equalsIgnoreCase(resourceType))
-			return createNonLocalStubRelatedPerson( nonLocalUserId, nonLocalPartitionRequest(nonLocalUserId) );
+			stubUser = createNonLocalStubRelatedPerson( nonLocalUserId, nonLocalPartitionRequest(nonLocalUserId) );
 		else
 			throw new InvalidRequestException("cannot create local user resource: expected a Patient or Practitioner user but encountered a " + resourceType);
+		metrics.userCreated( nonLocalUserId, true ) ;
+		return stubUser ;
 	}
 	
 	
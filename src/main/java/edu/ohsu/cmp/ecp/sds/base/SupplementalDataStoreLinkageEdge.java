@@ -0,0 +1,106 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/*
+ * one SOURCE-to-ALTERNATE edge of a Linkage resource in the local partition
+ *
+ * maintained alongside the Linkage resources so that linked users can be found
+ * with an index lookup instead of a Linkage search
+ */
+@Entity
+@Table(
+	name = "SDS_LINKAGE_EDGE",
+	uniqueConstraints = {
+		@UniqueConstraint( name = "IDX_SDS_LINKEDGE_UNIQUE", columnNames = { "LINKAGE_ID", "LOCAL_USER_ID", "NON_LOCAL_PARTITION", "NON_LOCAL_USER_ID" } )
+	},
+	indexes = {
+		@Index( name = "IDX_SDS_LINKEDGE_LOCAL", columnList = "LOCAL_USER_ID" ),
+		@Index( name = "IDX_SDS_LINKEDGE_NONLOCAL", columnList = "NON_LOCAL_USER_ID,NON_LOCAL_PARTITION" ),
+		@Index( name = "IDX_SDS_LINKEDGE_LINKAGE", columnList = "LINKAGE_ID" )
+	}
+)
+public class SupplementalDataStoreLinkageEdge {
+
+	public static final int MAX_ID_LENGTH = 200 ;
+	public static final int MAX_PARTITION_LENGTH = 200 ;
+	public static final int MAX_ITEM_TYPE_LENGTH = 40 ;
+
+	@Id
+	@SequenceGenerator( name = "SEQ_SDS_LINKAGE_EDGE", sequenceName = "SEQ_SDS_LINKAGE_EDGE" )
+	@GeneratedValue( strategy = GenerationType.AUTO, generator = "SEQ_SDS_LINKAGE_EDGE" )
+	@Column( name = "PID" )
+	private Long id ;
+
+	@Column( name = "LINKAGE_ID", length = MAX_ID_LENGTH, nullable = false )
+	private String linkageId ;
+
+	@Column( name = "LOCAL_USER_ID", length = MAX_ID_LENGTH, nullable = false )
+	private String localUserId ;
+
+	@Column( name = "NON_LOCAL_PARTITION", length = MAX_PARTITION_LENGTH, nullable = true )
+	private String nonLocalPartition ;
+
+	@Column( name = "NON_LOCAL_USER_ID", length = MAX_ID_LENGTH, nullable = false )
+	private String nonLocalUserId ;
+
+	@Column( name = "ITEM_TYPE", length = MAX_ITEM_TYPE_LENGTH, nullable = false )
+	private String itemType ;
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getLinkageId() {
+		return linkageId;
+	}
+
+	public void setLinkageId(String linkageId) {
+		this.linkageId = linkageId;
+	}
+
+	public String getLocalUserId() {
+		return localUserId;
+	}
+
+	public void setLocalUserId(String localUserId) {
+		this.localUserId = localUserId;
+	}
+
+	public String getNonLocalPartition() {
+		return nonLocalPartition;
+	}
+
+	public void setNonLocalPartition(String nonLocalPartition) {
+		this.nonLocalPartition = nonLocalPartition;
+	}
+
+	public String getNonLocalUserId() {
+		return nonLocalUserId;
+	}
+
+	public void setNonLocalUserId(String nonLocalUserId) {
+		this.nonLocalUserId = nonLocalUserId;
+	}
+
+	public String getItemType() {
+		return itemType;
+	}
+
+	public void setItemType(String itemType) {
+		this.itemType = itemType;
+	}
+
+	@Override
+	public String toString() {
+		return String.format( "%1$s -> %2$s (%3$s) [%4$s]", localUserId, nonLocalUserId, nonLocalPartition, linkageId ) ;
+	}
+}
@@ -0,0 +1,105 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
+
+/*
+ * indexes the Linkage resources that were written before the linkage edge table existed
+ *
+ * lookups keep searching the Linkage resources until the backfill completes;
+ * a completed backfill is recorded, so it runs once rather than on every startup of every server
+ */
+@Component
+public class SupplementalDataStoreLinkageEdgeBackfill {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreLinkageEdgeBackfill.class);
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStoreLinkageEdges linkageEdges;
+
+	@Inject
+	SupplementalDataStoreLinkageBase linkage;
+
+	@Inject
+	DaoRegistry daoRegistry;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void startBackfill() {
+		SupplementalDataStoreProperties.LinkageEdges config = sdsProperties.getLinkageEdges();
+		String localPartitionName = sdsProperties.getPartition().getLocalName();
+		if ( !config.getEnabled() ) {
+			linkageEdges.clearBackfillMarker( localPartitionName );
+			return ;
+		}
+		if ( !config.getBackfillOnStartup() || !daoRegistry.isResourceTypeSupported( "Linkage" ) ) {
+			linkageEdges.markReady();
+			return ;
+		}
+		if ( linkageEdges.backfillIsComplete( localPartitionName ) ) {
+			linkageEdges.markReady();
+			ourLog.info( "linkage edge backfill already complete; skipping" ) ;
+			return ;
+		}
+
+		Thread backfillThread = new Thread( this::backfill, "sds-linkage-edge-backfill" );
+		backfillThread.setDaemon(true);
+		backfillThread.start();
+	}
+
+	public void backfill() {
+		try {
+			int indexedCount = backfillLinkageEdges( sdsProperties.getLinkageEdges().getBackfillChunkSize() ) ;
+			linkageEdges.markReady();
+			ourLog.info( "linkage edge backfill complete; indexed {} existing Linkage resources", indexedCount ) ;
+			recordBackfillComplete( indexedCount ) ;
+		} catch ( RuntimeException ex ) {
+			ourLog.error( "linkage edge backfill failed; continuing to search Linkage resources", ex ) ;
+		}
+	}
+
+	private void recordBackfillComplete( int indexedCount ) {
+		try {
+			linkageEdges.markBackfillComplete( sdsProperties.getPartition().getLocalName(), indexedCount ) ;
+		} catch ( RuntimeException ex ) {
+			ourLog.warn( "could not record the completed linkage edge backfill; the next startup will scan the Linkage resources again", ex ) ;
+		}
+	}
+
+	private int backfillLinkageEdges( int chunkSize ) {
+		SystemRequestDetails localPartitionRequest = new SystemRequestDetails();
+		localPartitionRequest.setRequestPartitionId(RequestPartitionId.fromPartitionName(sdsProperties.getPartition().getLocalName()));
+
+		IFhirResourceDao<?> daoLinkage = daoRegistry.getResourceDao( "Linkage" ) ;
+		IBundleProvider linkageResources = daoLinkage.search( new SearchParameterMap(), localPartitionRequest ) ;
+
+		int indexedCount = 0 ;
+		for ( int from = 0 ; ; from += chunkSize ) {
+			List<IBaseResource> chunk = linkageResources.getResources( from, from + chunkSize ) ;
+			if ( chunk.isEmpty() )
+				break ;
+			for ( IBaseResource linkageResource : chunk ) {
+				if ( linkageEdges.linkageIsIndexed( linkageResource.getIdElement().getIdPart() ) )
+					continue ;
+				linkage.indexLinkageEdges( linkageResource ) ;
+				indexedCount += 1 ;
+			}
+		}
+		return indexedCount ;
+	}
+}
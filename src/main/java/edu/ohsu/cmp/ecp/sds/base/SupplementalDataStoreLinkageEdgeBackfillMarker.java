@@ -0,0 +1,61 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/*
+ * records that every Linkage of a local partition has been indexed in the SDS_LINKAGE_EDGE table,
+ * so that later startups (of any server) skip the backfill
+ */
+@Entity
+@Table( name = "SDS_LINKAGE_EDGE_BACKFILL" )
+public class SupplementalDataStoreLinkageEdgeBackfillMarker {
+
+	public static final int MAX_PARTITION_LENGTH = 200 ;
+
+	@Id
+	@Column( name = "LOCAL_PARTITION", length = MAX_PARTITION_LENGTH, nullable = false )
+	private String localPartition ;
+
+	@Temporal( TemporalType.TIMESTAMP )
+	@Column( name = "COMPLETED", nullable = false )
+	private Date completed ;
+
+	@Column( name = "INDEXED_COUNT", nullable = false )
+	private int indexedCount ;
+
+	public String getLocalPartition() {
+		return localPartition;
+	}
+
+	public void setLocalPartition(String localPartition) {
+		this.localPartition = localPartition;
+	}
+
+	public Date getCompleted() {
+		return completed;
+	}
+
+	public void setCompleted(Date completed) {
+		this.completed = completed;
+	}
+
+	public int getIndexedCount() {
+		return indexedCount;
+	}
+
+	public void setIndexedCount(int indexedCount) {
+		this.indexedCount = indexedCount;
+	}
+
+	@Override
+	public String toString() {
+		return String.format( "%1$s indexed %2$d at %3$s", localPartition, indexedCount, completed ) ;
+	}
+}
@@ -0,0 +1,236 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/*
+ * reads and writes the SDS_LINKAGE_EDGE table
+ *
+ * local users are keyed by their relative id (e.g. "Patient/123");
+ * non-local users are keyed by their relative id and their partition name (i.e. base url)
+ */
+@Component
+public class SupplementalDataStoreLinkageEdges {
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	EntityManager entityManager;
+
+	@Inject
+	@Named("transactionManager")
+	protected PlatformTransactionManager txManager;
+
+	private volatile boolean ready = false ;
+
+	private <T> T doInTransaction( Supplier<T> task ) {
+		TransactionTemplate tmpl = new TransactionTemplate(txManager);
+
+		return tmpl.execute(new TransactionCallback<T>() {
+			@Override
+			public T doInTransaction(TransactionStatus status) {
+				return task.get() ;
+			}
+		});
+	}
+
+	private <T> T doInNewTransaction( Supplier<T> task ) {
+		TransactionTemplate tmpl = new TransactionTemplate(txManager);
+		tmpl.setPropagationBehavior( TransactionDefinition.PROPAGATION_REQUIRES_NEW );
+
+		return tmpl.execute(new TransactionCallback<T>() {
+			@Override
+			public T doInTransaction(TransactionStatus status) {
+				return task.get() ;
+			}
+		});
+	}
+
+	/*
+	 * the edges are only authoritative once every pre-existing Linkage has been indexed
+	 */
+	public boolean isReady() {
+		return ready ;
+	}
+
+	public void markReady() {
+		this.ready = true ;
+	}
+
+	public boolean backfillIsComplete( String localPartitionName ) {
+		return doInTransaction( () -> {
+			return null != entityManager.find( SupplementalDataStoreLinkageEdgeBackfillMarker.class, localPartitionName ) ;
+		});
+	}
+
+	/*
+	 * every server backfilling at once records the same marker, so the last one to finish keeps it
+	 */
+	public void markBackfillComplete( String localPartitionName, int indexedCount ) {
+		doInNewTransaction( () -> {
+			SupplementalDataStoreLinkageEdgeBackfillMarker marker = new SupplementalDataStoreLinkageEdgeBackfillMarker() ;
+			marker.setLocalPartition( localPartitionName ) ;
+			marker.setCompleted( new Date() ) ;
+			marker.setIndexedCount( indexedCount ) ;
+			return entityManager.merge( marker ) ;
+		});
+	}
+
+	/*
+	 * Linkages written while the edges are not maintained are not indexed, so the next backfill must scan them
+	 */
+	public void clearBackfillMarker( String localPartitionName ) {
+		doInNewTransaction( () -> {
+			return
+				entityManager.createQuery( "DELETE FROM SupplementalDataStoreLinkageEdgeBackfillMarker m WHERE m.localPartition = :localPartition" )
+					.setParameter( "localPartition", localPartitionName )
+					.executeUpdate()
+					;
+		});
+	}
+
+	public static String localUserKey( IIdType localUserId ) {
+		return localUserId.toUnqualifiedVersionless().getValue() ;
+	}
+
+	public static String nonLocalUserKey( IIdType nonLocalUserId ) {
+		return nonLocalUserId.getResourceType() + "/" + nonLocalUserId.getIdPart() ;
+	}
+
+	/*
+	 * partition names are compared without any trailing slash, as they are when taken from the partition header
+	 */
+	public static String nonLocalPartitionKey( IIdType nonLocalUserId ) {
+		if ( !nonLocalUserId.hasBaseUrl() )
+			return null ;
+		return nonLocalUserId.getBaseUrl().replaceFirst( "/$", "" ) ;
+	}
+
+	public List<SupplementalDataStoreLinkageEdge> edgesFromLocalUser( IIdType localUserId ) {
+		return doInTransaction( () -> {
+			TypedQuery<SupplementalDataStoreLinkageEdge> query =
+				entityManager.createQuery(
+					"SELECT e FROM SupplementalDataStoreLinkageEdge e WHERE e.localUserId = :localUserId",
+					SupplementalDataStoreLinkageEdge.class
+				);
+			query.setParameter( "localUserId", localUserKey( localUserId ) ) ;
+			return query.getResultList() ;
+		});
+	}
+
+	public List<SupplementalDataStoreLinkageEdge> edgesToNonLocalUser( IIdType nonLocalUserId ) {
+		return doInTransaction( () -> {
+			TypedQuery<SupplementalDataStoreLinkageEdge> query ;
+			if ( nonLocalUserId.hasBaseUrl() ) {
+				query =
+					entityManager.createQuery(
+						"SELECT e FROM SupplementalDataStoreLinkageEdge e WHERE e.nonLocalUserId = :nonLocalUserId AND e.nonLocalPartition = :nonLocalPartition",
+						SupplementalDataStoreLinkageEdge.class
+					);
+				query.setParameter( "nonLocalPartition", nonLocalPartitionKey( nonLocalUserId ) ) ;
+			} else {
+				query =
+					entityManager.createQuery(
+						"SELECT e FROM SupplementalDataStoreLinkageEdge e WHERE e.nonLocalUserId = :nonLocalUserId",
+						SupplementalDataStoreLinkageEdge.class
+					);
+			}
+			query.setParameter( "nonLocalUserId", nonLocalUserKey( nonLocalUserId ) ) ;
+			return query.getResultList() ;
+		});
+	}
+
+	public List<SupplementalDataStoreLinkageEdge> edgesOfLinkage( String linkageId ) {
+		return doInTransaction( () -> {
+			return
+				entityManager.createQuery(
+					"SELECT e FROM SupplementalDataStoreLinkageEdge e WHERE e.linkageId = :linkageId",
+					SupplementalDataStoreLinkageEdge.class
+				)
+				.setParameter( "linkageId", linkageId )
+				.getResultList()
+				;
+		});
+	}
+
+	public boolean linkageIsIndexed( String linkageId ) {
+		return doInTransaction( () -> {
+			return
+				!entityManager.createQuery(
+					"SELECT e.id FROM SupplementalDataStoreLinkageEdge e WHERE e.linkageId = :linkageId",
+					Long.class
+				)
+				.setParameter( "linkageId", linkageId )
+				.setMaxResults( 1 )
+				.getResultList()
+				.isEmpty()
+				;
+		});
+	}
+
+	/*
+	 * edges are read in order of their primary key, a chunk at a time,
+	 * and only once committed (never from the edges a surrounding transaction has yet to commit)
+	 */
+	public List<SupplementalDataStoreLinkageEdge> edgesAfter( Long lastEdgeId, int maxEdges ) {
+		return doInNewTransaction( () -> {
+			return
+				entityManager.createQuery(
+					"SELECT e FROM SupplementalDataStoreLinkageEdge e WHERE e.id > :lastEdgeId ORDER BY e.id",
+					SupplementalDataStoreLinkageEdge.class
+				)
+				.setParameter( "lastEdgeId", null == lastEdgeId ? Long.MIN_VALUE : lastEdgeId )
+				.setMaxResults( maxEdges )
+				.getResultList()
+				;
+		});
+	}
+
+	/*
+	 * answers the number of edges that were replaced
+	 */
+	public int replaceEdgesForLinkage( String linkageId, Collection<? extends IIdType> localUserIds, Collection<? extends IIdType> nonLocalUserIds ) {
+		return doInTransaction( () -> {
+			int removedCount = removeEdges( linkageId ) ;
+			for ( IIdType localUserId : localUserIds ) {
+				for ( IIdType nonLocalUserId : nonLocalUserIds ) {
+					SupplementalDataStoreLinkageEdge edge = new SupplementalDataStoreLinkageEdge() ;
+					edge.setLinkageId( linkageId ) ;
+					edge.setLocalUserId( localUserKey( localUserId ) ) ;
+					edge.setNonLocalPartition( nonLocalPartitionKey( nonLocalUserId ) ) ;
+					edge.setNonLocalUserId( nonLocalUserKey( nonLocalUserId ) ) ;
+					edge.setItemType( nonLocalUserId.getResourceType() ) ;
+					entityManager.persist( edge ) ;
+				}
+			}
+			return removedCount ;
+		});
+	}
+
+	public void removeEdgesForLinkage( String linkageId ) {
+		doInTransaction( () -> removeEdges( linkageId ) ) ;
+	}
+
+	private int removeEdges( String linkageId ) {
+		return
+			entityManager.createQuery( "DELETE FROM SupplementalDataStoreLinkageEdge e WHERE e.linkageId = :linkageId" )
+				.setParameter( "linkageId", linkageId )
+				.executeUpdate()
+				;
+	}
+}
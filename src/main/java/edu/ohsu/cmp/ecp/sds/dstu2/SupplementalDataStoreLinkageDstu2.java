@@ -64,6 +64,11 @@ public class SupplementalDataStoreLinkageDstu2 extends SupplementalDataStoreLink
 		throw linkageResourceNotDefinedInDstu2() ;
 	}
 
+	@Override
+	protected Reference referenceTo( IIdType id ) {
+		throw linkageResourceNotDefinedInDstu2() ;
+	}
+
 	@Override
 	protected void createLinkage( IIdType sourcePatientId, IIdType alternatePatientId, RequestDetails theRequestDetails ) {
 		throw linkageResourceNotDefinedInDstu2() ;
@@ -211,6 +211,11 @@ public class SupplementalDataStoreLinkageR4B extends SupplementalDataStoreLinkag
 		return new Reference( id ) ;
 	}
 
+	@Override
+	protected Reference referenceTo( IIdType id ) {
+		return new Reference( id ) ;
+	}
+
 	private static Reference referenceForLinkage( IIdType id ) {
 		if ( id.hasBaseUrl() ) {
 			Reference ref = new Reference( id.toUnqualifiedVersionless() ) ;
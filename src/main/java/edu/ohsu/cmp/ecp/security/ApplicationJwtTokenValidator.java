@@ -0,0 +1,167 @@
+package edu.ohsu.cmp.ecp.security;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.DefaultJOSEObjectTypeVerifier;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTParser;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.core.DefaultOAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.core.DelegatingOAuth2TokenValidator;
+import org.springframework.security.oauth2.core.OAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtClaimNames;
+import org.springframework.security.oauth2.jwt.JwtClaimValidator;
+import org.springframework.security.oauth2.jwt.JwtException;
+import org.springframework.security.oauth2.jwt.JwtValidators;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+import org.springframework.security.oauth2.server.resource.introspection.BadOpaqueTokenException;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URL;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * validates signed JWT access tokens against the keys of the authorization server, without calling it,
+ * and describes them as the introspection would (the claims of the token are the attributes of the principal)
+ *
+ * only JWTs from the configured issuer are validated locally, and they must be issued for one of the configured audiences,
+ * so a token the same authorization server issued for another resource server is rejected
+ *
+ * the key set is fetched once, then refreshed in the background by the first validation after each refresh interval,
+ * so keys the authorization server rotates in are picked up within about one interval; until the refreshed key set
+ * arrives (or when fetching it fails), the previous one is used
+ */
+@Service
+public class ApplicationJwtTokenValidator {
+
+	private static final String SCOPE_AUTHORITY_PREFIX = "SCOPE_";
+
+	private static final Set<JWSAlgorithm> SIGNATURE_ALGORITHMS =
+		Set.of(
+			JWSAlgorithm.RS256, JWSAlgorithm.RS384, JWSAlgorithm.RS512,
+			JWSAlgorithm.PS256, JWSAlgorithm.PS384, JWSAlgorithm.PS512,
+			JWSAlgorithm.ES256, JWSAlgorithm.ES384, JWSAlgorithm.ES512
+		);
+
+	private final SupplementalDataStoreProperties.JwtValidation validationProperties;
+
+	/*
+	 * holds the single key set of the jwk set uri
+	 */
+	private final LoadingCache<String, JWKSet> jwkSets;
+
+	private final NimbusJwtDecoder decoder;
+
+	public ApplicationJwtTokenValidator(SupplementalDataStoreProperties sdsProperties, MeterRegistry meterRegistry) {
+		this.validationProperties = sdsProperties.getJwtValidation();
+		if (validationProperties.getEnabled() && StringUtils.isBlank(validationProperties.getJwkSetUri()))
+			throw new IllegalStateException("sds.jwt-validation.jwk-set-uri is required to validate JWTs locally");
+		if (validationProperties.getEnabled() && StringUtils.isBlank(validationProperties.getIssuerUri()))
+			throw new IllegalStateException("sds.jwt-validation.issuer-uri is required to validate JWTs locally");
+		if (validationProperties.getEnabled() && validationProperties.getAudiences().isEmpty())
+			throw new IllegalStateException("sds.jwt-validation.audiences is required to validate JWTs locally");
+		this.jwkSets =
+			Caffeine.newBuilder()
+				.maximumSize(1)
+				.refreshAfterWrite(validationProperties.getJwkSetRefreshInterval())
+				.recordStats()
+				.build(this::loadJwkSet);
+		CaffeineCacheMetrics.monitor(meterRegistry, jwkSets, "sds.jwt.jwk.set");
+		this.decoder = validationProperties.getEnabled() ? decoder() : null;
+	}
+
+	/*
+	 * a token is validated locally when it is a signed JWT from the configured issuer;
+	 * anything else (including the JWTs of other authorization servers) is left to the introspection
+	 */
+	public boolean validatesLocally(String token) {
+		if (null == decoder || StringUtils.countMatches(token, '.') != 2)
+			return false;
+		try {
+			JWT jwt = JWTParser.parse(token);
+			if (!(jwt instanceof SignedJWT))
+				return false;
+			return validationProperties.getIssuerUri().equals(jwt.getJWTClaimsSet().getIssuer());
+		} catch (ParseException ex) {
+			return false;
+		}
+	}
+
+	public OAuth2AuthenticatedPrincipal validate(String token) {
+		Jwt jwt;
+		try {
+			jwt = decoder.decode(token);
+		} catch (JwtException ex) {
+			throw new BadOpaqueTokenException(ex.getMessage(), ex);
+		}
+		return new DefaultOAuth2AuthenticatedPrincipal(jwt.getSubject(), jwt.getClaims(), scopeAuthorities(jwt));
+	}
+
+	private NimbusJwtDecoder decoder() {
+		JWKSource<SecurityContext> jwkSource = (jwkSelector, context) -> jwkSelector.select(jwkSets.get(validationProperties.getJwkSetUri()));
+
+		DefaultJWTProcessor<SecurityContext> processor = new DefaultJWTProcessor<>();
+		processor.setJWSKeySelector(new JWSVerificationKeySelector<>(SIGNATURE_ALGORITHMS, jwkSource));
+		/* access tokens may be typed as such (RFC 9068) */
+		processor.setJWSTypeVerifier(new DefaultJOSEObjectTypeVerifier<>(JOSEObjectType.JWT, new JOSEObjectType("at+jwt"), null));
+		/* the claims are validated by the decoder */
+		processor.setJWTClaimsSetVerifier((claims, context) -> {});
+
+		List<String> audiences = validationProperties.getAudiences();
+		JwtClaimValidator<Collection<String>> audienceValidator =
+			new JwtClaimValidator<>(JwtClaimNames.AUD, aud -> null != aud && aud.stream().anyMatch(audiences::contains));
+
+		NimbusJwtDecoder decoder = new NimbusJwtDecoder(processor);
+		decoder.setJwtValidator(new DelegatingOAuth2TokenValidator<>(JwtValidators.createDefaultWithIssuer(validationProperties.getIssuerUri()), audienceValidator));
+		return decoder;
+	}
+
+	private JWKSet loadJwkSet(String jwkSetUri) throws IOException, ParseException {
+		return JWKSet.load(
+			new URL(jwkSetUri),
+			(int) validationProperties.getConnectTimeout().toMillis(),
+			(int) validationProperties.getReadTimeout().toMillis(),
+			0
+		);
+	}
+
+	/*
+	 * the same authorities the introspection grants for the scopes of a token
+	 */
+	private static Collection<GrantedAuthority> scopeAuthorities(Jwt jwt) {
+		Object scope = jwt.getClaims().getOrDefault("scope", jwt.getClaims().get("scp"));
+		Collection<String> scopes;
+		if (scope instanceof String)
+			scopes = Arrays.asList(StringUtils.split((String) scope, ' '));
+		else if (scope instanceof Collection)
+			scopes = jwt.getClaimAsStringList(jwt.hasClaim("scope") ? "scope" : "scp");
+		else
+			scopes = Collections.emptyList();
+
+		Collection<GrantedAuthority> authorities = new ArrayList<>();
+		for (String s : scopes)
+			authorities.add(new SimpleGrantedAuthority(SCOPE_AUTHORITY_PREFIX + s));
+		return authorities;
+	}
+}
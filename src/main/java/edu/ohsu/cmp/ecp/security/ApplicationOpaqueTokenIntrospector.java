@@ -1,15 +1,32 @@
 package edu.ohsu.cmp.ecp.security;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.google.common.hash.Hashing;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreServerTiming;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.boot.autoconfigure.security.oauth2.resource.OAuth2ResourceServerProperties;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.oauth2.core.DefaultOAuth2AuthenticatedPrincipal;
 import org.springframework.security.oauth2.core.OAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.core.OAuth2TokenIntrospectionClaimNames;
 import org.springframework.security.oauth2.server.resource.introspection.NimbusOpaqueTokenIntrospector;
 import org.springframework.security.oauth2.server.resource.introspection.OpaqueTokenIntrospector;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -17,14 +34,75 @@ import java.util.Collection;
 public class ApplicationOpaqueTokenIntrospector implements OpaqueTokenIntrospector {
 
 	private final OAuth2ResourceServerProperties properties;
+	private final SupplementalDataStoreProperties.TokenIntrospection introspectionProperties;
 
-	public ApplicationOpaqueTokenIntrospector(OAuth2ResourceServerProperties properties) {
+	/*
+	 * the introspection endpoint is fixed, so one introspector (and one pool of connections) serves every token
+	 */
+	private volatile OpaqueTokenIntrospector introspector;
+
+	/*
+	 * keyed by a digest of the token, so the cache never holds the tokens themselves;
+	 * concurrent lookups of the same token wait for a single introspection
+	 */
+	private final Cache<String, OAuth2AuthenticatedPrincipal> principals;
+
+	private final MeterRegistry meterRegistry;
+
+	/*
+	 * signed JWTs are validated locally when enabled, so only opaque tokens cost a call to the authorization server
+	 */
+	private final ApplicationJwtTokenValidator jwtValidator;
+
+	public ApplicationOpaqueTokenIntrospector(OAuth2ResourceServerProperties properties, SupplementalDataStoreProperties sdsProperties, MeterRegistry meterRegistry, ApplicationJwtTokenValidator jwtValidator) {
 		this.properties = properties;
+		this.introspectionProperties = sdsProperties.getTokenIntrospection();
+		this.meterRegistry = meterRegistry;
+		this.jwtValidator = jwtValidator;
+		this.principals =
+			Caffeine.newBuilder()
+				.maximumSize(introspectionProperties.getCacheMaximumSize())
+				.expireAfter(new PrincipalExpiry(introspectionProperties.getCacheMaximumTimeToLive()))
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(meterRegistry, principals, "sds.token.introspection");
 	}
 
 	@Override
 	public OAuth2AuthenticatedPrincipal introspect(String token) {
-		return withAdditionalRole("USER", introspectorForToken(token).introspect(token));
+		long startNanos = SupplementalDataStoreServerTiming.start();
+		try {
+			if (!introspectionProperties.getCacheEnabled())
+				return authorize(token);
+			return principals.get(cacheKey(token), k -> authorize(token));
+		} finally {
+			SupplementalDataStoreServerTiming.stop(SupplementalDataStoreServerTiming.Phase.INTROSPECTION, startNanos);
+		}
+	}
+
+	private OAuth2AuthenticatedPrincipal authorize(String token) {
+		if (jwtValidator.validatesLocally(token))
+			return withAdditionalRole("USER", jwtValidator.validate(token));
+		return introspectAndAuthorize(token);
+	}
+
+	/*
+	 * only the remote introspection is timed; cached principals are counted by the cache metrics
+	 */
+	private OAuth2AuthenticatedPrincipal introspectAndAuthorize(String token) {
+		Timer.Sample sample = Timer.start(meterRegistry);
+		String outcome = "error";
+		try {
+			OAuth2AuthenticatedPrincipal principal = withAdditionalRole("USER", introspectorForToken(token).introspect(token));
+			outcome = "success";
+			return principal;
+		} finally {
+			sample.stop(meterRegistry.timer("sds.token.introspection.remote", "outcome", outcome));
+		}
+	}
+
+	private static String cacheKey(String token) {
+		return Hashing.sha256().hashString(token, StandardCharsets.UTF_8).toString();
 	}
 
 	private OAuth2AuthenticatedPrincipal withAdditionalRole(String role, OAuth2AuthenticatedPrincipal principal) {
@@ -35,13 +113,68 @@ public class ApplicationOpaqueTokenIntrospector implements OpaqueTokenIntrospect
 	}
 
 	private OpaqueTokenIntrospector introspectorForToken(String token) {
-		return introspectorWithUri(properties.getOpaquetoken().getIntrospectionUri());
+		if (null == introspector) {
+			synchronized (this) {
+				if (null == introspector)
+					introspector = introspectorWithUri(properties.getOpaquetoken().getIntrospectionUri());
+			}
+		}
+		return introspector;
 	}
 
 	private OpaqueTokenIntrospector introspectorWithUri(String introspectionUri) {
-		RestTemplate restTemplate = new RestTemplate();
+		RestTemplate restTemplate = new RestTemplate(pooledRequestFactory());
 		restTemplate.getInterceptors().add(new IntrospectorReflexiveAuthenticationInterceptor());
 		OpaqueTokenIntrospector introspector = new NimbusOpaqueTokenIntrospector(introspectionUri, restTemplate);
 		return introspector;
 	}
+
+	private HttpComponentsClientHttpRequestFactory pooledRequestFactory() {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(introspectionProperties.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(introspectionProperties.getMaxConnectionsPerRoute());
+
+		HttpClient httpClient =
+			HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.build();
+
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+		requestFactory.setConnectTimeout((int) introspectionProperties.getConnectTimeout().toMillis());
+		requestFactory.setReadTimeout((int) introspectionProperties.getReadTimeout().toMillis());
+		return requestFactory;
+	}
+
+	/*
+	 * a principal is remembered until its token expires, but never longer than the configured maximum
+	 */
+	private static class PrincipalExpiry implements Expiry<String, OAuth2AuthenticatedPrincipal> {
+		private final Duration maximumTimeToLive;
+
+		public PrincipalExpiry(Duration maximumTimeToLive) {
+			this.maximumTimeToLive = maximumTimeToLive;
+		}
+
+		@Override
+		public long expireAfterCreate(String key, OAuth2AuthenticatedPrincipal principal, long currentTime) {
+			Duration timeToLive = maximumTimeToLive;
+			Object exp = principal.getAttributes().get(OAuth2TokenIntrospectionClaimNames.EXP);
+			if (exp instanceof Instant) {
+				Duration untilExpiration = Duration.between(Instant.now(), (Instant) exp);
+				if (untilExpiration.compareTo(timeToLive) < 0)
+					timeToLive = untilExpiration.isNegative() ? Duration.ZERO : untilExpiration;
+			}
+			return timeToLive.toNanos();
+		}
+
+		@Override
+		public long expireAfterUpdate(String key, OAuth2AuthenticatedPrincipal principal, long currentTime, long currentDuration) {
+			return expireAfterCreate(key, principal, currentTime);
+		}
+
+		@Override
+		public long expireAfterRead(String key, OAuth2AuthenticatedPrincipal principal, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+	}
 }
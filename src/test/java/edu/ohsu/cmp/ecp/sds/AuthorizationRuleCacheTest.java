@@ -0,0 +1,77 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+@ActiveProfiles( "auth-aware-test")
+public class AuthorizationRuleCacheTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreAuthorizationInterceptor authorizationInterceptor ;
+
+	private static RequestDetails requestWith( Permissions permissions ) {
+		/* the permissions are held in the attributes of the servlet request */
+		ServletRequestDetails request = new ServletRequestDetails() ;
+		request.setServletRequest( new MockHttpServletRequest() ) ;
+		request.setAttribute( SupplementalDataStorePermissionsInterceptor.REQUEST_ATTR_PERMISSIONS, permissions ) ;
+		return request ;
+	}
+
+	private static Permissions patientPermissions( UserIdentity patientIdentity ) {
+		return new Permissions( new Permissions.ReadAndWriteSpecificPatient( patientIdentity.basisUserId(), patientIdentity ) ) ;
+	}
+
+	@Test
+	void requestsWithEqualPermissionsShareTheCachedRuleList() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		IIdType localPatientId = new IdType( "Patient", createTestSpecificId() ) ;
+
+		/* equal, but built separately, as for two requests */
+		Permissions first = patientPermissions( new UserIdentity( nonLocalPatientId, Optional.of( localPatientId ), List.of( nonLocalPatientId ) ) ) ;
+		Permissions second = patientPermissions( new UserIdentity( nonLocalPatientId, Optional.of( localPatientId ), List.of( nonLocalPatientId ) ) ) ;
+
+		List<IAuthRule> firstRules = authorizationInterceptor.buildRuleList( requestWith( first ) ) ;
+		List<IAuthRule> secondRules = authorizationInterceptor.buildRuleList( requestWith( second ) ) ;
+
+		assertThat( second.fingerprint(), equalTo( first.fingerprint() ) ) ;
+		assertThat( secondRules, sameInstance( firstRules ) ) ;
+	}
+
+	@Test
+	void newlyLinkedNonLocalIdChangesTheRules() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		IIdType localPatientId = new IdType( "Patient", createTestSpecificId() ) ;
+		IIdType newlyLinkedPatientId = new IdType( "http://other.ehr.org/fhir/R4/", "Patient", createTestSpecificId(), null ) ;
+
+		UserIdentity beforeLinking = new UserIdentity( nonLocalPatientId, Optional.of( localPatientId ), List.of( nonLocalPatientId ) ) ;
+		Permissions before = patientPermissions( beforeLinking ) ;
+		Permissions after = patientPermissions( beforeLinking.withAdditionalNonLocalUserId( newlyLinkedPatientId ) ) ;
+
+		List<IAuthRule> rulesBefore = authorizationInterceptor.buildRuleList( requestWith( before ) ) ;
+		List<IAuthRule> rulesAfter = authorizationInterceptor.buildRuleList( requestWith( after ) ) ;
+
+		assertThat( after.fingerprint(), not( equalTo( before.fingerprint() ) ) ) ;
+		assertThat( rulesAfter, not( sameInstance( rulesBefore ) ) ) ;
+		assertThat( rulesBefore.toString(), not( containsString( newlyLinkedPatientId.getIdPart() ) ) ) ;
+		assertThat( rulesAfter.toString(), containsString( newlyLinkedPatientId.getIdPart() ) ) ;
+	}
+}
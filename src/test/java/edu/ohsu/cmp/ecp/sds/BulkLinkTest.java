@@ -0,0 +1,152 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdges;
+
+/*
+ * the job links in its own transactions, so the test reads the Linkages outside of one
+ */
+@ActiveProfiles( "auth-aware-test")
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class BulkLinkTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreLinkageEdges linkageEdges ;
+
+	private String onboardingUserId ;
+	private String onboardingToken ;
+	private IGenericClient onboardingClient ;
+
+	@BeforeEach
+	public void setupOnboardingUser() {
+		await().atMost( 30, SECONDS ).until( linkageEdges::isReady ) ;
+
+		onboardingUserId = new IdType( FOREIGN_PARTITION_NAME, "Practitioner", createTestSpecificId(), null ).getValue() ;
+		sdsProperties.getBulkLink().getAuthorizedUsers().add( onboardingUserId ) ;
+		onboardingToken = mockPrincipalRegistry.register().principal( "MyOnboardingUser", onboardingUserId ).token() ;
+		onboardingClient = authenticatingClient( onboardingToken ) ;
+	}
+
+	@AfterEach
+	public void removeOnboardingUser() {
+		sdsProperties.getBulkLink().getAuthorizedUsers().remove( onboardingUserId ) ;
+	}
+
+	private String pair( IIdType localPatientId, IIdType nonLocalPatientId ) {
+		return "{\"local\":\"" + localPatientId.toUnqualifiedVersionless().getValue() + "\",\"nonLocal\":\"" + nonLocalPatientId.getValue() + "\"}\n" ;
+	}
+
+	private HttpResponse<String> postBulkLink( String ndjson ) throws Exception {
+		return postBulkLink( "", ndjson ) ;
+	}
+
+	private HttpResponse<String> resumeBulkLink( String jobId ) throws Exception {
+		return postBulkLink( "?" + SupplementalDataStoreBulkLinkProvider.PARAM_RESUME + "=" + jobId, "" ) ;
+	}
+
+	private HttpResponse<String> postBulkLink( String query, String ndjson ) throws Exception {
+		HttpRequest request =
+			HttpRequest.newBuilder( URI.create( fhirServerlBase() + SupplementalDataStoreBulkLinkProvider.OPERATION_SDS_LINK + query ) )
+				.header( "Authorization", "Bearer " + onboardingToken )
+				.header( "Content-Type", SupplementalDataStoreBulkLink.CONTENT_TYPE_NDJSON )
+				.header( "Accept", "application/fhir+json" )
+				.POST( HttpRequest.BodyPublishers.ofString( ndjson ) )
+				.build()
+				;
+		return HttpClient.newHttpClient().send( request, HttpResponse.BodyHandlers.ofString() ) ;
+	}
+
+	private String jobIdOf( HttpResponse<String> response ) {
+		return jsonResourceParser().parseResource( Parameters.class, response.body() ).getParameter( "jobId" ).getValue().primitiveValue() ;
+	}
+
+	private Parameters linkStatus( String jobId ) {
+		return onboardingClient
+			.operation()
+			.onServer()
+			.named( SupplementalDataStoreBulkLinkProvider.OPERATION_SDS_LINK_STATUS )
+			.withParameter( Parameters.class, SupplementalDataStoreBulkLinkProvider.PARAM_JOB_ID, new StringType( jobId ) )
+			.useHttpGet()
+			.execute()
+			;
+	}
+
+	@Test
+	void linksEveryPairOfTheInput() throws Exception {
+		IIdType firstLocalPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType secondLocalPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType firstNonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		IIdType secondNonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+
+		HttpResponse<String> response = postBulkLink( pair( firstLocalPatientId, firstNonLocalPatientId ) + pair( secondLocalPatientId, secondNonLocalPatientId ) ) ;
+
+		assertThat( response.statusCode(), equalTo( 200 ) ) ;
+		String jobId = jobIdOf( response ) ;
+		assertThat( linkStatus( jobId ).getParameter( "status" ), notNullValue() ) ;
+		await().atMost( 60, SECONDS ).until( () -> linkage.lookupLocalUserFor( secondNonLocalPatientId ).isPresent() ) ;
+		assertThat( linkage.lookupLocalUserFor( firstNonLocalPatientId ).map( IIdType::getIdPart ), equalTo( Optional.of( firstLocalPatientId.getIdPart() ) ) ) ;
+		assertThat( linkage.lookupLocalUserFor( secondNonLocalPatientId ).map( IIdType::getIdPart ), equalTo( Optional.of( secondLocalPatientId.getIdPart() ) ) ) ;
+	}
+
+	@Test
+	void rejectsMalformedInputBeforeStartingJob() throws Exception {
+		HttpResponse<String> response = postBulkLink( "{\"local\":\"Patient/123\"}\n" ) ;
+
+		assertThat( response.statusCode(), equalTo( 400 ) ) ;
+	}
+
+	@Test
+	void resumingJobSkipsLinkedPairs() throws Exception {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+
+		HttpResponse<String> response = postBulkLink( pair( localPatientId, nonLocalPatientId ) ) ;
+		String jobId = jobIdOf( response ) ;
+		await().atMost( 60, SECONDS ).until( () -> linkage.lookupLocalUserFor( nonLocalPatientId ).isPresent() ) ;
+		await().atMost( 120, SECONDS ).until( () -> linkStatus( jobId ).getParameter( "status" ).getValue().primitiveValue(), equalTo( "COMPLETED" ) ) ;
+
+		HttpResponse<String> resumed = resumeBulkLink( jobId ) ;
+
+		assertThat( resumed.statusCode(), equalTo( 200 ) ) ;
+		String resumedJobId = jobIdOf( resumed ) ;
+		await().atMost( 120, SECONDS ).until( () -> linkStatus( resumedJobId ).getParameter( "status" ).getValue().primitiveValue(), equalTo( "COMPLETED" ) ) ;
+
+		assertThat( linkage.patientsLinkedFrom( nonLocalPatientId ).size(), equalTo( 1 ) ) ;
+	}
+}
@@ -0,0 +1,108 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+
+/*
+ * ids are only added to the set once their transaction commits, so each Patient here is committed as it is written
+ */
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class ClaimedPatientsTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreClaimedPatients claimedPatients ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	DaoRegistry daoRegistry ;
+
+	@Autowired
+	PlatformTransactionManager transactionManager ;
+
+	private SystemRequestDetails partitionRequest( String partitionName ) {
+		SystemRequestDetails request = new SystemRequestDetails() ;
+		request.setRequestPartitionId( RequestPartitionId.fromPartitionName( partitionName ) ) ;
+		return request ;
+	}
+
+	private IIdType establishNonLocalPatient() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		linkage.establishNonLocalUser( nonLocalPatientId ) ;
+		return nonLocalPatientId ;
+	}
+
+	@Test
+	void createdPatientIsKnownToBeClaimed() {
+		IIdType nonLocalPatientId = establishNonLocalPatient() ;
+
+		assertThat( claimedPatients.isKnownToBeClaimed( nonLocalPatientId ), equalTo( true ) ) ;
+		assertThat( linkage.patientCompartmentIsClaimed( nonLocalPatientId ), equalTo( true ) ) ;
+	}
+
+	@Test
+	void patientCreatedInRolledBackTransactionIsNotKnown() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+
+		TransactionTemplate tmpl = new TransactionTemplate( transactionManager ) ;
+		tmpl.executeWithoutResult( status -> {
+			linkage.establishNonLocalUser( nonLocalPatientId ) ;
+			status.setRollbackOnly() ;
+		});
+
+		assertThat( claimedPatients.isKnownToBeClaimed( nonLocalPatientId ), equalTo( false ) ) ;
+		assertThat( linkage.patientCompartmentIsClaimed( nonLocalPatientId ), equalTo( false ) ) ;
+	}
+
+	@Test
+	void deletedPatientIsNoLongerClaimed() {
+		IIdType nonLocalPatientId = establishNonLocalPatient() ;
+
+		daoRegistry.getResourceDao( Patient.class ).delete( nonLocalPatientId.toUnqualifiedVersionless(), partitionRequest( FOREIGN_PARTITION_NAME ) ) ;
+
+		assertThat( claimedPatients.isKnownToBeClaimed( nonLocalPatientId ), equalTo( false ) ) ;
+		assertThat( linkage.patientCompartmentIsClaimed( nonLocalPatientId ), equalTo( false ) ) ;
+	}
+
+	@Test
+	void patientFoundBySearchIsRemembered() {
+		IIdType nonLocalPatientId = establishNonLocalPatient() ;
+		claimedPatients.forgetAll() ;
+
+		assertThat( claimedPatients.isKnownToBeClaimed( nonLocalPatientId ), equalTo( false ) ) ;
+		assertThat( linkage.patientCompartmentIsClaimed( nonLocalPatientId ), equalTo( true ) ) ;
+		assertThat( claimedPatients.isKnownToBeClaimed( nonLocalPatientId ), equalTo( true ) ) ;
+	}
+
+	@Test
+	void seedingReadsExistingPatients() {
+		IIdType nonLocalPatientId = establishNonLocalPatient() ;
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ).withServerBase( sdsProperties.getPartition().getLocalName(), "Patient" ) ;
+		claimedPatients.forgetAll() ;
+
+		claimedPatients.seed() ;
+
+		assertThat( claimedPatients.isKnownToBeClaimed( nonLocalPatientId ), equalTo( true ) ) ;
+		assertThat( claimedPatients.isKnownToBeClaimed( localPatientId ), equalTo( true ) ) ;
+	}
+}
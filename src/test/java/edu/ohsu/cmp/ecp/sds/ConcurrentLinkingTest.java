@@ -0,0 +1,96 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/*
+ * the parallel creates commit in their own transactions, so the test reads their Linkages outside of one
+ */
+@ActiveProfiles( "auth-aware-test")
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class ConcurrentLinkingTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+	private static final int PARALLEL_CREATES = 8 ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	MeterRegistry meterRegistry ;
+
+	private IIdType authorizedPatientId;
+	private IGenericClient patientAppClient ;
+
+	@BeforeEach
+	public void setupAuthorizedPatient() {
+		authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null );
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+		patientAppClient = authenticatingClientTargetingPartition( token, FOREIGN_PARTITION_NAME ) ;
+	}
+
+	/* a new patient other than the authorized patient must be linked through the local patient */
+	private void storeOtherPatient() {
+		Patient otherPatient = new Patient() ;
+		otherPatient.setId( new IdType( "Patient", createTestSpecificId() ) ) ;
+		patientAppClient.update().resource( otherPatient ).execute() ;
+	}
+
+	private long lockWaits() {
+		Timer timer = meterRegistry.find( SupplementalDataStoreLinkingLocks.METER_LOCK_WAIT ).tags( SupplementalDataStoreLinkingLocks.TAG_LOCK, SupplementalDataStoreLinkingLocks.LOCK_LOCAL ).timer() ;
+		return null == timer ? 0L : timer.count() ;
+	}
+
+	@Test
+	void parallelFirstWritesEstablishOneLocalPatient() throws Exception {
+		long lockWaitsBefore = lockWaits() ;
+
+		ExecutorService executor = Executors.newFixedThreadPool( PARALLEL_CREATES ) ;
+		try {
+			CountDownLatch start = new CountDownLatch( 1 ) ;
+			List<Future<?>> creates = new ArrayList<>() ;
+			for ( int i = 0 ; i < PARALLEL_CREATES ; ++i ) {
+				creates.add( executor.submit( () -> {
+					start.await() ;
+					storeOtherPatient() ;
+					return null ;
+				}) ) ;
+			}
+			start.countDown() ;
+			for ( Future<?> create : creates ) {
+				create.get() ;
+			}
+		} finally {
+			executor.shutdownNow() ;
+		}
+
+		assertThat( linkage.patientsLinkedFrom( authorizedPatientId ), hasSize( 1 ) ) ;
+		assertThat( lockWaits(), greaterThan( lockWaitsBefore ) ) ;
+	}
+}
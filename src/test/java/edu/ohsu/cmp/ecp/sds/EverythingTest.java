@@ -0,0 +1,152 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+@ActiveProfiles( "auth-aware-test")
+public class EverythingTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	private String token ;
+	private IIdType authorizedPatientId ;
+	private IIdType localPatientId ;
+	private IGenericClient clientLocal ;
+	private IGenericClient clientForeign ;
+	private int originalStreamPageSize ;
+	private int originalStreamBufferCapacity ;
+
+	@BeforeEach
+	public void setupLinkedPatient() {
+		authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+
+		clientLocal = authenticatingClient( token ) ;
+		clientForeign = authenticatingClientTargetingPartition( token, FOREIGN_PARTITION_NAME ) ;
+
+		clientForeign.update().resource( initPatient( authorizedPatientId ) ).execute() ;
+		localPatientId = clientLocal.create().resource( new Patient() ).execute().getId().toUnqualifiedVersionless() ;
+
+		/* pages and a buffer of one resource make every partition wait on the response */
+		originalStreamPageSize = sdsProperties.getFanOut().getStreamPageSize() ;
+		originalStreamBufferCapacity = sdsProperties.getFanOut().getStreamBufferCapacity() ;
+		sdsProperties.getFanOut().setStreamPageSize( 1 ) ;
+		sdsProperties.getFanOut().setStreamBufferCapacity( 1 ) ;
+	}
+
+	@AfterEach
+	public void restoreStreamSizes() {
+		sdsProperties.getFanOut().setStreamPageSize( originalStreamPageSize ) ;
+		sdsProperties.getFanOut().setStreamBufferCapacity( originalStreamBufferCapacity ) ;
+	}
+
+	private IIdType createObservation( IGenericClient client, IIdType subject ) {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.setSubject( new Reference( subject.toUnqualifiedVersionless() ) ) ;
+		observation.setEffective( new DateTimeType( new Date() ) ) ;
+		return client.create().resource( observation ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	private HttpResponse<String> gatherEverything( String token, String query ) throws Exception {
+		HttpRequest request =
+			HttpRequest.newBuilder( URI.create( fhirServerlBase() + SupplementalDataStoreEverythingProvider.OPERATION_SDS_EVERYTHING + query ) )
+				.header( "Authorization", "Bearer " + token )
+				.GET()
+				.build()
+				;
+		return HttpClient.newHttpClient().send( request, HttpResponse.BodyHandlers.ofString() ) ;
+	}
+
+	/* Patient/$everything also holds the patient itself and the linkages naming it, whatever the types asked for */
+	private List<String> idsOf( HttpResponse<String> response, String resourceType ) {
+		return response.body().lines()
+			.filter( line -> !line.isBlank() )
+			.map( line -> jsonResourceParser().parseResource( line ) )
+			.map( IBaseResource::getIdElement )
+			.filter( id -> resourceType.equals( id.getResourceType() ) )
+			.map( id -> id.toUnqualifiedVersionless().getValue() )
+			.collect( toList() )
+			;
+	}
+
+	@Test
+	void gathersTheCompartmentOfEveryPartition() throws Exception {
+		IIdType localObservation = createObservation( clientLocal, localPatientId ) ;
+		IIdType foreignObservation = createObservation( clientForeign, authorizedPatientId ) ;
+		IIdType secondForeignObservation = createObservation( clientForeign, authorizedPatientId ) ;
+
+		HttpResponse<String> response = gatherEverything( token, "" ) ;
+
+		assertThat( response.statusCode(), equalTo( 200 ) ) ;
+		assertThat( response.headers().firstValue( Constants.HEADER_CONTENT_TYPE ).orElse( "" ), startsWith( Constants.CT_FHIR_NDJSON ) ) ;
+		assertThat( idsOf( response, "Patient" ), containsInAnyOrder( localPatientId.getValue(), authorizedPatientId.toUnqualifiedVersionless().getValue() ) ) ;
+		assertThat( idsOf( response, "Observation" ), containsInAnyOrder( localObservation.getValue(), foreignObservation.getValue(), secondForeignObservation.getValue() ) ) ;
+	}
+
+	@Test
+	void gathersOnlyTheRequestedTypes() throws Exception {
+		IIdType localObservation = createObservation( clientLocal, localPatientId ) ;
+		IIdType foreignObservation = createObservation( clientForeign, authorizedPatientId ) ;
+		Condition condition = new Condition() ;
+		condition.setSubject( new Reference( localPatientId ) ) ;
+		clientLocal.create().resource( condition ).execute() ;
+
+		HttpResponse<String> response = gatherEverything( token, "?_type=Observation" ) ;
+
+		assertThat( idsOf( response, "Observation" ), containsInAnyOrder( localObservation.getValue(), foreignObservation.getValue() ) ) ;
+		assertThat( idsOf( response, "Condition" ), empty() ) ;
+	}
+
+	@Test
+	void gathersNothingOfOtherPatients() throws Exception {
+		IIdType otherAuthorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String otherToken = mockPrincipalRegistry.register().principal( "MyOtherPatient", otherAuthorizedPatientId.toString() ).token() ;
+		IGenericClient otherClientLocal = authenticatingClient( otherToken ) ;
+		IIdType otherLocalPatientId = otherClientLocal.create().resource( new Patient() ).execute().getId().toUnqualifiedVersionless() ;
+		createObservation( otherClientLocal, otherLocalPatientId ) ;
+		IIdType localObservation = createObservation( clientLocal, localPatientId ) ;
+
+		HttpResponse<String> response = gatherEverything( token, "?_type=Observation" ) ;
+
+		assertThat( idsOf( response, "Observation" ), containsInAnyOrder( localObservation.getValue() ) ) ;
+		assertThat( idsOf( response, "Patient" ), not( hasItem( otherLocalPatientId.getValue() ) ) ) ;
+	}
+}
@@ -0,0 +1,189 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IOperationUntypedWithInputAndPartialOutput;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+@ActiveProfiles( "auth-aware-test")
+public class FanOutSearchTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+	private static final long ONE_DAY_MILLIS = 24 * 60 * 60 * 1000L ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	private IIdType authorizedPatientId ;
+	private IIdType localPatientId ;
+	private IGenericClient clientLocal ;
+	private IGenericClient clientForeign ;
+
+	@BeforeEach
+	public void setupLinkedPatient() {
+		authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+
+		clientLocal = authenticatingClient( token ) ;
+		clientForeign = authenticatingClientTargetingPartition( token, FOREIGN_PARTITION_NAME ) ;
+
+		clientForeign.update().resource( initPatient( authorizedPatientId ) ).execute() ;
+		localPatientId = clientLocal.create().resource( new Patient() ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	private IIdType createObservation( IGenericClient client, IIdType subject, Date effective ) {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.setSubject( new Reference( subject.toUnqualifiedVersionless() ) ) ;
+		observation.setEffective( new DateTimeType( effective ) ) ;
+		return client.create().resource( observation ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	/* the search params follow the resource type as name, value pairs */
+	private Bundle searchAllPartitions( String resourceType, String... searchParams ) {
+		IOperationUntypedWithInputAndPartialOutput<Parameters> operation =
+			clientLocal
+				.operation()
+				.onServer()
+				.named( SupplementalDataStoreFanOutSearchProvider.OPERATION_SDS_SEARCH )
+				.withParameter( Parameters.class, SupplementalDataStoreFanOutSearchProvider.PARAM_TYPE, new StringType( resourceType ) )
+				;
+		for ( int i = 0 ; i + 1 < searchParams.length ; i += 2 )
+			operation = operation.andParameter( searchParams[i], new StringType( searchParams[i + 1] ) ) ;
+		return operation.useHttpGet().returnResourceType( Bundle.class ).execute() ;
+	}
+
+	private List<String> fullUrlsOf( Bundle bundle ) {
+		return bundle.getEntry().stream().map( Bundle.BundleEntryComponent::getFullUrl ).collect( toList() ) ;
+	}
+
+	private String localFullUrl( IIdType id ) {
+		return id.withServerBase( fhirServerlBase().replaceFirst( "/$", "" ), id.getResourceType() ).getValue() ;
+	}
+
+	private String foreignFullUrl( IIdType id ) {
+		return id.withServerBase( FOREIGN_PARTITION_NAME.replaceFirst( "/$", "" ), id.getResourceType() ).getValue() ;
+	}
+
+	@Test
+	void mergesPartitionsInDateOrder() {
+		long start = System.currentTimeMillis() - 30 * ONE_DAY_MILLIS ;
+		IIdType localFirst = createObservation( clientLocal, localPatientId, new Date( start ) ) ;
+		IIdType foreignSecond = createObservation( clientForeign, authorizedPatientId, new Date( start + ONE_DAY_MILLIS ) ) ;
+		IIdType localThird = createObservation( clientLocal, localPatientId, new Date( start + 2 * ONE_DAY_MILLIS ) ) ;
+		IIdType foreignFourth = createObservation( clientForeign, authorizedPatientId, new Date( start + 3 * ONE_DAY_MILLIS ) ) ;
+
+		Bundle bundle = searchAllPartitions( "Observation", "_sort", "-date" ) ;
+
+		assertThat( bundle.getType(), equalTo( Bundle.BundleType.SEARCHSET ) ) ;
+		assertThat( fullUrlsOf( bundle ), contains( foreignFullUrl( foreignFourth ), localFullUrl( localThird ), foreignFullUrl( foreignSecond ), localFullUrl( localFirst ) ) ) ;
+	}
+
+	@Test
+	void returnsTheFirstCountMatchesAcrossPartitions() {
+		long start = System.currentTimeMillis() - 30 * ONE_DAY_MILLIS ;
+		createObservation( clientLocal, localPatientId, new Date( start ) ) ;
+		IIdType foreignSecond = createObservation( clientForeign, authorizedPatientId, new Date( start + ONE_DAY_MILLIS ) ) ;
+		IIdType localThird = createObservation( clientLocal, localPatientId, new Date( start + 2 * ONE_DAY_MILLIS ) ) ;
+		createObservation( clientForeign, authorizedPatientId, new Date( start + 3 * ONE_DAY_MILLIS ) ) ;
+
+		Bundle bundle =
+			searchAllPartitions(
+				"Observation",
+				"_sort", "date",
+				"date", "gt" + new DateTimeType( new Date( start + ONE_DAY_MILLIS / 2 ) ).getValueAsString(),
+				"_count", "2"
+				);
+
+		assertThat( fullUrlsOf( bundle ), contains( foreignFullUrl( foreignSecond ), localFullUrl( localThird ) ) ) ;
+	}
+
+	@Test
+	void pagesThroughEveryPartitionByCursor() {
+		long start = System.currentTimeMillis() - 30 * ONE_DAY_MILLIS ;
+		IIdType localFirst = createObservation( clientLocal, localPatientId, new Date( start ) ) ;
+		IIdType localSecond = createObservation( clientLocal, localPatientId, new Date( start + ONE_DAY_MILLIS ) ) ;
+		IIdType foreignThird = createObservation( clientForeign, authorizedPatientId, new Date( start + 2 * ONE_DAY_MILLIS ) ) ;
+		IIdType localFourth = createObservation( clientLocal, localPatientId, new Date( start + 3 * ONE_DAY_MILLIS ) ) ;
+		IIdType foreignFifth = createObservation( clientForeign, authorizedPatientId, new Date( start + 4 * ONE_DAY_MILLIS ) ) ;
+
+		List<String> fullUrls = new ArrayList<>() ;
+		Bundle bundle = searchAllPartitions( "Observation", "_sort", "date", "_count", "2" ) ;
+		fullUrls.addAll( fullUrlsOf( bundle ) ) ;
+		/* a cursor that fails to advance is caught by the page count rather than by looping */
+		for ( int pages = 1 ; null != bundle.getLink( Bundle.LINK_NEXT ) && pages < 5 ; pages++ ) {
+			assertThat( fullUrlsOf( bundle ).size(), equalTo( 2 ) ) ;
+			bundle = clientLocal.loadPage().next( bundle ).execute() ;
+			fullUrls.addAll( fullUrlsOf( bundle ) ) ;
+		}
+
+		assertThat( bundle.getLink( Bundle.LINK_NEXT ), nullValue() ) ;
+		assertThat(
+			fullUrls,
+			contains( localFullUrl( localFirst ), localFullUrl( localSecond ), foreignFullUrl( foreignThird ), localFullUrl( localFourth ), foreignFullUrl( foreignFifth ) )
+			);
+	}
+
+	@Test
+	void searchesEachPartitionInSortOrder() {
+		long start = System.currentTimeMillis() - 30 * ONE_DAY_MILLIS ;
+		/* the local partition holds more than _count matches, created out of date order */
+		createObservation( clientLocal, localPatientId, new Date( start + 5 * ONE_DAY_MILLIS ) ) ;
+		createObservation( clientLocal, localPatientId, new Date( start + 3 * ONE_DAY_MILLIS ) ) ;
+		IIdType localFirst = createObservation( clientLocal, localPatientId, new Date( start ) ) ;
+		IIdType foreignSecond = createObservation( clientForeign, authorizedPatientId, new Date( start + ONE_DAY_MILLIS ) ) ;
+
+		Bundle bundle = searchAllPartitions( "Observation", "_sort", "date", "_count", "2" ) ;
+
+		assertThat( fullUrlsOf( bundle ), contains( localFullUrl( localFirst ), foreignFullUrl( foreignSecond ) ) ) ;
+	}
+
+	@Test
+	void searchesOnlyThePatientsOwnCompartments() {
+		IIdType otherAuthorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String otherToken = mockPrincipalRegistry.register().principal( "MyOtherPatient", otherAuthorizedPatientId.toString() ).token() ;
+		IGenericClient otherClientLocal = authenticatingClient( otherToken ) ;
+		IIdType otherLocalPatientId = otherClientLocal.create().resource( new Patient() ).execute().getId().toUnqualifiedVersionless() ;
+		createObservation( otherClientLocal, otherLocalPatientId, new Date() ) ;
+		IIdType ownObservation = createObservation( clientLocal, localPatientId, new Date() ) ;
+
+		Bundle bundle = searchAllPartitions( "Observation" ) ;
+
+		assertThat( fullUrlsOf( bundle ), contains( localFullUrl( ownObservation ) ) ) ;
+		assertThat( bundle.getEntryFirstRep().getFullUrl(), startsWith( fhirServerlBase().replaceFirst( "/$", "" ) ) ) ;
+	}
+
+	@Test
+	void rejectsSortByNonDateParam() {
+		assertThrows(
+			InvalidRequestException.class,
+			() -> searchAllPartitions( "Observation", "_sort", "code" )
+			);
+	}
+}
@@ -0,0 +1,62 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+public class FanOutTest extends BaseSuppplementalDataStoreTest {
+
+	@Autowired
+	SupplementalDataStoreFanOut fanOut ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	private Duration partitionTimeout ;
+
+	@BeforeEach
+	public void shortenPartitionTimeout() {
+		partitionTimeout = sdsProperties.getFanOut().getPartitionTimeout() ;
+		sdsProperties.getFanOut().setPartitionTimeout( Duration.ofMillis( 200 ) ) ;
+	}
+
+	@AfterEach
+	public void restorePartitionTimeout() {
+		sdsProperties.getFanOut().setPartitionTimeout( partitionTimeout ) ;
+	}
+
+	@Test
+	void abandonedPartitionIsInterrupted() throws InterruptedException {
+		CountDownLatch interrupted = new CountDownLatch( 1 ) ;
+		Supplier<String> slowPartition = () -> {
+			try {
+				Thread.sleep( TimeUnit.SECONDS.toMillis( 30 ) ) ;
+				return "finished" ;
+			} catch ( InterruptedException ex ) {
+				interrupted.countDown() ;
+				return "interrupted" ;
+			}
+		};
+
+		List<SupplementalDataStoreFanOut.PartitionResult<String>> results =
+			fanOut.acrossPartitions( Map.of( "slow", slowPartition ) ) ;
+
+		assertThat( results.get( 0 ).succeeded(), equalTo( false ) ) ;
+		assertThat( results.get( 0 ).failure(), instanceOf( TimeoutException.class ) ) ;
+		/* the thread running the partition is freed instead of sleeping out the whole task */
+		assertThat( interrupted.await( 5, TimeUnit.SECONDS ), equalTo( true ) ) ;
+	}
+}
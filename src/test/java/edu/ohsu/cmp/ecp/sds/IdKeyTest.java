@@ -0,0 +1,87 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+
+import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+import edu.ohsu.cmp.ecp.sds.base.IdKey;
+
+public class IdKeyTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String BASE_URL = "http://my.ehr.org/fhir/R4" ;
+	private static final String OTHER_BASE_URL = "http://other.ehr.org/fhir/R4" ;
+
+	/* the keys of two ids are equal exactly when the comparator finds the ids the same, and equal keys hash alike */
+	private static void assertKeysAgreeWithComparator( IIdType a, IIdType b, boolean expectedSame ) {
+		boolean comparedSame = 0 == FhirResourceComparison.idTypes().comparator().compare( a, b ) ;
+		boolean keysEqual = IdKey.of( a ).equals( IdKey.of( b ) ) ;
+
+		assertThat( a + " compared with " + b, comparedSame, equalTo( expectedSame ) ) ;
+		assertThat( a + " keyed as " + b, keysEqual, equalTo( expectedSame ) ) ;
+		assertThat( b + " keyed as " + a, IdKey.of( b ).equals( IdKey.of( a ) ), equalTo( expectedSame ) ) ;
+		if ( keysEqual )
+			assertThat( IdKey.of( a ).hashCode(), equalTo( IdKey.of( b ).hashCode() ) ) ;
+	}
+
+	@Test
+	void qualifiedAndUnqualifiedIdsAreTheSame() {
+		assertKeysAgreeWithComparator( new IdType( BASE_URL, "Patient", "123", null ), new IdType( "Patient", "123" ), true ) ;
+		assertKeysAgreeWithComparator( new IdType( BASE_URL, "Patient", "123", null ), new IdType( OTHER_BASE_URL, "Patient", "123", null ), false ) ;
+	}
+
+	@Test
+	void versionedAndVersionlessIdsAreTheSame() {
+		assertKeysAgreeWithComparator( new IdType( "Patient", "123", "2" ), new IdType( "Patient", "123" ), true ) ;
+		assertKeysAgreeWithComparator( new IdType( BASE_URL, "Patient", "123", "2" ), new IdType( "Patient", "123" ), true ) ;
+		assertKeysAgreeWithComparator( new IdType( "Patient", "123", "2" ), new IdType( "Patient", "123", "3" ), false ) ;
+	}
+
+	@Test
+	void idsWithoutResourceTypeAreComparedByIdPart() {
+		assertKeysAgreeWithComparator( new IdType( "123" ), new IdType( "Patient", "123" ), true ) ;
+		assertKeysAgreeWithComparator( new IdType( "RelatedPerson", "123" ), new IdType( "Patient", "123" ), false ) ;
+		assertKeysAgreeWithComparator( new IdType( "Patient", "456" ), new IdType( "Patient", "123" ), false ) ;
+	}
+
+	@Test
+	void idsWithoutIdPartAreNeverTheSame() {
+		assertKeysAgreeWithComparator( new IdType(), new IdType( "Patient", "123" ), false ) ;
+	}
+
+	@Test
+	void idSetKeepsTheFirstOfTheSameIds() {
+		Set<IIdType> ids = FhirResourceComparison.idTypes().createSet() ;
+		ids.add( new IdType( BASE_URL, "Patient", "123", "1" ) ) ;
+		ids.add( new IdType( "Patient", "123" ) ) ;
+		ids.add( new IdType( OTHER_BASE_URL, "Patient", "123", null ) ) ;
+
+		assertThat( ids.size(), equalTo( 2 ) ) ;
+		assertThat( ids.contains( new IdType( BASE_URL, "Patient", "123", "2" ) ), equalTo( false ) ) ;
+		assertThat( ids.contains( new IdType( BASE_URL, "Patient", "123", null ) ), equalTo( true ) ) ;
+		assertThat( ids.stream().map( IIdType::getValue ).collect( toList() ), contains( BASE_URL + "/Patient/123/_history/1", OTHER_BASE_URL + "/Patient/123" ) ) ;
+	}
+
+	@Test
+	void fingerprintDoesNotDependOnTheOrderIdsWereCollected() {
+		IIdType basisUserId = new IdType( BASE_URL, "Patient", "123", null ) ;
+		IIdType otherId = new IdType( OTHER_BASE_URL, "Patient", "456", null ) ;
+
+		UserIdentity collectedFirst = new UserIdentity( basisUserId, Optional.empty(), List.of( basisUserId, otherId ) ) ;
+		UserIdentity collectedLast = new UserIdentity( basisUserId, Optional.empty(), List.of( otherId, basisUserId ) ) ;
+
+		assertThat(
+			new Permissions( new Permissions.ReadAndWriteSpecificPatient( basisUserId, collectedLast ) ).fingerprint(),
+			equalTo( new Permissions( new Permissions.ReadAndWriteSpecificPatient( basisUserId, collectedFirst ) ).fingerprint() )
+			) ;
+	}
+}
@@ -0,0 +1,82 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdges;
+
+/*
+ * the cached identities are evicted when a Linkage commits, so each Linkage here is committed as it is written
+ */
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class IdentityCacheTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreLinkageEdges linkageEdges ;
+
+	@Autowired
+	SupplementalDataStoreIdentityCache identityCache ;
+
+	@BeforeEach
+	public void awaitLinkageEdges() {
+		await().atMost( 30, SECONDS ).until( linkageEdges::isReady ) ;
+	}
+
+	private UserIdentity resolve( IIdType basisUserId ) {
+		return new UserIdentity( basisUserId, linkage.lookupLocalUserFor( basisUserId ), List.of( basisUserId ) ) ;
+	}
+
+	@Test
+	void newLinkageChangesTheNextIdentity() {
+		IIdType nonLocalPatientId = linkage.establishNonLocalUser( new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ) ;
+
+		UserIdentity beforeLinking = identityCache.userIdentityFor( nonLocalPatientId, this::resolve ) ;
+		assertThat( beforeLinking.localUserId(), equalTo( Optional.empty() ) ) ;
+
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		UserIdentity afterLinking = identityCache.userIdentityFor( nonLocalPatientId, this::resolve ) ;
+		assertThat( afterLinking.localUserId().map( IIdType::getIdPart ), equalTo( Optional.of( localPatientId.getIdPart() ) ) ) ;
+	}
+
+	@Test
+	void identityResolvedDuringAnEvictionIsNotKept() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		AtomicInteger resolutions = new AtomicInteger() ;
+
+		identityCache.userIdentityFor( nonLocalPatientId, id -> {
+			resolutions.incrementAndGet() ;
+			/* a Linkage commits after this identity was read, and its eviction runs before the identity is cached */
+			identityCache.invalidateAll() ;
+			return new UserIdentity( id, Optional.empty(), List.of( id ) ) ;
+		});
+		for ( int i = 0 ; i < 2 ; ++i ) {
+			identityCache.userIdentityFor( nonLocalPatientId, id -> {
+				resolutions.incrementAndGet() ;
+				return new UserIdentity( id, Optional.empty(), List.of( id ) ) ;
+			});
+		}
+
+		assertThat( resolutions.get(), equalTo( 2 ) ) ;
+	}
+}
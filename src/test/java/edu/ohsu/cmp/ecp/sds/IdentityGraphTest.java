@@ -0,0 +1,138 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreIdentityGraph;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdge;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdges;
+
+/*
+ * the graph only holds committed Linkages, so each Linkage here is committed as it is written
+ */
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class IdentityGraphTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+	private static final String OTHER_FOREIGN_PARTITION_NAME = "http://other.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreLinkageEdges linkageEdges ;
+
+	@Autowired
+	SupplementalDataStoreIdentityGraph identityGraph ;
+
+	@BeforeEach
+	public void awaitLinkageEdges() {
+		await().atMost( 30, SECONDS ).until( linkageEdges::isReady ) ;
+	}
+
+	private IIdType establishNonLocalPatient( String partitionName ) {
+		return linkage.establishNonLocalUser( new IdType( partitionName, "Patient", createTestSpecificId(), null ) ) ;
+	}
+
+	private List<String> idParts( Set<? extends IBaseReference> refs ) {
+		return refs.stream().map( IBaseReference::getReferenceElement ).map( IIdType::getIdPart ).collect( toList() ) ;
+	}
+
+	@Test
+	void linkedPatientsAreFoundThroughAnyChainOfLinkages() {
+		IIdType firstLocalPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType secondLocalPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType nonLocalPatientId = establishNonLocalPatient( FOREIGN_PARTITION_NAME ) ;
+		IIdType otherNonLocalPatientId = establishNonLocalPatient( OTHER_FOREIGN_PARTITION_NAME ) ;
+
+		linkage.linkNonLocalPatientToLocalPatient( firstLocalPatientId, nonLocalPatientId ) ;
+		linkage.linkNonLocalPatientToLocalPatient( secondLocalPatientId, nonLocalPatientId ) ;
+		linkage.linkNonLocalPatientToLocalPatient( secondLocalPatientId, otherNonLocalPatientId ) ;
+
+		assertThat( idParts( linkage.patientsLinkedTo( firstLocalPatientId ) ), containsInAnyOrder( nonLocalPatientId.getIdPart(), otherNonLocalPatientId.getIdPart() ) ) ;
+		assertThat( idParts( linkage.patientsLinkedFrom( otherNonLocalPatientId ) ), containsInAnyOrder( firstLocalPatientId.getIdPart(), secondLocalPatientId.getIdPart() ) ) ;
+	}
+
+	@Test
+	void everyIdInComponentReconcilesToSameLocalPatient() {
+		IIdType firstLocalPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType secondLocalPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType nonLocalPatientId = establishNonLocalPatient( FOREIGN_PARTITION_NAME ) ;
+		IIdType otherNonLocalPatientId = establishNonLocalPatient( OTHER_FOREIGN_PARTITION_NAME ) ;
+
+		linkage.linkNonLocalPatientToLocalPatient( firstLocalPatientId, nonLocalPatientId ) ;
+		linkage.linkNonLocalPatientToLocalPatient( secondLocalPatientId, otherNonLocalPatientId ) ;
+		linkage.linkNonLocalPatientToLocalPatient( secondLocalPatientId, nonLocalPatientId ) ;
+
+		Optional<String> localUserForNonLocal = linkage.lookupLocalUserFor( nonLocalPatientId ).map( IIdType::getIdPart ) ;
+		Optional<String> localUserForOtherNonLocal = linkage.lookupLocalUserFor( otherNonLocalPatientId ).map( IIdType::getIdPart ) ;
+
+		assertThat( localUserForOtherNonLocal, equalTo( localUserForNonLocal ) ) ;
+	}
+
+	@Test
+	void linkageTheGraphDoesNotHoldIsFoundInTheEdges() {
+		IIdType linkedLocalPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType linkedNonLocalPatientId = establishNonLocalPatient( FOREIGN_PARTITION_NAME ) ;
+		linkage.linkNonLocalPatientToLocalPatient( linkedLocalPatientId, linkedNonLocalPatientId ) ;
+		assertThat( identityGraph.componentOf( SupplementalDataStoreIdentityGraph.localNode( linkedLocalPatientId ) ).isPresent(), equalTo( true ) ) ;
+
+		/* as another server would index a Linkage, without this server's graph hearing of it */
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType nonLocalPatientId = establishNonLocalPatient( FOREIGN_PARTITION_NAME ) ;
+		linkageEdges.replaceEdgesForLinkage( createTestSpecificId(), List.of( localPatientId ), List.of( nonLocalPatientId ) ) ;
+
+		assertThat( identityGraph.componentOf( SupplementalDataStoreIdentityGraph.nonLocalNode( nonLocalPatientId ) ), equalTo( Optional.empty() ) ) ;
+		assertThat( linkage.lookupLocalUserFor( nonLocalPatientId ).map( IIdType::getIdPart ), equalTo( Optional.of( localPatientId.getIdPart() ) ) ) ;
+	}
+
+	@Test
+	void replacedEdgesDropTheirComponentUntilTheGraphIsRebuilt() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType nonLocalPatientId = establishNonLocalPatient( FOREIGN_PARTITION_NAME ) ;
+		IIdType otherNonLocalPatientId = establishNonLocalPatient( OTHER_FOREIGN_PARTITION_NAME ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+		SupplementalDataStoreIdentityGraph.Node localNode = SupplementalDataStoreIdentityGraph.localNode( localPatientId ) ;
+		assertThat( identityGraph.componentOf( localNode ).isPresent(), equalTo( true ) ) ;
+
+		String linkageId = linkageEdges.edgesFromLocalUser( localPatientId ).get( 0 ).getLinkageId() ;
+		List<SupplementalDataStoreLinkageEdge> replacedEdges = linkageEdges.edgesOfLinkage( linkageId ) ;
+		linkageEdges.replaceEdgesForLinkage( linkageId, List.of( localPatientId ), List.of( otherNonLocalPatientId ) ) ;
+		identityGraph.linkageIndexed( List.of( localPatientId ), List.of( otherNonLocalPatientId ), replacedEdges ) ;
+
+		/* until the rebuild, the edge table answers for the ids of the Linkage */
+		assertThat( idParts( linkage.patientsLinkedTo( localPatientId ) ), containsInAnyOrder( otherNonLocalPatientId.getIdPart() ) ) ;
+
+		await().atMost( 30, SECONDS ).until( () -> identityGraph.componentOf( localNode ).isPresent() ) ;
+		assertThat( identityGraph.componentOf( localNode ).get().nodes().contains( SupplementalDataStoreIdentityGraph.nonLocalNode( nonLocalPatientId ) ), equalTo( false ) ) ;
+		assertThat( idParts( linkage.patientsLinkedTo( localPatientId ) ), containsInAnyOrder( otherNonLocalPatientId.getIdPart() ) ) ;
+	}
+
+	@Test
+	void graphHoldsCommittedLinkages() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType nonLocalPatientId = establishNonLocalPatient( FOREIGN_PARTITION_NAME ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		Optional<SupplementalDataStoreIdentityGraph.IdentityComponent> component = identityGraph.componentOf( SupplementalDataStoreIdentityGraph.nonLocalNode( nonLocalPatientId ) ) ;
+
+		assertThat( component.map( c -> c.nodes().contains( SupplementalDataStoreIdentityGraph.localNode( localPatientId ) ) ), equalTo( Optional.of( true ) ) ) ;
+	}
+}
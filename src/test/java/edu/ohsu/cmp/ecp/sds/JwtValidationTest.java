@@ -0,0 +1,187 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+import static org.mockserver.model.JsonBody.json;
+import static org.mockserver.verify.VerificationTimes.exactly;
+
+import java.util.Date;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockserver.client.MockServerClient;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.springtest.MockServerPort;
+import org.mockserver.springtest.MockServerTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+
+@MockServerTest
+@ActiveProfiles( { "auth-aware-test", "http-aware-test" } )
+@TestPropertySource(properties = {
+	"spring.security.oauth2.resourceserver.opaque-token.introspection-uri=http://localhost:${mockServerPort}/oauth2/introspect",
+	"sds.jwt-validation.enabled=true",
+	"sds.jwt-validation.jwk-set-uri=http://localhost:${mockServerPort}/oauth2/jwks",
+	"sds.jwt-validation.issuer-uri=" + JwtValidationTest.ISSUER,
+	"sds.jwt-validation.audiences=" + JwtValidationTest.AUDIENCE
+})
+public class JwtValidationTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String MOCK_SERVER_BASE_URL = "https://my.ehr.org/FHIR/R4" ;
+
+	static final String ISSUER = "https://my.ehr.org/oauth2" ;
+	static final String AUDIENCE = "https://my.sds.org/fhir" ;
+	private static final String OTHER_AUDIENCE = "https://other.resource.server.org/fhir" ;
+
+	private static final RSAKey SIGNING_KEY = generateKey( "authorization-server-key" ) ;
+	private static final RSAKey UNKNOWN_KEY = generateKey( "unknown-key" ) ;
+
+	private MockServerClient mockServerClient ;
+
+	@MockServerPort
+	Integer mockServerPort;
+
+	private static RSAKey generateKey( String keyId ) {
+		try {
+			return new RSAKeyGenerator( 2048 ).keyID( keyId ).generate() ;
+		} catch ( JOSEException ex ) {
+			throw new IllegalStateException( ex ) ;
+		}
+	}
+
+	@BeforeEach
+	public void serveKeys() {
+		mockServerClient.when( jwksRequest() ).respond( jwksResponse() ) ;
+	}
+
+	private static String signedToken( RSAKey key, IIdType user ) throws JOSEException {
+		return signedToken( key, user, AUDIENCE ) ;
+	}
+
+	private static String signedToken( RSAKey key, IIdType user, String audience ) throws JOSEException {
+		JWTClaimsSet claims =
+			new JWTClaimsSet.Builder()
+				.issuer( ISSUER )
+				.audience( audience )
+				.subject( user.toString() )
+				.issueTime( new Date() )
+				.expirationTime( new Date( System.currentTimeMillis() + 60000 ) )
+				.claim( "scope", "patient/*.read patient/*.write" )
+				.build()
+				;
+		SignedJWT jwt = new SignedJWT( new JWSHeader.Builder( JWSAlgorithm.RS256 ).keyID( key.getKeyID() ).build(), claims ) ;
+		jwt.sign( new RSASSASigner( key ) ) ;
+		return jwt.serialize() ;
+	}
+
+	private IIdType storeNewQuestionnaireResponse( IGenericClient client, String patientId ) {
+		QuestionnaireResponse questionnaireResponse  = new QuestionnaireResponse() ;
+		questionnaireResponse.setSubject( new Reference( new IdType( "Patient", patientId ) ) ) ;
+		questionnaireResponse.setQuestionnaire( createTestSpecificId() ) ;
+		return client.create().resource(questionnaireResponse).execute().getId();
+	}
+
+	@Test
+	void canStoreWithJwtValidatedWithoutIntrospection() throws JOSEException {
+		String patientId = createTestSpecificId() ;
+		String token = signedToken( SIGNING_KEY, new IdType( MOCK_SERVER_BASE_URL, "Patient", patientId, null ) ) ;
+
+		IGenericClient patientAppClient = authenticatingClient( token ) ;
+		IIdType questRespId = storeNewQuestionnaireResponse( patientAppClient, patientId ) ;
+		QuestionnaireResponse questResp = patientAppClient.read().resource(QuestionnaireResponse.class).withId(questRespId).execute();
+		Assertions.assertNotNull( questResp );
+
+		mockServerClient.verify( oauth2IntrospectRequest(), exactly(0) ) ;
+	}
+
+	@Test
+	void canStoreWithOpaqueTokenIntrospected() {
+		String patientId = createTestSpecificId() ;
+		String token = createTestSpecificId() ;
+		mockServerClient
+			.when( oauth2IntrospectRequest().withBody( "token=" + token ) )
+			.respond( oauth2IntrospectResponse( new IdType( MOCK_SERVER_BASE_URL, "Patient", patientId, null ) ) )
+			;
+
+		IIdType questRespId = storeNewQuestionnaireResponse( authenticatingClient( token ), patientId ) ;
+		Assertions.assertNotNull( questRespId );
+
+		mockServerClient.verify( oauth2IntrospectRequest(), exactly(1) ) ;
+	}
+
+	@Test
+	void cannotStoreWithJwtSignedByUnknownKey() throws JOSEException {
+		String patientId = createTestSpecificId() ;
+		String token = signedToken( UNKNOWN_KEY, new IdType( MOCK_SERVER_BASE_URL, "Patient", patientId, null ) ) ;
+
+		IGenericClient patientAppClient = authenticatingClient( token ) ;
+		Assertions.assertThrows( AuthenticationException.class, () -> storeNewQuestionnaireResponse( patientAppClient, patientId ) ) ;
+
+		mockServerClient.verify( oauth2IntrospectRequest(), exactly(0) ) ;
+	}
+
+	@Test
+	void cannotStoreWithJwtForAnotherAudience() throws JOSEException {
+		String patientId = createTestSpecificId() ;
+		String token = signedToken( SIGNING_KEY, new IdType( MOCK_SERVER_BASE_URL, "Patient", patientId, null ), OTHER_AUDIENCE ) ;
+
+		IGenericClient patientAppClient = authenticatingClient( token ) ;
+		Assertions.assertThrows( AuthenticationException.class, () -> storeNewQuestionnaireResponse( patientAppClient, patientId ) ) ;
+
+		mockServerClient.verify( oauth2IntrospectRequest(), exactly(0) ) ;
+	}
+
+	private HttpRequest jwksRequest() {
+		return request()
+			.withMethod( "GET" )
+			.withPath( "/oauth2/jwks" )
+			;
+	}
+
+	private HttpResponse jwksResponse() {
+		return response()
+			.withStatusCode( 200 )
+			.withBody( json( new JWKSet( SIGNING_KEY.toPublicJWK() ).toString() ) )
+			;
+	}
+
+	private HttpRequest oauth2IntrospectRequest() {
+		return request()
+			.withMethod( "POST" )
+			.withPath( "/oauth2/introspect" )
+			;
+	}
+
+	private HttpResponse oauth2IntrospectResponse( IIdType user ) {
+		String jsonBody =
+			String.format(
+				"{ \"active\": true, \"sub\": \"%1$s\", \"exp\": %2$d }",
+				user.toString(),
+				System.currentTimeMillis() + 60000
+				);
+		return response()
+			.withStatusCode( 200 )
+			.withBody( json( jsonBody ) )
+			;
+	}
+
+}
@@ -0,0 +1,227 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+public class KeysetPagingTest extends BaseSuppplementalDataStoreTest {
+
+	private static final long ONE_DAY_MILLIS = 24 * 60 * 60 * 1000L ;
+
+	private IGenericClient client ;
+	private IIdType patientId ;
+
+	@BeforeEach
+	public void setupPatient() {
+		client = client() ;
+		patientId = client.create().resource( new Patient() ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	private IIdType createObservation( Date effective ) {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.setSubject( new Reference( patientId ) ) ;
+		observation.setEffective( new DateTimeType( effective ) ) ;
+		return client.create().resource( observation ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	private IIdType createObservation( Period effective ) {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.setSubject( new Reference( patientId ) ) ;
+		observation.setEffective( effective ) ;
+		return client.create().resource( observation ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	private List<String> idsOf( Bundle bundle ) {
+		return bundle.getEntry().stream().map( e -> e.getResource().getIdElement().toUnqualifiedVersionless().getValue() ).collect( toList() ) ;
+	}
+
+	private List<String> allPages( Bundle firstPage, int pageSize ) {
+		List<String> ids = new ArrayList<>() ;
+		Bundle page = firstPage ;
+		for ( int pageCount = 1 ; ; ++pageCount ) {
+			assertThat( pageCount, lessThan( 100 ) ) ;
+			assertThat( page.getEntry().size() <= pageSize, equalTo( true ) ) ;
+			ids.addAll( idsOf( page ) ) ;
+			if ( null == page.getLink( Bundle.LINK_NEXT ) )
+				break ;
+			String nextUrl = page.getLink( Bundle.LINK_NEXT ).getUrl() ;
+			/* where a cursor cannot continue, offset paging takes over */
+			assertThat( nextUrl, anyOf( containsString( SupplementalDataStoreKeysetPaging.PARAM_CURSOR + "=" ), containsString( "_offset=" ) ) ) ;
+			assertThat( nextUrl, not( containsString( "_getpages" ) ) ) ;
+			page = client.loadPage().next( page ).execute() ;
+		}
+		return ids ;
+	}
+
+	@Test
+	void pagesThroughObservationsByDate() {
+		long start = System.currentTimeMillis() - 30 * ONE_DAY_MILLIS ;
+		List<String> expectedIds = new ArrayList<>() ;
+		for ( int i = 0 ; i < 7 ; ++i )
+			expectedIds.add( createObservation( new Date( start + i * ONE_DAY_MILLIS ) ).getValue() ) ;
+
+		Bundle firstPage =
+			client.search()
+				.forResource( Observation.class )
+				.where( Observation.SUBJECT.hasId( patientId ) )
+				.sort().ascending( Observation.DATE )
+				.count( 3 )
+				.returnBundle( Bundle.class )
+				.execute()
+				;
+
+		assertThat( firstPage.getLink( Bundle.LINK_NEXT ).getUrl(), not( containsString( "_offset" ) ) ) ;
+		assertThat( allPages( firstPage, 3 ), equalTo( expectedIds ) ) ;
+	}
+
+	@Test
+	void pagesThroughOverlappingPeriodsByDate() {
+		long start = System.currentTimeMillis() - 30 * ONE_DAY_MILLIS ;
+		Date end = new Date( System.currentTimeMillis() - ONE_DAY_MILLIS ) ;
+		List<String> expectedIds = new ArrayList<>() ;
+		/* every period overlaps the start of every later one */
+		for ( int i = 0 ; i < 6 ; ++i )
+			expectedIds.add( createObservation( new Period().setStart( new Date( start + i * ONE_DAY_MILLIS ) ).setEnd( end ) ).getValue() ) ;
+
+		Bundle firstPage =
+			client.search()
+				.forResource( Observation.class )
+				.where( Observation.SUBJECT.hasId( patientId ) )
+				.sort().ascending( Observation.DATE )
+				.count( 2 )
+				.returnBundle( Bundle.class )
+				.execute()
+				;
+
+		assertThat( allPages( firstPage, 2 ), equalTo( expectedIds ) ) ;
+	}
+
+	@Test
+	void pagesThroughOverlappingPeriodsByDescendingDate() {
+		long start = System.currentTimeMillis() - 30 * ONE_DAY_MILLIS ;
+		Date end = new Date( System.currentTimeMillis() - ONE_DAY_MILLIS ) ;
+		List<String> expectedIds = new ArrayList<>() ;
+		for ( int i = 0 ; i < 6 ; ++i )
+			expectedIds.add( 0, createObservation( new Period().setStart( new Date( start + i * ONE_DAY_MILLIS ) ).setEnd( end ) ).getValue() ) ;
+
+		Bundle firstPage =
+			client.search()
+				.forResource( Observation.class )
+				.where( Observation.SUBJECT.hasId( patientId ) )
+				.sort().descending( Observation.DATE )
+				.count( 2 )
+				.returnBundle( Bundle.class )
+				.execute()
+				;
+
+		assertThat( allPages( firstPage, 2 ), equalTo( expectedIds ) ) ;
+	}
+
+	@Test
+	void pagesThroughObservationsWithoutDate() {
+		long start = System.currentTimeMillis() - 30 * ONE_DAY_MILLIS ;
+		List<String> expectedIds = new ArrayList<>() ;
+		for ( int i = 0 ; i < 3 ; ++i )
+			expectedIds.add( createObservation( new Date( start + i * ONE_DAY_MILLIS ) ).getValue() ) ;
+		List<String> undatedIds = new ArrayList<>() ;
+		for ( int i = 0 ; i < 3 ; ++i )
+			undatedIds.add( createObservation( (Period)null ).getValue() ) ;
+
+		Bundle firstPage =
+			client.search()
+				.forResource( Observation.class )
+				.where( Observation.SUBJECT.hasId( patientId ) )
+				.sort().ascending( Observation.DATE )
+				.count( 2 )
+				.returnBundle( Bundle.class )
+				.execute()
+				;
+
+		List<String> pagedIds = allPages( firstPage, 2 ) ;
+		assertThat( pagedIds.subList( 0, expectedIds.size() ), equalTo( expectedIds ) ) ;
+		assertThat( pagedIds.size(), equalTo( expectedIds.size() + undatedIds.size() ) ) ;
+		assertThat( pagedIds.containsAll( undatedIds ), equalTo( true ) ) ;
+	}
+
+	@Test
+	void pagesThroughObservationsSharingOneDate() {
+		Date effective = new Date( System.currentTimeMillis() - ONE_DAY_MILLIS ) ;
+		List<String> expectedIds = new ArrayList<>() ;
+		for ( int i = 0 ; i < 5 ; ++i )
+			expectedIds.add( createObservation( effective ).getValue() ) ;
+
+		Bundle firstPage =
+			client.search()
+				.forResource( Observation.class )
+				.where( Observation.SUBJECT.hasId( patientId ) )
+				.sort().descending( Observation.DATE )
+				.count( 2 )
+				.returnBundle( Bundle.class )
+				.execute()
+				;
+
+		List<String> pagedIds = allPages( firstPage, 2 ) ;
+		assertThat( pagedIds.size(), equalTo( expectedIds.size() ) ) ;
+		assertThat( pagedIds.stream().distinct().count(), equalTo( (long)expectedIds.size() ) ) ;
+		assertThat( pagedIds.containsAll( expectedIds ), equalTo( true ) ) ;
+	}
+
+	@Test
+	void pagesThroughObservationsByLastUpdated() {
+		List<String> expectedIds = new ArrayList<>() ;
+		for ( int i = 0 ; i < 5 ; ++i )
+			expectedIds.add( createObservation( new Date() ).getValue() ) ;
+
+		Bundle firstPage =
+			client.search()
+				.byUrl( "Observation?subject=" + patientId.getValue() + "&_sort=-_lastUpdated&_count=2" )
+				.returnBundle( Bundle.class )
+				.execute()
+				;
+
+		List<String> pagedIds = allPages( firstPage, 2 ) ;
+		assertThat( pagedIds.size(), equalTo( expectedIds.size() ) ) ;
+		assertThat( pagedIds.stream().distinct().count(), equalTo( (long)expectedIds.size() ) ) ;
+		assertThat( pagedIds.containsAll( expectedIds ), equalTo( true ) ) ;
+	}
+
+	@Test
+	void searchesOutsideCompartmentAreNotKeysetPaged() {
+		for ( int i = 0 ; i < 3 ; ++i )
+			createObservation( new Date() ) ;
+
+		Bundle firstPage =
+			client.search()
+				.forResource( Observation.class )
+				.sort().ascending( Observation.DATE )
+				.count( 2 )
+				.returnBundle( Bundle.class )
+				.execute()
+				;
+
+		Bundle.BundleLinkComponent next = firstPage.getLink( Bundle.LINK_NEXT ) ;
+		assertThat( null == next ? null : next.getUrl(), not( containsString( SupplementalDataStoreKeysetPaging.PARAM_CURSOR ) ) ) ;
+	}
+}
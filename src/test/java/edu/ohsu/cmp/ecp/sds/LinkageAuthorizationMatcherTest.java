@@ -0,0 +1,58 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Linkage;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.UrlType;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthorizationSearchParamMatcher.Match;
+
+public class LinkageAuthorizationMatcherTest extends BaseSuppplementalDataStoreTest {
+
+	@Autowired
+	SupplementalDataStoreLinkageAuthorizationMatcher linkageAuthorizationMatcher ;
+
+	private static Linkage linkage( String sourceId, String alternateId, String alternatePartitionName ) {
+		Linkage linkage = new Linkage() ;
+		linkage.addItem().setType( Linkage.LinkageType.SOURCE ).setResource( new Reference( sourceId ) ) ;
+		Reference alternate = new Reference( alternateId ) ;
+		alternate.addExtension( "urn:sds:partition-name", new UrlType( alternatePartitionName ) ) ;
+		linkage.addItem().setType( Linkage.LinkageType.ALTERNATE ).setResource( alternate ) ;
+		return linkage ;
+	}
+
+	private Match match( String filter, IBaseResource resource ) {
+		return linkageAuthorizationMatcher.match( resource.fhirType() + "?" + filter, resource ).match ;
+	}
+
+	@Test
+	void linkageNamingThePatientMatches() {
+		Linkage linkage = linkage( "Patient/123", "Patient/abc", "http://my.ehr.org/fhir/R4" ) ;
+
+		assertThat( match( SupplementalDataStoreLinkageAuthorizationMatcher.filterForLinkageByItem( new IdType( "Patient/123" ) ), linkage ), equalTo( Match.MATCH ) ) ;
+		assertThat( match( SupplementalDataStoreLinkageAuthorizationMatcher.filterForLinkageByItem( new IdType( "http://my.ehr.org/fhir/R4/Patient/abc" ) ), linkage ), equalTo( Match.MATCH ) ) ;
+	}
+
+	@Test
+	void linkageNotNamingThePatientDoesNotMatch() {
+		Linkage linkage = linkage( "Patient/123", "Patient/abc", "http://my.ehr.org/fhir/R4" ) ;
+
+		assertThat( match( SupplementalDataStoreLinkageAuthorizationMatcher.filterForLinkageByItem( new IdType( "Patient/456" ) ), linkage ), equalTo( Match.NO_MATCH ) ) ;
+	}
+
+	@Test
+	void otherFiltersAreMatchedGenerically() {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+
+		assertThat( match( "status=final", observation ), equalTo( Match.MATCH ) ) ;
+		assertThat( match( "status=amended", observation ), equalTo( Match.NO_MATCH ) ) ;
+	}
+}
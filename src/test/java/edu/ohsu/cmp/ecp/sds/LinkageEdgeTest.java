@@ -0,0 +1,109 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdge;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdgeBackfill;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdges;
+
+public class LinkageEdgeTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreLinkageEdges linkageEdges ;
+
+	@Autowired
+	SupplementalDataStoreLinkageEdgeBackfill backfill ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	private IIdType localPatientId ;
+	private IIdType nonLocalPatientId ;
+
+	@BeforeEach
+	public void setupLinkage() {
+		await().atMost( 30, SECONDS ).until( linkageEdges::isReady ) ;
+
+		nonLocalPatientId = linkage.establishNonLocalUser( new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ) ;
+		localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+	}
+
+	@Test
+	void linkingWritesEdge() {
+		List<SupplementalDataStoreLinkageEdge> edges = linkageEdges.edgesFromLocalUser( localPatientId ) ;
+
+		assertThat( edges.size(), equalTo( 1 ) ) ;
+		assertThat( edges.get(0).getNonLocalUserId(), equalTo( "Patient/" + nonLocalPatientId.getIdPart() ) ) ;
+		assertThat( edges.get(0).getNonLocalPartition(), equalTo( "http://my.ehr.org/fhir/R4" ) ) ;
+	}
+
+	@Test
+	void canFindPatientsLinkedToLocalPatient() {
+		List<IIdType> linkedIds = linkage.patientsLinkedTo( localPatientId ).stream().map( IBaseReference::getReferenceElement ).collect( toList() ) ;
+
+		assertThat( linkedIds.stream().map( IIdType::getIdPart ).collect( toList() ), contains( nonLocalPatientId.getIdPart() ) ) ;
+		assertThat( linkedIds.get(0).getBaseUrl(), equalTo( "http://my.ehr.org/fhir/R4" ) ) ;
+	}
+
+	@Test
+	void canFindPatientsLinkedFromNonLocalPatient() {
+		List<IIdType> linkedIds = linkage.patientsLinkedFrom( nonLocalPatientId ).stream().map( IBaseReference::getReferenceElement ).collect( toList() ) ;
+
+		assertThat( linkedIds.stream().map( IIdType::getValue ).collect( toList() ), contains( localPatientId.getValue() ) ) ;
+	}
+
+	@Test
+	void canLookupLocalUserForNonLocalPatient() {
+		Optional<IIdType> localUserId = linkage.lookupLocalUserFor( nonLocalPatientId ) ;
+
+		assertThat( localUserId.map( IIdType::getValue ), equalTo( Optional.of( localPatientId.getValue() ) ) ) ;
+	}
+
+	@Test
+	void unlinkedPatientHasNoEdges() {
+		IIdType otherPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId() + "-other", null ) ;
+
+		assertThat( linkageEdges.edgesToNonLocalUser( otherPatientId ), empty() ) ;
+		assertThat( linkage.lookupLocalUserFor( otherPatientId ), equalTo( Optional.empty() ) ) ;
+	}
+
+	@Test
+	void completedBackfillIsNotRepeated() {
+		String localPartitionName = sdsProperties.getPartition().getLocalName() ;
+		await().atMost( 30, SECONDS ).until( () -> linkageEdges.backfillIsComplete( localPartitionName ) ) ;
+
+		String linkageId = linkageEdges.edgesFromLocalUser( localPatientId ).get(0).getLinkageId() ;
+		linkageEdges.removeEdgesForLinkage( linkageId ) ;
+
+		backfill.startBackfill() ;
+		assertThat( linkageEdges.edgesFromLocalUser( localPatientId ), empty() ) ;
+
+		/* without the marker, the next backfill scans the Linkage resources again */
+		linkageEdges.clearBackfillMarker( localPartitionName ) ;
+		backfill.backfill() ;
+		assertThat( linkageEdges.edgesFromLocalUser( localPatientId ).size(), equalTo( 1 ) ) ;
+		assertThat( linkageEdges.backfillIsComplete( localPartitionName ), equalTo( true ) ) ;
+	}
+}
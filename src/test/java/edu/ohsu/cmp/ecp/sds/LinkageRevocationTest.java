@@ -0,0 +1,83 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Linkage;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageEdges;
+
+/*
+ * a Linkage that is deleted stops authorizing the partitions it linked as soon as the delete commits,
+ * so each change here is committed as it is written
+ */
+@ActiveProfiles( "auth-aware-test")
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class LinkageRevocationTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4" ;
+	private static final String OTHER_FOREIGN_PARTITION_NAME = "http://other.ehr.org/fhir/R4" ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreLinkageEdges linkageEdges ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	DaoRegistry daoRegistry ;
+
+	@BeforeEach
+	public void awaitLinkageEdges() {
+		await().atMost( 30, SECONDS ).until( linkageEdges::isReady ) ;
+	}
+
+	private void deleteLinkage( String linkageId ) {
+		SystemRequestDetails request = new SystemRequestDetails() ;
+		request.setRequestPartitionId( RequestPartitionId.fromPartitionName( sdsProperties.getPartition().getLocalName() ) ) ;
+		daoRegistry.getResourceDao( Linkage.class ).delete( new IdType( "Linkage", linkageId ), request ) ;
+	}
+
+	@Test
+	void deletedLinkageDeniesTheOtherPartitionOnTheNextRequest() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		IIdType authorizedPatientId = linkage.establishNonLocalUser( new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ) ;
+		IIdType otherPatientId = linkage.establishNonLocalUser( new IdType( OTHER_FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, authorizedPatientId ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, otherPatientId ) ;
+
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+		IGenericClient clientOther = authenticatingClientTargetingPartition( token, OTHER_FOREIGN_PARTITION_NAME ) ;
+
+		/* the identity, its graph component, and its rules are all in use before the Linkage is deleted */
+		Patient otherPatient = clientOther.read().resource( Patient.class ).withId( otherPatientId.getIdPart() ).execute() ;
+		Assertions.assertNotNull( otherPatient ) ;
+
+		deleteLinkage( linkageEdges.edgesToNonLocalUser( otherPatientId ).get( 0 ).getLinkageId() ) ;
+
+		assertThrows( ForbiddenOperationException.class, () -> clientOther.read().resource( Patient.class ).withId( otherPatientId.getIdPart() ).execute() ) ;
+	}
+}
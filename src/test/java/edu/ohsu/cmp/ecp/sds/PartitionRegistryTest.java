@@ -0,0 +1,53 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.jpa.dao.data.IPartitionDao;
+
+public class PartitionRegistryTest extends BaseSuppplementalDataStoreTest {
+
+	@Autowired
+	SupplementalDataStorePartition partition ;
+
+	@Autowired
+	IPartitionDao daoPartition ;
+
+	@Test
+	void unknownPartitionDoesNotExist() {
+		String partitionName = "http://unknown.ehr.org/fhir/R4/" + createTestSpecificId() ;
+
+		assertThat( partition.partitionExists( partitionName ), equalTo( false ) ) ;
+	}
+
+	@Test
+	void concurrentFirstWritesEstablishOnePartition() throws Exception {
+		String partitionName = "http://concurrent.ehr.org/fhir/R4/" + createTestSpecificId() ;
+
+		ExecutorService executor = Executors.newFixedThreadPool( 4 ) ;
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>() ;
+			for ( int i = 0 ; i < 8 ; ++i ) {
+				tasks.add( () -> { partition.establishNonLocalPartition( partitionName ) ; return null ; } ) ;
+			}
+			for ( Future<Void> result : executor.invokeAll( tasks ) ) {
+				result.get() ;
+			}
+		} finally {
+			executor.shutdown() ;
+		}
+
+		assertThat( partition.partitionExists( partitionName ), equalTo( true ) ) ;
+		assertThat( daoPartition.findForName( partitionName ).isPresent(), equalTo( true ) ) ;
+	}
+}
@@ -0,0 +1,102 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Media;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.SearchParameter;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
+import ca.uhn.fhir.jpa.searchparam.extractor.ISearchParamExtractor;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+
+public class PatientCompartmentIndexTest extends BaseSuppplementalDataStoreTest {
+
+	@Autowired
+	SupplementalDataStorePatientCompartmentIndex patientCompartmentIndex ;
+
+	@Autowired
+	DaoRegistry daoRegistry ;
+
+	@Autowired
+	ISearchParamExtractor searchParamExtractor ;
+
+	@Test
+	void indexIncludesPatientCompartmentPaths() {
+		assertThat( patientCompartmentIndex.pathsForPatientCompartment( "QuestionnaireResponse" ), hasItem( "QuestionnaireResponse.subject" ) ) ;
+		assertThat( patientCompartmentIndex.pathsForPatientCompartment( "QuestionnaireResponse" ), hasItem( "QuestionnaireResponse.author" ) ) ;
+	}
+
+	@Test
+	void resourceOutsidePatientCompartmentHasNoPaths() {
+		assertThat( patientCompartmentIndex.pathsForPatientCompartment( "Questionnaire" ), empty() ) ;
+	}
+
+	private SearchParameter mediaSubjectIncludingOperator() {
+		SearchParameter searchParameter = new SearchParameter() ;
+		searchParameter.setStatus( Enumerations.PublicationStatus.ACTIVE ) ;
+		searchParameter.setUrl( "http://example.org/fhir/SearchParameter/" + createTestSpecificId() ) ;
+		searchParameter.setName( "subject" ) ;
+		searchParameter.setCode( "subject" ) ;
+		searchParameter.setDescription( "the subject of the media, or its operator" ) ;
+		searchParameter.addBase( "Media" ) ;
+		searchParameter.setType( Enumerations.SearchParamType.REFERENCE ) ;
+		searchParameter.setExpression( "Media.subject | Media.operator" ) ;
+		return searchParameter ;
+	}
+
+	/* SearchParameters are not partitioned */
+	private SystemRequestDetails defaultPartitionRequest() {
+		SystemRequestDetails request = new SystemRequestDetails() ;
+		request.setRequestPartitionId( RequestPartitionId.defaultPartition() ) ;
+		return request ;
+	}
+
+	/* the references the index places a resource in a Patient compartment by, as resource creation reads them */
+	private List<String> patientCompartmentReferences( Media media ) {
+		return
+			patientCompartmentIndex.pathsForPatientCompartment( "Media" ).stream()
+				.flatMap( path -> searchParamExtractor.getPathValueExtractor( media, path ).get().stream() )
+				.filter( IBaseReference.class::isInstance )
+				.map( value -> ((IBaseReference)value).getReferenceElement().getValue() )
+				.collect( toList() )
+				;
+	}
+
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	void customSearchParameterChangesTheRebuiltIndex() {
+		Media mediaOperatedByPatient = new Media() ;
+		mediaOperatedByPatient.setOperator( new Reference( "Patient/" + createTestSpecificId() ) ) ;
+		assertThat( patientCompartmentReferences( mediaOperatedByPatient ), empty() ) ;
+
+		IIdType searchParameterId = daoRegistry.getResourceDao( SearchParameter.class ).create( mediaSubjectIncludingOperator(), defaultPartitionRequest() ).getId().toUnqualifiedVersionless() ;
+		try {
+			patientCompartmentIndex.handleChange( ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds( List.of( searchParameterId ), List.of(), List.of() ) ) ;
+
+			assertThat( patientCompartmentIndex.pathsForPatientCompartment( "Media" ), hasItem( "Media.operator" ) ) ;
+			assertThat( patientCompartmentReferences( mediaOperatedByPatient ), contains( mediaOperatedByPatient.getOperator().getReference() ) ) ;
+		} finally {
+			daoRegistry.getResourceDao( SearchParameter.class ).delete( searchParameterId, defaultPartitionRequest() ) ;
+			patientCompartmentIndex.handleChange( ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds( List.of(), List.of(), List.of( searchParameterId ) ) ) ;
+		}
+
+		assertThat( patientCompartmentIndex.pathsForPatientCompartment( "Media" ), not( hasItem( "Media.operator" ) ) ) ;
+	}
+}
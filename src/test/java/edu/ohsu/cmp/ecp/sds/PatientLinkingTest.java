@@ -6,10 +6,16 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
 
@@ -34,6 +40,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.test.context.ActiveProfiles;
 
 import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
@@ -41,7 +48,9 @@ import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+import io.micrometer.core.instrument.MeterRegistry;
 
 @ActiveProfiles( "auth-aware-test")
 public class PatientLinkingTest extends BaseSuppplementalDataStoreTest {
@@ -49,6 +58,18 @@ public class PatientLinkingTest extends BaseSuppplementalDataStoreTest {
 	@Autowired
 	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
 
+	@Autowired
+	MeterRegistry meterRegistry ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreResourceCreation resourceCreation ;
+
+	@Autowired
+	SupplementalDataStoreLinkingLocks linkingLocks ;
+
 	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
 	private static final String FOREIGN_PARTITION_NAME_OTHER = "http://other.ehr.org/fhir/R4/" ;
 
@@ -323,6 +344,62 @@ public class PatientLinkingTest extends BaseSuppplementalDataStoreTest {
 		assertThat( clientForeign2.read().resource( Patient.class).withId( otherPatientId ).execute(), notNullValue() ) ;
 	}
 
+	/*
+	 *  setup: another patient stored, linking it and the foreign (authorized) patient to a new local patient
+	 * action: look up the local patient of the other patient, and the patients linked to it, twice in one request
+	 * result: - each repeated lookup is answered without querying the linkages again
+	 *         - the repeated answers are the linkages of the other patient
+	 */
+	@Test
+	void repeatedLookupsForPatientQueryItsLinkagesOnce() {
+		clientForeign2.update().resource( patient( otherPatientId ) ).execute();
+
+		Map<String,Integer> linkageQueries = new HashMap<>() ;
+		SupplementalDataStoreLookups lookups = lookupsCountingLinkageQueries( linkageQueries ) ;
+		ServletRequestDetails request = new ServletRequestDetails() ;
+		request.setServletRequest( new MockHttpServletRequest() ) ;
+
+		Optional<IIdType> localPatientId = lookups.lookupLocalUserFor( otherPatientId, request ) ;
+		Optional<IIdType> repeatedLocalPatientId = lookups.lookupLocalUserFor( otherPatientId, request ) ;
+		Set<IIdType> linkedPatientIds = lookups.patientsLinkedTo( localPatientId.orElseThrow(), request ) ;
+		Set<IIdType> repeatedLinkedPatientIds = lookups.patientsLinkedTo( localPatientId.orElseThrow(), request ) ;
+
+		assertThat( linkageQueries.get( "lookupLocalUserFor " + otherPatientId.getValue() ), equalTo( 1 ) ) ;
+		assertThat( linkageQueries.get( "patientsLinkedTo " + localPatientId.get().getValue() ), equalTo( 1 ) ) ;
+
+		assertThat( repeatedLocalPatientId.map( IIdType::getValue ), equalTo( localPatientId.map( IIdType::getValue ) ) ) ;
+		assertThat( localPatientId.map( IIdType::getIdPart ), equalTo( linkage.lookupLocalUserFor( authorizedPatientId ).map( IIdType::getIdPart ) ) ) ;
+		assertThat( idPartsOf( repeatedLinkedPatientIds ), equalTo( idPartsOf( linkedPatientIds ) ) ) ;
+		assertThat( idPartsOf( linkedPatientIds ), containsInAnyOrder( otherPatientId.getIdPart(), authorizedPatientId.getIdPart() ) ) ;
+	}
+
+	/* the lookups of a request, answered by a linkage that counts the queries made of it for each patient */
+	private SupplementalDataStoreLookups lookupsCountingLinkageQueries( Map<String,Integer> linkageQueries ) {
+		SupplementalDataStoreLookups lookups = new SupplementalDataStoreLookups() ;
+		lookups.linkage =
+			(SupplementalDataStoreLinkage)Proxy.newProxyInstance(
+				SupplementalDataStoreLinkage.class.getClassLoader(),
+				new Class<?>[] { SupplementalDataStoreLinkage.class },
+				(proxy, method, args) -> {
+					if ( null != args && args.length == 1 && args[0] instanceof IIdType )
+						linkageQueries.merge( method.getName() + " " + ((IIdType)args[0]).getValue(), 1, Integer::sum ) ;
+					try {
+						return method.invoke( linkage, args ) ;
+					} catch ( InvocationTargetException ex ) {
+						throw ex.getCause() ;
+					}
+				}
+				);
+		lookups.resourceCreation = resourceCreation ;
+		lookups.meterRegistry = meterRegistry ;
+		lookups.linkingLocks = linkingLocks ;
+		return lookups ;
+	}
+
+	private static List<String> idPartsOf( Set<IIdType> ids ) {
+		return ids.stream().map( IIdType::getIdPart ).sorted().collect( toList() ) ;
+	}
+
 	/*
 	 *  setup: no resources
 	 * action: store Observation belonging to foreign (authorized) patient (e.g. records from another institution)
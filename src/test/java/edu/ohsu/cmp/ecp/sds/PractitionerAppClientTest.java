@@ -116,7 +116,8 @@ public class PractitionerAppClientTest extends BaseSuppplementalDataStoreTest {
 		Assertions.assertNotNull( questRespBasilisk );
 		Assertions.assertNotNull( questRespCrocodile );
 
-		mockServerClient.verify( oauth2Expectations[0].getId(), exactly(3) ) ;
+		/* the introspected token is cached, so the three reads introspect it once */
+		mockServerClient.verify( oauth2Expectations[0].getId(), exactly(1) ) ;
 	}
 
 	private RequestDefinition oauth2IntrospectRequest( String token ) {
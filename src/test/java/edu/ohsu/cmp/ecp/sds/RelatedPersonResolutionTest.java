@@ -0,0 +1,142 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+import static org.mockserver.model.JsonBody.json;
+import static org.mockserver.verify.VerificationTimes.exactly;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockserver.client.MockServerClient;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.springtest.MockServerPort;
+import org.mockserver.springtest.MockServerTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.core.DefaultOAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.server.resource.authentication.BearerTokenAuthentication;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+
+@MockServerTest
+@ActiveProfiles( { "auth-aware-test", "http-aware-test" } )
+@TestPropertySource(properties = {
+	"spring.security.oauth2.resourceserver.opaque-token.introspection-uri=http://localhost:${mockServerPort}/oauth2/introspect"
+})
+public class RelatedPersonResolutionTest extends BaseSuppplementalDataStoreTest {
+
+	private MockServerClient mockServerClient ;
+
+	@MockServerPort
+	Integer mockServerPort;
+
+	@Autowired
+	SupplementalDataStoreRelatedPersonPermissions relatedPersonPermissions ;
+
+	private IIdType relatedPersonId ;
+	private IIdType patientId ;
+
+	@BeforeEach
+	public void setupRelatedPerson() {
+		String baseUrl = "http://localhost:" + mockServerPort + "/fhir/" ;
+		relatedPersonId = new IdType( baseUrl, "RelatedPerson", createTestSpecificId(), null ) ;
+		patientId = new IdType( baseUrl, "Patient", createTestSpecificId(), null ) ;
+		mockServerClient.when( metadataRequest() ).respond( metadataResponse() ) ;
+	}
+
+	private Authentication authenticationWith( String token ) {
+		Instant issuedAt = Instant.now() ;
+		OAuth2AccessToken accessToken = new OAuth2AccessToken( OAuth2AccessToken.TokenType.BEARER, token, issuedAt, issuedAt.plusSeconds( 60 ) ) ;
+		DefaultOAuth2AuthenticatedPrincipal principal = new DefaultOAuth2AuthenticatedPrincipal( relatedPersonId.getValue(), Map.of( "sub", relatedPersonId.getValue() ), Collections.emptyList() ) ;
+		return new BearerTokenAuthentication( principal, accessToken, Collections.emptyList() ) ;
+	}
+
+	private IIdType resolve( String token ) {
+		return relatedPersonPermissions.resolveWritablePatientIdFor( relatedPersonId, authenticationWith( token ) ) ;
+	}
+
+	@Test
+	void secondResolutionWithSameTokenIsNotRead() {
+		String token = createTestSpecificId() ;
+		mockServerClient.when( relatedPersonRequest( token ) ).respond( relatedPersonResponse() ) ;
+
+		IIdType firstPatientId = resolve( token ) ;
+		IIdType secondPatientId = resolve( token ) ;
+
+		assertThat( firstPatientId.getIdPart(), equalTo( patientId.getIdPart() ) ) ;
+		assertThat( secondPatientId.getIdPart(), equalTo( patientId.getIdPart() ) ) ;
+		mockServerClient.verify( relatedPersonRequest( token ), exactly(1) ) ;
+	}
+
+	@Test
+	void resolutionWithDifferentTokenIsRead() {
+		String token = createTestSpecificId() ;
+		String otherToken = createTestSpecificId() ;
+		mockServerClient.when( relatedPersonRequest( token ) ).respond( relatedPersonResponse() ) ;
+		mockServerClient.when( relatedPersonRequest( otherToken ) ).respond( relatedPersonResponse() ) ;
+
+		resolve( token ) ;
+		IIdType otherPatientId = resolve( otherToken ) ;
+
+		assertThat( otherPatientId.getIdPart(), equalTo( patientId.getIdPart() ) ) ;
+		mockServerClient.verify( relatedPersonRequest( token ), exactly(1) ) ;
+		mockServerClient.verify( relatedPersonRequest( otherToken ), exactly(1) ) ;
+	}
+
+	@Test
+	void failedResolutionIsRememberedBriefly() {
+		String token = createTestSpecificId() ;
+		mockServerClient.when( relatedPersonRequest( token ) ).respond( response().withStatusCode( 500 ) ) ;
+
+		assertThat( resolve( token ), nullValue() ) ;
+		assertThat( resolve( token ), nullValue() ) ;
+
+		mockServerClient.verify( relatedPersonRequest( token ), exactly(1) ) ;
+	}
+
+	private HttpRequest metadataRequest() {
+		return request()
+			.withMethod("GET")
+			.withPath("/fhir/metadata")
+			;
+	}
+
+	private HttpResponse metadataResponse() {
+		return response()
+			.withStatusCode( 200 )
+			.withBody( json( "{ \"resourceType\": \"CapabilityStatement\" }" ) )
+			;
+	}
+
+	private HttpRequest relatedPersonRequest( String token ) {
+		return request()
+			.withMethod( "GET" )
+			.withPath( "/fhir/RelatedPerson/" + relatedPersonId.getIdPart() )
+			.withHeader( "Authorization", "Bearer " + token )
+			;
+	}
+
+	private HttpResponse relatedPersonResponse() {
+		String jsonBody =
+			String.format(
+				"{ \"resourceType\": \"RelatedPerson\", \"id\": \"%2$s\", \"patient\": { \"reference\": \"%1$s\" } }",
+				patientId,
+				relatedPersonId.getIdPart()
+				);
+		return response()
+			.withStatusCode( 200 )
+			.withBody( json( jsonBody ) )
+			;
+	}
+}
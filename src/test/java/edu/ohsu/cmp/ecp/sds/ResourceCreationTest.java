@@ -0,0 +1,131 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toCollection;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.searchparam.extractor.ISearchParamExtractor;
+import ca.uhn.fhir.jpa.searchparam.extractor.PathAndRef;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+
+public class ResourceCreationTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String PARTITION_NAME = "http://my.ehr.org/fhir/R4" ;
+
+	@Autowired
+	SupplementalDataStoreResourceCreation resourceCreation ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	ISearchParamExtractor searchParamExtractor ;
+
+	@Autowired
+	FhirContext fhirContext ;
+
+	private RequestDetails createRequest( IBaseResource resource ) {
+		SystemRequestDetails requestDetails = new SystemRequestDetails() ;
+		requestDetails.setFhirContext( fhirContext ) ;
+		requestDetails.setRestOperationType( RestOperationTypeEnum.CREATE ) ;
+		requestDetails.setResource( resource ) ;
+		requestDetails.addHeader( sdsProperties.getPartition().getHttpHeader(), PARTITION_NAME ) ;
+		return requestDetails ;
+	}
+
+	private Set<String> compartmentsOf( IBaseResource resource ) {
+		return
+			resourceCreation.resourceCreationInfo( createRequest( resource ) )
+				.map( SupplementalDataStoreResourceCreation.Details::compartments )
+				.map( compartments -> compartments.stream().map( IIdType::getValue ).collect( toCollection( TreeSet::new ) ) )
+				.orElseGet( TreeSet::new )
+				;
+	}
+
+	/*
+	 * the compartments as they were found before only the compartment paths were evaluated:
+	 * every reference of the resource was extracted, then those not placing it in a Patient compartment were dropped
+	 */
+	private Set<String> compartmentsFromEveryReference( IBaseResource resource ) {
+		Set<String> compartmentParamNames = new HashSet<>() ;
+		for ( RuntimeSearchParam searchParam : fhirContext.getResourceDefinition( resource ).getSearchParamsForCompartmentName( "Patient" ) ) {
+			if ( searchParam.getParamType() == RestSearchParameterTypeEnum.REFERENCE && null != searchParam.getProvidesMembershipInCompartments() && searchParam.getProvidesMembershipInCompartments().contains( "Patient" ) )
+				compartmentParamNames.add( searchParam.getName() ) ;
+		}
+
+		Set<String> compartments = new TreeSet<>() ;
+		for ( PathAndRef pathAndRef : searchParamExtractor.extractResourceLinks( resource, false ) ) {
+			if ( !compartmentParamNames.contains( pathAndRef.getSearchParamName() ) )
+				continue ;
+			IIdType owner = pathAndRef.getRef().getReferenceElement() ;
+			if ( "Patient".equals( owner.getResourceType() ) )
+				compartments.add( owner.withServerBase( PARTITION_NAME, "Patient" ).getValue() ) ;
+		}
+		return compartments ;
+	}
+
+	@Test
+	void patientReferencedByCompartmentPathsPlacesResourceInCompartments() {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.setSubject( new Reference( "Patient/subject-" + createTestSpecificId() ) ) ;
+		observation.addPerformer( new Reference( "Patient/performer-" + createTestSpecificId() ) ) ;
+
+		Set<String> compartments = compartmentsOf( observation ) ;
+
+		assertThat( compartments, containsInAnyOrder(
+			PARTITION_NAME + "/" + observation.getSubject().getReference(),
+			PARTITION_NAME + "/" + observation.getPerformerFirstRep().getReference()
+			) ) ;
+		assertThat( compartments, equalTo( compartmentsFromEveryReference( observation ) ) ) ;
+	}
+
+	@Test
+	void patientReferencedByNonCompartmentPathDoesNotPlaceResourceInCompartment() {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.addFocus( new Reference( "Patient/focus-" + createTestSpecificId() ) ) ;
+
+		assertThat( resourceCreation.resourceCreationInfo( createRequest( observation ) ), equalTo( Optional.empty() ) ) ;
+		assertThat( compartmentsFromEveryReference( observation ), empty() ) ;
+	}
+
+	@Test
+	void patientReferencedByBothKindsOfPathIsInCompartmentsAsBefore() {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.setSubject( new Reference( "Patient/subject-" + createTestSpecificId() ) ) ;
+		observation.addFocus( new Reference( "Patient/focus-" + createTestSpecificId() ) ) ;
+		observation.addHasMember( new Reference( "Observation/member-" + createTestSpecificId() ) ) ;
+
+		QuestionnaireResponse questionnaireResponse = new QuestionnaireResponse() ;
+		questionnaireResponse.setStatus( QuestionnaireResponse.QuestionnaireResponseStatus.COMPLETED ) ;
+		questionnaireResponse.setSubject( new Reference( "Patient/subject-" + createTestSpecificId() ) ) ;
+		questionnaireResponse.setAuthor( new Reference( "Patient/author-" + createTestSpecificId() ) ) ;
+		questionnaireResponse.setSource( new Reference( "Practitioner/source-" + createTestSpecificId() ) ) ;
+
+		assertThat( compartmentsOf( observation ), containsInAnyOrder( PARTITION_NAME + "/" + observation.getSubject().getReference() ) ) ;
+		assertThat( compartmentsOf( observation ), equalTo( compartmentsFromEveryReference( observation ) ) ) ;
+		assertThat( compartmentsOf( questionnaireResponse ), equalTo( compartmentsFromEveryReference( questionnaireResponse ) ) ) ;
+	}
+}
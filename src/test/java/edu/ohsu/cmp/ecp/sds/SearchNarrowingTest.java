@@ -0,0 +1,169 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.not;
+
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.RestfulServer;
+
+@ActiveProfiles( "auth-aware-test")
+public class SearchNarrowingTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	private IIdType authorizedPatientId ;
+	private IIdType localPatientId ;
+	private IGenericClient clientLocal ;
+	private IGenericClient clientForeign ;
+	private IIdType otherLocalPatientId ;
+	private IGenericClient otherClientLocal ;
+	private Map<String,String[]> searchedParameters ;
+
+	@Autowired
+	RestfulServer server ;
+
+	/* sees the parameters of each search after every other interceptor has seen them */
+	@Interceptor
+	public class SearchedParametersCapture {
+		@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = 1000)
+		public void capture( RequestDetails theRequestDetails ) {
+			searchedParameters = theRequestDetails.getParameters() ;
+		}
+	}
+
+	private final SearchedParametersCapture searchedParametersCapture = new SearchedParametersCapture() ;
+
+	@BeforeEach
+	public void captureSearchedParameters() {
+		server.registerInterceptor( searchedParametersCapture ) ;
+	}
+
+	@AfterEach
+	public void stopCapturingSearchedParameters() {
+		server.unregisterInterceptor( searchedParametersCapture ) ;
+	}
+
+	@BeforeEach
+	public void setupLinkedPatients() {
+		authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+		clientLocal = authenticatingClient( token ) ;
+		clientForeign = authenticatingClientTargetingPartition( token, FOREIGN_PARTITION_NAME ) ;
+		clientForeign.update().resource( initPatient( authorizedPatientId ) ).execute() ;
+		localPatientId = clientLocal.create().resource( new Patient() ).execute().getId().toUnqualifiedVersionless() ;
+
+		IIdType otherAuthorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String otherToken = mockPrincipalRegistry.register().principal( "MyOtherPatient", otherAuthorizedPatientId.toString() ).token() ;
+		otherClientLocal = authenticatingClient( otherToken ) ;
+		otherLocalPatientId = otherClientLocal.create().resource( new Patient() ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	private IIdType createObservation( IGenericClient client, IIdType subject ) {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.setSubject( new Reference( subject ) ) ;
+		return client.create().resource( observation ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	private IIdType createObservationPerformedBy( IGenericClient client, IIdType performer ) {
+		Observation observation = new Observation() ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.addPerformer( new Reference( performer ) ) ;
+		return client.create().resource( observation ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	private IIdType createEncounter( IGenericClient client, IIdType subject ) {
+		Encounter encounter = new Encounter() ;
+		encounter.setStatus( Encounter.EncounterStatus.FINISHED ) ;
+		encounter.setSubject( new Reference( subject ) ) ;
+		return client.create().resource( encounter ).execute().getId().toUnqualifiedVersionless() ;
+	}
+
+	private List<String> idsOf( Bundle bundle ) {
+		return bundle.getEntry().stream().map( e -> e.getResource().getIdElement().toUnqualifiedVersionless().getValue() ).collect( toList() ) ;
+	}
+
+	@Test
+	void searchWithoutCompartmentFindsOnlyThePatientsResources() {
+		IIdType ownEncounter = createEncounter( clientLocal, localPatientId ) ;
+		IIdType ownEncounterNamingNonLocalPatient = createEncounter( clientLocal, authorizedPatientId ) ;
+		createEncounter( otherClientLocal, otherLocalPatientId ) ;
+		createEncounter( otherClientLocal, otherLocalPatientId ) ;
+
+		Bundle bundle = clientLocal.search().forResource( Encounter.class ).returnBundle( Bundle.class ).execute() ;
+
+		assertThat( idsOf( bundle ), containsInAnyOrder( ownEncounter.getValue(), ownEncounterNamingNonLocalPatient.getValue() ) ) ;
+		/* the search reached the database already limited to the patient's compartments */
+		assertThat(
+			List.of( searchedParameters.get( "patient" )[0].split( "," ) ),
+			containsInAnyOrder( localPatientId.getValue(), authorizedPatientId.toUnqualifiedVersionless().getValue(), authorizedPatientId.toVersionless().getValue() )
+			);
+	}
+
+	@Test
+	void searchOfTypeInCompartmentByManyElementsIsLeftAsItWas() {
+		IIdType ownObservation = createObservation( clientLocal, localPatientId ) ;
+		IIdType observationPerformedByPatient = createObservationPerformedBy( clientLocal, localPatientId ) ;
+		createObservation( otherClientLocal, otherLocalPatientId ) ;
+
+		Bundle bundle = clientLocal.search().forResource( Observation.class ).returnBundle( Bundle.class ).execute() ;
+
+		/* an Observation naming the patient only as its performer is still in the patient's compartment */
+		assertThat( idsOf( bundle ), containsInAnyOrder( ownObservation.getValue(), observationPerformedByPatient.getValue() ) ) ;
+		assertThat( searchedParameters.keySet(), not( hasItems( "patient", "subject", "performer" ) ) ) ;
+	}
+
+	@Test
+	void searchWithoutCompartmentFindsThePatientsResourcesInNonLocalPartition() {
+		createObservation( clientLocal, localPatientId ) ;
+		IIdType foreignObservation = createObservation( clientForeign, authorizedPatientId.toUnqualifiedVersionless() ) ;
+
+		Bundle bundle = clientForeign.search().forResource( Observation.class ).returnBundle( Bundle.class ).execute() ;
+
+		assertThat( idsOf( bundle ), containsInAnyOrder( foreignObservation.getValue() ) ) ;
+	}
+
+	@Test
+	void patientSearchFindsOnlyThePatient() {
+		Bundle bundle = clientLocal.search().forResource( Patient.class ).returnBundle( Bundle.class ).execute() ;
+
+		assertThat( idsOf( bundle ), containsInAnyOrder( localPatientId.getValue() ) ) ;
+	}
+
+	@Test
+	void searchNamingCompartmentIsLeftAsItWas() {
+		IIdType ownObservation = createObservation( clientLocal, localPatientId ) ;
+		createObservation( otherClientLocal, otherLocalPatientId ) ;
+
+		Bundle bundle = clientLocal.search().forResource( Observation.class ).where( Observation.SUBJECT.hasId( localPatientId ) ).returnBundle( Bundle.class ).execute() ;
+
+		assertThat( idsOf( bundle ), containsInAnyOrder( ownObservation.getValue() ) ) ;
+	}
+}
@@ -0,0 +1,91 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.AdditionalRequestHeadersInterceptor;
+import ca.uhn.fhir.rest.client.interceptor.CapturingInterceptor;
+
+@ActiveProfiles( "auth-aware-test")
+public class ServerTimingTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	private IIdType authorizedPatientId;
+	private IGenericClient patientAppClient ;
+	private CapturingInterceptor capturingInterceptor ;
+
+	@BeforeEach
+	public void setupAuthorizedPatient() {
+		sdsProperties.getServerTiming().setMode( SupplementalDataStoreProperties.ServerTimingMode.REQUESTED ) ;
+
+		authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null );
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+
+		patientAppClient = authenticatingClient( token ) ;
+		capturingInterceptor = new CapturingInterceptor() ;
+		patientAppClient.registerInterceptor( capturingInterceptor ) ;
+	}
+
+	@AfterEach
+	public void restoreServerTimingMode() {
+		sdsProperties.getServerTiming().setMode( SupplementalDataStoreProperties.ServerTimingMode.OFF ) ;
+	}
+
+	private List<String> serverTimingHeaders() {
+		return capturingInterceptor.getLastResponse().getHeaders( SupplementalDataStoreServerTiming.HEADER_SERVER_TIMING ) ;
+	}
+
+	private void storeQuestionnaireResponse() {
+		QuestionnaireResponse questionnaireResponse  = new QuestionnaireResponse() ;
+		questionnaireResponse.setSubject( new Reference( authorizedPatientId ) ) ;
+		questionnaireResponse.setQuestionnaire( createTestSpecificId() ) ;
+		patientAppClient.create().resource( questionnaireResponse ).execute() ;
+	}
+
+	@Test
+	void requestWithoutTimingHeaderHasNoServerTiming() {
+		storeQuestionnaireResponse() ;
+
+		assertThat( serverTimingHeaders(), empty() ) ;
+	}
+
+	@Test
+	void requestWithTimingHeaderReportsSdsPhases() {
+		AdditionalRequestHeadersInterceptor requestTimings = new AdditionalRequestHeadersInterceptor() ;
+		requestTimings.addHeaderValue( sdsProperties.getServerTiming().getRequestHeader(), "true" ) ;
+		patientAppClient.registerInterceptor( requestTimings ) ;
+
+		storeQuestionnaireResponse() ;
+
+		List<String> serverTimings = serverTimingHeaders() ;
+		assertThat( serverTimings, hasSize( 1 ) ) ;
+		assertThat( serverTimings.get( 0 ), containsString( "linkage;" ) ) ;
+		assertThat( serverTimings.get( 0 ), containsString( "partition;" ) ) ;
+		assertThat( serverTimings.get( 0 ), containsString( "linking;" ) ) ;
+		assertThat( serverTimings.get( 0 ), containsString( "authz;" ) ) ;
+		assertThat( serverTimings.get( 0 ), containsString( "hapi;" ) ) ;
+	}
+}
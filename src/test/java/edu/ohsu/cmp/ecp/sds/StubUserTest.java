@@ -0,0 +1,48 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+public class StubUserTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+	private static final String OTHER_FOREIGN_PARTITION_NAME = "http://other.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Test
+	void establishingExistingStubLeavesItUnchanged() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+
+		IIdType firstId = linkage.establishNonLocalUser( nonLocalPatientId ) ;
+		IIdType secondId = linkage.establishNonLocalUser( nonLocalPatientId ) ;
+
+		assertThat( firstId.getVersionIdPart(), equalTo( "1" ) ) ;
+		assertThat( secondId.getVersionIdPart(), equalTo( "1" ) ) ;
+		assertThat( secondId.getIdPart(), equalTo( nonLocalPatientId.getIdPart() ) ) ;
+	}
+
+	@Test
+	void establishingSeveralStubsAnswersInOrder() {
+		IIdType existingPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		IIdType newPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		IIdType otherPartitionPatientId = new IdType( OTHER_FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		linkage.establishNonLocalUser( existingPatientId ) ;
+
+		List<IIdType> establishedIds = linkage.establishNonLocalUsers( List.of( existingPatientId, newPatientId, otherPartitionPatientId ) ) ;
+
+		assertThat( establishedIds.stream().map( IIdType::getIdPart ).collect( toList() ), contains( existingPatientId.getIdPart(), newPatientId.getIdPart(), otherPartitionPatientId.getIdPart() ) ) ;
+		assertThat( establishedIds.stream().map( IIdType::getVersionIdPart ).collect( toList() ), contains( "1", "1", "1" ) ) ;
+		assertThat( linkage.patientCompartmentIsClaimed( otherPartitionPatientId ), equalTo( true ) ) ;
+	}
+}
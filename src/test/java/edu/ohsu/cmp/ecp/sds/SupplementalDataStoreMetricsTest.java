@@ -0,0 +1,52 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+public class SupplementalDataStoreMetricsTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	MeterRegistry meterRegistry ;
+
+	private double count( String name, String... tags ) {
+		Counter counter = meterRegistry.find( name ).tags( tags ).counter() ;
+		return null == counter ? 0.0 : counter.count() ;
+	}
+
+	@Test
+	void establishingStubCountsOneStubUser() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		double before = count( SupplementalDataStoreMetrics.METER_USER_CREATED, SupplementalDataStoreMetrics.TAG_USER_KIND, "stub", SupplementalDataStoreMetrics.TAG_USER_TYPE, "Patient" ) ;
+
+		linkage.establishNonLocalUser( nonLocalPatientId ) ;
+		linkage.establishNonLocalUser( nonLocalPatientId ) ;
+
+		double after = count( SupplementalDataStoreMetrics.METER_USER_CREATED, SupplementalDataStoreMetrics.TAG_USER_KIND, "stub", SupplementalDataStoreMetrics.TAG_USER_TYPE, "Patient" ) ;
+		assertThat( after - before, equalTo( 1.0 ) ) ;
+	}
+
+	@Test
+	void establishingLocalUserCountsOneLinkage() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		double before = count( SupplementalDataStoreMetrics.METER_LINKAGE_CREATED, SupplementalDataStoreMetrics.TAG_USER_TYPE, "Patient" ) ;
+
+		linkage.establishLocalUserFor( nonLocalPatientId ) ;
+		linkage.establishLocalUserFor( nonLocalPatientId ) ;
+
+		double after = count( SupplementalDataStoreMetrics.METER_LINKAGE_CREATED, SupplementalDataStoreMetrics.TAG_USER_TYPE, "Patient" ) ;
+		assertThat( after - before, equalTo( 1.0 ) ) ;
+	}
+}